@@ -0,0 +1,213 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.file.*;
+import java.security.cert.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.net.ssl.*;
+
+/**
+ * Shared plumbing for the benchmarks: a throwaway keystore, a client that trusts it, and a
+ * closed-loop load generator that records latencies.
+ */
+class BenchSupport {
+    static final String KEYSTORE_PASSWORD = "benchmark";
+
+    /**
+     * The outcome of one load run.
+     */
+    static class Result {
+        final long mRequests;
+        final long mFailures;
+        final Duration mElapsed;
+        final long[] mLatencies;
+
+        Result(long requests, long failures, Duration elapsed, long[] latencies) {
+            mRequests = requests;
+            mFailures = failures;
+            mElapsed = elapsed;
+            mLatencies = latencies;
+            Arrays.sort(mLatencies);
+        }
+
+        /**
+         * Get the number of successful requests per second.
+         *
+         * @return the throughput
+         */
+        double getThroughput() {
+            return mRequests / (mElapsed.toNanos() / 1e9);
+        }
+
+        /**
+         * Get a latency percentile.
+         *
+         * @param percentile the percentile, from 0 to 100
+         * @return the latency in milliseconds
+         */
+        double getPercentile(double percentile) {
+            if (mLatencies.length == 0) {
+                return Double.NaN;
+            }
+            var index = (int) Math.ceil(percentile / 100 * mLatencies.length) - 1;
+            return mLatencies[Math.max(0, Math.min(index, mLatencies.length - 1))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%10.0f req/s  p50 %8.2f ms  p99 %8.2f ms  p99.9 %8.2f ms"
+                + "  failures %d", getThroughput(), getPercentile(50), getPercentile(99),
+                getPercentile(99.9), mFailures);
+        }
+    }
+
+    /**
+     * Generate a self-signed keystore with keytool from the running JDK.
+     *
+     * @return the keystore file, deleted when the JVM exits
+     * @throws IOException if keytool fails
+     * @throws InterruptedException if interrupted while waiting for keytool
+     */
+    static File createKeystore() throws IOException, InterruptedException {
+        var directory = Files.createTempDirectory("webserver-bench");
+        var keystore = directory.resolve("keystore.p12").toFile();
+        var keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        var process = new ProcessBuilder(keytool, "-genkeypair", "-keystore",
+                keystore.toString(), "-storetype", "pkcs12", "-storepass", KEYSTORE_PASSWORD,
+                "-alias", "bench", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-validity", "2")
+            .redirectErrorStream(true)
+            .start();
+        var output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output);
+        }
+        keystore.deleteOnExit();
+        directory.toFile().deleteOnExit();
+        return keystore;
+    }
+
+    /**
+     * Find a port nothing is listening on.
+     *
+     * @return a free port
+     * @throws IOException if no port can be found
+     */
+    static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Get the base URI of a server started on a port, matching the address it binds to.
+     *
+     * @param port the server's port
+     * @return the base URI
+     * @throws UnknownHostException if the local host can't be resolved
+     */
+    static URI baseUri(int port) throws UnknownHostException {
+        return URI.create("https://" + InetAddress.getLocalHost().getHostAddress() + ":" + port);
+    }
+
+    /**
+     * Create an SSLContext that trusts any certificate.
+     *
+     * @return the context
+     * @throws Exception if the context can't be created
+     */
+    static SSLContext trustingContext() throws Exception {
+        var trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        var context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { trustAll }, null);
+        return context;
+    }
+
+    /**
+     * Create an HTTP/1.1 client that trusts the benchmark's self-signed certificate.
+     *
+     * @return the client
+     * @throws Exception if the client can't be created
+     */
+    static HttpClient client() throws Exception {
+        System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+        return HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .sslContext(trustingContext())
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+    /**
+     * Run a closed-loop load test: each simulated user sends a request, waits for the response
+     * and immediately sends the next one until time runs out.
+     *
+     * @param client the client to send requests with
+     * @param uri the URI to request
+     * @param users the number of concurrent users
+     * @param warmup how long to send requests before recording results
+     * @param duration how long to record results for
+     * @return the recorded results
+     * @throws InterruptedException if interrupted while waiting for the run to finish
+     */
+    static Result load(HttpClient client, URI uri, int users, Duration warmup, Duration duration)
+            throws InterruptedException {
+        var request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).build();
+        var start = System.nanoTime();
+        var recordFrom = start + warmup.toNanos();
+        var deadline = recordFrom + duration.toNanos();
+        var requests = new AtomicLong();
+        var failures = new AtomicLong();
+        var latencies = new ConcurrentLinkedQueue<Long>();
+        var finished = new CountDownLatch(users);
+        for (int i = 0; i < users; i++) {
+            send(client, request, recordFrom, deadline, requests, failures, latencies, finished);
+        }
+        finished.await();
+        var elapsed = Duration.ofNanos(Math.max(1, System.nanoTime() - recordFrom));
+        var sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        return new Result(requests.get(), failures.get(), elapsed, sorted);
+    }
+
+    private static void send(HttpClient client, HttpRequest request, long recordFrom,
+            long deadline, AtomicLong requests, AtomicLong failures,
+            Queue<Long> latencies, CountDownLatch finished) {
+        var sent = System.nanoTime();
+        if (sent >= deadline) {
+            finished.countDown();
+            return;
+        }
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+            .whenComplete((response, error) -> {
+                var received = System.nanoTime();
+                if (sent >= recordFrom) {
+                    if (error == null && response.statusCode() < 500) {
+                        requests.incrementAndGet();
+                        latencies.add(received - sent);
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                }
+                send(client, request, recordFrom, deadline, requests, failures, latencies,
+                    finished);
+            });
+    }
+}
@@ -0,0 +1,56 @@
+package com.dylantjohnson.webserver;
+
+import java.time.*;
+import java.util.*;
+
+/**
+ * Compares executor strategies for handlers that block.
+ * <p>
+ * Each handler sleeps to stand in for a database or disk call, so a strategy's throughput is
+ * limited by how many requests it can keep waiting at once rather than by the CPU.
+ * <p>
+ * Arguments: [users] [blocking milliseconds] [seconds per run]
+ */
+public class ExecutorBenchmark {
+    public static void main(String[] args) throws Exception {
+        var users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        var blockMillis = args.length > 1 ? Long.parseLong(args[1]) : 20L;
+        var seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        var strategies = new LinkedHashMap<String, ExecutorStrategy>();
+        strategies.put("fixed pool (one thread per core)", ExecutorStrategy.fixedPool());
+        try {
+            strategies.put("virtual threads", ExecutorStrategy.virtualThreads());
+        } catch (UnsupportedOperationException ex) {
+            System.out.println("Skipping virtual threads: " + ex.getMessage());
+        }
+
+        var keystore = BenchSupport.createKeystore();
+        var client = BenchSupport.client();
+        RouteHandler blocking = request -> {
+            Thread.sleep(blockMillis);
+            return new RouteResponseBuilder().setBody("ok").build();
+        };
+        System.out.println(String.format("%d users, handlers block for %d ms", users,
+            blockMillis));
+        for (var entry : strategies.entrySet()) {
+            var port = BenchSupport.freePort();
+            var server = new WebServerBuilder()
+                .setKeystore(keystore, BenchSupport.KEYSTORE_PASSWORD)
+                .setPort(port)
+                .setHandler("/", blocking)
+                .setExecutorStrategy(entry.getValue())
+                .build();
+            server.start();
+            try {
+                var result = BenchSupport.load(client, BenchSupport.baseUri(port).resolve("/"),
+                    users, Duration.ofSeconds(Math.max(1, seconds / 3)),
+                    Duration.ofSeconds(seconds));
+                System.out.println(String.format("%-34s %s", entry.getKey(), result));
+            } finally {
+                server.stop();
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,291 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Times the server's hot paths one operation at a time, with no network involved.
+ * <p>
+ * Covered are {@link RequestProcessor#handle} for a few kinds of handler, building responses
+ * with {@link RouteResponseBuilder#setBody}, hashing a file the way {@link FileWatcher} does,
+ * creating the SSLContext in {@link DefaultConfigurator}, and finding routes with
+ * {@link Router}. Requests are handed to the processor as in-memory exchanges, so the numbers
+ * are the processor's own cost without a transport.
+ * <p>
+ * Arguments: [iterations] [seconds per iteration]
+ */
+public class HotPathBenchmark {
+    private static final byte[] SMALL_BODY = "ok".getBytes();
+    private static final byte[] POST_BODY = new byte[4096];
+    private static final long MAX_BODY_SIZE = 1024 * 1024;
+    private static final AccessLog ACCESS_LOG = new AccessLog(null, 0, 0, false);
+    private static final ServerEvents EVENTS = new ServerEvents(
+        ServerEvents.DEFAULT_THRESHOLD_NANOS);
+
+    public static void main(String[] args) throws Exception {
+        var iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        var seconds = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        var iterationTime = Duration.ofMillis((long) (seconds * 1000));
+        var bench = new MicroBench(iterationTime.multipliedBy(2), iterations, iterationTime);
+
+        var admission = new AdmissionController(1024, Long.MAX_VALUE, 1);
+        var compression = new Compression(true, 1024);
+        var metrics = new ServerMetrics(admission, ACCESS_LOG);
+        var error = new DefaultErrorBody();
+        var html = new RouteResponseBuilder()
+            .setHeader("Content-Type", "text/html; charset=utf-8")
+            .setBody("<p>Hello, world!</p>\n".repeat(800))
+            .build();
+        var chunk = "<li>item</li>\n".repeat(73).getBytes();
+        var noParameters = new String[0];
+        var noOffsets = new int[0];
+
+        var fixed = processor(request -> new RouteResponseBuilder().setBody(SMALL_BODY).build(),
+            error, admission, compression, metrics, "/fixed");
+        var cached = processor(request -> html, error, admission, compression, metrics, "/html");
+        var streamed = processor(request -> new RouteResponseBuilder()
+            .setHeader("Content-Type", "text/html; charset=utf-8")
+            .setBody(output -> {
+                for (var i = 0; i < 16; i++) {
+                    output.write(chunk);
+                }
+            })
+            .build(), error, admission, compression, metrics, "/stream");
+        var echo = processor(request -> new RouteResponseBuilder()
+            .setBody(request.getBody().readAllBytes())
+            .build(), error, admission, compression, metrics, "/echo");
+        var identity = Map.<String, String>of();
+        var gzip = Map.of("Accept-Encoding", "gzip");
+
+        System.out.println("RequestProcessor.handle");
+        bench.run("  small fixed body", () -> {
+            var exchange = new BenchExchange("GET", "/fixed", identity, null);
+            fixed.handle(exchange, noParameters, noOffsets);
+            return exchange;
+        });
+        bench.run("  16 KiB HTML, identity", () -> {
+            var exchange = new BenchExchange("GET", "/html", identity, null);
+            cached.handle(exchange, noParameters, noOffsets);
+            return exchange;
+        });
+        bench.run("  16 KiB HTML, gzip (cached variant)", () -> {
+            var exchange = new BenchExchange("GET", "/html", gzip, null);
+            cached.handle(exchange, noParameters, noOffsets);
+            return exchange;
+        });
+        bench.run("  16 KiB BodyWriter, gzip", () -> {
+            var exchange = new BenchExchange("GET", "/stream", gzip, null);
+            streamed.handle(exchange, noParameters, noOffsets);
+            return exchange;
+        });
+        bench.run("  4 KiB POST echo", () -> {
+            var exchange = new BenchExchange("POST", "/echo",
+                Map.of("Content-Length", String.valueOf(POST_BODY.length)), POST_BODY);
+            echo.handle(exchange, noParameters, noOffsets);
+            return exchange;
+        });
+
+        var text = "Hello, world!\n".repeat(16);
+        var bytes = new byte[16 * 1024];
+        System.out.println("RouteResponseBuilder.setBody");
+        bench.run("  String, 224 chars", () -> new RouteResponseBuilder().setBody(text).build());
+        bench.run("  byte[], 16 KiB", () -> new RouteResponseBuilder().setBody(bytes).build());
+
+        var file = Files.createTempFile("hotpath", ".bin");
+        file.toFile().deleteOnExit();
+        var contents = new byte[1024 * 1024];
+        new Random(42).nextBytes(contents);
+        Files.write(file, contents);
+        System.out.println("FileWatcher.hash");
+        bench.run("  1 MiB file", () -> FileWatcher.hash(file.toFile()));
+
+        var keystore = BenchSupport.createKeystore();
+        System.out.println("DefaultConfigurator");
+        bench.run("  load keystore and create SSLContext",
+            () -> new DefaultConfigurator(keystore, BenchSupport.KEYSTORE_PASSWORD, Map.of(),
+                new TlsSettings(TlsSettings.DEFAULT_SESSION_CACHE_SIZE,
+                    TlsSettings.DEFAULT_SESSION_TIMEOUT_SEC, true), metrics));
+
+        var builder = new Router.Builder<Integer>();
+        var patterns = new String[] {
+            "/", "/about", "/blog", "/blog/{slug}", "/blog/{slug}/comments",
+            "/blog/{slug}/comments/{id}", "/static/*", "/favicon.ico", "/login", "/logout"
+        };
+        for (var i = 0; i < patterns.length; i++) {
+            builder.add(RouteRequest.Method.GET, patterns[i], i);
+        }
+        for (var i = 0; i < 40; i++) {
+            builder.add(RouteRequest.Method.GET, "/api/v1/resource" + i + "/{id}", 100 + i);
+        }
+        var router = builder.build();
+        var offsets = new int[router.getOffsetsLength()];
+        var paths = new String[] {
+            "/", "/blog/hello-world/comments/42", "/static/css/site.css",
+            "/api/v1/resource37/1234", "/missing"
+        };
+        System.out.println("Router.find (50 routes)");
+        for (var path : paths) {
+            bench.run("  " + path, () -> router.find(path, offsets));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Create a processor for a route whose metrics are kept with the rest.
+     *
+     * @param handler the route's handler
+     * @param error the error page
+     * @param admission the admission controller
+     * @param compression the compression settings
+     * @param metrics the server's metrics
+     * @param route the route, for its metrics
+     * @return the processor
+     */
+    private static RequestProcessor processor(RouteHandler handler, DefaultErrorBody error,
+            AdmissionController admission, Compression compression, ServerMetrics metrics,
+            String route) {
+        return new RequestProcessor(handler, error, admission, compression,
+            MAX_BODY_SIZE, metrics.addRoute(route, null), ACCESS_LOG,
+            EVENTS, new RateLimiter[0]);
+    }
+
+    /**
+     * An exchange held entirely in memory, whose response body is thrown away.
+     */
+    private static class BenchExchange extends HttpExchange {
+        /**
+         * Where every response body goes. Closing it does nothing, so it's shared.
+         */
+        private static final OutputStream DISCARD = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+            }
+        };
+
+        private final String mMethod;
+        private final URI mUri;
+        private final Headers mRequestHeaders;
+        private final Headers mResponseHeaders;
+        private InputStream mRequestBody;
+        private OutputStream mResponseBody;
+        private int mResponseCode;
+
+        /**
+         * Create an exchange.
+         *
+         * @param method the request method
+         * @param path the request path
+         * @param headers the request headers
+         * @param body the request body, or null if there isn't one
+         */
+        BenchExchange(String method, String path, Map<String, String> headers, byte[] body) {
+            mMethod = method;
+            mUri = URI.create(path);
+            mRequestHeaders = new Headers();
+            for (var header : headers.entrySet()) {
+                mRequestHeaders.set(header.getKey(), header.getValue());
+            }
+            mResponseHeaders = new Headers();
+            mRequestBody = body == null ? InputStream.nullInputStream()
+                : new ByteArrayInputStream(body);
+            mResponseBody = DISCARD;
+            mResponseCode = -1;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return mRequestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return mResponseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return mUri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return mMethod;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return mRequestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return mResponseBody;
+        }
+
+        @Override
+        public void sendResponseHeaders(int code, long length) {
+            mResponseCode = code;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream input, OutputStream output) {
+            if (input != null) {
+                mRequestBody = input;
+            }
+            if (output != null) {
+                mResponseBody = output;
+            }
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.net.ssl.*;
+
+/**
+ * Runs a server on the loopback interface and puts it under load from the same process, one
+ * kind of handler at a time, with and without keep-alive.
+ * <p>
+ * The handlers answer with a small fixed body, a 16 KiB HTML page compressed with gzip, a body
+ * streamed from a {@link BodyWriter}, a file from a {@link StaticFileHandler}, an echo of a
+ * posted body, and a route with a path parameter. Each simulated user is a thread with its own
+ * TLS socket speaking HTTP/1.1. With keep-alive it reuses the socket for every request; without
+ * it, every request asks the server to close the connection and the next one opens a new
+ * connection, so the numbers include a TLS handshake per request.
+ * <p>
+ * With {@code reload} as the fourth argument, it instead loads the fixed body route while
+ * another thread calls {@link WebServer#reloadKeystore()} back to back, and reports how many
+ * reloads happened and how many handshakes and requests failed during them, which should be
+ * none. The server's message for each reload is left out of the output.
+ * <p>
+ * Arguments: [users] [seconds per run] [jdk|nio] [reload]
+ */
+public class LoadTest {
+    private static final String HOST = "localhost";
+    private static final byte[] POST_BODY = "x".repeat(4096).getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        var users = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        var seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        var nio = args.length > 2 && args[2].equals("nio");
+        var reload = args.length > 3 && args[3].equals("reload");
+
+        var keystore = BenchSupport.createKeystore();
+        var root = Files.createTempDirectory("webserver-load");
+        root.toFile().deleteOnExit();
+        var page = root.resolve("page.html");
+        Files.writeString(page, "<p>A static page.</p>\n".repeat(400));
+        page.toFile().deleteOnExit();
+        var html = new RouteResponseBuilder()
+            .setHeader("Content-Type", "text/html; charset=utf-8")
+            .setBody("<p>Hello, world!</p>\n".repeat(800))
+            .build();
+        var chunk = "<li>item</li>\n".repeat(73).getBytes(StandardCharsets.UTF_8);
+
+        var port = BenchSupport.freePort();
+        var server = new WebServerBuilder()
+            .setKeystore(keystore, BenchSupport.KEYSTORE_PASSWORD)
+            .setPort(port)
+            .setTransport(nio ? Transport.nio() : Transport.jdkHttpServer())
+            .setHandler(RouteRequest.Method.GET, "/fixed",
+                request -> new RouteResponseBuilder().setBody("ok").build())
+            .setHandler(RouteRequest.Method.GET, "/html", request -> html)
+            .setHandler(RouteRequest.Method.GET, "/stream", request -> new RouteResponseBuilder()
+                .setHeader("Content-Type", "text/html; charset=utf-8")
+                .setBody(output -> {
+                    for (var i = 0; i < 16; i++) {
+                        output.write(chunk);
+                    }
+                })
+                .build())
+            .setHandler("/static", new StaticFileHandler(root.toFile()))
+            .setHandler(RouteRequest.Method.POST, "/echo", request -> new RouteResponseBuilder()
+                .setBody(request.getBody().readAllBytes())
+                .build())
+            .setHandler(RouteRequest.Method.GET, "/users/{id}",
+                request -> new RouteResponseBuilder()
+                    .setBody("user " + request.getPathParameter("id"))
+                    .build())
+            .build();
+
+        var scenarios = new LinkedHashMap<String, String>();
+        scenarios.put("fixed body", request("GET", "/fixed", false));
+        scenarios.put("16 KiB HTML, gzip", request("GET", "/html", true));
+        scenarios.put("16 KiB BodyWriter, gzip", request("GET", "/stream", true));
+        scenarios.put("static file", request("GET", "/static/page.html", false));
+        scenarios.put("4 KiB POST echo", request("POST", "/echo", false));
+        scenarios.put("path parameter", request("GET", "/users/42", false));
+
+        var address = new InetSocketAddress(InetAddress.getLocalHost(), port);
+        var factory = BenchSupport.trustingContext().getSocketFactory();
+        server.start();
+        try {
+            System.out.println(String.format("%s transport, %d users", nio ? "NIO" : "JDK",
+                users));
+            for (var keepAlive : new boolean[] { true, false }) {
+                if (reload) {
+                    var request = scenarios.get("fixed body");
+                    if (!keepAlive) {
+                        request = request.replace("Connection: keep-alive",
+                            "Connection: close");
+                    }
+                    System.out.println(String.format("  %-26s %s",
+                        keepAlive ? "keep-alive" : "new connection per request",
+                        reload(server, factory, address, request, users,
+                            Duration.ofSeconds(seconds))));
+                    continue;
+                }
+                System.out.println(keepAlive ? "keep-alive" : "new connection per request");
+                for (var scenario : scenarios.entrySet()) {
+                    var request = scenario.getValue();
+                    if (!keepAlive) {
+                        request = request.replace("Connection: keep-alive",
+                            "Connection: close");
+                    }
+                    var result = load(factory, address, request, users,
+                        Duration.ofSeconds(Math.max(1, seconds / 3)),
+                        Duration.ofSeconds(seconds));
+                    System.out.println(String.format("  %-26s %s", scenario.getKey(), result));
+                }
+            }
+        } finally {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Format a request.
+     *
+     * @param method the request method
+     * @param path the request path
+     * @param gzip whether to accept gzip
+     * @return the request head, followed by a body for POST requests
+     */
+    private static String request(String method, String path, boolean gzip) {
+        var request = new StringBuilder()
+            .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+            .append("Host: ").append(HOST).append("\r\n")
+            .append("Connection: keep-alive\r\n");
+        if (gzip) {
+            request.append("Accept-Encoding: gzip\r\n");
+        }
+        if (method.equals("POST")) {
+            request.append("Content-Type: text/plain\r\n")
+                .append("Content-Length: ").append(POST_BODY.length).append("\r\n\r\n")
+                .append(new String(POST_BODY, StandardCharsets.UTF_8));
+        } else {
+            request.append("\r\n");
+        }
+        return request.toString();
+    }
+
+    /**
+     * Run a closed-loop load test with one thread per user.
+     *
+     * @param factory the factory for TLS sockets
+     * @param address the server's address
+     * @param request the request to send over and over
+     * @param users the number of concurrent users
+     * @param warmup how long to send requests before recording results
+     * @param duration how long to record results for
+     * @return the recorded results
+     * @throws InterruptedException if interrupted while waiting for the run to finish
+     */
+    private static BenchSupport.Result load(SSLSocketFactory factory, InetSocketAddress address,
+            String request, int users, Duration warmup, Duration duration)
+            throws InterruptedException {
+        var bytes = request.getBytes(StandardCharsets.ISO_8859_1);
+        var keepAlive = !request.contains("Connection: close");
+        var recordFrom = System.nanoTime() + warmup.toNanos();
+        var deadline = recordFrom + duration.toNanos();
+        var requests = new AtomicLong();
+        var failures = new AtomicLong();
+        var latencies = new ConcurrentLinkedQueue<long[]>();
+        var threads = new ArrayList<Thread>();
+        for (var i = 0; i < users; i++) {
+            var thread = new Thread(() -> {
+                var recorded = new long[1024];
+                var count = 0;
+                User user = null;
+                while (true) {
+                    var sent = System.nanoTime();
+                    if (sent >= deadline) {
+                        break;
+                    }
+                    var ok = false;
+                    try {
+                        if (user == null) {
+                            user = new User(factory, address);
+                        }
+                        ok = user.send(bytes) < 500;
+                        if (!keepAlive || !user.isOpen()) {
+                            user.close();
+                            user = null;
+                        }
+                    } catch (IOException ex) {
+                        if (user != null) {
+                            user.close();
+                            user = null;
+                        }
+                    }
+                    var received = System.nanoTime();
+                    if (sent < recordFrom) {
+                        continue;
+                    }
+                    if (ok) {
+                        if (count == recorded.length) {
+                            recorded = Arrays.copyOf(recorded, count * 2);
+                        }
+                        recorded[count++] = received - sent;
+                        requests.incrementAndGet();
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                }
+                if (user != null) {
+                    user.close();
+                }
+                latencies.add(Arrays.copyOf(recorded, count));
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        var elapsed = Duration.ofNanos(Math.max(1, System.nanoTime() - recordFrom));
+        var all = latencies.stream().flatMapToLong(Arrays::stream).toArray();
+        return new BenchSupport.Result(requests.get(), failures.get(), elapsed, all);
+    }
+
+    /**
+     * Run a closed-loop load test with one thread per user while the server's keystore is
+     * reloaded over and over.
+     *
+     * @param server the server to reload
+     * @param factory the factory for TLS sockets
+     * @param address the server's address
+     * @param request the request to send over and over
+     * @param users the number of concurrent users
+     * @param duration how long to run for
+     * @return how many reloads there were, and how many handshakes and requests failed
+     * @throws InterruptedException if interrupted while waiting for the run to finish
+     */
+    private static String reload(WebServer server, SSLSocketFactory factory,
+            InetSocketAddress address, String request, int users, Duration duration)
+            throws InterruptedException {
+        var bytes = request.getBytes(StandardCharsets.ISO_8859_1);
+        var keepAlive = !request.contains("Connection: close");
+        var deadline = System.nanoTime() + duration.toNanos();
+        var requests = new AtomicLong();
+        var handshakes = new AtomicLong();
+        var handshakeFailures = new AtomicLong();
+        var requestFailures = new AtomicLong();
+        var reloads = new AtomicLong();
+        var reloadFailures = new AtomicLong();
+        var threads = new ArrayList<Thread>();
+        for (var i = 0; i < users; i++) {
+            var thread = new Thread(() -> {
+                User user = null;
+                while (System.nanoTime() < deadline) {
+                    if (user == null) {
+                        try {
+                            user = new User(factory, address);
+                            handshakes.incrementAndGet();
+                        } catch (IOException ex) {
+                            handshakeFailures.incrementAndGet();
+                            continue;
+                        }
+                    }
+                    try {
+                        if (user.send(bytes) < 500) {
+                            requests.incrementAndGet();
+                        } else {
+                            requestFailures.incrementAndGet();
+                        }
+                        if (!keepAlive || !user.isOpen()) {
+                            user.close();
+                            user = null;
+                        }
+                    } catch (IOException ex) {
+                        requestFailures.incrementAndGet();
+                        user.close();
+                        user = null;
+                    }
+                }
+                if (user != null) {
+                    user.close();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        var out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            while (System.nanoTime() < deadline) {
+                try {
+                    server.reloadKeystore();
+                    reloads.incrementAndGet();
+                } catch (SslCreationException ex) {
+                    reloadFailures.incrementAndGet();
+                }
+            }
+            for (var thread : threads) {
+                thread.join();
+            }
+        } finally {
+            System.setOut(out);
+        }
+        return String.format("%d reloads (%d failed), %d handshakes (%d failed), "
+            + "%d requests (%d failed)", reloads.get(), reloadFailures.get(), handshakes.get(),
+            handshakeFailures.get(), requests.get(), requestFailures.get());
+    }
+
+    /**
+     * One simulated user's connection, which reads just enough HTTP/1.1 to find where each
+     * response ends.
+     */
+    private static class User {
+        private final SSLSocket mSocket;
+        private final InputStream mInput;
+        private final OutputStream mOutput;
+        private boolean mOpen;
+
+        /**
+         * Connect and finish the TLS handshake.
+         *
+         * @param factory the factory for TLS sockets
+         * @param address the server's address
+         * @throws IOException if the connection fails
+         */
+        User(SSLSocketFactory factory, InetSocketAddress address) throws IOException {
+            mSocket = (SSLSocket) factory.createSocket(address.getAddress(), address.getPort());
+            mSocket.setTcpNoDelay(true);
+            mSocket.setSoTimeout(30_000);
+            mSocket.startHandshake();
+            mInput = new BufferedInputStream(mSocket.getInputStream(), 16 * 1024);
+            mOutput = mSocket.getOutputStream();
+            mOpen = true;
+        }
+
+        /**
+         * Send a request and read the whole response, discarding the body.
+         *
+         * @param request the request bytes
+         * @return the response status code
+         * @throws IOException if the connection fails or the response is malformed
+         */
+        int send(byte[] request) throws IOException {
+            mOutput.write(request);
+            mOutput.flush();
+            var statusLine = readLine();
+            if (statusLine == null || statusLine.length() < 12) {
+                throw new EOFException("Connection closed before a response");
+            }
+            var status = Integer.parseInt(statusLine.substring(9, 12));
+            var length = -1L;
+            var chunked = false;
+            String line;
+            while (!(line = readRequiredLine()).isEmpty()) {
+                var colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                var name = line.substring(0, colon).trim();
+                var value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    mOpen = !value.equalsIgnoreCase("close");
+                }
+            }
+            if (chunked) {
+                long size;
+                while ((size = Long.parseLong(readRequiredLine().split(";", 2)[0].trim(), 16))
+                        > 0) {
+                    skip(size);
+                    readRequiredLine();
+                }
+                while (!readRequiredLine().isEmpty()) {
+                }
+            } else if (length > 0) {
+                skip(length);
+            }
+            return status;
+        }
+
+        /**
+         * Check if the server is keeping the connection open for another request.
+         *
+         * @return false if the last response said it would close the connection
+         */
+        boolean isOpen() {
+            return mOpen;
+        }
+
+        /**
+         * Close the connection, ignoring any problem doing so.
+         */
+        void close() {
+            try {
+                mSocket.close();
+            } catch (IOException ex) {
+                // The connection is being thrown away either way.
+            }
+        }
+
+        /**
+         * Read a line terminated by CRLF.
+         *
+         * @return the line without its terminator, or null at the end of the stream
+         * @throws IOException if reading fails
+         */
+        private String readLine() throws IOException {
+            var line = new StringBuilder();
+            int b;
+            while ((b = mInput.read()) != '\n') {
+                if (b < 0) {
+                    if (line.length() == 0) {
+                        return null;
+                    }
+                    throw new EOFException("Connection closed mid-line");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        /**
+         * Read a line terminated by CRLF that has to be there.
+         *
+         * @return the line without its terminator
+         * @throws IOException if reading fails or the stream ends
+         */
+        private String readRequiredLine() throws IOException {
+            var line = readLine();
+            if (line == null) {
+                throw new EOFException("Connection closed mid-response");
+            }
+            return line;
+        }
+
+        /**
+         * Read and discard bytes.
+         *
+         * @param count how many
+         * @throws IOException if the stream ends first
+         */
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                var skipped = mInput.skip(count);
+                if (skipped <= 0) {
+                    if (mInput.read() < 0) {
+                        throw new EOFException("Connection closed mid-body");
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.dylantjohnson.webserver;
+
+import java.lang.management.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * A small harness for timing single operations, in the spirit of JMH.
+ * <p>
+ * Each operation is run until the JIT has had a chance to settle, then timed over several
+ * iterations of a fixed length. The report gives the mean time per operation with its standard
+ * deviation across iterations, and the memory the running thread allocated per operation.
+ * Operations are called in batches sized so that reading the clock costs next to nothing, and
+ * their results are fed to a sink the JIT can't see through, so they aren't optimized away.
+ * <p>
+ * This class is not thread-safe.
+ */
+class MicroBench {
+    private static final long BATCH_NANOS = 100_000;
+
+    private final Duration mWarmup;
+    private final int mIterations;
+    private final Duration mIterationTime;
+    private final com.sun.management.ThreadMXBean mThreads;
+    private volatile Object mTrap = new Object();
+    private Object mTrapped;
+
+    /**
+     * An operation to time.
+     */
+    interface Operation {
+        /**
+         * Run the operation once.
+         *
+         * @return whatever the operation produced, so it can't be optimized away
+         * @throws Exception if the operation fails, which ends the benchmark
+         */
+        Object run() throws Exception;
+    }
+
+    /**
+     * Create a harness.
+     *
+     * @param warmup how long to run each operation before timing it
+     * @param iterations how many timed iterations to run
+     * @param iterationTime how long each timed iteration lasts
+     */
+    MicroBench(Duration warmup, int iterations, Duration iterationTime) {
+        mWarmup = warmup;
+        mIterations = iterations;
+        mIterationTime = iterationTime;
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    /**
+     * Warm up and time an operation, then print a line with the results.
+     *
+     * @param name what to call the operation in the report
+     * @param operation the operation
+     * @throws Exception if the operation fails
+     */
+    void run(String name, Operation operation) throws Exception {
+        var batch = 1L;
+        var deadline = System.nanoTime() + mWarmup.toNanos();
+        while (System.nanoTime() < deadline) {
+            var start = System.nanoTime();
+            runBatch(operation, batch);
+            if (System.nanoTime() - start < BATCH_NANOS) {
+                batch *= 2;
+            }
+        }
+        var thread = Thread.currentThread().getId();
+        var nanosPerOp = new double[mIterations];
+        var allocated = 0L;
+        var operations = 0L;
+        for (var i = 0; i < mIterations; i++) {
+            var count = 0L;
+            var bytesBefore = mThreads.getThreadAllocatedBytes(thread);
+            var start = System.nanoTime();
+            var end = start + mIterationTime.toNanos();
+            var now = start;
+            while (now < end) {
+                runBatch(operation, batch);
+                count += batch;
+                now = System.nanoTime();
+            }
+            allocated += mThreads.getThreadAllocatedBytes(thread) - bytesBefore;
+            operations += count;
+            nanosPerOp[i] = (double) (now - start) / count;
+        }
+        var mean = Arrays.stream(nanosPerOp).average().orElse(Double.NaN);
+        var variance = Arrays.stream(nanosPerOp).map(x -> (x - mean) * (x - mean)).sum()
+            / Math.max(1, mIterations - 1);
+        System.out.println(String.format("%-52s %12s +- %9s  %10.0f B/op", name,
+            format(mean), format(Math.sqrt(variance)), (double) allocated / operations));
+    }
+
+    /**
+     * Run an operation a number of times in a row.
+     *
+     * @param operation the operation
+     * @param count how many times
+     * @throws Exception if the operation fails
+     */
+    private void runBatch(Operation operation, long count) throws Exception {
+        for (var i = 0L; i < count; i++) {
+            consume(operation.run());
+        }
+    }
+
+    /**
+     * Keep a result alive as far as the JIT can tell, for the cost of a volatile read.
+     *
+     * @param result the result
+     */
+    private void consume(Object result) {
+        if (result == mTrap) {
+            mTrapped = result;
+        }
+    }
+
+    /**
+     * Format a time per operation with a unit that keeps it readable.
+     *
+     * @param nanos the time in nanoseconds
+     * @return the formatted time
+     */
+    private static String format(double nanos) {
+        if (nanos >= 1e6) {
+            return String.format("%.2f ms/op", nanos / 1e6);
+        }
+        if (nanos >= 1e3) {
+            return String.format("%.2f us/op", nanos / 1e3);
+        }
+        return String.format("%.1f ns/op", nanos);
+    }
+}
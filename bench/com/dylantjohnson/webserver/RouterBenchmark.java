@@ -0,0 +1,141 @@
+package com.dylantjohnson.webserver;
+
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * Measures how long the {@link Router} takes to find a route among thousands.
+ * <p>
+ * The routes are a mix of literal paths, paths with one and two parameters, and trailing
+ * wildcards. For comparison, the same lookups are done the way the JDK's server finds a
+ * context: by scanning every route for the longest one that is a prefix of the path. Memory
+ * allocated per lookup is reported too, which should be zero for the router.
+ * <p>
+ * Arguments: [routes] [seconds per run]
+ */
+public class RouterBenchmark {
+    private static final int PATHS = 4096;
+
+    public static void main(String[] args) throws Exception {
+        var routes = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        var seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        var builder = new Router.Builder<Integer>();
+        var prefixes = new String[routes];
+        var paths = new String[PATHS];
+        var expected = new int[PATHS];
+        var random = new Random(42);
+        for (var i = 0; i < routes; i++) {
+            var base = String.format("/api/v%d/resource%d", i % 3, i);
+            prefixes[i] = base;
+            switch (i % 4) {
+                case 0:
+                    builder.add(RouteRequest.Method.GET, base, i);
+                    break;
+                case 1:
+                    builder.add(RouteRequest.Method.GET, base + "/{id}", i);
+                    break;
+                case 2:
+                    builder.add(RouteRequest.Method.GET, base + "/{id}/items/{item}", i);
+                    break;
+                default:
+                    builder.add(null, base + "/*", i);
+                    break;
+            }
+        }
+        for (var i = 0; i < PATHS; i++) {
+            var route = random.nextInt(routes);
+            var base = prefixes[route];
+            expected[i] = route;
+            switch (route % 4) {
+                case 0:
+                    paths[i] = base;
+                    break;
+                case 1:
+                    paths[i] = base + "/" + random.nextInt(100000);
+                    break;
+                case 2:
+                    paths[i] = base + "/" + random.nextInt(100000) + "/items/"
+                        + random.nextInt(100);
+                    break;
+                default:
+                    paths[i] = base + "/css/site" + random.nextInt(10) + ".css";
+                    break;
+            }
+        }
+        var router = builder.build();
+        var offsets = new int[router.getOffsetsLength()];
+        for (var i = 0; i < PATHS; i++) {
+            var route = router.find(paths[i], offsets);
+            if (route == null || route.get(RouteRequest.Method.GET) != expected[i]) {
+                throw new IllegalStateException("Wrong route for " + paths[i]);
+            }
+        }
+
+        System.out.println(String.format("%d routes", routes));
+        run("Radix tree router", seconds, paths, path -> {
+            var route = router.find(path, offsets);
+            return route == null ? -1 : route.get(RouteRequest.Method.GET);
+        });
+        run("Longest prefix scan", seconds, paths, path -> {
+            var best = -1;
+            var bestLength = -1;
+            for (var i = 0; i < prefixes.length; i++) {
+                var prefix = prefixes[i];
+                if (prefix.length() > bestLength && path.startsWith(prefix)) {
+                    best = i;
+                    bestLength = prefix.length();
+                }
+            }
+            return best;
+        });
+        System.exit(0);
+    }
+
+    /**
+     * A way of finding the route for a path.
+     */
+    private interface Lookup {
+        /**
+         * Find the route for a path.
+         *
+         * @param path the request path
+         * @return the route's number, or -1 if none matched
+         */
+        int find(String path);
+    }
+
+    /**
+     * Warm up a lookup, then time it over the sample paths and report the results.
+     *
+     * @param name what to call the lookup in the report
+     * @param seconds how long to time it for
+     * @param paths the sample paths
+     * @param lookup the lookup
+     */
+    private static void run(String name, int seconds, String[] paths, Lookup lookup) {
+        var deadline = System.nanoTime() + seconds * 1_000_000_000L / 3;
+        var sink = 0L;
+        while (System.nanoTime() < deadline) {
+            for (var path : paths) {
+                sink += lookup.find(path);
+            }
+        }
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var thread = Thread.currentThread().getId();
+        var lookups = 0L;
+        var allocated = threads.getThreadAllocatedBytes(thread);
+        var start = System.nanoTime();
+        deadline = start + seconds * 1_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            for (var path : paths) {
+                sink += lookup.find(path);
+            }
+            lookups += paths.length;
+        }
+        var elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        System.out.println(String.format("%-22s %10.1f ns/lookup  %6.2f bytes/lookup  (%d)",
+            name, (double) elapsed / lookups, (double) allocated / lookups, sink & 1));
+    }
+}
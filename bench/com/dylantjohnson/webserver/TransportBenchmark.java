@@ -0,0 +1,51 @@
+package com.dylantjohnson.webserver;
+
+import java.time.*;
+import java.util.*;
+
+/**
+ * Compares the JDK's server against the NIO transport.
+ * <p>
+ * Handlers answer straight away with a small body, so the run measures the cost of the
+ * transport itself: accepting connections, TLS, parsing requests and writing responses. Each
+ * simulated user keeps its connection alive between requests.
+ * <p>
+ * Arguments: [users] [seconds per run] [event loops]
+ */
+public class TransportBenchmark {
+    public static void main(String[] args) throws Exception {
+        var users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        var seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        var eventLoops = args.length > 2 ? Integer.parseInt(args[2])
+            : Runtime.getRuntime().availableProcessors();
+
+        var transports = new LinkedHashMap<String, Transport>();
+        transports.put("JDK HttpsServer", Transport.jdkHttpServer());
+        transports.put(String.format("NIO (%d event loops)", eventLoops),
+            Transport.nio(eventLoops));
+
+        var keystore = BenchSupport.createKeystore();
+        var client = BenchSupport.client();
+        RouteHandler hello = request -> new RouteResponseBuilder().setBody("ok").build();
+        System.out.println(String.format("%d users", users));
+        for (var entry : transports.entrySet()) {
+            var port = BenchSupport.freePort();
+            var server = new WebServerBuilder()
+                .setKeystore(keystore, BenchSupport.KEYSTORE_PASSWORD)
+                .setPort(port)
+                .setHandler("/", hello)
+                .setTransport(entry.getValue())
+                .build();
+            server.start();
+            try {
+                var result = BenchSupport.load(client, BenchSupport.baseUri(port).resolve("/"),
+                    users, Duration.ofSeconds(Math.max(1, seconds / 3)),
+                    Duration.ofSeconds(seconds));
+                System.out.println(String.format("%-34s %s", entry.getKey(), result));
+            } finally {
+                server.stop();
+            }
+        }
+        System.exit(0);
+    }
+}
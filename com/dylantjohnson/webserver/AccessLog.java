@@ -0,0 +1,401 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Writes the access log and reports handler failures on a background thread, so neither costs
+ * the thread answering a request more than handing over a record.
+ * <p>
+ * Request threads put records into a ring buffer of {@link #CAPACITY} slots without taking a
+ * lock: each claims a slot by advancing the tail with a compare-and-set, then fills it in. The
+ * writer thread empties the slots in order, formats a batch and writes it to the file in one go,
+ * and sleeps briefly when there's nothing left. When the buffer is full, records are either
+ * dropped and counted, or the request thread waits for room, as configured.
+ * <p>
+ * Each request is one line of JSON with the time, client, method, URI, protocol, status, body
+ * bytes each way, how long the request took and, over TLS, the protocol and cipher suite. The
+ * log is rotated once it reaches its size limit or has been open for its rotation interval: the
+ * file is renamed with the UTC time appended and a new one is started. Handler failures are
+ * printed to the standard error stream by the writer thread, whether or not there's a log file.
+ * <p>
+ * This class is thread-safe.
+ */
+final class AccessLog {
+    static final int CAPACITY = 8192;
+    static final long DEFAULT_ROTATE_BYTES = 64L * 1024 * 1024;
+    static final Duration DEFAULT_ROTATE_INTERVAL = Duration.ofDays(1);
+
+    private static final int BATCH_CHARS = 64 * 1024;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final DateTimeFormatter ROTATED_SUFFIX = DateTimeFormatter
+        .ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+
+    /**
+     * A request, as captured on the thread that answered it. Formatting waits for the writer.
+     */
+    private static class Request {
+        final long mTimeMillis;
+        final InetSocketAddress mClient;
+        final String mMethod;
+        final URI mUri;
+        final String mProtocol;
+        final int mStatus;
+        final long mBytesIn;
+        final long mBytesOut;
+        final long mNanos;
+        final String mTlsProtocol;
+        final String mCipherSuite;
+
+        Request(HttpExchange exchange, int status, long bytesIn, long bytesOut, long nanos) {
+            mTimeMillis = System.currentTimeMillis();
+            mClient = exchange.getRemoteAddress();
+            mMethod = exchange.getRequestMethod();
+            mUri = exchange.getRequestURI();
+            mProtocol = exchange.getProtocol();
+            mStatus = status;
+            mBytesIn = bytesIn;
+            mBytesOut = bytesOut;
+            mNanos = nanos;
+            var session = exchange instanceof HttpsExchange
+                ? ((HttpsExchange) exchange).getSSLSession() : null;
+            mTlsProtocol = session == null ? null : session.getProtocol();
+            mCipherSuite = session == null ? null : session.getCipherSuite();
+        }
+    }
+
+    /**
+     * A handler failure to report.
+     */
+    private static class Failure {
+        final Throwable mError;
+
+        Failure(Throwable error) {
+            mError = error;
+        }
+    }
+
+    private final File mFile;
+    private final long mRotateBytes;
+    private final long mRotateNanos;
+    private final boolean mBlockWhenFull;
+    private final AtomicReferenceArray<Object> mSlots;
+    private final AtomicLong mTail;
+    private final LongAdder mDropped;
+    private volatile long mHead;
+    private volatile boolean mRunning;
+    private volatile Thread mWriter;
+    private FileChannel mChannel;
+    private long mFileBytes;
+    private long mOpened;
+
+    /**
+     * Create a log, not started yet.
+     *
+     * @param file the file to write requests to, or null to only report failures
+     * @param rotateBytes the size at which the file is rotated, or 0 for no limit
+     * @param rotateNanos how long a file is written to before it's rotated, or 0 for no limit
+     * @param blockWhenFull true to make request threads wait for room when the buffer is full,
+     *     false to drop their records
+     */
+    AccessLog(File file, long rotateBytes, long rotateNanos, boolean blockWhenFull) {
+        mFile = file;
+        mRotateBytes = rotateBytes;
+        mRotateNanos = rotateNanos;
+        mBlockWhenFull = blockWhenFull;
+        mSlots = new AtomicReferenceArray<>(CAPACITY);
+        mTail = new AtomicLong();
+        mDropped = new LongAdder();
+    }
+
+    /**
+     * Open the file and start the writer thread. If it's already running, this does nothing.
+     *
+     * @throws IOException if the file can't be opened
+     */
+    synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        if (mFile != null) {
+            open();
+        }
+        mRunning = true;
+        var writer = new Thread(this::write, "AccessLog writer");
+        writer.setDaemon(true);
+        mWriter = writer;
+        writer.start();
+    }
+
+    /**
+     * Write out every record handed over so far, then stop the writer thread and close the
+     * file. If it's not running, this does nothing.
+     */
+    synchronized void stop() {
+        var writer = mWriter;
+        if (!mRunning || writer == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        mWriter = null;
+    }
+
+    /**
+     * Hand over a request that was answered.
+     *
+     * @param exchange the request
+     * @param status the response status code
+     * @param bytesIn how many request body bytes were read
+     * @param bytesOut how many response body bytes were sent
+     * @param nanos how long the request took
+     */
+    void request(HttpExchange exchange, int status, long bytesIn, long bytesOut, long nanos) {
+        if (mFile != null) {
+            offer(new Request(exchange, status, bytesIn, bytesOut, nanos));
+        }
+    }
+
+    /**
+     * Hand over a handler failure to be reported. While the writer isn't running, it's reported
+     * right away instead.
+     *
+     * @param error what the handler threw
+     */
+    void error(Throwable error) {
+        if (mRunning) {
+            offer(new Failure(error));
+        } else {
+            error.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the number of records dropped because the buffer was full.
+     *
+     * @return the count
+     */
+    long getDropped() {
+        return mDropped.sum();
+    }
+
+    /**
+     * Put a record in the buffer, or drop it or wait for room if it's full.
+     *
+     * @param record the record
+     */
+    private void offer(Object record) {
+        while (true) {
+            var tail = mTail.get();
+            if (tail - mHead >= CAPACITY) {
+                if (!mBlockWhenFull || !mRunning) {
+                    mDropped.increment();
+                    return;
+                }
+                LockSupport.unpark(mWriter);
+                LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+                continue;
+            }
+            if (mTail.compareAndSet(tail, tail + 1)) {
+                mSlots.set((int) tail & (CAPACITY - 1), record);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run the writer thread until the log is stopped and the buffer is empty.
+     */
+    private void write() {
+        var batch = new StringBuilder(BATCH_CHARS + 1024);
+        while (true) {
+            var running = mRunning;
+            var drained = drain(batch);
+            if (batch.length() > 0) {
+                flush(batch);
+            }
+            rotateIfDue();
+            if (!drained) {
+                if (!running) {
+                    break;
+                }
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Take records out of the buffer in order, until it's empty or the batch is full.
+     * <p>
+     * A slot that was claimed but isn't filled in yet ends the batch, and is picked up by the
+     * next one.
+     *
+     * @param batch where request lines are formatted
+     * @return true if any record was taken
+     */
+    private boolean drain(StringBuilder batch) {
+        var drained = false;
+        while (batch.length() < BATCH_CHARS) {
+            var head = mHead;
+            var slot = (int) head & (CAPACITY - 1);
+            var record = mSlots.get(slot);
+            if (record == null) {
+                break;
+            }
+            mSlots.set(slot, null);
+            mHead = head + 1;
+            drained = true;
+            if (record instanceof Request) {
+                format((Request) record, batch);
+            } else {
+                ((Failure) record).mError.printStackTrace();
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Write a batch of lines to the file.
+     *
+     * @param batch the lines, which are cleared
+     */
+    private void flush(StringBuilder batch) {
+        var bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        batch.setLength(0);
+        try {
+            while (bytes.hasRemaining()) {
+                mFileBytes += mChannel.write(bytes);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Open the file for appending.
+     *
+     * @throws IOException if it can't be opened
+     */
+    private void open() throws IOException {
+        mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        mFileBytes = mChannel.size();
+        mOpened = System.nanoTime();
+    }
+
+    /**
+     * Rotate the file if it reached its size limit or was open for its interval.
+     * <p>
+     * An empty file isn't rotated, it just starts its interval again. If renaming fails, the
+     * same file is reopened and written to.
+     */
+    private void rotateIfDue() {
+        if (mChannel == null) {
+            return;
+        }
+        var now = System.nanoTime();
+        if (!(mRotateBytes > 0 && mFileBytes >= mRotateBytes)
+                && !(mRotateNanos > 0 && now - mOpened >= mRotateNanos)) {
+            return;
+        }
+        if (mFileBytes == 0) {
+            mOpened = now;
+            return;
+        }
+        try {
+            mChannel.close();
+            var suffix = ROTATED_SUFFIX.format(Instant.now());
+            var target = new File(mFile.getPath() + "." + suffix);
+            for (var i = 1; target.exists(); i++) {
+                target = new File(mFile.getPath() + "." + suffix + "-" + i);
+            }
+            Files.move(mFile.toPath(), target.toPath());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        try {
+            open();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Format a request as a line of JSON.
+     *
+     * @param request the request
+     * @param out where to append the line
+     */
+    private static void format(Request request, StringBuilder out) {
+        out.append("{\"time\":\"").append(Instant.ofEpochMilli(request.mTimeMillis)).append('"');
+        if (request.mClient != null) {
+            var address = request.mClient.getAddress();
+            out.append(",\"client\":");
+            string(out, address == null ? request.mClient.getHostString()
+                : address.getHostAddress());
+        }
+        out.append(",\"method\":");
+        string(out, request.mMethod);
+        out.append(",\"uri\":");
+        string(out, request.mUri.toString());
+        out.append(",\"protocol\":");
+        string(out, request.mProtocol);
+        out.append(",\"status\":").append(request.mStatus)
+            .append(",\"bytesIn\":").append(request.mBytesIn)
+            .append(",\"bytesOut\":").append(request.mBytesOut)
+            .append(",\"micros\":").append(request.mNanos / 1000);
+        if (request.mTlsProtocol != null) {
+            out.append(",\"tls\":");
+            string(out, request.mTlsProtocol);
+            out.append(",\"cipher\":");
+            string(out, request.mCipherSuite);
+        }
+        out.append("}\n");
+    }
+
+    /**
+     * Append a JSON string.
+     *
+     * @param out where to append it
+     * @param value the string
+     */
+    private static void string(StringBuilder out, String value) {
+        out.append('"');
+        for (var i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
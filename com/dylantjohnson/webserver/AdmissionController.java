@@ -0,0 +1,271 @@
+package com.dylantjohnson.webserver;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Decides whether requests get handled or shed when a {@link WebServer} is overloaded.
+ * <p>
+ * Every exchange the server dispatches passes through the executor returned by
+ * {@link #wrap(Executor)}. If too many exchanges are already waiting, the new one is sent to a
+ * single shedding thread instead of the server's executor. {@link RequestProcessor} then asks
+ * {@link #admit()} before calling its handler, which refuses exchanges that were shed or that
+ * waited in the queue for too long, so they can be answered with a cheap 503. That response
+ * closes the connection instead of reading the request body, so a client that sends its body
+ * slowly can't hold up the shedding thread. If the shedding thread falls behind as well, further
+ * exchanges are refused outright and the server drops their connections, so shedding never runs
+ * on the thread that dispatched the exchange.
+ * <p>
+ * Since every exchange passes through here, this also knows how many are in flight: queued,
+ * running, or {@link #suspend() suspended} while they wait without a thread. {@link WebServer}
+ * uses that to stop without waiting longer than it has to.
+ * <p>
+ * This class is thread-safe.
+ */
+class AdmissionController {
+    private static final int SHED_QUEUE_SIZE = 1024;
+    private static final byte[] UNAVAILABLE_BODY = "Service Unavailable".getBytes();
+
+    private final int mMaxQueued;
+    private final long mMaxWaitNanos;
+    private final RouteResponse mUnavailable;
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final LongAdder mRejected = new LongAdder();
+    private final LongAdder mExpired = new LongAdder();
+    private final LongAdder mActive = new LongAdder();
+    private final LongAdder mSuspended = new LongAdder();
+    private final LatencyHistogram mQueueWait = new LatencyHistogram();
+    private final ThreadLocal<Long> mWaited = new ThreadLocal<>();
+    private final Executor mShedder;
+    private volatile Executor mExecutor;
+
+    /**
+     * Create an admission controller.
+     *
+     * @param maxQueued the most exchanges allowed to wait for a thread at once
+     * @param maxWaitNanos the longest an exchange may wait for a thread and still be handled
+     * @param retryAfterSec how many seconds refused clients should wait before trying again
+     */
+    public AdmissionController(int maxQueued, long maxWaitNanos, long retryAfterSec) {
+        mMaxQueued = maxQueued;
+        mMaxWaitNanos = maxWaitNanos;
+        mUnavailable = new RouteResponse(RouteResponse.Status.SERVICE_UNAVAILABLE,
+            UNAVAILABLE_BODY, 0, UNAVAILABLE_BODY.length, Map.of(
+                "Content-Type", List.of("text/plain; charset=utf-8"),
+                "Retry-After", List.of(String.valueOf(retryAfterSec)),
+                "Connection", List.of("close")));
+        mShedder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+            new ArrayBlockingQueue<>(SHED_QUEUE_SIZE), runnable -> {
+                var thread = new Thread(runnable, "AdmissionController shedder");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Wrap an executor so that the exchanges it runs are subject to admission control.
+     * <p>
+     * The returned executor throws {@link RejectedExecutionException} for exchanges that can't
+     * even be shed, which the transports answer by dropping the connection.
+     *
+     * @param executor the executor that handles admitted exchanges
+     * @return an executor to give to the server
+     */
+    public Executor wrap(Executor executor) {
+        mExecutor = executor;
+        return task -> {
+            if (mQueued.incrementAndGet() > mMaxQueued) {
+                mQueued.decrementAndGet();
+                shed(task);
+                return;
+            }
+            var enqueued = System.nanoTime();
+            try {
+                executor.execute(() -> {
+                    mQueued.decrementAndGet();
+                    run(task, System.nanoTime() - enqueued);
+                });
+            } catch (RejectedExecutionException ex) {
+                mQueued.decrementAndGet();
+                shed(task);
+            }
+        };
+    }
+
+    /**
+     * Note that an admitted exchange is about to wait for something without holding a thread.
+     * <p>
+     * It counts as in flight until it's finished with {@link #resume(Runnable)}, which must
+     * follow exactly once.
+     */
+    void suspend() {
+        mSuspended.increment();
+    }
+
+    /**
+     * Finish a {@link #suspend() suspended} exchange on the executor of the last wrapped
+     * executor.
+     * <p>
+     * This skips the queue limits, since the exchange was admitted already. If there's no
+     * executor, or it won't take the task, the task runs on the calling thread.
+     *
+     * @param task the rest of the exchange
+     */
+    void resume(Runnable task) {
+        Runnable resumed = () -> {
+            mActive.increment();
+            mSuspended.decrement();
+            try {
+                task.run();
+            } finally {
+                mActive.decrement();
+            }
+        };
+        var executor = mExecutor;
+        if (executor == null) {
+            resumed.run();
+            return;
+        }
+        try {
+            executor.execute(resumed);
+        } catch (RejectedExecutionException ex) {
+            resumed.run();
+        }
+    }
+
+    /**
+     * Get the executor of the last wrapped executor, for work that isn't an exchange and skips
+     * admission control.
+     *
+     * @return the server's executor, or null if none was wrapped yet
+     */
+    Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Check if the exchange running on the current thread should be handled.
+     *
+     * @return true if it should be handled, false if it should be answered with a 503
+     */
+    public boolean admit() {
+        var waited = mWaited.get();
+        if (waited == null) {
+            return true;
+        }
+        if (waited < 0) {
+            return false;
+        }
+        if (waited > mMaxWaitNanos) {
+            mExpired.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get how long the exchange running on the current thread waited for a thread.
+     *
+     * @return the wait in nanoseconds, or 0 if it was shed or didn't pass through the queue
+     */
+    long getCurrentWait() {
+        var waited = mWaited.get();
+        return waited == null || waited < 0 ? 0 : waited;
+    }
+
+    /**
+     * Get the precomputed response to send to refused exchanges.
+     *
+     * @return an immutable 503 response with a Retry-After header, closing the connection
+     */
+    public RouteResponse getUnavailableResponse() {
+        return mUnavailable;
+    }
+
+    /**
+     * Get the number of exchanges waiting for a thread.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return mQueued.get();
+    }
+
+    /**
+     * Get the number of exchanges running on a thread right now, including ones being shed.
+     *
+     * @return the active count
+     */
+    public int getActiveCount() {
+        return (int) mActive.sum();
+    }
+
+    /**
+     * Get the number of exchanges the server hasn't finished with: queued, running, or waiting
+     * without a thread.
+     *
+     * @return the in-flight count
+     */
+    int getInFlightCount() {
+        return (int) (mQueued.get() + mActive.sum() + mSuspended.sum());
+    }
+
+    /**
+     * Get how long exchanges waited in the queue before a thread picked them up.
+     *
+     * @return the histogram, which leaves out exchanges that were shed
+     */
+    LatencyHistogram getQueueWait() {
+        return mQueueWait;
+    }
+
+    /**
+     * Get the number of exchanges shed because the queue was full.
+     *
+     * @return the rejected count
+     */
+    public long getRejectedCount() {
+        return mRejected.sum();
+    }
+
+    /**
+     * Get the number of exchanges shed because they waited in the queue for too long.
+     *
+     * @return the expired count
+     */
+    public long getExpiredCount() {
+        return mExpired.sum();
+    }
+
+    /**
+     * Run an exchange on the shedding thread, marked so that {@link #admit()} refuses it.
+     *
+     * @param task the exchange
+     * @throws RejectedExecutionException if the shedding thread has too many exchanges waiting
+     */
+    private void shed(Runnable task) {
+        mRejected.increment();
+        mShedder.execute(() -> run(task, -1L));
+    }
+
+    /**
+     * Run an exchange with its queue wait visible to {@link #admit()}.
+     *
+     * @param task the exchange
+     * @param waited how long it waited in nanoseconds, or -1 if it was shed
+     */
+    private void run(Runnable task, long waited) {
+        if (waited >= 0) {
+            mQueueWait.record(waited);
+        }
+        mWaited.set(waited);
+        mActive.increment();
+        try {
+            task.run();
+        } finally {
+            mActive.decrement();
+            mWaited.remove();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.dylantjohnson.webserver;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The RouteHandler a route set with an {@link AsyncRouteHandler} is stored as.
+ * <p>
+ * {@link RequestProcessor} recognizes it and calls {@link #start(RouteRequest)}, then sends the
+ * response when the returned future completes, without waiting on a thread. Anything else that
+ * calls {@link #handle(RouteRequest)}, like a {@link ResponseCache} in front of it, waits for the
+ * response instead.
+ * <p>
+ * This class is thread-safe.
+ */
+final class AsyncRoute implements RouteHandler {
+    private static final byte[] TIMED_OUT_BODY = "Gateway Timeout".getBytes();
+
+    /**
+     * The response sent when a handler's stage doesn't complete in time.
+     */
+    static final RouteResponse TIMED_OUT = new RouteResponse(
+        RouteResponse.Status.GATEWAY_TIMEOUT, TIMED_OUT_BODY, 0, TIMED_OUT_BODY.length,
+        Map.of("Content-Type", List.of("text/plain; charset=utf-8")));
+
+    private final AsyncRouteHandler mHandler;
+    private final long mTimeoutNanos;
+
+    /**
+     * Wrap an asynchronous handler.
+     *
+     * @param handler the handler
+     * @param timeoutNanos how long its stages may take before the request is answered with a
+     *     504, or 0 for no limit
+     */
+    AsyncRoute(AsyncRouteHandler handler, long timeoutNanos) {
+        mHandler = handler;
+        mTimeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Start handling a request.
+     * <p>
+     * The returned future completes when the handler's stage does, or with {@link #TIMED_OUT}
+     * once the timeout passes, in which case the handler's stage is cancelled if it can be. If
+     * the handler throws or returns no stage, the future is completed exceptionally right away.
+     *
+     * @param request the request
+     * @return the future response
+     */
+    CompletableFuture<RouteResponse> start(RouteRequest request) {
+        var result = new CompletableFuture<RouteResponse>();
+        CompletionStage<RouteResponse> stage;
+        try {
+            stage = mHandler.handle(request);
+        } catch (Exception ex) {
+            result.completeExceptionally(ex);
+            return result;
+        }
+        if (stage == null) {
+            result.completeExceptionally(new NullPointerException("No response stage returned."));
+            return result;
+        }
+        stage.whenComplete((response, ex) -> {
+            if (ex != null) {
+                result.completeExceptionally(ex);
+            } else {
+                result.complete(response);
+            }
+        });
+        if (mTimeoutNanos > 0 && !result.isDone()) {
+            result.completeOnTimeout(TIMED_OUT, mTimeoutNanos, TimeUnit.NANOSECONDS);
+            if (stage instanceof Future) {
+                result.thenAccept(response -> {
+                    if (response == TIMED_OUT) {
+                        ((Future<?>) stage).cancel(true);
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public RouteResponse handle(RouteRequest request) throws Exception {
+        try {
+            return start(request).get();
+        } catch (ExecutionException ex) {
+            var cause = ex.getCause() instanceof CompletionException
+                ? ex.getCause().getCause() : ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        }
+    }
+}
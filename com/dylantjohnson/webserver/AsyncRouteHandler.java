@@ -0,0 +1,27 @@
+package com.dylantjohnson.webserver;
+
+import java.util.concurrent.*;
+
+/**
+ * The interface to implement for handlers that answer a route's requests asynchronously.
+ * <p>
+ * Unlike a {@link RouteHandler}, this returns as soon as the work is started, and the response
+ * is sent when the returned stage completes. No thread is held while the stage is pending, so a
+ * handler waiting on another service can have thousands of requests in flight on a few threads.
+ * The response is sent on one of the server's threads, never on the thread that completed the
+ * stage.
+ * <p>
+ * The request, and its body, stay usable until the stage completes. If the stage completes
+ * exceptionally, the error page is sent with a status code of 500. A route set with a timeout
+ * is answered with a 504 if its stage takes longer, and the stage is cancelled.
+ */
+public interface AsyncRouteHandler {
+    /**
+     * Start generating a RouteResponse for a RouteRequest.
+     *
+     * @param request the request to process
+     * @return a stage that completes with a response containing a status code and content
+     * @throws Exception if an error occurs while starting to generate the response
+     */
+    CompletionStage<RouteResponse> handle(RouteRequest request) throws Exception;
+}
@@ -0,0 +1,25 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+
+/**
+ * The interface to implement for generating a response body as it's being sent.
+ * <p>
+ * A response with a BodyWriter is sent with chunked transfer encoding, so its size doesn't need
+ * to be known ahead of time and it never has to be held in memory all at once. Writes block
+ * while the client is slow to read, which keeps a fast writer from getting ahead of the network.
+ * Everything written is sent by the time {@link #write(OutputStream)} returns, and calling
+ * {@link OutputStream#flush()} sends what's been written so far without waiting for more.
+ */
+public interface BodyWriter {
+    /**
+     * Write the response body.
+     * <p>
+     * The stream is closed once this returns, so it doesn't need to be closed here. If this
+     * throws, the connection is dropped so the client can tell the response is incomplete.
+     *
+     * @param output the stream to write the body to
+     * @throws Exception if an error occurs while generating the body
+     */
+    void write(OutputStream output) throws Exception;
+}
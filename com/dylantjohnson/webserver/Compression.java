@@ -0,0 +1,212 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * The response compression settings used by {@link RequestProcessor}.
+ * <p>
+ * A response is compressed when the client accepts gzip or deflate, its Content-Type is textual
+ * and its body is at least the configured minimum size. Responses that already have a
+ * Content-Encoding are left alone, which is how handlers like {@link StaticFileHandler} send
+ * variants they compressed ahead of time.
+ * <p>
+ * This class is thread-safe.
+ */
+class Compression {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    static final int DEFAULT_MIN_SIZE = 1024;
+
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+        "application/json",
+        "application/javascript",
+        "application/xml",
+        "application/xhtml+xml",
+        "application/rss+xml",
+        "application/atom+xml",
+        "application/manifest+json",
+        "application/wasm",
+        "image/svg+xml");
+
+    private boolean mEnabled;
+    private int mMinSize;
+
+    /**
+     * Create compression settings.
+     *
+     * @param enabled whether responses should be compressed at all
+     * @param minSize the smallest known body size worth compressing, in bytes
+     */
+    public Compression(boolean enabled, int minSize) {
+        mEnabled = enabled;
+        mMinSize = minSize;
+    }
+
+    /**
+     * Pick the encoding to use for a client.
+     *
+     * @param acceptEncoding the client's Accept-Encoding header, or null
+     * @return {@link #GZIP}, {@link #DEFLATE}, or null if the response shouldn't be compressed
+     */
+    public String negotiate(String acceptEncoding) {
+        if (!mEnabled || acceptEncoding == null) {
+            return null;
+        }
+        var gzip = -1.0;
+        var deflate = -1.0;
+        for (var token : acceptEncoding.split(",")) {
+            var parameters = token.split(";");
+            var name = parameters[0].trim().toLowerCase(Locale.ROOT);
+            var quality = 1.0;
+            for (int i = 1; i < parameters.length; i++) {
+                var parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException ex) {
+                        quality = 0.0;
+                    }
+                }
+            }
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzip = quality;
+            } else if (name.equals(DEFLATE)) {
+                deflate = quality;
+            } else if (name.equals("*")) {
+                gzip = gzip < 0.0 ? quality : gzip;
+                deflate = deflate < 0.0 ? quality : deflate;
+            }
+        }
+        if (gzip > 0.0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0.0 ? DEFLATE : null;
+    }
+
+    /**
+     * Check if a response is worth compressing.
+     *
+     * @param headers the response headers
+     * @param length the body length, or 0 if unknown
+     * @return true if the response should be compressed
+     */
+    public boolean shouldCompress(Headers headers, long length) {
+        return mEnabled
+            && headers.getFirst("Content-Encoding") == null
+            && isCompressibleType(headers.getFirst("Content-Type"))
+            && (length == 0 || length >= mMinSize);
+    }
+
+    /**
+     * Get the smallest body size worth compressing.
+     *
+     * @return the size in bytes
+     */
+    public int getMinSize() {
+        return mMinSize;
+    }
+
+    /**
+     * Check if a content type is textual enough to benefit from compression.
+     *
+     * @param contentType the Content-Type header value, or null
+     * @return true if bodies of this type compress well
+     */
+    static boolean isCompressibleType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        var semicolon = contentType.indexOf(';');
+        var type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon))
+            .trim().toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml")
+            || COMPRESSIBLE_TYPES.contains(type);
+    }
+
+    /**
+     * Wrap a stream so that what's written to it gets compressed.
+     * <p>
+     * Flushing the returned stream flushes the compressor too, so a {@link BodyWriter} that
+     * flushes gets its output to the client even when it's compressed.
+     *
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param output the stream to write compressed bytes to
+     * @return the compressing stream
+     * @throws IOException if the stream can't be created
+     */
+    static OutputStream wrap(String encoding, OutputStream output) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(output, 8192, true);
+        }
+        return new DeflaterOutputStream(output, new Deflater(), 8192, true) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+
+    /**
+     * Compress a block of bytes.
+     *
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param data the bytes to compress
+     * @return the compressed bytes
+     */
+    static byte[] compress(String encoding, byte[] data) {
+        return compress(encoding, data, 0, data.length);
+    }
+
+    /**
+     * Compress part of an array.
+     *
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param data the array holding the bytes to compress
+     * @param offset the index of the first byte to compress
+     * @param length the number of bytes to compress
+     * @return the compressed bytes
+     */
+    static byte[] compress(String encoding, byte[] data, int offset, int length) {
+        var compressed = new ByteArrayOutputStream(Math.max(64, length / 4));
+        try (var output = wrap(encoding, compressed)) {
+            output.write(data, offset, length);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Derive the ETag of a compressed variant, so caches never confuse it with the original.
+     *
+     * @param etag the ETag of the uncompressed response, or null
+     * @param encoding the encoding of the variant
+     * @return the variant's ETag, or null if there was no ETag
+     */
+    static String variantEtag(String etag, String encoding) {
+        if (etag == null || !etag.endsWith("\"")) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * Strip the encoding from an ETag made by {@link #variantEtag(String, String)}.
+     *
+     * @param etag an ETag that might belong to a compressed variant
+     * @return the ETag of the uncompressed response
+     */
+    static String baseEtag(String etag) {
+        for (var encoding : new String[] { GZIP, DEFLATE }) {
+            var suffix = "-" + encoding + "\"";
+            if (etag.endsWith(suffix)) {
+                return etag.substring(0, etag.length() - suffix.length()) + "\"";
+            }
+        }
+        return etag;
+    }
+}
@@ -0,0 +1,161 @@
+package com.dylantjohnson.webserver;
+
+import java.util.concurrent.*;
+
+/**
+ * How long a {@link TransportServer} waits on its clients, and how many connections one client
+ * may hold, so slow or greedy clients can't tie up the server.
+ * <p>
+ * The NIO transport enforces every limit itself, on its event loops. The JDK's server only has
+ * JVM-wide settings read from system properties when its first instance is created, so
+ * {@link #configureJdkServer()} maps what it can onto those: the idle timeout, and the header and
+ * body timeouts together as the longest a request may take to arrive. It can't limit connections
+ * per client, or notice a client that stops reading its response. Its own draining of unread
+ * request bodies is turned off too, since {@link RequestProcessor} drains what it wants to itself,
+ * and a response that's sent without draining, such as a shed request's 503, closes the
+ * connection instead of waiting on a slow client.
+ * <p>
+ * This class is thread-safe.
+ */
+final class ConnectionLimits {
+    static final int DEFAULT_HEADER_TIMEOUT_SEC = 20;
+    static final int DEFAULT_BODY_TIMEOUT_SEC = 30;
+    static final int DEFAULT_WRITE_TIMEOUT_SEC = 30;
+    static final int DEFAULT_IDLE_TIMEOUT_SEC = 30;
+    static final long MAX_TIMEOUT_NANOS = TimeUnit.DAYS.toNanos(365);
+
+    private static final String JDK_IDLE_PROPERTY = "sun.net.httpserver.idleInterval";
+    private static final String JDK_REQUEST_PROPERTY = "sun.net.httpserver.maxReqTime";
+    private static final String JDK_DRAIN_PROPERTY = "sun.net.httpserver.drainAmount";
+
+    private final long mHeaderTimeoutNanos;
+    private final long mBodyTimeoutNanos;
+    private final long mWriteTimeoutNanos;
+    private final long mIdleTimeoutNanos;
+    private final int mMaxConnectionsPerClient;
+
+    /**
+     * Create connection limits.
+     *
+     * Each timeout is in nanoseconds, at most {@link #MAX_TIMEOUT_NANOS}, or 0 for no limit.
+     *
+     * @param headerTimeoutNanos the longest the TLS handshake and a request head may take to
+     *     arrive, counted from when the connection opens or its first byte arrives
+     * @param bodyTimeoutNanos the longest the request body may go without a byte arriving while
+     *     the handler waits for more
+     * @param writeTimeoutNanos the longest the client may go without taking any of the response
+     * @param idleTimeoutNanos the longest a connection may stay open between requests
+     * @param maxConnectionsPerClient the most connections open at once from one address
+     */
+    ConnectionLimits(long headerTimeoutNanos, long bodyTimeoutNanos, long writeTimeoutNanos,
+            long idleTimeoutNanos, int maxConnectionsPerClient) {
+        mHeaderTimeoutNanos = headerTimeoutNanos;
+        mBodyTimeoutNanos = bodyTimeoutNanos;
+        mWriteTimeoutNanos = writeTimeoutNanos;
+        mIdleTimeoutNanos = idleTimeoutNanos;
+        mMaxConnectionsPerClient = maxConnectionsPerClient;
+    }
+
+    /**
+     * Create the default limits, with no limit on connections per client.
+     *
+     * @return the limits
+     */
+    static ConnectionLimits defaults() {
+        return new ConnectionLimits(TimeUnit.SECONDS.toNanos(DEFAULT_HEADER_TIMEOUT_SEC),
+            TimeUnit.SECONDS.toNanos(DEFAULT_BODY_TIMEOUT_SEC),
+            TimeUnit.SECONDS.toNanos(DEFAULT_WRITE_TIMEOUT_SEC),
+            TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_SEC), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get the longest the handshake and a request head may take to arrive.
+     *
+     * @return the time in nanoseconds, or 0 for no limit
+     */
+    long getHeaderTimeoutNanos() {
+        return mHeaderTimeoutNanos;
+    }
+
+    /**
+     * Get the longest a request body may go without a byte arriving.
+     *
+     * @return the time in nanoseconds, or 0 for no limit
+     */
+    long getBodyTimeoutNanos() {
+        return mBodyTimeoutNanos;
+    }
+
+    /**
+     * Get the longest a client may go without taking any of the response.
+     *
+     * @return the time in nanoseconds, or 0 for no limit
+     */
+    long getWriteTimeoutNanos() {
+        return mWriteTimeoutNanos;
+    }
+
+    /**
+     * Get the longest a connection may stay open between requests.
+     *
+     * @return the time in nanoseconds, or 0 for no limit
+     */
+    long getIdleTimeoutNanos() {
+        return mIdleTimeoutNanos;
+    }
+
+    /**
+     * Get the most connections open at once from one address.
+     *
+     * @return the count, or {@link Integer#MAX_VALUE} for no limit
+     */
+    int getMaxConnectionsPerClient() {
+        return mMaxConnectionsPerClient;
+    }
+
+    /**
+     * Check if connections are counted per client.
+     *
+     * @return true if a client's connections are limited
+     */
+    boolean isPerClientLimited() {
+        return mMaxConnectionsPerClient < Integer.MAX_VALUE;
+    }
+
+    /**
+     * Set the system properties the JDK's server reads its timeouts from, unless they're set
+     * already.
+     * <p>
+     * The properties are in whole seconds, so the timeouts are rounded up. They're only read
+     * once, when the first JDK server in the JVM is created, so later servers share the first
+     * one's limits. A timeout of 0 leaves the JDK's default in place. The JDK's draining of
+     * request bodies left unread is always turned off, so a connection whose body wasn't read is
+     * closed rather than read to the end.
+     */
+    void configureJdkServer() {
+        synchronized (ConnectionLimits.class) {
+            if (System.getProperty(JDK_DRAIN_PROPERTY) == null) {
+                System.setProperty(JDK_DRAIN_PROPERTY, "0");
+            }
+            if (mIdleTimeoutNanos > 0) {
+                setIfAbsent(JDK_IDLE_PROPERTY, mIdleTimeoutNanos);
+            }
+            if (mHeaderTimeoutNanos > 0 && mBodyTimeoutNanos > 0) {
+                setIfAbsent(JDK_REQUEST_PROPERTY, mHeaderTimeoutNanos + mBodyTimeoutNanos);
+            }
+        }
+    }
+
+    /**
+     * Set a property to a number of seconds if it has no value.
+     *
+     * @param name the property
+     * @param nanos the time, rounded up to whole seconds
+     */
+    private static void setIfAbsent(String name, long nanos) {
+        if (System.getProperty(name) == null) {
+            var seconds = (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+            System.setProperty(name, String.valueOf(Math.max(1, seconds)));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.dylantjohnson.webserver;
+
+import java.util.concurrent.*;
+
+/**
+ * A RouteHandler that gives another one a deadline, for routes set up with
+ * {@link WebServerBuilder#setHandlerDeadline}.
+ * <p>
+ * When the deadline passes, the thread running the handler is interrupted, which ends most
+ * blocking calls it could be stuck in, and the request is answered with a 504 once the handler
+ * returns, whatever it returns. A handler that ignores interruption keeps its thread until it's
+ * done, but its client still gets the 504 instead of a late response.
+ * <p>
+ * One daemon thread, shared by every route, interrupts the handlers that run late.
+ * <p>
+ * This class is thread-safe.
+ */
+final class DeadlineRoute implements RouteHandler {
+    private static final ScheduledExecutorService TIMER = Schedulers.create("Route deadlines");
+
+    /**
+     * One call to the handler, which the timer may interrupt until it's over.
+     */
+    private static class Call implements Runnable {
+        private final Thread mThread;
+        private boolean mDone;
+        private boolean mExpired;
+
+        /**
+         * Start a call on the current thread.
+         */
+        Call() {
+            mThread = Thread.currentThread();
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!mDone) {
+                mExpired = true;
+                mThread.interrupt();
+            }
+        }
+
+        /**
+         * End the call, so it can't be interrupted anymore.
+         * <p>
+         * If the deadline passed, the interrupt meant for the handler is cleared so it doesn't
+         * leak into whatever the thread does next. Ending a call again changes nothing.
+         *
+         * @param timeout the scheduled interrupt, which is cancelled
+         * @return true if the deadline passed
+         */
+        boolean end(Future<?> timeout) {
+            timeout.cancel(false);
+            synchronized (this) {
+                if (mDone) {
+                    return mExpired;
+                }
+                mDone = true;
+            }
+            if (mExpired) {
+                Thread.interrupted();
+            }
+            return mExpired;
+        }
+    }
+
+    private final RouteHandler mHandler;
+    private final long mDeadlineNanos;
+
+    /**
+     * Give a handler a deadline.
+     *
+     * @param handler the handler
+     * @param deadlineNanos how long it may take
+     */
+    DeadlineRoute(RouteHandler handler, long deadlineNanos) {
+        mHandler = handler;
+        mDeadlineNanos = deadlineNanos;
+    }
+
+    @Override
+    public RouteResponse handle(RouteRequest request) throws Exception {
+        var call = new Call();
+        var timeout = TIMER.schedule(call, mDeadlineNanos, TimeUnit.NANOSECONDS);
+        RouteResponse response;
+        boolean expired;
+        try {
+            response = mHandler.handle(request);
+        } catch (Exception ex) {
+            if (call.end(timeout)) {
+                return AsyncRoute.TIMED_OUT;
+            }
+            throw ex;
+        } finally {
+            expired = call.end(timeout);
+        }
+        if (expired) {
+            if (response != null && !response.isBuffered() && response.getBody() != null) {
+                response.getBody().close();
+            }
+            return AsyncRoute.TIMED_OUT;
+        }
+        return response;
+    }
+}
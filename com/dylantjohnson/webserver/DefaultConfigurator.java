@@ -3,42 +3,176 @@ package com.dylantjohnson.webserver;
 import com.sun.net.httpserver.*;
 import java.io.*;
 import java.security.*;
+import java.util.*;
 import javax.net.ssl.*;
 
 /**
  * The HTTPS configurator used by {@link WebServer}.
+ * <p>
+ * The certificate can be replaced while the server is running with {@link #reload()}. New
+ * handshakes will use the new certificate, while connections that are already established keep
+ * using the one they negotiated.
+ * <p>
+ * Every handshake a transport starts goes through this class, so it's where they're counted in
+ * the server's {@link ServerMetrics}. Connections get the session, cipher suite and group
+ * preferences of the server's {@link TlsSettings}.
+ * <p>
+ * The certificate of each handshake is picked by an {@link SniKeyManager}, from the keystore of
+ * the host name the client asked for, or from the server's main keystore.
  */
 class DefaultConfigurator extends HttpsConfigurator {
+    private File mKeystoreFile;
+    private String mKeystorePassword;
+    private SniKeyManager mKeyManager;
+    private TlsSettings mSettings;
+    private ServerMetrics mMetrics;
+
     /**
      * Create a new configurator.
      *
      * @param keystoreFile the keystore file containing the certificate for the server
      * @param keystorePassword the password for the keystore file (empty string if none)
+     * @param hostKeystores the keystores of other host names, chosen by SNI and loaded when
+     *     first needed
+     * @param settings the session, cipher suite and group preferences
+     * @param metrics the measurements handshakes are recorded in
      * @throws SSLCreationException if there is a problem with the given keystore file
      */
-    public DefaultConfigurator(File keystoreFile, String keystorePassword)
+    public DefaultConfigurator(File keystoreFile, String keystorePassword,
+            Map<String, SniKeyManager.Keystore> hostKeystores, TlsSettings settings,
+            ServerMetrics metrics) throws SslCreationException {
+        this(keystoreFile, keystorePassword, new SniKeyManager(new SwappableKeyManager(
+            loadKeyManager(keystoreFile, keystorePassword), metrics::fullHandshake),
+            hostKeystores, metrics), settings, metrics);
+    }
+
+    private DefaultConfigurator(File keystoreFile, String keystorePassword,
+            SniKeyManager keyManager, TlsSettings settings, ServerMetrics metrics)
             throws SslCreationException {
-        super(buildSslContext(keystoreFile, keystorePassword));
+        super(buildSslContext(keyManager, settings));
+        keyManager.setSessions(getSSLContext().getServerSessionContext());
+        mKeystoreFile = keystoreFile;
+        mKeystorePassword = keystorePassword;
+        mKeyManager = keyManager;
+        mSettings = settings;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Set up a connection accepted by the JDK's server, which is about to start its handshake.
+     *
+     * @param params the connection's parameters
+     */
+    @Override
+    public void configure(HttpsParameters params) {
+        mMetrics.handshakeStarted();
+        params.setSSLParameters(mSettings.createParameters(getSSLContext()));
     }
 
     /**
-     * Build an SSLContext from a keystore file.
+     * Get the measurements handshakes are recorded in.
+     *
+     * @return the metrics
+     */
+    ServerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Create a TLS engine for a connection accepted by a transport other than the JDK's server.
+     * <p>
+     * The engine is set up the same way as connections to the JDK's server, and also picks
+     * an application protocol with ALPN. A client that offers none of the given protocols still
+     * gets a connection, just without ALPN, so it falls back to HTTP/1.x.
+     *
+     * @param applicationProtocols the ALPN protocol names in order of preference
+     * @return an engine in server mode
+     */
+    SSLEngine createEngine(List<String> applicationProtocols) {
+        mMetrics.handshakeStarted();
+        var engine = getSSLContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(mSettings.createParameters(getSSLContext()));
+        engine.setHandshakeApplicationProtocolSelector((handshake, offered) -> {
+            for (var protocol : applicationProtocols) {
+                if (offered.contains(protocol)) {
+                    return protocol;
+                }
+            }
+            return "";
+        });
+        return engine;
+    }
+
+    /**
+     * Reload the main keystore file and start offering its certificate to new handshakes.
+     * <p>
+     * Sessions negotiated with the old certificate are invalidated so that they can't be resumed,
+     * but connections using them are not interrupted. Sessions of host names with keystores of
+     * their own are left alone. If the keystore can't be loaded, the old certificate stays in
+     * use.
+     *
+     * @throws SslCreationException if unable to load the keystore file
+     */
+    public synchronized void reload() throws SslCreationException {
+        mKeyManager.setMain(loadKeyManager(mKeystoreFile, mKeystorePassword));
+    }
+
+    /**
+     * Start watching the host name keystores that have been loaded for changes.
+     */
+    void startWatching() {
+        mKeyManager.startWatching();
+    }
+
+    /**
+     * Stop watching the host name keystores for changes.
+     */
+    void stopWatching() {
+        mKeyManager.stopWatching();
+    }
+
+    /**
+     * Load the key material from a keystore file.
      *
      * @param keystoreFile the keystore file
      * @param keystorePassword the password for the keystore file
-     * @return a new SSLContext
-     * @throws SslCreationException if unable to build the SSLContext
+     * @return a key manager for the keystore's certificates
+     * @throws SslCreationException if unable to load the keystore
      */
-    private static SSLContext buildSslContext(File keystoreFile, String keystorePassword)
-            throws SslCreationException {
+    static X509ExtendedKeyManager loadKeyManager(File keystoreFile,
+            String keystorePassword) throws SslCreationException {
         try {
             var password = keystorePassword.toCharArray();
             var keystore = KeyStore.getInstance(keystoreFile, password);
             var keyManagerFactory = KeyManagerFactory.getInstance(
                 KeyManagerFactory.getDefaultAlgorithm());
             keyManagerFactory.init(keystore, password);
-            var ssl = SSLContext.getInstance("TLSv1.3");
-            ssl.init(keyManagerFactory.getKeyManagers(), null, null);
+            for (var keyManager : keyManagerFactory.getKeyManagers()) {
+                if (keyManager instanceof X509ExtendedKeyManager) {
+                    return (X509ExtendedKeyManager) keyManager;
+                }
+            }
+            throw new KeyStoreException("No X.509 key manager available.");
+        } catch (Exception ex) {
+            throw new SslCreationException(ex);
+        }
+    }
+
+    /**
+     * Build an SSLContext around a key manager.
+     *
+     * @param keyManager the key manager supplying the server's certificate
+     * @param settings the session settings
+     * @return a new SSLContext
+     * @throws SslCreationException if unable to build the SSLContext
+     */
+    private static SSLContext buildSslContext(X509ExtendedKeyManager keyManager,
+            TlsSettings settings) throws SslCreationException {
+        try {
+            var ssl = settings.createContext("TLSv1.3");
+            ssl.init(new KeyManager[] { keyManager }, null, null);
+            settings.configure(ssl);
             return ssl;
         } catch (Exception ex) {
             throw new SslCreationException(ex);
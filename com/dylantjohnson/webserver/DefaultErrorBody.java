@@ -1,15 +1,15 @@
 package com.dylantjohnson.webserver;
 
-import java.io.*;
 import java.util.function.*;
 
 /**
  * The error page generator used by {@link WebServer} if another is not configured.
+ * <p>
+ * The page is built once and the same immutable response is handed out every time.
  */
-class DefaultErrorBody implements Supplier<InputStream> {
-    @Override
-    public InputStream get() {
-        var body = String.join("\n",
+class DefaultErrorBody implements Supplier<RouteResponse> {
+    private static final RouteResponse RESPONSE = RouteResponse.of(RouteResponse.Status.ERROR,
+        "text/html; charset=utf-8", String.join("\n",
             "<!DOCTYPE html>",
             "<html lang=\"en\">",
             "  <head>",
@@ -19,7 +19,10 @@ class DefaultErrorBody implements Supplier<InputStream> {
             "  <body>",
             "    <p>com.dylantjohnson.webserver experienced an internal error.</p>",
             "  </body>",
-            "</html>");
-        return new ByteArrayInputStream(body.getBytes());
+            "</html>").getBytes());
+
+    @Override
+    public RouteResponse get() {
+        return RESPONSE;
     }
 }
@@ -2,11 +2,12 @@ package com.dylantjohnson.webserver;
 
 /**
  * The handler used by {@link WebServer} for any route if no others are configured.
+ * <p>
+ * The page is built once and the same immutable response is returned for every request.
  */
 class DefaultHandler implements RouteHandler {
-    @Override
-    public RouteResponse handle(RouteRequest request) throws Exception {
-        var body = String.join("\n",
+    private static final RouteResponse RESPONSE = RouteResponse.of(RouteResponse.Status.OK,
+        "text/html; charset=utf-8", String.join("\n",
             "<!DOCTYPE html>",
             "<html lang=\"en\">",
             "  <head>",
@@ -16,10 +17,10 @@ class DefaultHandler implements RouteHandler {
             "  <body>",
             "    <p>com.dylantjohnson.webserver is running</p>",
             "  </body>",
-            "</html>");
-        return new RouteResponseBuilder()
-            .setStatus(RouteResponse.Status.OK)
-            .setBody(body)
-            .build();
+            "</html>").getBytes());
+
+    @Override
+    public RouteResponse handle(RouteRequest request) throws Exception {
+        return RESPONSE;
     }
 }
@@ -0,0 +1,372 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * A hub that broadcasts Server-Sent Events to every client subscribed to its routes.
+ * <p>
+ * Give the hub to one or more routes with
+ * {@link WebServerBuilder#setEventStream(String, EventStream)}, then call
+ * {@link #publish(String, String)} whenever there's something to tell the clients. A browser
+ * subscribes with {@code new EventSource("/events")}.
+ * <p>
+ * Each event is encoded once, and the same bytes are queued for every subscriber. Nothing holds a
+ * thread while a subscriber waits for events: a subscriber's queued events are written by a task
+ * on the server's executor, which only runs while there's something to write, so thousands of
+ * idle subscribers cost a few objects each. A subscriber that falls so far behind that its queue
+ * holds more than the buffer limit is disconnected rather than letting its queue grow, and its
+ * browser reconnects and catches up from the replay buffer.
+ * <p>
+ * Events are numbered by the hub, and the last ones published are kept for replay. A client that
+ * reconnects with a {@code Last-Event-ID} header is sent the kept events published after that
+ * one before anything new. Subscribers that haven't been sent anything for a heartbeat interval
+ * get a comment line, which keeps proxies from closing the connection and lets the server notice
+ * clients that have gone away.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class EventStream {
+    /**
+     * The number of events kept for replay by default.
+     */
+    public static final int DEFAULT_REPLAY_EVENTS = 256;
+
+    /**
+     * The most bytes queued for one subscriber by default before it's disconnected.
+     */
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 256 * 1024;
+
+    /**
+     * The time between heartbeats by default.
+     */
+    public static final Duration DEFAULT_HEARTBEAT_INTERVAL = Duration.ofSeconds(15);
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final ScheduledExecutorService HEARTBEATS =
+        Schedulers.create("EventStream heartbeat");
+
+    /**
+     * A client's open response and the events queued for it.
+     * <p>
+     * Queued events are written by one task at a time, scheduled on the server's executor when
+     * the queue stops being empty, so the response stream is only ever used by one thread.
+     */
+    private class Subscriber implements Runnable {
+        private final HttpExchange mExchange;
+        private final OutputStream mOutput;
+        private final Executor mExecutor;
+        private final Object mOwner;
+        private final LongConsumer mOnEnd;
+        private final ArrayDeque<byte[]> mQueue = new ArrayDeque<>();
+        private int mQueued;
+        private long mWritten;
+        private boolean mScheduled;
+        private boolean mSent;
+        private boolean mEnded;
+
+        Subscriber(HttpExchange exchange, Executor executor, Object owner, LongConsumer onEnd) {
+            mExchange = exchange;
+            mOutput = exchange.getResponseBody();
+            mExecutor = executor;
+            mOwner = owner;
+            mOnEnd = onEnd;
+        }
+
+        /**
+         * Queue an event to be written.
+         *
+         * @param bytes the encoded event
+         * @param force true to queue it even if it goes over the buffer limit
+         */
+        void offer(byte[] bytes, boolean force) {
+            boolean schedule;
+            synchronized (this) {
+                if (mEnded) {
+                    return;
+                }
+                if (!force && mQueued + bytes.length > mMaxBufferedBytes) {
+                    mEvicted.increment();
+                    schedule = false;
+                } else {
+                    mQueue.add(bytes);
+                    mQueued += bytes.length;
+                    mSent = true;
+                    if (mScheduled) {
+                        return;
+                    }
+                    mScheduled = true;
+                    schedule = true;
+                }
+            }
+            if (!schedule) {
+                end();
+                return;
+            }
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                end();
+            }
+        }
+
+        /**
+         * Queue a heartbeat, unless something was queued since the last one.
+         */
+        void heartbeat() {
+            synchronized (this) {
+                if (mSent) {
+                    mSent = false;
+                    return;
+                }
+            }
+            offer(HEARTBEAT, false);
+        }
+
+        /**
+         * Write the queued events, flushing once the queue is empty.
+         */
+        @Override
+        public void run() {
+            var written = 0;
+            try {
+                while (true) {
+                    byte[] bytes;
+                    synchronized (this) {
+                        mWritten += written;
+                        written = 0;
+                        bytes = mQueue.poll();
+                        if (bytes != null) {
+                            mQueued -= bytes.length;
+                        }
+                    }
+                    if (bytes == null) {
+                        mOutput.flush();
+                        synchronized (this) {
+                            if (mQueue.isEmpty() || mEnded) {
+                                mScheduled = false;
+                                return;
+                            }
+                        }
+                        continue;
+                    }
+                    mOutput.write(bytes);
+                    written = bytes.length;
+                }
+            } catch (IOException | RuntimeException ex) {
+                synchronized (this) {
+                    mScheduled = false;
+                }
+                end();
+            }
+        }
+
+        /**
+         * Unsubscribe and drop the connection. Only the first call does anything.
+         */
+        void end() {
+            long written;
+            synchronized (this) {
+                if (mEnded) {
+                    return;
+                }
+                mEnded = true;
+                mQueue.clear();
+                mQueued = 0;
+                written = mWritten;
+            }
+            mSubscribers.remove(this);
+            RequestProcessor.abort(mExchange);
+            mOnEnd.accept(written);
+        }
+    }
+
+    private final int mReplayEvents;
+    private final int mMaxBufferedBytes;
+    private final Object mLock = new Object();
+    private final byte[][] mReplay;
+    private final Set<Subscriber> mSubscribers = ConcurrentHashMap.newKeySet();
+    private final LongAdder mEvicted = new LongAdder();
+    private long mLastId;
+
+    /**
+     * Create a hub with the default replay buffer, buffer limit and heartbeat interval.
+     */
+    public EventStream() {
+        this(DEFAULT_REPLAY_EVENTS, DEFAULT_MAX_BUFFERED_BYTES, DEFAULT_HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * Create a hub.
+     *
+     * @param replayEvents how many of the last events to keep for clients that reconnect, or 0
+     *     to keep none
+     * @param maxBufferedBytes the most bytes that may be queued for one subscriber before it's
+     *     disconnected
+     * @param heartbeatInterval how long a subscriber may go without being sent anything before
+     *     it's sent a heartbeat, or null or zero for no heartbeats
+     * @throws IllegalArgumentException if replayEvents is negative, maxBufferedBytes isn't
+     *     positive or heartbeatInterval is negative
+     */
+    public EventStream(int replayEvents, int maxBufferedBytes, Duration heartbeatInterval) {
+        if (replayEvents < 0) {
+            throw new IllegalArgumentException("The replay buffer can't be negative.");
+        }
+        if (maxBufferedBytes < 1) {
+            throw new IllegalArgumentException("The buffer limit must be positive.");
+        }
+        if (heartbeatInterval != null && heartbeatInterval.isNegative()) {
+            throw new IllegalArgumentException("The heartbeat interval can't be negative.");
+        }
+        mReplayEvents = replayEvents;
+        mMaxBufferedBytes = maxBufferedBytes;
+        mReplay = new byte[replayEvents][];
+        if (heartbeatInterval != null && !heartbeatInterval.isZero()) {
+            var period = Math.max(1, Math.min(heartbeatInterval.toNanos(),
+                ConnectionLimits.MAX_TIMEOUT_NANOS));
+            Schedulers.scheduleWhileReachable(HEARTBEATS, this, EventStream::heartbeat, period);
+        }
+    }
+
+    /**
+     * Send an unnamed event, which the browser dispatches as a {@code message} event.
+     *
+     * @param data the event's data, which may span several lines
+     * @return the event's id
+     * @throws IllegalArgumentException if data is null
+     */
+    public long publish(String data) {
+        return publish(null, data);
+    }
+
+    /**
+     * Send an event to every subscriber.
+     * <p>
+     * The event is encoded once, and its bytes are queued for each subscriber without waiting
+     * for any of them to be written.
+     *
+     * @param event the event's name, or null for a {@code message} event
+     * @param data the event's data, which may span several lines
+     * @return the event's id, which clients send back as {@code Last-Event-ID} when they
+     *     reconnect
+     * @throws IllegalArgumentException if the name has a line break in it or data is null
+     */
+    public long publish(String event, String data) {
+        if (event != null && (event.indexOf('\n') >= 0 || event.indexOf('\r') >= 0)) {
+            throw new IllegalArgumentException("Event names can't span lines.");
+        }
+        if (data == null) {
+            throw new IllegalArgumentException("The data can't be null.");
+        }
+        synchronized (mLock) {
+            var id = ++mLastId;
+            var bytes = encode(id, event, data);
+            if (mReplayEvents > 0) {
+                mReplay[(int) (id % mReplayEvents)] = bytes;
+            }
+            for (var subscriber : mSubscribers) {
+                subscriber.offer(bytes, false);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Get the number of clients subscribed.
+     *
+     * @return the subscriber count
+     */
+    public int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    /**
+     * Get the number of subscribers disconnected for falling too far behind.
+     *
+     * @return the evicted count
+     */
+    public long getEvictedCount() {
+        return mEvicted.sum();
+    }
+
+    /**
+     * Subscribe a client whose response headers have been sent.
+     * <p>
+     * A comment is queued first, which gets the response going right away. Then come the kept
+     * events published after the one the client saw last, and new events follow them in order.
+     *
+     * @param exchange the client's exchange, which the hub drops when the subscription ends
+     * @param lastEventId the id of the last event the client saw, or -1 to replay nothing
+     * @param executor where queued events are written
+     * @param owner what the subscription belongs to, for {@link #close(Object)}
+     * @param onEnd called with the number of bytes written once the subscription ends
+     */
+    void subscribe(HttpExchange exchange, long lastEventId, Executor executor, Object owner,
+            LongConsumer onEnd) {
+        var subscriber = new Subscriber(exchange, executor, owner, onEnd);
+        synchronized (mLock) {
+            subscriber.offer(HEARTBEAT, true);
+            if (lastEventId >= 0 && mReplayEvents > 0) {
+                var first = Math.max(lastEventId + 1, mLastId - mReplayEvents + 1);
+                for (var id = first; id <= mLastId; id++) {
+                    subscriber.offer(mReplay[(int) (id % mReplayEvents)], true);
+                }
+            }
+            mSubscribers.add(subscriber);
+        }
+    }
+
+    /**
+     * End the subscriptions belonging to an owner, dropping their connections so the clients
+     * reconnect.
+     *
+     * @param owner the owner given to {@link #subscribe}
+     */
+    void close(Object owner) {
+        synchronized (mLock) {
+            for (var subscriber : mSubscribers) {
+                if (subscriber.mOwner == owner) {
+                    subscriber.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a heartbeat to every subscriber that hasn't been sent anything lately.
+     * <p>
+     * This is called on the heartbeat thread.
+     */
+    private void heartbeat() {
+        for (var subscriber : mSubscribers) {
+            subscriber.heartbeat();
+        }
+    }
+
+    /**
+     * Encode an event in the text/event-stream format.
+     *
+     * @param id the event's id
+     * @param event the event's name, or null
+     * @param data the event's data
+     * @return the UTF-8 bytes of the event, ending with the blank line that dispatches it
+     */
+    private static byte[] encode(long id, String event, String data) {
+        var text = new StringBuilder(data.length() + 32);
+        text.append("id: ").append(id).append('\n');
+        if (event != null) {
+            text.append("event: ").append(event).append('\n');
+        }
+        for (var line : data.split("\r\n|\r|\n", -1)) {
+            text.append("data: ").append(line).append('\n');
+        }
+        text.append('\n');
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
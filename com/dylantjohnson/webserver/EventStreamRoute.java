@@ -0,0 +1,46 @@
+package com.dylantjohnson.webserver;
+
+/**
+ * The RouteHandler a route set with an {@link EventStream} is stored as.
+ * <p>
+ * {@link RequestProcessor} recognizes it and subscribes the client to the stream instead of
+ * calling {@link #handle(RouteRequest)}, leaving the exchange open for as long as the
+ * subscription lasts. Each server gets its own, so the subscriptions it opened can be ended
+ * when it stops without touching those of other servers sharing the stream.
+ * <p>
+ * This class is thread-safe.
+ */
+final class EventStreamRoute implements RouteHandler {
+    private final EventStream mStream;
+
+    /**
+     * Wrap an event stream.
+     *
+     * @param stream the stream the route's clients subscribe to
+     */
+    EventStreamRoute(EventStream stream) {
+        mStream = stream;
+    }
+
+    /**
+     * Get the stream the route's clients subscribe to.
+     *
+     * @return the stream
+     */
+    EventStream getStream() {
+        return mStream;
+    }
+
+    /**
+     * End the subscriptions opened through this route, dropping their connections so the
+     * clients reconnect.
+     */
+    void close() {
+        mStream.close(this);
+    }
+
+    @Override
+    public RouteResponse handle(RouteRequest request) throws Exception {
+        throw new UnsupportedOperationException("An event stream has no single response.");
+    }
+}
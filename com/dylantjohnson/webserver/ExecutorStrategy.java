@@ -0,0 +1,70 @@
+package com.dylantjohnson.webserver;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * A strategy for creating the executor that runs a {@link WebServer}'s requests.
+ * <p>
+ * A fixed pool with one thread per core is used unless another strategy is configured with
+ * {@link WebServerBuilder#setExecutorStrategy(ExecutorStrategy)}.
+ */
+public interface ExecutorStrategy {
+    /**
+     * Create the executor that requests will run on.
+     *
+     * @return a new executor
+     */
+    ExecutorService createExecutor();
+
+    /**
+     * A fixed pool with one thread per available processor.
+     * <p>
+     * This suits handlers that spend their time computing rather than waiting on I/O.
+     *
+     * @return the strategy
+     */
+    static ExecutorStrategy fixedPool() {
+        return fixedPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * A fixed pool with a specific number of threads.
+     *
+     * @param threads the number of threads in the pool
+     * @return the strategy
+     * @throws IllegalArgumentException if threads is less than 1
+     */
+    static ExecutorStrategy fixedPool(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A pool needs at least one thread.");
+        }
+        return () -> new ThreadPoolExecutor(threads, threads, 0, TimeUnit.NANOSECONDS,
+            new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * A new virtual thread for every request.
+     * <p>
+     * This suits handlers that block on databases, disks or other services, since a blocked
+     * virtual thread doesn't hold on to a platform thread. Virtual threads need Java 21 or newer.
+     *
+     * @return the strategy
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    static ExecutorStrategy virtualThreads() {
+        Method factory;
+        try {
+            factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or newer.");
+        }
+        return () -> {
+            try {
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                throw new UnsupportedOperationException(ex);
+            }
+        };
+    }
+}
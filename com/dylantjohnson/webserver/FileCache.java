@@ -0,0 +1,341 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A size-bounded, least-recently-used cache of files used by {@link StaticFileHandler}.
+ * <p>
+ * Every file that's looked up gets an entry holding its validators (ETag and Last-Modified) and
+ * content type. Files no bigger than the per-file limit also have their contents kept in memory,
+ * as long as the total cached content stays under the overall limit. Entries are checked
+ * against the file system at most once per {@link #REVALIDATE_NANOS}, so a hot file costs a
+ * map lookup rather than a system call.
+ * <p>
+ * Compressed variants of cached contents are computed the first time they're asked for and
+ * count towards the overall limit along with the contents.
+ * <p>
+ * This class is thread-safe.
+ */
+class FileCache {
+    static final long REVALIDATE_NANOS = 1_000_000_000L;
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+        .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+        .withZone(ZoneOffset.UTC);
+
+    private static final int MAX_ENTRIES = 10_000;
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+        Map.entry("html", "text/html; charset=utf-8"),
+        Map.entry("htm", "text/html; charset=utf-8"),
+        Map.entry("css", "text/css; charset=utf-8"),
+        Map.entry("js", "text/javascript; charset=utf-8"),
+        Map.entry("mjs", "text/javascript; charset=utf-8"),
+        Map.entry("json", "application/json"),
+        Map.entry("txt", "text/plain; charset=utf-8"),
+        Map.entry("xml", "application/xml"),
+        Map.entry("svg", "image/svg+xml"),
+        Map.entry("png", "image/png"),
+        Map.entry("jpg", "image/jpeg"),
+        Map.entry("jpeg", "image/jpeg"),
+        Map.entry("gif", "image/gif"),
+        Map.entry("webp", "image/webp"),
+        Map.entry("ico", "image/x-icon"),
+        Map.entry("woff", "font/woff"),
+        Map.entry("woff2", "font/woff2"),
+        Map.entry("wasm", "application/wasm"),
+        Map.entry("pdf", "application/pdf"),
+        Map.entry("zip", "application/zip"),
+        Map.entry("mp4", "video/mp4"),
+        Map.entry("webm", "video/webm"),
+        Map.entry("mp3", "audio/mpeg"));
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    /**
+     * A cached file, or a remembered absence of one.
+     */
+    static class Entry {
+        final Path mPath;
+        final boolean mExists;
+        final long mSize;
+        final FileTime mModified;
+        final String mEtag;
+        final String mLastModified;
+        final String mContentType;
+        final byte[] mContent;
+        final Map<String, byte[]> mVariants;
+        volatile long mCheckedAt;
+
+        Entry(Path path, BasicFileAttributes attributes, byte[] content) {
+            mPath = path;
+            mExists = true;
+            mSize = attributes.size();
+            mModified = attributes.lastModifiedTime();
+            mEtag = String.format("\"%x-%x\"", mSize, mModified.toMillis());
+            mLastModified = HTTP_DATE.format(mModified.toInstant());
+            mContentType = contentType(path);
+            mContent = content;
+            mVariants = content == null ? null : new ConcurrentHashMap<>();
+            mCheckedAt = System.nanoTime();
+        }
+
+        Entry(Path path) {
+            mPath = path;
+            mExists = false;
+            mSize = -1;
+            mModified = null;
+            mEtag = null;
+            mLastModified = null;
+            mContentType = null;
+            mContent = null;
+            mVariants = null;
+            mCheckedAt = System.nanoTime();
+        }
+
+        /**
+         * Get the number of bytes this entry holds in memory.
+         *
+         * @return the size of the contents and all compressed variants
+         */
+        long getMemory() {
+            if (mContent == null) {
+                return 0;
+            }
+            var memory = (long) mContent.length;
+            for (var variant : mVariants.values()) {
+                memory += variant.length;
+            }
+            return memory;
+        }
+
+        /**
+         * Open a stream over part of the file.
+         *
+         * @param offset the index of the first byte
+         * @param length the number of bytes
+         * @return the stream, served from memory if the content is cached
+         * @throws IOException if the file can't be opened
+         */
+        InputStream open(long offset, long length) throws IOException {
+            if (mContent != null) {
+                return new ByteArrayInputStream(mContent, (int) offset, (int) length);
+            }
+            var channel = Files.newByteChannel(mPath, StandardOpenOption.READ);
+            channel.position(offset);
+            return new BoundedInputStream(Channels.newInputStream(channel), length);
+        }
+    }
+
+    /**
+     * A stream that ends after a fixed number of bytes of another stream.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            var b = super.read();
+            if (b > -1) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            var read = super.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+    }
+
+    private final long mMaxBytes;
+    private final long mMaxFileBytes;
+    private final LinkedHashMap<Path, Entry> mEntries;
+    private long mCachedBytes;
+
+    /**
+     * Create a cache.
+     *
+     * @param maxBytes the most file content to keep in memory, in bytes
+     * @param maxFileBytes the biggest file whose content will be kept in memory, in bytes
+     */
+    public FileCache(long maxBytes, long maxFileBytes) {
+        mMaxBytes = maxBytes;
+        mMaxFileBytes = Math.min(maxFileBytes, Integer.MAX_VALUE);
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Look up a regular file, loading or refreshing its entry if needed.
+     *
+     * @param path the normalized, absolute path of the file
+     * @return the entry, or null if there is no regular file at the path
+     * @throws IOException if the file can't be read
+     */
+    public Entry get(Path path) throws IOException {
+        return get(path, false);
+    }
+
+    /**
+     * Look up a regular file that often doesn't exist, such as a precompressed variant.
+     * <p>
+     * Unlike {@link #get(Path)}, the absence of the file is cached too, so repeatedly looking for
+     * a missing file doesn't cost a system call each time.
+     *
+     * @param path the normalized, absolute path of the file
+     * @return the entry, or null if there is no regular file at the path
+     * @throws IOException if the file can't be read
+     */
+    public Entry getOptional(Path path) throws IOException {
+        return get(path, true);
+    }
+
+    /**
+     * Get the compressed contents of a cached file, compressing them if this is the first time.
+     *
+     * @param entry the file
+     * @param encoding {@link Compression#GZIP} or {@link Compression#DEFLATE}
+     * @return the compressed contents, or null if the file's contents aren't cached
+     */
+    public byte[] getVariant(Entry entry, String encoding) {
+        if (entry.mContent == null) {
+            return null;
+        }
+        var variant = entry.mVariants.get(encoding);
+        if (variant != null) {
+            return variant;
+        }
+        variant = Compression.compress(encoding, entry.mContent);
+        synchronized (this) {
+            var existing = entry.mVariants.putIfAbsent(encoding, variant);
+            if (existing != null) {
+                return existing;
+            }
+            if (mEntries.get(entry.mPath) == entry) {
+                mCachedBytes += variant.length;
+                evict(entry);
+            }
+        }
+        return variant;
+    }
+
+    private Entry get(Path path, boolean rememberMissing) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(path);
+        }
+        var now = System.nanoTime();
+        if (entry != null && now - entry.mCheckedAt < REVALIDATE_NANOS) {
+            return entry.mExists ? entry : null;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            if (rememberMissing) {
+                put(new Entry(path));
+            } else {
+                remove(path);
+            }
+            return null;
+        }
+        if (entry != null && entry.mExists && entry.mSize == attributes.size()
+                && entry.mModified.equals(attributes.lastModifiedTime())) {
+            entry.mCheckedAt = now;
+            return entry;
+        }
+        byte[] content = null;
+        if (attributes.size() <= mMaxFileBytes && attributes.size() <= mMaxBytes) {
+            content = Files.readAllBytes(path);
+            if (content.length != attributes.size()) {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                content = content.length == attributes.size() ? content : null;
+            }
+        }
+        entry = new Entry(path, attributes, content);
+        put(entry);
+        return entry;
+    }
+
+    /**
+     * Add an entry, evicting the least recently used entries to stay within the limits.
+     *
+     * @param entry the entry to add
+     */
+    private synchronized void put(Entry entry) {
+        var replaced = mEntries.put(entry.mPath, entry);
+        if (replaced != null) {
+            mCachedBytes -= replaced.getMemory();
+        }
+        mCachedBytes += entry.getMemory();
+        evict(entry);
+    }
+
+    /**
+     * Evict the least recently used entries until the cache is within its limits.
+     *
+     * @param keep an entry that must not be evicted
+     */
+    private synchronized void evict(Entry keep) {
+        var iterator = mEntries.values().iterator();
+        while ((mCachedBytes > mMaxBytes || mEntries.size() > MAX_ENTRIES)
+                && iterator.hasNext()) {
+            var eldest = iterator.next();
+            if (eldest == keep) {
+                continue;
+            }
+            iterator.remove();
+            mCachedBytes -= eldest.getMemory();
+        }
+    }
+
+    /**
+     * Drop the entry for a path.
+     *
+     * @param path the path
+     */
+    private synchronized void remove(Path path) {
+        var removed = mEntries.remove(path);
+        if (removed != null) {
+            mCachedBytes -= removed.getMemory();
+        }
+    }
+
+    /**
+     * Guess the content type of a file from its extension.
+     *
+     * @param path the file
+     * @return the content type
+     */
+    private static String contentType(Path path) {
+        var name = path.getFileName().toString();
+        var dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        var type = CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type == null ? DEFAULT_CONTENT_TYPE : type;
+    }
+}
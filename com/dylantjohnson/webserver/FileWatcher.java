@@ -1,24 +1,42 @@
 package com.dylantjohnson.webserver;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * A class that watches a file for changes and notifies any observers.
  * <p>
- * This class will periodically compute an MD5 hash of the file it's watching and see if it
- * changed.
+ * This class registers the file's directory with a {@link WatchService} and reacts to events for
+ * the file once they settle down, so a file that's rewritten in several steps only triggers one
+ * check. Events for other files in the directory are ignored, and the file is checked after a
+ * few seconds even if its events keep coming, so a busy neighbor or a file that's written
+ * constantly can't keep it from being checked. If the file system can't be watched, it falls
+ * back to checking the file periodically.
+ * <p>
+ * Checking the file is cheap: its size and modification time are compared first, and only if
+ * one of them changed is an MD5 hash computed to see if the contents really changed.
  * <p>
  * This class is thread-safe.
  */
 class FileWatcher {
     private final int FILE_POLL_RATE_SEC = 10;
+    private final int SAFETY_CHECK_RATE_SEC = 60;
+    private final int DEBOUNCE_MS = 250;
+    private final int MAX_SETTLE_MS = 3000;
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
 
     private Thread mThread;
     private File mFile;
     private List<Runnable> mListeners;
     private byte[] mHash;
+    private long mSize;
+    private FileTime mModified;
 
     /**
      * Create a new FileWatcher with a specific file.
@@ -28,7 +46,10 @@ class FileWatcher {
      */
     public FileWatcher(File file) throws FileHashingException {
         mFile = file;
-        mListeners = new ArrayList<>();
+        mListeners = new CopyOnWriteArrayList<>();
+        var attributes = stat(file);
+        mSize = attributes.size();
+        mModified = attributes.lastModifiedTime();
         mHash = hash(file);
     }
 
@@ -39,17 +60,14 @@ class FileWatcher {
         if (mThread == null) {
             System.out.println(String.format("Watching %s for changes...", mFile));
             mThread = new Thread(() -> {
-                while (true) {
-                    try {
-                        Thread.sleep(FILE_POLL_RATE_SEC * 1000L);
-                        checkFile();
-                    } catch (FileHashingException ex) {
-                        continue;
-                    } catch (InterruptedException ex) {
-                        break;
-                    }
+                try {
+                    watch();
+                } catch (IOException | UnsupportedOperationException ex) {
+                    poll();
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
+                    return;
                 }
-            });
+            }, "FileWatcher " + mFile.getName());
             mThread.start();
         }
     }
@@ -65,17 +83,136 @@ class FileWatcher {
     }
 
     /**
-     * Hash the configured file and check if it's changed.
+     * Wait for file system events in the configured file's directory and check the file when
+     * they stop arriving.
+     * <p>
+     * The file is also checked every so often without an event, which catches changes that
+     * aren't reported, such as the target of a symbolic link being rewritten.
+     *
+     * @throws IOException if the directory can't be watched
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private void watch() throws IOException, InterruptedException {
+        var path = mFile.getAbsoluteFile().toPath();
+        var name = path.getFileName();
+        var directory = path.getParent();
+        try (var service = directory.getFileSystem().newWatchService()) {
+            directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+            while (!Thread.currentThread().isInterrupted()) {
+                var key = service.poll(SAFETY_CHECK_RATE_SEC, TimeUnit.SECONDS);
+                if (key == null) {
+                    tryCheckFile();
+                    continue;
+                }
+                var relevant = isRelevant(key, name);
+                key.reset();
+                if (relevant) {
+                    settle(service, name);
+                    tryCheckFile();
+                }
+            }
+        }
+    }
+
+    /**
+     * Swallow events until none have arrived for the file for a short while, or until
+     * {@link #MAX_SETTLE_MS} have passed in all.
+     *
+     * @param service the service delivering the events
+     * @param name the file's name within its directory
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private void settle(WatchService service, Path name) throws InterruptedException {
+        var now = System.nanoTime();
+        var deadline = now + TimeUnit.MILLISECONDS.toNanos(MAX_SETTLE_MS);
+        var quietAt = now + TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MS);
+        while (true) {
+            var wait = Math.min(quietAt, deadline) - now;
+            if (wait <= 0) {
+                return;
+            }
+            var key = service.poll(wait, TimeUnit.NANOSECONDS);
+            if (key == null) {
+                return;
+            }
+            var relevant = isRelevant(key, name);
+            key.reset();
+            now = System.nanoTime();
+            if (relevant) {
+                quietAt = now + TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MS);
+            }
+        }
+    }
+
+    /**
+     * Take a key's pending events and see if any of them could be for the file.
+     *
+     * @param key the key whose events to take
+     * @param name the file's name within its directory
+     * @return true if an event names the file, or events were lost
+     */
+    private static boolean isRelevant(WatchKey key, Path name) {
+        var relevant = false;
+        for (var event : key.pollEvents()) {
+            relevant |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                || name.equals(event.context());
+        }
+        return relevant;
+    }
+
+    /**
+     * Check the configured file periodically, for file systems that can't be watched.
+     */
+    private void poll() {
+        while (true) {
+            try {
+                Thread.sleep(FILE_POLL_RATE_SEC * 1000L);
+            } catch (InterruptedException ex) {
+                break;
+            }
+            tryCheckFile();
+        }
+    }
+
+    /**
+     * Check the configured file, ignoring any failure.
+     * <p>
+     * The file might be missing or half written in the middle of being replaced, so a failure
+     * here just means waiting for the next event.
+     */
+    private void tryCheckFile() {
+        try {
+            checkFile();
+        } catch (FileHashingException ex) {
+            return;
+        }
+    }
+
+    /**
+     * Check if the configured file has changed and notify the observers if it has.
+     * <p>
+     * The file is only hashed if its size or modification time changed. The observers are
+     * notified outside of this object's lock so they're free to stop this watcher.
      *
      * @throws FileHashingException if unable to hash the file
      */
-    synchronized void checkFile() throws FileHashingException {
-        var newHash = hash(mFile);
-        if (!Arrays.equals(mHash, newHash)) {
-            mHash = newHash;
-            for (var listener : mListeners) {
-                listener.run();
+    void checkFile() throws FileHashingException {
+        synchronized (this) {
+            var attributes = stat(mFile);
+            if (attributes.size() == mSize && attributes.lastModifiedTime().equals(mModified)) {
+                return;
+            }
+            var newHash = hash(mFile);
+            mSize = attributes.size();
+            mModified = attributes.lastModifiedTime();
+            if (Arrays.equals(mHash, newHash)) {
+                return;
             }
+            mHash = newHash;
+        }
+        for (var listener : mListeners) {
+            listener.run();
         }
     }
 
@@ -84,10 +221,25 @@ class FileWatcher {
      *
      * @param listener the observer to add
      */
-    public synchronized void addListener(Runnable listener) {
+    public void addListener(Runnable listener) {
         mListeners.add(listener);
     }
 
+    /**
+     * Read the size and modification time of a file.
+     *
+     * @param file the file to inspect
+     * @return the file's attributes
+     * @throws FileHashingException if unable to read the attributes
+     */
+    private static BasicFileAttributes stat(File file) throws FileHashingException {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (Exception ex) {
+            throw new FileHashingException(ex);
+        }
+    }
+
     /**
      * Calculate the MD5 hash of a file.
      *
@@ -95,18 +247,19 @@ class FileWatcher {
      * @return the hash as a byte array
      * @throws FileHashingException if unable to hash the file
      */
-    private static byte[] hash(File file) throws FileHashingException {
+    static byte[] hash(File file) throws FileHashingException {
         MessageDigest hasher;
         try  {
             hasher = MessageDigest.getInstance("MD5");
         } catch (Exception ex) {
             throw new FileHashingException(ex);
         }
-        try (var fileStream = new FileInputStream(file);
-                var reader = new DigestInputStream(fileStream, hasher)) {
-            int b = reader.read();
-            while (b > -1) {
-                b = reader.read();
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+            while (channel.read(buffer) > -1) {
+                buffer.flip();
+                hasher.update(buffer);
+                buffer.clear();
             }
             return hasher.digest();
         } catch (Exception ex) {
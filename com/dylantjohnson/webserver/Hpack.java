@@ -0,0 +1,556 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541).
+ * <p>
+ * Each direction of a connection has its own compression state: the {@link Decoder} follows the
+ * client's dynamic table and the {@link Encoder} keeps the one for responses. Both tables must
+ * see every header block in the order the blocks are sent, so a block has to be decoded even if
+ * its stream is refused, and encoded blocks have to be sent in the order they were encoded.
+ */
+final class Hpack {
+    /**
+     * The dynamic table size both sides start with.
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final String[][] STATIC_TABLE = {
+        null,
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" },
+    };
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6,
+        0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd,
+        0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1,
+        0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7,
+        0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9,
+        0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+        0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0,
+        0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb,
+        0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60,
+        0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67,
+        0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+        0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd,
+        0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3,
+        0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27,
+        0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77,
+        0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+        0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3,
+        0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc,
+        0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7,
+        0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc,
+        0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda,
+        0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb,
+        0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1,
+        0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0,
+        0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1,
+        0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4,
+        0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+        0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4,
+        0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8,
+        0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5,
+        0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7,
+        0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+        0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28,
+        28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11,
+        10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8,
+        15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5,
+        6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7,
+        7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23,
+        23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21,
+        23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25,
+        26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26,
+        28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+    private static final int EOS = 256;
+    private static final int EOS_CODE = 0x3fffffff;
+    private static final int EOS_LENGTH = 30;
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (var i = STATIC_TABLE.length - 1; i > 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i);
+            }
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * The dynamic part of a header table, newest entry first.
+     */
+    private static class DynamicTable {
+        private final Deque<String[]> mEntries = new ArrayDeque<>();
+        private int mSize;
+        private int mMaxSize;
+
+        DynamicTable(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        String[] get(int index) {
+            if (index < 1 || index > mEntries.size()) {
+                return null;
+            }
+            var iterator = mEntries.iterator();
+            for (var i = 1; i < index; i++) {
+                iterator.next();
+            }
+            return iterator.next();
+        }
+
+        int length() {
+            return mEntries.size();
+        }
+
+        Iterable<String[]> entries() {
+            return mEntries;
+        }
+
+        void add(String name, String value) {
+            var size = entrySize(name, value);
+            evict(mMaxSize - size);
+            if (size <= mMaxSize) {
+                mEntries.addFirst(new String[] { name, value });
+                mSize += size;
+            }
+        }
+
+        void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int target) {
+            while (mSize > Math.max(target, 0) && !mEntries.isEmpty()) {
+                var entry = mEntries.removeLast();
+                mSize -= entrySize(entry[0], entry[1]);
+            }
+        }
+
+        private static int entrySize(String name, String value) {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Decodes the header blocks a client sends.
+     * <p>
+     * The decoded size of each block is limited, counting every field's name and value plus 32
+     * bytes as RFC 7541 sizes table entries, since a small block can refer to the same large
+     * table entry over and over.
+     * <p>
+     * This class is not thread-safe.
+     */
+    static class Decoder {
+        private final DynamicTable mTable;
+        private final int mMaxTableSize;
+        private final int mMaxListSize;
+
+        /**
+         * Create a decoder.
+         *
+         * @param maxTableSize the largest dynamic table the client may ask for, as advertised in
+         *        the server's settings
+         * @param maxListSize the largest decoded header list a block may hold, as advertised in
+         *        the server's settings
+         */
+        Decoder(int maxTableSize, int maxListSize) {
+            mMaxTableSize = maxTableSize;
+            mMaxListSize = maxListSize;
+            mTable = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decode a complete header block.
+         *
+         * @param block the block, which is consumed
+         * @return the header fields in the order they were sent, as name and value pairs
+         * @throws IOException if the block is invalid or decodes to too large a header list,
+         *         which is a connection error
+         */
+        List<String[]> decode(ByteBuffer block) throws IOException {
+            var fields = new ArrayList<String[]>();
+            var listSize = 0L;
+            try {
+                while (block.hasRemaining()) {
+                    var first = block.get(block.position()) & 0xff;
+                    String[] field;
+                    if ((first & 0x80) != 0) {
+                        field = field(readInteger(block, 7));
+                    } else if ((first & 0x40) != 0) {
+                        field = literal(block, 6);
+                        mTable.add(field[0], field[1]);
+                    } else if ((first & 0x20) != 0) {
+                        if (!fields.isEmpty()) {
+                            throw new IOException("Table size update after a header field.");
+                        }
+                        var size = readInteger(block, 5);
+                        if (size > mMaxTableSize) {
+                            throw new IOException("Table size update is too large.");
+                        }
+                        mTable.setMaxSize(size);
+                        continue;
+                    } else {
+                        field = literal(block, 4);
+                    }
+                    listSize += DynamicTable.entrySize(field[0], field[1]);
+                    if (listSize > mMaxListSize) {
+                        throw new IOException("Header list is too large.");
+                    }
+                    fields.add(field);
+                }
+            } catch (BufferUnderflowException ex) {
+                throw new IOException("Header block is truncated.");
+            }
+            return fields;
+        }
+
+        private String[] literal(ByteBuffer block, int prefix) throws IOException {
+            var index = readInteger(block, prefix);
+            var name = index == 0 ? readString(block) : field(index)[0];
+            return new String[] { name, readString(block) };
+        }
+
+        private String[] field(int index) throws IOException {
+            if (index > 0 && index < STATIC_TABLE.length) {
+                return STATIC_TABLE[index];
+            }
+            var entry = mTable.get(index - STATIC_TABLE.length + 1);
+            if (entry == null) {
+                throw new IOException("Invalid header table index " + index + ".");
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Encodes the header blocks of responses.
+     * <p>
+     * Fields are added to the dynamic table unless their values tend to change on every
+     * response, so repeated headers like content types shrink to a byte or two. This class is
+     * not thread-safe.
+     */
+    static class Encoder {
+        private static final Set<String> UNINDEXED = Set.of("content-length", "date", "etag",
+            "last-modified", "content-range", "expires", "age");
+        private static final Set<String> NEVER_INDEXED = Set.of("set-cookie", "authorization");
+
+        private final DynamicTable mTable = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private int mMaxTableSize = DEFAULT_TABLE_SIZE;
+        private int mPendingTableSize = -1;
+
+        /**
+         * Limit the dynamic table to the size the client allows.
+         * <p>
+         * The change is announced at the start of the next header block.
+         *
+         * @param size the client's SETTINGS_HEADER_TABLE_SIZE
+         */
+        void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (size != mMaxTableSize) {
+                mMaxTableSize = size;
+                mPendingTableSize = mPendingTableSize < 0 ? size
+                    : Math.min(mPendingTableSize, size);
+            }
+        }
+
+        /**
+         * Encode a header block.
+         *
+         * @param fields the header fields as name and value pairs, with lower case names
+         * @return the block
+         */
+        byte[] encode(List<String[]> fields) {
+            var out = new ByteArrayOutputStream(fields.size() * 16);
+            if (mPendingTableSize >= 0) {
+                if (mPendingTableSize < mMaxTableSize) {
+                    writeInteger(out, 0x20, 5, mPendingTableSize);
+                }
+                writeInteger(out, 0x20, 5, mMaxTableSize);
+                mTable.setMaxSize(mMaxTableSize);
+                mPendingTableSize = -1;
+            }
+            for (var field : fields) {
+                encode(out, field[0], field[1]);
+            }
+            return out.toByteArray();
+        }
+
+        private void encode(ByteArrayOutputStream out, String name, String value) {
+            var index = STATIC_FIELDS.getOrDefault(name + '\0' + value, 0);
+            var nameIndex = STATIC_NAMES.getOrDefault(name, 0);
+            var position = STATIC_TABLE.length;
+            for (var entry : mTable.entries()) {
+                if (index != 0) {
+                    break;
+                }
+                if (entry[0].equals(name)) {
+                    if (entry[1].equals(value)) {
+                        index = position;
+                    } else if (nameIndex == 0) {
+                        nameIndex = position;
+                    }
+                }
+                position++;
+            }
+            if (index != 0) {
+                writeInteger(out, 0x80, 7, index);
+                return;
+            }
+            if (NEVER_INDEXED.contains(name)) {
+                writeInteger(out, 0x10, 4, nameIndex);
+            } else if (UNINDEXED.contains(name) || name.equals(":status")) {
+                writeInteger(out, 0x00, 4, nameIndex);
+            } else {
+                writeInteger(out, 0x40, 6, nameIndex);
+                mTable.add(name, value);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Read an integer with an N-bit prefix.
+     *
+     * @param block the buffer, positioned at the integer's first byte
+     * @param prefix the number of bits of the first byte the integer starts in
+     * @return the integer
+     * @throws IOException if the integer doesn't fit in an int
+     */
+    private static int readInteger(ByteBuffer block, int prefix) throws IOException {
+        var mask = (1 << prefix) - 1;
+        var value = block.get() & mask;
+        if (value < mask) {
+            return value;
+        }
+        for (var shift = 0; shift <= 21; shift += 7) {
+            var next = block.get() & 0xff;
+            value += (next & 0x7f) << shift;
+            if ((next & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Header block integer is too large.");
+    }
+
+    /**
+     * Write an integer with an N-bit prefix.
+     *
+     * @param out the stream to write to
+     * @param flags the bits above the prefix in the first byte
+     * @param prefix the number of bits for the integer in the first byte
+     * @param value the integer
+     */
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefix,
+            int value) {
+        var mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Read a string literal, Huffman coded or not.
+     *
+     * @param block the buffer, positioned at the string's length
+     * @return the string
+     * @throws IOException if the string is invalid
+     */
+    private static String readString(ByteBuffer block) throws IOException {
+        var huffman = (block.get(block.position()) & 0x80) != 0;
+        var length = readInteger(block, 7);
+        if (length > block.remaining()) {
+            throw new IOException("Header block is truncated.");
+        }
+        if (!huffman) {
+            var bytes = new byte[length];
+            block.get(bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        var text = new StringBuilder(length * 8 / 5);
+        var node = 0;
+        var bits = 0;
+        var ones = true;
+        for (var i = 0; i < length; i++) {
+            var b = block.get();
+            for (var bit = 7; bit >= 0; bit--) {
+                var one = (b >>> bit & 1) == 1;
+                var child = HUFFMAN_TREE[node * 2 + (one ? 1 : 0)];
+                bits++;
+                ones &= one;
+                if (child >= 0) {
+                    node = child;
+                    continue;
+                }
+                var symbol = -child - 1;
+                if (symbol == EOS) {
+                    throw new IOException("Huffman string contains EOS.");
+                }
+                text.append((char) symbol);
+                node = 0;
+                bits = 0;
+                ones = true;
+            }
+        }
+        if (bits > 7 || !ones) {
+            throw new IOException("Huffman string has invalid padding.");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Write a string literal, Huffman coded if that makes it shorter.
+     *
+     * @param out the stream to write to
+     * @param text the string, made of ISO-8859-1 characters
+     */
+    private static void writeString(ByteArrayOutputStream out, String text) {
+        var bits = 0L;
+        for (var i = 0; i < text.length(); i++) {
+            bits += HUFFMAN_LENGTHS[text.charAt(i) & 0xff];
+        }
+        var huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= text.length()) {
+            writeInteger(out, 0x00, 7, text.length());
+            var bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            out.write(bytes, 0, bytes.length);
+            return;
+        }
+        writeInteger(out, 0x80, 7, huffmanLength);
+        var pending = 0L;
+        var count = 0;
+        for (var i = 0; i < text.length(); i++) {
+            var symbol = text.charAt(i) & 0xff;
+            pending = pending << HUFFMAN_LENGTHS[symbol] | HUFFMAN_CODES[symbol];
+            count += HUFFMAN_LENGTHS[symbol];
+            while (count >= 8) {
+                count -= 8;
+                out.write((int) (pending >>> count));
+            }
+        }
+        if (count > 0) {
+            out.write((int) (pending << (8 - count) | (0xff >>> count)));
+        }
+    }
+
+    /**
+     * Build the tree used to decode Huffman strings.
+     * <p>
+     * Node n's children are at 2n and 2n + 1. A child holds the index of another node, or a
+     * symbol s as -(s + 1) if it's a leaf.
+     *
+     * @return the tree
+     */
+    private static int[] buildHuffmanTree() {
+        var tree = new int[2 * (EOS + 1)];
+        var nodes = 1;
+        for (var symbol = 0; symbol <= EOS; symbol++) {
+            var code = symbol == EOS ? EOS_CODE : HUFFMAN_CODES[symbol];
+            var length = symbol == EOS ? EOS_LENGTH : HUFFMAN_LENGTHS[symbol];
+            var node = 0;
+            for (var bit = length - 1; bit > 0; bit--) {
+                var slot = node * 2 + (code >>> bit & 1);
+                if (tree[slot] == 0) {
+                    tree[slot] = nodes++;
+                }
+                node = tree[slot];
+            }
+            tree[node * 2 + (code & 1)] = -(symbol + 1);
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,182 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * A request being handled on an HTTP/2 stream.
+ * <p>
+ * Handlers see the same exchange as over HTTP/1.x, but the response head is sent as an HPACK
+ * encoded HEADERS frame and the body as DATA frames, so there's no chunked encoding and headers
+ * that only make sense for one HTTP/1.1 connection, like Connection, are left out. A handler that
+ * fails resets its stream instead of dropping the whole connection.
+ */
+class Http2Exchange extends NioExchange {
+    private static final int WINDOW_UPDATE_THRESHOLD = Http2Session.DEFAULT_WINDOW / 4;
+
+    private final Http2Session mSession;
+    private final int mStreamId;
+    private long mSendWindow;
+    private int mReceiveWindow;
+    private int mConsumed;
+    private boolean mRequestDone;
+    private boolean mEnded;
+    private volatile boolean mReset;
+
+    /**
+     * Create an exchange for a stream whose request headers were decoded.
+     *
+     * @param connection the connection the stream belongs to
+     * @param session the HTTP/2 state of the connection
+     * @param streamId the stream
+     * @param context the route the request matched, or null if none did
+     * @param method the request method
+     * @param uri the request target
+     * @param headers the request headers
+     * @param sendWindow the client's initial window for the stream
+     */
+    Http2Exchange(NioConnection connection, Http2Session session, int streamId,
+            NioContext context, String method, URI uri, Headers headers, int sendWindow) {
+        super(connection, context, method, uri, "HTTP/2.0", headers);
+        mSession = session;
+        mStreamId = streamId;
+        mSendWindow = sendWindow;
+        mReceiveWindow = Http2Session.DEFAULT_WINDOW;
+    }
+
+    /**
+     * Get the stream this exchange belongs to.
+     *
+     * @return the stream identifier
+     */
+    int getStreamId() {
+        return mStreamId;
+    }
+
+    /**
+     * Get how many bytes of response body the client will take on this stream.
+     * <p>
+     * This is guarded by the session's window lock.
+     *
+     * @return the window, which may be negative if the client shrank it
+     */
+    long getSendWindow() {
+        return mSendWindow;
+    }
+
+    /**
+     * Grow or shrink the client's window for this stream.
+     * <p>
+     * This is guarded by the session's window lock.
+     *
+     * @param delta the change in bytes
+     */
+    void addSendWindow(long delta) {
+        mSendWindow += delta;
+    }
+
+    /**
+     * Get how many more request body bytes the client may send on this stream.
+     * <p>
+     * This is called on the event loop.
+     *
+     * @return the window
+     */
+    int getReceiveWindow() {
+        return mReceiveWindow;
+    }
+
+    /**
+     * Grow or shrink the window the client may send on.
+     * <p>
+     * This is called on the event loop.
+     *
+     * @param delta the change in bytes
+     */
+    void addReceiveWindow(int delta) {
+        mReceiveWindow += delta;
+    }
+
+    /**
+     * Check if the client has finished sending on this stream, or never will.
+     * <p>
+     * This is called on the event loop.
+     *
+     * @return true if the request body has ended or failed
+     */
+    boolean isRequestDone() {
+        return mRequestDone;
+    }
+
+    /**
+     * Remember that the client has finished sending on this stream.
+     * <p>
+     * This is called on the event loop.
+     */
+    void setRequestDone() {
+        mRequestDone = true;
+    }
+
+    /**
+     * Check if the stream was reset by either side.
+     *
+     * @return true if nothing more may be sent on the stream
+     */
+    boolean isReset() {
+        return mReset;
+    }
+
+    /**
+     * Remember that the stream was reset, so writes to the response fail.
+     */
+    void setReset() {
+        mReset = true;
+    }
+
+    @Override
+    void writeHead(int code, long length, boolean bodiless) throws IOException {
+        var headers = getResponseHeaders();
+        var fields = new ArrayList<String[]>(headers.size() + 1);
+        fields.add(new String[] { ":status", String.valueOf(code) });
+        for (var header : headers.entrySet()) {
+            var name = header.getKey().toLowerCase(Locale.ROOT);
+            if (Http2Session.isConnectionHeader(name)) {
+                continue;
+            }
+            for (var value : header.getValue()) {
+                fields.add(new String[] { name, value });
+            }
+        }
+        mEnded = bodiless || length == -1;
+        mSession.sendHeaders(this, fields, mEnded);
+    }
+
+    @Override
+    void sendBody(byte[] buffer, int count, boolean push, boolean last) throws IOException {
+        if (mEnded) {
+            return;
+        }
+        mSession.sendData(this, buffer, count, push, last);
+    }
+
+    @Override
+    void complete() {
+        mSession.complete(this);
+    }
+
+    @Override
+    void abort() {
+        mSession.reset(this, Http2Session.INTERNAL_ERROR);
+    }
+
+    @Override
+    void bodyRead(int count, boolean resume) {
+        mConsumed += count;
+        if (mConsumed >= WINDOW_UPDATE_THRESHOLD) {
+            mSession.consumed(this, mConsumed);
+            mConsumed = 0;
+        }
+    }
+}
@@ -0,0 +1,991 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The HTTP/2 side of a {@link NioConnection} that negotiated h2 with ALPN (RFC 9113).
+ * <p>
+ * Frames are read on the connection's event loop, which keeps the HPACK decoder, the receive
+ * windows and the table of open streams. Each request stream is dispatched to the executor as
+ * an {@link Http2Exchange}, so many requests on one connection are handled at once. Their
+ * handlers frame their own responses and queue them on the connection, so responses interleave
+ * frame by frame.
+ * <p>
+ * Request bodies are flow controlled per stream: a stream's window is only opened again as its
+ * handler reads, so an upload nobody reads stops at one window. Response bodies wait for the
+ * client's windows in {@link #takeWindow(Http2Exchange, int)}.
+ * <p>
+ * PINGs and SETTINGS are acknowledged on the event loop. A client that sends more than
+ * {@link #MAX_QUEUED_ACKS} of them before the acknowledgements already queued have been sent is
+ * flooding the connection, and gets a GOAWAY with {@link #ENHANCE_YOUR_CALM}.
+ * <p>
+ * A stream counts against {@link #MAX_CONCURRENT_STREAMS} until its handler finishes, even if
+ * the client reset it long before, since the handler keeps running either way. A client that
+ * resets more than {@link #MAX_CLIENT_RESETS} streams whose handlers were still running within
+ * {@link #RESET_WINDOW_SEC} seconds gets a GOAWAY with {@link #ENHANCE_YOUR_CALM} too, so opening
+ * and cancelling requests in a loop can't keep the executor busy.
+ */
+class Http2Session {
+    static final int FRAME_HEADER_SIZE = 9;
+    static final int MAX_FRAME_SIZE = 16384;
+    static final int DEFAULT_WINDOW = 65535;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+        .getBytes(StandardCharsets.ISO_8859_1);
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+    private static final int MAX_QUEUED_ACKS = 1000;
+    private static final int MAX_CLIENT_RESETS = 100;
+    private static final int RESET_WINDOW_SEC = 10;
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive",
+        "proxy-connection", "transfer-encoding", "upgrade");
+
+    /**
+     * A problem that ends the whole connection with a GOAWAY.
+     */
+    private static class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int mCode;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            mCode = code;
+        }
+    }
+
+    private final NioConnection mConnection;
+    private final NioServer mServer;
+    private final Hpack.Decoder mDecoder;
+    private final Hpack.Encoder mEncoder;
+    private final Map<Integer, Http2Exchange> mStreams;
+    private final Set<Integer> mRunning;
+    private final Object mWindowLock;
+    private boolean mPrefaceRead;
+    private int mLastStreamId;
+    private boolean mDraining;
+    private ByteArrayOutputStream mHeaderBlock;
+    private int mHeaderStreamId;
+    private boolean mHeaderEndStream;
+    private int mReceived;
+    private long mSendWindow;
+    private int mInitialSendWindow;
+    private boolean mClosed;
+    private int mQueuedAcks;
+    private int mClientResets;
+    private long mResetWindowStart;
+
+    /**
+     * Start HTTP/2 on a connection, queueing the server's settings.
+     *
+     * @param connection the connection that negotiated h2
+     * @param server the server the connection belongs to
+     */
+    Http2Session(NioConnection connection, NioServer server) {
+        mConnection = connection;
+        mServer = server;
+        mDecoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+        mEncoder = new Hpack.Encoder();
+        mStreams = new HashMap<>();
+        mRunning = new HashSet<>();
+        mWindowLock = new Object();
+        mSendWindow = DEFAULT_WINDOW;
+        mInitialSendWindow = DEFAULT_WINDOW;
+        var settings = ByteBuffer.allocate(FRAME_HEADER_SIZE + 12 + FRAME_HEADER_SIZE + 4);
+        putFrameHeader(settings, 12, SETTINGS, 0, 0);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+        putFrameHeader(settings, 4, WINDOW_UPDATE, 0, 0);
+        settings.putInt(CONNECTION_WINDOW - DEFAULT_WINDOW);
+        mConnection.queue(settings.flip());
+    }
+
+    /**
+     * Check if no stream is in progress.
+     * <p>
+     * This is called on the event loop.
+     *
+     * @return true if every stream has finished
+     */
+    boolean isIdle() {
+        return mStreams.isEmpty();
+    }
+
+    /**
+     * Check if the connection should close once it's idle, because either side sent GOAWAY or
+     * the client stopped sending.
+     * <p>
+     * This is called on the event loop.
+     *
+     * @return true if no new streams will be accepted
+     */
+    boolean isDraining() {
+        return mDraining;
+    }
+
+    /**
+     * Read every whole frame in the connection's plaintext buffer.
+     * <p>
+     * This is called on the event loop. A connection error queues a GOAWAY and has the
+     * connection close once it's sent.
+     *
+     * @param input the plaintext buffer, ready to be written to
+     * @return true if any frames were read
+     */
+    boolean parse(ByteBuffer input) {
+        var progress = false;
+        input.flip();
+        try {
+            if (!mPrefaceRead) {
+                if (input.remaining() < PREFACE.length) {
+                    return false;
+                }
+                for (var b : PREFACE) {
+                    if (input.get() != b) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface.");
+                    }
+                }
+                mPrefaceRead = true;
+                progress = true;
+            }
+            while (input.remaining() >= FRAME_HEADER_SIZE) {
+                var start = input.position();
+                var length = (input.get(start) & 0xff) << 16 | (input.get(start + 1) & 0xff) << 8
+                    | input.get(start + 2) & 0xff;
+                if (length > MAX_FRAME_SIZE) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Frame is too large.");
+                }
+                if (input.remaining() < FRAME_HEADER_SIZE + length) {
+                    break;
+                }
+                var type = input.get(start + 3) & 0xff;
+                var flags = input.get(start + 4) & 0xff;
+                var streamId = input.getInt(start + 5) & 0x7fffffff;
+                var payload = input.duplicate();
+                payload.position(start + FRAME_HEADER_SIZE);
+                payload.limit(start + FRAME_HEADER_SIZE + length);
+                input.position(start + FRAME_HEADER_SIZE + length);
+                readFrame(type, flags, streamId, payload.slice());
+                progress = true;
+            }
+        } catch (ConnectionError ex) {
+            goAway(ex.mCode, ex.getMessage());
+        } catch (IOException | RuntimeException ex) {
+            goAway(PROTOCOL_ERROR, ex.getMessage());
+        } finally {
+            input.compact();
+        }
+        return progress;
+    }
+
+    /**
+     * Stop accepting streams and tell the client which was the last one that will be handled.
+     * <p>
+     * This is called on the event loop. Anything but {@link #NO_ERROR} also stops reading and
+     * closes the connection once the GOAWAY is sent.
+     *
+     * @param code the error code
+     * @param message debug data for the client, or null
+     */
+    void goAway(int code, String message) {
+        var debug = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        var frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 8 + debug.length);
+        putFrameHeader(frame, 8 + debug.length, GOAWAY, 0, 0);
+        frame.putInt(mLastStreamId).putInt(code).put(debug);
+        mConnection.queue(frame.flip());
+        mDraining = true;
+        if (code != NO_ERROR) {
+            mConnection.closeWhenFlushed();
+        }
+    }
+
+    /**
+     * Note that everything queued on the connection has been sent, acknowledgements included.
+     * <p>
+     * This is called on the event loop.
+     */
+    void flushed() {
+        mQueuedAcks = 0;
+    }
+
+    /**
+     * React to the client having stopped sending, failing the bodies still being uploaded.
+     * <p>
+     * This is called on the event loop.
+     */
+    void inputEnded() {
+        mDraining = true;
+        for (var stream : mStreams.values()) {
+            if (!stream.isRequestDone()) {
+                stream.getRequestBodyStream().fail(
+                    new EOFException("Connection ended in the middle of the request body."));
+                stream.setRequestDone();
+            }
+        }
+    }
+
+    /**
+     * Fail every stream because the connection closed.
+     * <p>
+     * This is called on the event loop.
+     */
+    void close() {
+        for (var stream : mStreams.values()) {
+            stream.getRequestBodyStream().fail(new IOException("Connection closed."));
+        }
+        mStreams.clear();
+        mRunning.clear();
+        synchronized (mWindowLock) {
+            mClosed = true;
+            mWindowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue a response's header block.
+     * <p>
+     * This is called by the handler's thread. Encoding and queueing happen under one lock so the
+     * client decodes blocks in the same order they were encoded.
+     *
+     * @param stream the stream the response belongs to
+     * @param fields the header fields, with lower case names and :status first
+     * @param endStream true if the response has no body
+     * @throws IOException if the stream was reset or the connection closed
+     */
+    void sendHeaders(Http2Exchange stream, List<String[]> fields, boolean endStream)
+            throws IOException {
+        synchronized (mEncoder) {
+            if (stream.isReset()) {
+                throw new IOException("Stream was reset.");
+            }
+            var block = mEncoder.encode(fields);
+            var frames = (block.length + MAX_FRAME_SIZE - 1) / MAX_FRAME_SIZE;
+            var buffer = ByteBuffer.allocate(Math.max(frames, 1) * FRAME_HEADER_SIZE
+                + block.length);
+            var offset = 0;
+            do {
+                var length = Math.min(block.length - offset, MAX_FRAME_SIZE);
+                var last = offset + length == block.length;
+                var flags = (last ? FLAG_END_HEADERS : 0)
+                    | (offset == 0 && endStream ? FLAG_END_STREAM : 0);
+                putFrameHeader(buffer, length, offset == 0 ? HEADERS : CONTINUATION, flags,
+                    stream.getStreamId());
+                buffer.put(block, offset, length);
+                offset += length;
+            } while (offset < block.length);
+            mConnection.send(buffer.flip(), endStream);
+        }
+    }
+
+    /**
+     * Queue part of a response body as DATA frames, waiting for the client's windows to open.
+     * <p>
+     * This is called by the handler's thread. The bytes must start {@link #FRAME_HEADER_SIZE}
+     * bytes into the buffer so the frame header can be written in front of them without a copy,
+     * and the buffer must not be changed afterwards.
+     *
+     * @param stream the stream the response belongs to
+     * @param buffer the array holding the bytes, or null if there are none
+     * @param count the number of bytes
+     * @param push true to have them sent right away
+     * @param endStream true if these are the last bytes of the response
+     * @throws IOException if the stream was reset or the connection closed
+     */
+    void sendData(Http2Exchange stream, byte[] buffer, int count, boolean push,
+            boolean endStream) throws IOException {
+        if (count == 0 && !endStream) {
+            if (push) {
+                mConnection.send(ByteBuffer.allocate(0), true);
+            }
+            return;
+        }
+        var offset = FRAME_HEADER_SIZE;
+        do {
+            var length = count == 0 ? 0 : takeWindow(stream, count);
+            var last = length == count;
+            var flags = last && endStream ? FLAG_END_STREAM : 0;
+            ByteBuffer frame;
+            if (last && offset == FRAME_HEADER_SIZE && buffer != null) {
+                frame = ByteBuffer.wrap(buffer, 0, FRAME_HEADER_SIZE + length);
+                putFrameHeader(frame, length, DATA, flags, stream.getStreamId());
+                frame.position(0);
+            } else {
+                frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+                putFrameHeader(frame, length, DATA, flags, stream.getStreamId());
+                if (length > 0) {
+                    frame.put(buffer, offset, length);
+                }
+                frame.flip();
+            }
+            mConnection.send(frame, push || !last);
+            offset += length;
+            count -= length;
+        } while (count > 0);
+    }
+
+    /**
+     * Finish a stream whose response has been queued in full.
+     * <p>
+     * This is called by the handler's thread. If the client is still sending the request body,
+     * it's told to stop with a RST_STREAM of {@link #NO_ERROR}.
+     *
+     * @param stream the stream
+     */
+    void complete(Http2Exchange stream) {
+        mConnection.getLoop().execute(() -> {
+            mRunning.remove(stream.getStreamId());
+            if (mStreams.remove(stream.getStreamId()) != null && !stream.isRequestDone()) {
+                resetStream(stream.getStreamId(), NO_ERROR);
+            }
+            mConnection.pump();
+        });
+    }
+
+    /**
+     * Reset a stream because its handler failed.
+     * <p>
+     * This is called by the handler's thread.
+     *
+     * @param stream the stream
+     * @param code the error code
+     */
+    void reset(Http2Exchange stream, int code) {
+        stream.setReset();
+        mConnection.getLoop().execute(() -> {
+            mRunning.remove(stream.getStreamId());
+            if (mStreams.remove(stream.getStreamId()) != null) {
+                resetStream(stream.getStreamId(), code);
+            }
+            mConnection.pump();
+        });
+        synchronized (mWindowLock) {
+            mWindowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Open a stream's receive window again after its handler read some of the body.
+     * <p>
+     * This is called by the handler's thread.
+     *
+     * @param stream the stream
+     * @param increment the number of bytes read
+     */
+    void consumed(Http2Exchange stream, int increment) {
+        mConnection.getLoop().execute(() -> {
+            if (mStreams.containsKey(stream.getStreamId()) && !stream.isRequestDone()) {
+                stream.addReceiveWindow(increment);
+                queueWindowUpdate(stream.getStreamId(), increment);
+                mConnection.pump();
+            }
+        });
+    }
+
+    /**
+     * Take as much of the client's flow control windows as a DATA frame can use, waiting for
+     * them to open if they're closed.
+     *
+     * @param stream the stream
+     * @param wanted the number of bytes waiting to be sent
+     * @return the number of bytes that may be sent, at least 1
+     * @throws IOException if the stream was reset, the connection closed or the thread was
+     *         interrupted
+     */
+    private int takeWindow(Http2Exchange stream, int wanted) throws IOException {
+        synchronized (mWindowLock) {
+            while ((mSendWindow <= 0 || stream.getSendWindow() <= 0) && !stream.isReset()
+                    && !mClosed) {
+                try {
+                    mWindowLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (stream.isReset() || mClosed) {
+                throw new IOException("Stream was reset.");
+            }
+            var length = (int) Math.min(Math.min(mSendWindow, stream.getSendWindow()), wanted);
+            mSendWindow -= length;
+            stream.addSendWindow(-length);
+            return length;
+        }
+    }
+
+    /**
+     * Act on one frame.
+     *
+     * @param type the frame type
+     * @param flags the frame flags
+     * @param streamId the stream the frame belongs to, or 0 for the connection
+     * @param payload the frame's payload
+     * @throws IOException if the frame is a connection error
+     */
+    private void readFrame(int type, int flags, int streamId, ByteBuffer payload)
+            throws IOException {
+        if (mHeaderBlock != null && (type != CONTINUATION || streamId != mHeaderStreamId)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Expected a CONTINUATION frame.");
+        }
+        switch (type) {
+        case DATA:
+            readData(flags, streamId, payload);
+            break;
+        case HEADERS:
+            readHeaders(flags, streamId, payload);
+            break;
+        case CONTINUATION:
+            if (mHeaderBlock == null) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION frame.");
+            }
+            appendHeaderBlock(payload);
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                endHeaderBlock();
+            }
+            break;
+        case PRIORITY:
+            if (streamId == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY frame on stream 0.");
+            }
+            if (payload.remaining() != 5) {
+                resetStream(streamId, FRAME_SIZE_ERROR);
+            }
+            break;
+        case RST_STREAM:
+            readReset(streamId, payload);
+            break;
+        case SETTINGS:
+            readSettings(flags, streamId, payload);
+            break;
+        case PUSH_PROMISE:
+            throw new ConnectionError(PROTOCOL_ERROR, "Clients can't push.");
+        case PING:
+            if (streamId != 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "PING frame on a stream.");
+            }
+            if (payload.remaining() != 8) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "PING frame must be 8 bytes.");
+            }
+            if ((flags & FLAG_ACK) == 0) {
+                var pong = ByteBuffer.allocate(FRAME_HEADER_SIZE + 8);
+                putFrameHeader(pong, 8, PING, FLAG_ACK, 0);
+                queueAck(pong.put(payload).flip());
+            }
+            break;
+        case GOAWAY:
+            if (streamId != 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY frame on a stream.");
+            }
+            mDraining = true;
+            break;
+        case WINDOW_UPDATE:
+            readWindowUpdate(streamId, payload);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Feed a DATA frame to its stream's request body.
+     *
+     * @param flags the frame flags
+     * @param streamId the stream
+     * @param payload the frame's payload
+     * @throws IOException if the frame is a connection error
+     */
+    private void readData(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on stream 0.");
+        }
+        if (streamId > mLastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on an idle stream.");
+        }
+        var length = payload.remaining();
+        mReceived += length;
+        if (mReceived >= CONNECTION_WINDOW / 2) {
+            queueWindowUpdate(0, mReceived);
+            mReceived = 0;
+        }
+        removePadding(flags, payload);
+        var stream = mStreams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        if (stream.isRequestDone()) {
+            resetStream(streamId, STREAM_CLOSED);
+            return;
+        }
+        if (length > stream.getReceiveWindow()) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+            return;
+        }
+        stream.addReceiveWindow(-length);
+        var padding = length - payload.remaining();
+        if (padding > 0) {
+            stream.addReceiveWindow(padding);
+            queueWindowUpdate(streamId, padding);
+        }
+        if (payload.hasRemaining()) {
+            stream.getRequestBodyStream().offer(payload, payload.remaining());
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.getRequestBodyStream().finish();
+            stream.setRequestDone();
+        }
+    }
+
+    /**
+     * Start reading a header block from a HEADERS frame.
+     *
+     * @param flags the frame flags
+     * @param streamId the stream
+     * @param payload the frame's payload
+     * @throws IOException if the frame is a connection error
+     */
+    private void readHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid stream for HEADERS frame.");
+        }
+        removePadding(flags, payload);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (payload.remaining() < 5) {
+                throw new ConnectionError(PROTOCOL_ERROR, "HEADERS frame is too short.");
+            }
+            payload.position(payload.position() + 5);
+        }
+        mHeaderBlock = new ByteArrayOutputStream(payload.remaining());
+        mHeaderStreamId = streamId;
+        mHeaderEndStream = (flags & FLAG_END_STREAM) != 0;
+        appendHeaderBlock(payload);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaderBlock();
+        }
+    }
+
+    /**
+     * Add a fragment to the header block being read.
+     *
+     * @param fragment the fragment
+     * @throws IOException if the block is too large
+     */
+    private void appendHeaderBlock(ByteBuffer fragment) throws IOException {
+        if (mHeaderBlock.size() + fragment.remaining() > MAX_HEADER_BLOCK) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Header block is too large.");
+        }
+        var bytes = new byte[fragment.remaining()];
+        fragment.get(bytes);
+        mHeaderBlock.write(bytes);
+    }
+
+    /**
+     * Decode a complete header block and start the request, or end it if it's a trailer.
+     *
+     * @throws IOException if the block can't be decoded, which is a connection error
+     */
+    private void endHeaderBlock() throws IOException {
+        var streamId = mHeaderStreamId;
+        var endStream = mHeaderEndStream;
+        List<String[]> fields;
+        try {
+            fields = mDecoder.decode(ByteBuffer.wrap(mHeaderBlock.toByteArray()));
+        } catch (IOException ex) {
+            throw new ConnectionError(COMPRESSION_ERROR, ex.getMessage());
+        }
+        mHeaderBlock = null;
+        var existing = mStreams.get(streamId);
+        if (existing == null && streamId <= mLastStreamId) {
+            return;
+        }
+        if (existing != null) {
+            if (existing.isRequestDone() || !endStream) {
+                resetStream(streamId, PROTOCOL_ERROR);
+            } else {
+                existing.getRequestBodyStream().finish();
+                existing.setRequestDone();
+            }
+            return;
+        }
+        mLastStreamId = streamId;
+        if (mDraining || mServer.isStopping() || mRunning.size() >= MAX_CONCURRENT_STREAMS) {
+            resetStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        var stream = createStream(streamId, fields);
+        if (stream == null) {
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        mStreams.put(streamId, stream);
+        if (endStream) {
+            stream.getRequestBodyStream().finish();
+            stream.setRequestDone();
+        }
+        try {
+            mServer.handle(stream);
+            mRunning.add(streamId);
+        } catch (RejectedExecutionException ex) {
+            mStreams.remove(streamId);
+            resetStream(streamId, REFUSED_STREAM);
+        }
+    }
+
+    /**
+     * Turn a request's header fields into an exchange.
+     *
+     * @param streamId the stream
+     * @param fields the decoded header fields
+     * @return the exchange, or null if the request is malformed
+     */
+    private Http2Exchange createStream(int streamId, List<String[]> fields) {
+        String method = null;
+        String path = null;
+        String authority = null;
+        var headers = new Headers();
+        List<String> cookies = null;
+        for (var field : fields) {
+            var name = field[0];
+            var value = field[1];
+            if (name.startsWith(":")) {
+                if (!headers.isEmpty()) {
+                    return null;
+                }
+                switch (name) {
+                case ":method":
+                    method = value;
+                    break;
+                case ":path":
+                    path = value;
+                    break;
+                case ":authority":
+                    authority = value;
+                    break;
+                case ":scheme":
+                    break;
+                default:
+                    return null;
+                }
+                continue;
+            }
+            if (CONNECTION_HEADERS.contains(name)) {
+                return null;
+            }
+            if (name.equals("cookie")) {
+                if (cookies == null) {
+                    cookies = new ArrayList<>();
+                }
+                cookies.add(value);
+            } else {
+                headers.add(name, value);
+            }
+        }
+        if (cookies != null) {
+            headers.set("cookie", String.join("; ", cookies));
+        }
+        if (method == null || path == null || path.isEmpty()) {
+            return null;
+        }
+        if (authority != null && !headers.containsKey("host")) {
+            headers.set("host", authority);
+        }
+        URI uri;
+        try {
+            uri = new URI(path);
+        } catch (URISyntaxException ex) {
+            return null;
+        }
+        var context = mServer.findContext(uri.getPath() == null ? "/" : uri.getPath());
+        synchronized (mWindowLock) {
+            return new Http2Exchange(mConnection, this, streamId, context, method, uri,
+                headers, mInitialSendWindow);
+        }
+    }
+
+    /**
+     * Act on a RST_STREAM frame.
+     *
+     * @param streamId the stream
+     * @param payload the frame's payload
+     * @throws IOException if the frame is a connection error
+     */
+    private void readReset(int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0 || streamId > mLastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM frame on an idle stream.");
+        }
+        if (payload.remaining() != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM frame must be 4 bytes.");
+        }
+        var stream = mStreams.remove(streamId);
+        if (stream != null) {
+            stream.getRequestBodyStream().fail(new IOException("Stream was reset."));
+            stream.setRequestDone();
+            stream.setReset();
+            synchronized (mWindowLock) {
+                mWindowLock.notifyAll();
+            }
+        }
+        if (mRunning.contains(streamId)) {
+            var now = System.nanoTime();
+            if (mClientResets == 0
+                    || now - mResetWindowStart > TimeUnit.SECONDS.toNanos(RESET_WINDOW_SEC)) {
+                mResetWindowStart = now;
+                mClientResets = 0;
+            }
+            if (++mClientResets > MAX_CLIENT_RESETS) {
+                throw new ConnectionError(ENHANCE_YOUR_CALM, "Too many streams reset.");
+            }
+        }
+    }
+
+    /**
+     * Apply the client's settings and acknowledge them.
+     *
+     * @param flags the frame flags
+     * @param streamId the stream, which must be 0
+     * @param payload the frame's payload
+     * @throws IOException if the frame is a connection error
+     */
+    private void readSettings(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS frame on a stream.");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ack must be empty.");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid SETTINGS frame length.");
+        }
+        while (payload.hasRemaining()) {
+            var id = payload.getShort() & 0xffff;
+            var value = payload.getInt() & 0xffffffffL;
+            switch (id) {
+            case SETTINGS_HEADER_TABLE_SIZE:
+                synchronized (mEncoder) {
+                    mEncoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                }
+                break;
+            case SETTINGS_ENABLE_PUSH:
+                if (value > 1) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH.");
+                }
+                break;
+            case SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value > Integer.MAX_VALUE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR,
+                        "Invalid SETTINGS_INITIAL_WINDOW_SIZE.");
+                }
+                setInitialSendWindow((int) value);
+                break;
+            case SETTINGS_MAX_FRAME_SIZE:
+                if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE.");
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        var ack = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        putFrameHeader(ack, 0, SETTINGS, FLAG_ACK, 0);
+        queueAck(ack.flip());
+    }
+
+    /**
+     * Queue the acknowledgement of a PING or SETTINGS frame.
+     *
+     * @param frame the acknowledgement
+     * @throws IOException if too many acknowledgements are waiting to be sent already
+     */
+    private void queueAck(ByteBuffer frame) throws IOException {
+        if (++mQueuedAcks > MAX_QUEUED_ACKS) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "Too many PING and SETTINGS frames.");
+        }
+        mConnection.queue(frame);
+    }
+
+    /**
+     * Move every stream's send window by the change in the client's initial window size.
+     *
+     * @param initialWindow the new initial window size
+     * @throws IOException if a window would overflow
+     */
+    private void setInitialSendWindow(int initialWindow) throws IOException {
+        synchronized (mWindowLock) {
+            var delta = initialWindow - mInitialSendWindow;
+            mInitialSendWindow = initialWindow;
+            for (var stream : mStreams.values()) {
+                if (stream.getSendWindow() + delta > Integer.MAX_VALUE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window overflowed.");
+                }
+                stream.addSendWindow(delta);
+            }
+            mWindowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Act on a WINDOW_UPDATE frame.
+     *
+     * @param streamId the stream, or 0 for the connection
+     * @param payload the frame's payload
+     * @throws IOException if the frame is a connection error
+     */
+    private void readWindowUpdate(int streamId, ByteBuffer payload) throws IOException {
+        if (payload.remaining() != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE frame must be 4 bytes.");
+        }
+        var increment = payload.getInt() & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0.");
+            }
+            synchronized (mWindowLock) {
+                if (mSendWindow + increment > Integer.MAX_VALUE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflowed.");
+                }
+                mSendWindow += increment;
+                mWindowLock.notifyAll();
+            }
+            return;
+        }
+        var stream = mStreams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        if (increment == 0) {
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        synchronized (mWindowLock) {
+            if (stream.getSendWindow() + increment > Integer.MAX_VALUE) {
+                resetStream(streamId, FLOW_CONTROL_ERROR);
+                return;
+            }
+            stream.addSendWindow(increment);
+            mWindowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue a RST_STREAM frame, forgetting the stream and failing its request body.
+     *
+     * @param streamId the stream
+     * @param code the error code
+     */
+    private void resetStream(int streamId, int code) {
+        var stream = mStreams.remove(streamId);
+        if (stream != null) {
+            stream.getRequestBodyStream().fail(new IOException("Stream was reset."));
+            stream.setRequestDone();
+            stream.setReset();
+            synchronized (mWindowLock) {
+                mWindowLock.notifyAll();
+            }
+        }
+        var frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 4);
+        putFrameHeader(frame, 4, RST_STREAM, 0, streamId);
+        mConnection.queue(frame.putInt(code).flip());
+    }
+
+    /**
+     * Queue a WINDOW_UPDATE frame.
+     *
+     * @param streamId the stream, or 0 for the connection
+     * @param increment the number of bytes the window grows by
+     */
+    private void queueWindowUpdate(int streamId, int increment) {
+        var frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 4);
+        putFrameHeader(frame, 4, WINDOW_UPDATE, 0, streamId);
+        mConnection.queue(frame.putInt(increment).flip());
+    }
+
+    /**
+     * Strip the padding from a DATA or HEADERS frame if it has any.
+     *
+     * @param flags the frame flags
+     * @param payload the frame's payload, which is narrowed to the data
+     * @throws IOException if the padding is longer than the frame
+     */
+    private static void removePadding(int flags, ByteBuffer payload) throws IOException {
+        if ((flags & FLAG_PADDED) == 0) {
+            return;
+        }
+        if (!payload.hasRemaining()) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padded frame is empty.");
+        }
+        var padding = payload.get() & 0xff;
+        if (padding > payload.remaining()) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding is longer than the frame.");
+        }
+        payload.limit(payload.limit() - padding);
+    }
+
+    /**
+     * Write a frame header.
+     *
+     * @param buffer the buffer to write to
+     * @param length the length of the payload
+     * @param type the frame type
+     * @param flags the frame flags
+     * @param streamId the stream, or 0 for the connection
+     */
+    static void putFrameHeader(ByteBuffer buffer, int length, int type, int flags,
+            int streamId) {
+        buffer.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length)
+            .put((byte) type).put((byte) flags).putInt(streamId);
+    }
+
+    /**
+     * Check if a header can't be sent over HTTP/2 because it only applies to one HTTP/1.1
+     * connection.
+     *
+     * @param name the header name in lower case
+     * @return true if the header must be left out
+     */
+    static boolean isConnectionHeader(String name) {
+        return CONNECTION_HEADERS.contains(name);
+    }
+}
@@ -0,0 +1,57 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link TransportServer} backed by the JDK's built-in {@link HttpsServer}.
+ * <p>
+ * Its timeouts come from system properties, which {@link ConnectionLimits#configureJdkServer()}
+ * sets before the first one is created. It stops in whole seconds, checking five times a second
+ * whether its last exchange finished, but if none is in progress when it's stopped it waits out
+ * the whole delay, so {@link WebServer} stops it without one then.
+ */
+class JdkTransportServer implements TransportServer {
+    private HttpsServer mServer;
+
+    /**
+     * Create a server and bind it.
+     *
+     * @param address the address to listen on
+     * @param configurator the TLS configuration
+     * @param executor the executor requests run on
+     * @param handlers the handler for each route
+     * @param limits the timeouts to apply, if this is the first JDK server in the JVM
+     * @throws IOException if the server can't bind to the address
+     */
+    JdkTransportServer(InetSocketAddress address, DefaultConfigurator configurator,
+            Executor executor, Map<String, HttpHandler> handlers, ConnectionLimits limits)
+            throws IOException {
+        limits.configureJdkServer();
+        mServer = HttpsServer.create(address, 0);
+        mServer.setExecutor(executor);
+        mServer.setHttpsConfigurator(configurator);
+        for (var handler : handlers.entrySet()) {
+            mServer.createContext(handler.getKey(), handler.getValue());
+        }
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return mServer.getAddress();
+    }
+
+    @Override
+    public void start() {
+        mServer.start();
+    }
+
+    @Override
+    public void stop(long timeoutNanos) {
+        var second = TimeUnit.SECONDS.toNanos(1);
+        mServer.stop((int) Math.min(Integer.MAX_VALUE, (timeoutNanos + second - 1) / second));
+    }
+}
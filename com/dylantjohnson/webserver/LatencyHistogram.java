@@ -0,0 +1,136 @@
+package com.dylantjohnson.webserver;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of durations with fixed buckets, shaped the way Prometheus expects.
+ * <p>
+ * Each bucket is a {@link LongAdder}, so threads recording at the same time don't contend on a
+ * shared counter and recording never takes a lock. Reading isn't atomic across buckets, so a
+ * reading taken while durations are being recorded may miss the ones in flight.
+ * <p>
+ * This class is thread-safe.
+ */
+final class LatencyHistogram {
+    /**
+     * The upper bounds of the buckets in seconds, written the way they're exported.
+     */
+    private static final String[] BOUNDS = {
+        "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1",
+        "2.5", "5", "10"
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (var i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (Double.parseDouble(BOUNDS[i]) * 1e9);
+        }
+    }
+
+    private final LongAdder[] mBuckets;
+    private final LongAdder mSum;
+
+    /**
+     * Create an empty histogram.
+     */
+    LatencyHistogram() {
+        mBuckets = new LongAdder[BOUNDS_NANOS.length + 1];
+        for (var i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new LongAdder();
+        }
+        mSum = new LongAdder();
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    void record(long nanos) {
+        var bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        mBuckets[bucket].increment();
+        mSum.add(nanos);
+    }
+
+    /**
+     * Get how many durations were recorded.
+     *
+     * @return the count
+     */
+    long getCount() {
+        var count = 0L;
+        for (var bucket : mBuckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Get the mean of the recorded durations.
+     *
+     * @return the mean in milliseconds, or NaN if nothing was recorded
+     */
+    double getMeanMillis() {
+        var count = getCount();
+        return count == 0 ? Double.NaN : mSum.sum() / 1e6 / count;
+    }
+
+    /**
+     * Estimate a percentile of the recorded durations.
+     * <p>
+     * The estimate is the upper bound of the bucket the percentile falls in, so it's never lower
+     * than the real value.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the estimate in milliseconds, NaN if nothing was recorded, or infinity if it's
+     *     past the last bucket
+     */
+    double getPercentileMillis(double percentile) {
+        var counts = new long[mBuckets.length];
+        var count = 0L;
+        for (var i = 0; i < counts.length; i++) {
+            counts[i] = mBuckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        var rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        var seen = 0L;
+        for (var i = 0; i < BOUNDS_NANOS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BOUNDS_NANOS[i] / 1e6;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Write this histogram in the Prometheus text format, without its HELP and TYPE lines.
+     *
+     * @param out where to write it
+     * @param name the metric name
+     * @param labels labels to put on every sample, already formatted and comma terminated, or
+     *     an empty string
+     */
+    void writePrometheus(StringBuilder out, String name, String labels) {
+        var cumulative = 0L;
+        for (var i = 0; i < mBuckets.length; i++) {
+            cumulative += mBuckets[i].sum();
+            var bound = i < BOUNDS.length ? BOUNDS[i] : "+Inf";
+            out.append(name).append("_bucket{").append(labels).append("le=\"").append(bound)
+                .append("\"} ").append(cumulative).append('\n');
+        }
+        var braces = labels.isEmpty() ? ""
+            : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(name).append("_sum").append(braces).append(' ')
+            .append(String.format(Locale.ROOT, "%.9f", mSum.sum() / 1e9)).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(cumulative)
+            .append('\n');
+    }
+}
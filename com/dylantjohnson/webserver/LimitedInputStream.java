@@ -0,0 +1,88 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+
+/**
+ * A stream over a request body that fails once more than a set number of bytes is read.
+ * <p>
+ * Only a body that really is too large fails: reading exactly the limit and then the end of the
+ * stream works as usual.
+ */
+class LimitedInputStream extends FilterInputStream {
+    private final long mLimit;
+    private long mRemaining;
+
+    /**
+     * Limit a stream.
+     *
+     * @param in the stream to read from
+     * @param limit the most bytes that may be read, in bytes
+     */
+    LimitedInputStream(InputStream in, long limit) {
+        super(in);
+        mLimit = limit;
+        mRemaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        var b = super.read();
+        if (b > -1) {
+            consume(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (mRemaining == 0) {
+            if (super.read() > -1) {
+                throw new RequestBodyTooLargeException(mLimit);
+            }
+            return -1;
+        }
+        var read = super.read(buffer, offset, (int) Math.min(length, mRemaining));
+        if (read > 0) {
+            mRemaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        var skipped = super.skip(Math.min(n, mRemaining));
+        mRemaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Get how many bytes were read or skipped so far, up to the limit.
+     *
+     * @return the byte count
+     */
+    long getCount() {
+        return mLimit - mRemaining;
+    }
+
+    /**
+     * Count bytes that were read, failing if they go over the limit.
+     *
+     * @param count the number of bytes
+     * @throws RequestBodyTooLargeException if the limit was exceeded
+     */
+    private void consume(int count) throws RequestBodyTooLargeException {
+        if (mRemaining < count) {
+            mRemaining = 0;
+            throw new RequestBodyTooLargeException(mLimit);
+        }
+        mRemaining -= count;
+    }
+}
@@ -0,0 +1,30 @@
+package com.dylantjohnson.webserver;
+
+import java.nio.charset.*;
+
+/**
+ * The handler for the route set with {@link WebServerBuilder#setMetricsRoute(String)}.
+ * <p>
+ * Each request gets a fresh snapshot of the server's {@link ServerMetrics} in the Prometheus
+ * text exposition format.
+ */
+class MetricsHandler implements RouteHandler {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ServerMetrics mMetrics;
+
+    /**
+     * Create a handler.
+     *
+     * @param metrics the measurements to serve
+     */
+    MetricsHandler(ServerMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public RouteResponse handle(RouteRequest request) throws Exception {
+        return RouteResponse.of(RouteResponse.Status.OK, CONTENT_TYPE,
+            mMetrics.toPrometheus().getBytes(StandardCharsets.UTF_8));
+    }
+}
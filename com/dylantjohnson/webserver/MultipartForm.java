@@ -0,0 +1,214 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A multipart/form-data request body, read in full with uploaded files spilled to disk.
+ * <p>
+ * Plain fields are kept in memory as strings, up to a size limit per field. Every part that
+ * carries a file name is streamed into a temporary file instead, so uploads never sit in the
+ * heap. The temporary files are deleted by {@link #close()}, so a form should be read in a
+ * try-with-resources block and anything worth keeping moved out of the way before it closes.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class MultipartForm implements Closeable {
+    /**
+     * The default limit on the size of a plain field, in bytes.
+     */
+    public static final int DEFAULT_MAX_FIELD_SIZE = 64 * 1024;
+
+    /**
+     * An uploaded file that was written to a temporary file.
+     */
+    public static class UploadedFile {
+        private String mFilename;
+        private String mContentType;
+        private Path mPath;
+        private long mSize;
+
+        private UploadedFile(String filename, String contentType, Path path, long size) {
+            mFilename = filename;
+            mContentType = contentType;
+            mPath = path;
+            mSize = size;
+        }
+
+        /**
+         * Get the name the client gave the file.
+         * <p>
+         * This comes straight from the client, so it must not be trusted as a path.
+         *
+         * @return the file name, which may be empty
+         */
+        public String getFilename() {
+            return mFilename;
+        }
+
+        /**
+         * Get the content type the client gave the file.
+         *
+         * @return the content type
+         */
+        public String getContentType() {
+            return mContentType;
+        }
+
+        /**
+         * Get the temporary file holding the upload.
+         *
+         * @return the path, which is deleted when the form is closed unless moved first
+         */
+        public Path getPath() {
+            return mPath;
+        }
+
+        /**
+         * Get the size of the upload.
+         *
+         * @return the size in bytes
+         */
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private Map<String, List<String>> mFields = new LinkedHashMap<>();
+    private Map<String, List<UploadedFile>> mFiles = new LinkedHashMap<>();
+
+    private MultipartForm() {
+    }
+
+    /**
+     * Read a form, spilling files to the default temporary directory.
+     *
+     * @param request the request with the form as its body
+     * @return the form
+     * @throws IOException if the body can't be read, isn't a valid form, or has a field larger
+     *         than {@link #DEFAULT_MAX_FIELD_SIZE}
+     */
+    public static MultipartForm read(RouteRequest request) throws IOException {
+        return read(request, null, DEFAULT_MAX_FIELD_SIZE);
+    }
+
+    /**
+     * Read a form.
+     *
+     * @param request the request with the form as its body
+     * @param directory the directory for uploaded files, or null for the default temporary
+     *        directory
+     * @param maxFieldSize the largest plain field to accept, in bytes
+     * @return the form
+     * @throws IOException if the body can't be read, isn't a valid form, or has a field larger
+     *         than maxFieldSize
+     */
+    public static MultipartForm read(RouteRequest request, Path directory, int maxFieldSize)
+            throws IOException {
+        var reader = MultipartReader.of(request);
+        var form = new MultipartForm();
+        try {
+            for (var part = reader.next(); part != null; part = reader.next()) {
+                var name = part.getName();
+                if (name == null) {
+                    continue;
+                }
+                var filename = part.getFilename();
+                if (filename == null) {
+                    form.mFields.computeIfAbsent(name, key -> new ArrayList<>(1))
+                        .add(readField(part.getBody(), maxFieldSize));
+                    continue;
+                }
+                var path = directory == null
+                    ? Files.createTempFile("upload", ".tmp")
+                    : Files.createTempFile(directory, "upload", ".tmp");
+                var file = new UploadedFile(filename, part.getContentType(), path, 0);
+                form.mFiles.computeIfAbsent(name, key -> new ArrayList<>(1)).add(file);
+                file.mSize = Files.copy(part.getBody(), path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException ex) {
+            form.close();
+            throw ex;
+        }
+        return form;
+    }
+
+    /**
+     * Get the first value of a plain field.
+     *
+     * @param name the field name
+     * @return the value, or null if the form has no such field
+     */
+    public String getField(String name) {
+        var values = mFields.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Get every value of a plain field.
+     *
+     * @param name the field name
+     * @return the values in the order they were sent, empty if the form has no such field
+     */
+    public List<String> getFields(String name) {
+        return Collections.unmodifiableList(mFields.getOrDefault(name, List.of()));
+    }
+
+    /**
+     * Get the first file uploaded in a field.
+     *
+     * @param name the field name
+     * @return the file, or null if the form has no such field
+     */
+    public UploadedFile getFile(String name) {
+        var files = mFiles.get(name);
+        return files == null ? null : files.get(0);
+    }
+
+    /**
+     * Get every file uploaded in a field.
+     *
+     * @param name the field name
+     * @return the files in the order they were sent, empty if the form has no such field
+     */
+    public List<UploadedFile> getFiles(String name) {
+        return Collections.unmodifiableList(mFiles.getOrDefault(name, List.of()));
+    }
+
+    /**
+     * Delete the temporary files holding the uploads.
+     * <p>
+     * Files that were already moved elsewhere are left alone.
+     */
+    @Override
+    public void close() {
+        for (var files : mFiles.values()) {
+            for (var file : files) {
+                try {
+                    Files.deleteIfExists(file.mPath);
+                } catch (IOException ex) {
+                    file.mPath.toFile().deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a plain field into a string.
+     *
+     * @param body the field's body
+     * @param maxFieldSize the largest field to accept, in bytes
+     * @return the field decoded as UTF-8
+     * @throws IOException if the field can't be read or is too large
+     */
+    private static String readField(InputStream body, int maxFieldSize) throws IOException {
+        var bytes = body.readNBytes(maxFieldSize);
+        if (body.read() > -1) {
+            throw new IOException(String.format("Form field is larger than %d bytes.",
+                maxFieldSize));
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
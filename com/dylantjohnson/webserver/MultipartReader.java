@@ -0,0 +1,374 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * A streaming reader of multipart/form-data request bodies.
+ * <p>
+ * Parts are read one at a time with {@link #next()}, and each part's body is a stream that ends
+ * at the part's boundary. Nothing is buffered beyond a small fixed window, so a part of any size
+ * can be copied straight to a file or elsewhere. For reading a whole form at once, see
+ * {@link MultipartForm}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class MultipartReader {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    /**
+     * One part of a multipart body.
+     */
+    public static class Part {
+        private Map<String, String> mHeaders;
+        private InputStream mBody;
+
+        private Part(Map<String, String> headers, InputStream body) {
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        /**
+         * Get a header of this part.
+         *
+         * @param name the header name, in any case
+         * @return the header value, or null if the part doesn't have the header
+         */
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        /**
+         * Get the name of the form field this part holds.
+         *
+         * @return the name from the Content-Disposition header, or null if there is none
+         */
+        public String getName() {
+            return parameter(getHeader("Content-Disposition"), "name");
+        }
+
+        /**
+         * Get the name of the uploaded file this part holds.
+         *
+         * @return the file name from the Content-Disposition header, or null if this part isn't
+         *         a file
+         */
+        public String getFilename() {
+            return parameter(getHeader("Content-Disposition"), "filename");
+        }
+
+        /**
+         * Get the content type of this part.
+         *
+         * @return the Content-Type header, or text/plain if there is none
+         */
+        public String getContentType() {
+            var type = getHeader("Content-Type");
+            return type == null ? "text/plain" : type;
+        }
+
+        /**
+         * Get the body of this part.
+         * <p>
+         * The stream ends at the part's boundary. It's only readable until {@link #next()} is
+         * called again, which skips whatever is left of it.
+         *
+         * @return a stream of the part's body
+         */
+        public InputStream getBody() {
+            return mBody;
+        }
+    }
+
+    private InputStream mInput;
+    private byte[] mDelimiter;
+    private byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
+    private boolean mEndOfInput;
+    private boolean mFinished;
+    private PartInputStream mCurrent;
+
+    /**
+     * Create a reader for a multipart body.
+     *
+     * @param input the body
+     * @param boundary the boundary parameter of the body's Content-Type
+     */
+    public MultipartReader(InputStream input, String boundary) {
+        mInput = input;
+        mDelimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        mBuffer = new byte[Math.max(BUFFER_SIZE, mDelimiter.length * 2)];
+        // The first boundary isn't preceded by a line break, so pretend it is.
+        mBuffer[0] = '\r';
+        mBuffer[1] = '\n';
+        mLimit = 2;
+    }
+
+    /**
+     * Create a reader for the body of a multipart/form-data request.
+     *
+     * @param request the request
+     * @return the reader
+     * @throws IOException if the request isn't multipart or has no boundary
+     */
+    public static MultipartReader of(RouteRequest request) throws IOException {
+        var contentType = request.getHeader("Content-Type");
+        if (contentType == null
+                || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/")) {
+            throw new IOException("Request body is not multipart.");
+        }
+        var boundary = parameter(contentType, "boundary");
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IOException("Multipart request has no boundary.");
+        }
+        return new MultipartReader(request.getBody(), boundary);
+    }
+
+    /**
+     * Move on to the next part, skipping whatever is left of the current one.
+     *
+     * @return the next part, or null if there are no more
+     * @throws IOException if the body can't be read or isn't valid multipart
+     */
+    public Part next() throws IOException {
+        if (mFinished) {
+            return null;
+        }
+        if (mCurrent == null) {
+            mCurrent = new PartInputStream();
+        }
+        mCurrent.skipRest();
+        fill(2);
+        if (mLimit - mPosition >= 2 && mBuffer[mPosition] == '-'
+                && mBuffer[mPosition + 1] == '-') {
+            mFinished = true;
+            return null;
+        }
+        readLine(new int[] { MAX_HEADER_BYTES });
+        var headers = readHeaders();
+        mCurrent = new PartInputStream();
+        return new Part(headers, mCurrent);
+    }
+
+    /**
+     * Read the headers of a part, up to and including the blank line that ends them.
+     *
+     * @return the headers, keyed case-insensitively
+     * @throws IOException if the headers can't be read or are too long
+     */
+    private Map<String, String> readHeaders() throws IOException {
+        var headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        var budget = new int[] { MAX_HEADER_BYTES };
+        while (true) {
+            var line = readLine(budget);
+            if (line.isEmpty()) {
+                return headers;
+            }
+            var colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    /**
+     * Read a line ending in CRLF.
+     *
+     * @param budget a one-element array holding how many more bytes may be read, which is
+     *        reduced by the length of the line
+     * @return the line without its ending, decoded as UTF-8
+     * @throws IOException if the input ends first or the budget runs out
+     */
+    private String readLine(int[] budget) throws IOException {
+        var line = new ByteArrayOutputStream();
+        while (true) {
+            if (fill(1) == 0) {
+                throw new EOFException("Multipart body ended in the middle of a part header.");
+            }
+            var start = mPosition;
+            while (mPosition < mLimit && mBuffer[mPosition] != '\n') {
+                mPosition++;
+            }
+            var found = mPosition < mLimit;
+            line.write(mBuffer, start, mPosition - start);
+            budget[0] -= mPosition - start;
+            if (budget[0] < 0) {
+                throw new IOException("Multipart part headers are too long.");
+            }
+            if (found) {
+                mPosition++;
+                var bytes = line.toByteArray();
+                var length = bytes.length > 0 && bytes[bytes.length - 1] == '\r'
+                    ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    /**
+     * Make sure the buffer holds at least some number of unread bytes, unless the input ends.
+     *
+     * @param count the number of bytes wanted, no more than the buffer's size
+     * @return the number of unread bytes in the buffer
+     * @throws IOException if the input can't be read
+     */
+    private int fill(int count) throws IOException {
+        if (mLimit - mPosition < count && mPosition > 0) {
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+        }
+        while (mLimit - mPosition < count && !mEndOfInput) {
+            var read = mInput.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (read < 0) {
+                mEndOfInput = true;
+            } else {
+                mLimit += read;
+            }
+        }
+        return mLimit - mPosition;
+    }
+
+    /**
+     * Find the delimiter in the unread part of the buffer.
+     *
+     * @return the index of the delimiter, or -1 if it isn't there
+     */
+    private int findDelimiter() {
+        var last = mLimit - mDelimiter.length;
+        outer:
+        for (var i = mPosition; i <= last; i++) {
+            for (var j = 0; j < mDelimiter.length; j++) {
+                if (mBuffer[i + j] != mDelimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A stream over the body of one part, ending at the next delimiter.
+     */
+    private class PartInputStream extends InputStream {
+        private boolean mDone;
+
+        @Override
+        public int read() throws IOException {
+            var one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            var count = advance(length);
+            if (count > 0) {
+                System.arraycopy(mBuffer, mPosition - count, buffer, offset, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            var count = advance((int) Math.min(n, Integer.MAX_VALUE));
+            return Math.max(count, 0);
+        }
+
+        /**
+         * Skip to the end of this part.
+         *
+         * @throws IOException if the input can't be read
+         */
+        void skipRest() throws IOException {
+            while (advance(Integer.MAX_VALUE) > 0) {
+                continue;
+            }
+        }
+
+        /**
+         * Move past up to some number of body bytes in the buffer.
+         * <p>
+         * The bytes moved past end right before the new buffer position.
+         *
+         * @param length the most bytes to move past
+         * @return the number of bytes moved past, or -1 at the end of the part
+         * @throws IOException if the input ends before the closing boundary
+         */
+        private int advance(int length) throws IOException {
+            if (mDone) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            var available = fill(mDelimiter.length);
+            var delimiter = findDelimiter();
+            if (delimiter == mPosition) {
+                mPosition += mDelimiter.length;
+                mDone = true;
+                return -1;
+            }
+            if (delimiter > -1) {
+                available = delimiter - mPosition;
+            } else if (!mEndOfInput) {
+                available -= mDelimiter.length - 1;
+            } else if (available == 0) {
+                throw new EOFException("Multipart body ended before its closing boundary.");
+            }
+            var count = Math.min(length, available);
+            mPosition += count;
+            return count;
+        }
+    }
+
+    /**
+     * Read a parameter from a header value such as {@code form-data; name="file"}.
+     *
+     * @param header the header value, or null
+     * @param name the parameter name
+     * @return the unquoted parameter value, or null if it isn't there
+     */
+    static String parameter(String header, String name) {
+        if (header == null) {
+            return null;
+        }
+        var i = header.indexOf(';');
+        while (i > -1 && i < header.length()) {
+            var equals = header.indexOf('=', i);
+            if (equals < 0) {
+                return null;
+            }
+            var key = header.substring(i + 1, equals).trim();
+            var value = new StringBuilder();
+            var j = equals + 1;
+            while (j < header.length() && header.charAt(j) == ' ') {
+                j++;
+            }
+            if (j < header.length() && header.charAt(j) == '"') {
+                for (j++; j < header.length() && header.charAt(j) != '"'; j++) {
+                    if (header.charAt(j) == '\\' && j + 1 < header.length()) {
+                        j++;
+                    }
+                    value.append(header.charAt(j));
+                }
+                j = header.indexOf(';', j);
+            } else {
+                var end = header.indexOf(';', j);
+                value.append(header, j, end < 0 ? header.length() : end);
+                j = end;
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return value.toString().trim();
+            }
+            i = j;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,1021 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+
+/**
+ * One TLS connection of a {@link NioServer}.
+ * <p>
+ * Everything about the socket, the {@link SSLEngine} and the HTTP parsing happens on the
+ * connection's {@link NioEventLoop}. Requests are parsed one at a time: once a request's head is
+ * parsed it's dispatched as an {@link NioExchange}, its body is fed to the exchange as it
+ * arrives, and the next request isn't parsed until the response to this one is finished. That
+ * keeps pipelined responses in order, and the bytes of pipelined requests simply wait in the
+ * buffers.
+ * <p>
+ * The handler's thread talks to the connection through two bounded hand-offs. Request body
+ * bytes go into the exchange's {@link NioExchange.RequestBody}, and reading from the socket
+ * pauses while it's full. Response bytes go into an outbound queue, and the handler's thread
+ * waits while more than {@link #HIGH_WATER} bytes are queued. Neither side ever holds more than a
+ * window of a body in memory.
+ * <p>
+ * If the client picks h2 with ALPN, the connection speaks HTTP/2 instead and hands its plaintext
+ * to an {@link Http2Session}, which runs many exchanges at once over the same outbound queue.
+ * <p>
+ * Once a second the event loop checks the connection against the server's
+ * {@link ConnectionLimits}. The handshake and each request head must arrive within the header
+ * timeout, or the client gets a 408 and the connection closes. A request body that stops
+ * arriving while the handler waits for it fails with a {@link SocketTimeoutException}, and a
+ * client that stops taking the response, or stays idle between requests, is disconnected.
+ * <p>
+ * While more than {@link #HIGH_WATER} bytes wait to be sent, the connection stops reading, so a
+ * client that keeps sending without taking what it's sent back, such as the answers to its HTTP/2
+ * PINGs, can't make the outbound queue grow without bound.
+ */
+class NioConnection {
+    static final int HIGH_WATER = 256 * 1024;
+    static final int LOW_WATER = 64 * 1024;
+
+    private static final int MAX_HEAD_BYTES = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final byte[] CONTINUE = bytes("HTTP/1.1 100 Continue\r\n\r\n");
+    private static final byte[] BAD_REQUEST = bytes("HTTP/1.1 400 Bad Request\r\n"
+        + "Content-Length: 0\r\nConnection: close\r\n\r\n");
+    private static final byte[] REQUEST_TIMEOUT = bytes("HTTP/1.1 408 Request Timeout\r\n"
+        + "Content-Length: 0\r\nConnection: close\r\n\r\n");
+    private static final byte[] HEAD_TOO_LARGE = bytes(
+        "HTTP/1.1 431 Request Header Fields Too Large\r\n"
+        + "Content-Length: 0\r\nConnection: close\r\n\r\n");
+
+    private enum ChunkState {
+        SIZE, DATA, DATA_END, TRAILER
+    }
+
+    private final NioServer mServer;
+    private final NioEventLoop mLoop;
+    private final SocketChannel mChannel;
+    private final SSLEngine mEngine;
+    private final InetAddress mClient;
+    private final ConnectionLimits mLimits;
+    private final Object mOutboundLock;
+    private final Deque<ByteBuffer> mOutbound;
+    private SelectionKey mKey;
+    private ByteBuffer mNetIn;
+    private ByteBuffer mNetOut;
+    private ByteBuffer mAppIn;
+    private long mLastActive;
+    private long mLastRead;
+    private long mHeadStart;
+    private int mHeadScanned;
+    private long mWriteWaitStart;
+    private boolean mInputEnded;
+    private boolean mCloseWhenFlushed;
+    private boolean mClosed;
+    private boolean mNegotiated;
+    private long mHandshakeStart;
+    private long mHandshakeStartMillis;
+    private boolean mHandshakeDone;
+    private Http2Session mHttp2;
+
+    private NioExchange mExchange;
+    private boolean mResponseDone;
+    private boolean mCloseAfterResponse;
+    private boolean mBodyDone;
+    private long mBodyRemaining;
+    private boolean mChunked;
+    private ChunkState mChunkState;
+
+    private long mPending;
+    private boolean mPumpQueued;
+    private volatile boolean mDead;
+
+    /**
+     * Create a connection.
+     *
+     * @param server the server that accepted the connection
+     * @param loop the event loop the connection belongs to
+     * @param channel the accepted channel, already non-blocking
+     * @param engine the TLS engine for the connection, in server mode
+     * @param client the address of the client
+     */
+    NioConnection(NioServer server, NioEventLoop loop, SocketChannel channel, SSLEngine engine,
+            InetAddress client) {
+        mServer = server;
+        mLoop = loop;
+        mChannel = channel;
+        mEngine = engine;
+        mClient = client;
+        mLimits = server.getLimits();
+        mOutboundLock = new Object();
+        mOutbound = new ArrayDeque<>();
+        var session = engine.getSession();
+        mNetIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        mNetOut = ByteBuffer.allocate(session.getPacketBufferSize() * 2);
+        mAppIn = ByteBuffer.allocate(session.getApplicationBufferSize() * 2);
+        mLastActive = System.nanoTime();
+        mLastRead = mLastActive;
+        mHeadStart = mLastActive;
+    }
+
+    /**
+     * Get the event loop this connection belongs to.
+     *
+     * @return the loop
+     */
+    NioEventLoop getLoop() {
+        return mLoop;
+    }
+
+    /**
+     * Get the channel of this connection.
+     *
+     * @return the channel
+     */
+    SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Set the key the channel was registered with.
+     *
+     * @param key the selection key
+     */
+    void setKey(SelectionKey key) {
+        mKey = key;
+    }
+
+    /**
+     * Get the address of the client, which stays known after the channel closes.
+     *
+     * @return the client's address
+     */
+    InetAddress getClient() {
+        return mClient;
+    }
+
+    /**
+     * Get the TLS session of this connection.
+     *
+     * @return the session
+     */
+    SSLSession getSession() {
+        return mEngine.getSession();
+    }
+
+    /**
+     * Get the address of the client.
+     *
+     * @return the remote address, or null if it's unknown
+     */
+    InetSocketAddress getRemoteAddress() {
+        try {
+            return (InetSocketAddress) mChannel.getRemoteAddress();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the address the client connected to.
+     *
+     * @return the local address, or null if it's unknown
+     */
+    InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) mChannel.getLocalAddress();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * React to the channel being ready.
+     * <p>
+     * This is called on the event loop.
+     *
+     * @param readyOps the operations the channel is ready for
+     */
+    void handle(int readyOps) {
+        try {
+            if ((readyOps & SelectionKey.OP_READ) != 0) {
+                var read = mChannel.read(mNetIn);
+                if (read < 0) {
+                    mInputEnded = true;
+                } else if (read > 0) {
+                    mLastActive = System.nanoTime();
+                    mLastRead = mLastActive;
+                }
+            }
+            pump();
+        } catch (IOException | RuntimeException ex) {
+            close();
+        }
+    }
+
+    /**
+     * Move data along every stage as far as it will go, then update the channel's interest.
+     * <p>
+     * This is called on the event loop.
+     */
+    void pump() {
+        synchronized (mOutboundLock) {
+            mPumpQueued = false;
+        }
+        if (mClosed) {
+            return;
+        }
+        try {
+            var progress = true;
+            while (progress && !mClosed) {
+                progress = runTasks();
+                progress |= unwrap();
+                progress |= parse();
+                progress |= wrap();
+                progress |= flush();
+                if (mHttp2 != null && mNetOut.position() == 0 && isOutboundEmpty()) {
+                    mHttp2.flushed();
+                }
+            }
+            if (mClosed) {
+                return;
+            }
+            if (mHttp2 != null) {
+                if (mInputEnded) {
+                    mHttp2.inputEnded();
+                }
+                if (mHttp2.isDraining() && mHttp2.isIdle()) {
+                    mCloseWhenFlushed = true;
+                }
+            } else if (mInputEnded && mExchange == null) {
+                mCloseWhenFlushed = true;
+            } else if (mInputEnded && !mBodyDone && mAppIn.position() == 0) {
+                mExchange.getRequestBodyStream().fail(
+                    new EOFException("Connection ended in the middle of the request body."));
+                mBodyDone = true;
+                mCloseAfterResponse = true;
+            }
+            if (mCloseWhenFlushed && mNetOut.position() == 0 && isOutboundEmpty()) {
+                close();
+                return;
+            }
+            var ops = 0;
+            if (!mInputEnded && mNetIn.hasRemaining() && !isBackedUp()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (mNetOut.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            mKey.interestOps(ops);
+        } catch (IOException | RuntimeException ex) {
+            close();
+        }
+    }
+
+    /**
+     * Close this connection if no request is in progress, or after the current one otherwise.
+     * <p>
+     * This is called on the event loop.
+     */
+    void closeIfIdle() {
+        if (isIdle()) {
+            close();
+        } else if (mHttp2 != null) {
+            mHttp2.goAway(Http2Session.NO_ERROR, null);
+            pump();
+        } else {
+            mCloseAfterResponse = true;
+        }
+    }
+
+    /**
+     * Enforce the connection's timeouts.
+     * <p>
+     * This is called on the event loop about once a second.
+     *
+     * @param now the current {@link System#nanoTime()}
+     */
+    void tick(long now) {
+        if (mClosed) {
+            return;
+        }
+        if (isIdle() && mServer.isStopping()
+                || mNetOut.position() > 0 && isExpired(now, mWriteWaitStart,
+                    mLimits.getWriteTimeoutNanos())) {
+            close();
+            return;
+        }
+        if (mHttp2 != null) {
+            if (isIdle() && isExpired(now, mLastActive, mLimits.getIdleTimeoutNanos())) {
+                close();
+            }
+            return;
+        }
+        if (mExchange == null) {
+            if (mHandshakeDone && mAppIn.position() == 0 && mNetIn.position() == 0) {
+                mHeadStart = now;
+                if (isExpired(now, mLastActive, mLimits.getIdleTimeoutNanos())) {
+                    close();
+                }
+            } else if (!mCloseWhenFlushed
+                    && isExpired(now, mHeadStart, mLimits.getHeaderTimeoutNanos())) {
+                if (mHandshakeDone) {
+                    reject(REQUEST_TIMEOUT);
+                    pump();
+                } else {
+                    close();
+                }
+            }
+        } else if (!mBodyDone && mExchange.getRequestBodyStream().room() > 0
+                && isExpired(now, mLastRead, mLimits.getBodyTimeoutNanos())) {
+            mExchange.getRequestBodyStream().fail(
+                new SocketTimeoutException("The request body stopped arriving."));
+            mBodyDone = true;
+            mCloseAfterResponse = true;
+            pump();
+        }
+    }
+
+    /**
+     * Close this connection right away, failing any exchange in progress.
+     * <p>
+     * A TLS close_notify is sent if the socket will take it without blocking. This is called on
+     * the event loop.
+     */
+    void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mDead = true;
+        if (mHandshakeStart != 0 && !mHandshakeDone) {
+            mServer.getMetrics().handshakeFailed();
+        }
+        try {
+            mEngine.closeOutbound();
+            mNetOut.clear();
+            mEngine.wrap(EMPTY, mNetOut);
+            mNetOut.flip();
+            mChannel.write(mNetOut);
+        } catch (IOException | RuntimeException ex) {
+            // The connection is going away either way.
+        }
+        try {
+            mChannel.close();
+        } catch (IOException ex) {
+            // Nothing more to do.
+        }
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        if (mExchange != null) {
+            mExchange.getRequestBodyStream().fail(new IOException("Connection closed."));
+        }
+        if (mHttp2 != null) {
+            mHttp2.close();
+        }
+        synchronized (mOutboundLock) {
+            mOutbound.clear();
+            mPending = 0;
+            mOutboundLock.notifyAll();
+        }
+        mLoop.deregister(this);
+    }
+
+    /**
+     * Queue response bytes to be sent, waiting while too many are already queued.
+     * <p>
+     * This is called by the handler's thread. The buffer must not be changed afterwards. Bytes
+     * are sent once they're pushed, or once more than {@link #LOW_WATER} bytes are queued.
+     *
+     * @param buffer the bytes to send
+     * @param push true to get the bytes sent now rather than with the next push
+     * @throws IOException if the connection is closed or the thread is interrupted
+     */
+    void send(ByteBuffer buffer, boolean push) throws IOException {
+        synchronized (mOutboundLock) {
+            if (mPending > HIGH_WATER) {
+                schedulePump();
+            }
+            while (mPending > HIGH_WATER && !mDead) {
+                try {
+                    mOutboundLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mDead) {
+                throw new IOException("Connection closed.");
+            }
+            if (buffer.hasRemaining()) {
+                mOutbound.add(buffer);
+                mPending += buffer.remaining();
+            }
+            push |= mPending > LOW_WATER;
+        }
+        if (push) {
+            schedulePump();
+        }
+    }
+
+    /**
+     * Queue bytes to be sent without waiting, such as control frames the event loop answers
+     * with.
+     * <p>
+     * The caller takes care of getting the connection pumped.
+     *
+     * @param buffer the bytes to send
+     */
+    void queue(ByteBuffer buffer) {
+        synchronized (mOutboundLock) {
+            mOutbound.add(buffer);
+            mPending += buffer.remaining();
+        }
+    }
+
+    /**
+     * Stop reading and close the connection once everything queued has been sent.
+     * <p>
+     * This is called on the event loop.
+     */
+    void closeWhenFlushed() {
+        mCloseWhenFlushed = true;
+    }
+
+    /**
+     * Tell the connection the response to the current exchange is complete.
+     * <p>
+     * This is called by the handler's thread once everything was queued with
+     * {@link #send(ByteBuffer, boolean)}.
+     *
+     * @param exchange the exchange that finished
+     * @param closeAfter true if the connection should close once the response is sent
+     */
+    void complete(NioExchange exchange, boolean closeAfter) {
+        mLoop.execute(() -> {
+            if (mExchange != exchange) {
+                return;
+            }
+            mResponseDone = true;
+            mCloseAfterResponse |= closeAfter;
+            pump();
+        });
+    }
+
+    /**
+     * Drop the connection because the handler failed or never answered.
+     * <p>
+     * This is called by the handler's thread.
+     */
+    void abort() {
+        mDead = true;
+        mLoop.execute(this::close);
+    }
+
+    /**
+     * Get the event loop to pump this connection again, for example after the handler read
+     * some of a paused request body.
+     */
+    void schedulePump() {
+        synchronized (mOutboundLock) {
+            if (mPumpQueued) {
+                return;
+            }
+            mPumpQueued = true;
+        }
+        mLoop.execute(this::pump);
+    }
+
+    /**
+     * Run the TLS engine's delegated tasks, such as checking certificates.
+     *
+     * @return true if there were any
+     */
+    private boolean runTasks() {
+        var progress = false;
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+            progress = true;
+        }
+        return progress;
+    }
+
+    /**
+     * Decrypt whatever records have arrived, as far as there's room for the plaintext.
+     *
+     * @return true if anything was consumed or produced
+     * @throws IOException if the TLS data is invalid
+     */
+    private boolean unwrap() throws IOException {
+        if (mNetIn.position() == 0 || mEngine.isInboundDone()) {
+            return false;
+        }
+        var progress = false;
+        mNetIn.flip();
+        try {
+            while (mNetIn.hasRemaining()) {
+                var status = mEngine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                        || status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    break;
+                }
+                if (mAppIn.remaining() < mEngine.getSession().getApplicationBufferSize()) {
+                    if (!growAppIn()) {
+                        break;
+                    }
+                }
+                if (mHandshakeStart == 0) {
+                    mHandshakeStart = System.nanoTime();
+                    mHandshakeStartMillis = System.currentTimeMillis();
+                }
+                var result = handshook(mEngine.unwrap(mNetIn, mAppIn));
+                progress |= result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    mInputEnded = true;
+                    break;
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK
+                        || result.bytesConsumed() == 0) {
+                    break;
+                }
+            }
+        } finally {
+            mNetIn.compact();
+        }
+        return progress;
+    }
+
+    /**
+     * Record the handshake in the server's metrics if an engine operation finished it.
+     * <p>
+     * A session created before the handshake started must have been resumed from an earlier
+     * connection, since a full handshake creates a new one.
+     *
+     * @param result the result of the operation
+     * @return the result
+     */
+    private SSLEngineResult handshook(SSLEngineResult result) {
+        if (!mHandshakeDone
+                && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            mHandshakeDone = true;
+            var metrics = mServer.getMetrics();
+            metrics.handshakeCompleted(System.nanoTime() - mHandshakeStart);
+            if (mEngine.getSession().getCreationTime() < mHandshakeStartMillis) {
+                metrics.handshakeResumed();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Make room for more plaintext, if that's allowed.
+     * <p>
+     * The buffer only grows while a request head is still arriving and is under the limit.
+     * Otherwise a full buffer means waiting for the data in it to be used.
+     *
+     * @return true if there's room now
+     */
+    private boolean growAppIn() {
+        if (mExchange != null || mHttp2 != null || mAppIn.position() > MAX_HEAD_BYTES) {
+            return false;
+        }
+        var bigger = ByteBuffer.allocate(mAppIn.capacity() * 2);
+        mAppIn.flip();
+        bigger.put(mAppIn);
+        mAppIn = bigger;
+        return true;
+    }
+
+    /**
+     * Encrypt handshake messages and queued response bytes, as far as there's room.
+     *
+     * @return true if anything was produced
+     * @throws IOException if the engine fails
+     */
+    private boolean wrap() throws IOException {
+        var progress = false;
+        var packetSize = mEngine.getSession().getPacketBufferSize();
+        while (mNetOut.remaining() >= packetSize) {
+            var status = mEngine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                var result = handshook(mEngine.wrap(EMPTY, mNetOut));
+                progress |= result.bytesProduced() > 0;
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    break;
+                }
+                continue;
+            }
+            if (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                    && status != SSLEngineResult.HandshakeStatus.FINISHED) {
+                break;
+            }
+            ByteBuffer[] sources;
+            synchronized (mOutboundLock) {
+                if (mOutbound.isEmpty()) {
+                    break;
+                }
+                sources = mOutbound.toArray(new ByteBuffer[0]);
+            }
+            var result = mEngine.wrap(sources, mNetOut);
+            if (result.bytesConsumed() == 0) {
+                break;
+            }
+            progress = true;
+            synchronized (mOutboundLock) {
+                while (!mOutbound.isEmpty() && !mOutbound.peek().hasRemaining()) {
+                    mOutbound.poll();
+                }
+                var before = mPending;
+                mPending -= result.bytesConsumed();
+                if (before > LOW_WATER && mPending <= LOW_WATER) {
+                    mOutboundLock.notifyAll();
+                }
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * Write encrypted bytes to the socket, as many as it will take.
+     * <p>
+     * While bytes are left over, this keeps track of how long the socket has gone without
+     * taking any, for the write timeout.
+     *
+     * @return true if anything was written
+     * @throws IOException if the socket fails
+     */
+    private boolean flush() throws IOException {
+        if (mNetOut.position() == 0) {
+            return false;
+        }
+        mNetOut.flip();
+        int written;
+        try {
+            written = mChannel.write(mNetOut);
+        } finally {
+            mNetOut.compact();
+        }
+        if (written > 0) {
+            mLastActive = System.nanoTime();
+        }
+        if (mNetOut.position() == 0) {
+            mWriteWaitStart = 0;
+        } else if (written > 0 || mWriteWaitStart == 0) {
+            mWriteWaitStart = System.nanoTime();
+        }
+        return written > 0;
+    }
+
+    /**
+     * Check if no request is in progress.
+     *
+     * @return true if there's no exchange, or no open stream over HTTP/2
+     */
+    private boolean isIdle() {
+        return mHttp2 == null ? mExchange == null : mHttp2.isIdle();
+    }
+
+    /**
+     * Check if a timeout has passed.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @param since when the wait started
+     * @param timeoutNanos the timeout, or 0 for no limit
+     * @return true if the wait went on longer than the timeout
+     */
+    private static boolean isExpired(long now, long since, long timeoutNanos) {
+        return timeoutNanos > 0 && now - since > timeoutNanos;
+    }
+
+    /**
+     * Check if so many bytes wait to be sent that reading more requests should wait too.
+     *
+     * @return true if more than {@link #HIGH_WATER} bytes are queued
+     */
+    private boolean isBackedUp() {
+        synchronized (mOutboundLock) {
+            return mPending > HIGH_WATER;
+        }
+    }
+
+    /**
+     * Check if every queued response byte has been encrypted.
+     *
+     * @return true if the outbound queue is empty
+     */
+    private boolean isOutboundEmpty() {
+        synchronized (mOutboundLock) {
+            return mOutbound.isEmpty();
+        }
+    }
+
+    /**
+     * Parse as much HTTP as the current state allows: a request head if no request is in
+     * progress, body bytes if one is, and the end of a request whose response is done.
+     * <p>
+     * Once the first plaintext arrives the handshake is over, so that's when the protocol the
+     * client picked with ALPN decides whether the rest is HTTP/2 frames.
+     *
+     * @return true if anything was parsed
+     * @throws IOException if the engine fails
+     */
+    private boolean parse() throws IOException {
+        if (mCloseWhenFlushed) {
+            return false;
+        }
+        if (!mNegotiated && mAppIn.position() > 0) {
+            mNegotiated = true;
+            if ("h2".equals(mEngine.getApplicationProtocol())) {
+                mHttp2 = new Http2Session(this, mServer);
+            }
+        }
+        if (mHttp2 != null) {
+            return mHttp2.parse(mAppIn);
+        }
+        if (mExchange == null) {
+            return parseHead();
+        }
+        var progress = false;
+        if (!mBodyDone) {
+            progress = parseBody();
+        }
+        if (mResponseDone && mNetOut.position() == 0 && isOutboundEmpty()) {
+            finishExchange();
+            progress = true;
+        }
+        return progress;
+    }
+
+    /**
+     * Parse a request head and dispatch it, if a whole one has arrived.
+     * <p>
+     * A head that arrives in pieces is only scanned once: the search for its blank line picks up
+     * where the last one stopped, backing up three bytes in case the CRLFCRLF straddles reads.
+     *
+     * @return true if a request was dispatched
+     */
+    private boolean parseHead() {
+        if (mServer.isStopping()) {
+            mCloseWhenFlushed = true;
+            return false;
+        }
+        mAppIn.flip();
+        var start = mAppIn.position();
+        while (start + 1 < mAppIn.limit() && mAppIn.get(start) == '\r'
+                && mAppIn.get(start + 1) == '\n') {
+            start += 2;
+        }
+        var end = -1;
+        for (var i = Math.max(start, mHeadScanned); i + 3 < mAppIn.limit(); i++) {
+            if (mAppIn.get(i) == '\r' && mAppIn.get(i + 1) == '\n' && mAppIn.get(i + 2) == '\r'
+                    && mAppIn.get(i + 3) == '\n') {
+                end = i + 4;
+                break;
+            }
+        }
+        if (end < 0) {
+            var length = mAppIn.limit() - start;
+            mHeadScanned = Math.max(0, length - 3);
+            mAppIn.position(start);
+            mAppIn.compact();
+            if (length > MAX_HEAD_BYTES) {
+                reject(HEAD_TOO_LARGE);
+            }
+            return false;
+        }
+        var head = new String(mAppIn.array(), start, end - start, StandardCharsets.ISO_8859_1);
+        mHeadScanned = 0;
+        mAppIn.position(end);
+        mAppIn.compact();
+        if (!dispatch(head)) {
+            reject(BAD_REQUEST);
+        }
+        return true;
+    }
+
+    /**
+     * Turn a request head into an exchange and hand it to the executor.
+     *
+     * @param head the request line and headers
+     * @return false if the head is malformed
+     */
+    private boolean dispatch(String head) {
+        var lines = head.split("\r\n");
+        var requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            return false;
+        }
+        URI uri;
+        try {
+            uri = new URI(requestLine[1]);
+        } catch (URISyntaxException ex) {
+            return false;
+        }
+        var headers = new Headers();
+        for (var i = 1; i < lines.length; i++) {
+            var colon = lines[i].indexOf(':');
+            if (colon <= 0 || !isToken(lines[i], colon)) {
+                return false;
+            }
+            headers.add(lines[i].substring(0, colon), lines[i].substring(colon + 1).trim());
+        }
+        var protocol = requestLine[2];
+        var connection = headers.getFirst("Connection");
+        mCloseAfterResponse = protocol.equals("HTTP/1.0")
+            ? connection == null || !connection.equalsIgnoreCase("keep-alive")
+            : connection != null && connection.equalsIgnoreCase("close");
+        var transferEncodings = headers.get("Transfer-Encoding");
+        var contentLengths = headers.get("Content-Length");
+        mChunkState = ChunkState.SIZE;
+        mBodyRemaining = 0;
+        mChunked = false;
+        if (transferEncodings != null) {
+            if (contentLengths != null) {
+                return false;
+            }
+            var codings = String.join(",", transferEncodings).split(",");
+            if (!codings[codings.length - 1].trim().equalsIgnoreCase("chunked")) {
+                return false;
+            }
+            mChunked = true;
+            headers.remove("Content-Length");
+        } else if (contentLengths != null) {
+            var contentLength = contentLengths.get(0);
+            if (contentLengths.size() > 1 || !contentLength.matches("[0-9]{1,18}")) {
+                return false;
+            }
+            mBodyRemaining = Long.parseLong(contentLength);
+        }
+        var path = uri.getPath() == null ? "/" : uri.getPath();
+        var context = mServer.findContext(path);
+        mExchange = new NioExchange(this, context, requestLine[0], uri, protocol, headers);
+        mResponseDone = false;
+        mBodyDone = !mChunked && mBodyRemaining == 0;
+        if (mBodyDone) {
+            mExchange.getRequestBodyStream().finish();
+        }
+        var expect = headers.getFirst("Expect");
+        if (expect != null && expect.equalsIgnoreCase("100-continue") && !mBodyDone) {
+            queue(ByteBuffer.wrap(CONTINUE));
+        }
+        try {
+            mServer.handle(mExchange);
+        } catch (RejectedExecutionException ex) {
+            close();
+        }
+        return true;
+    }
+
+    /**
+     * Check that a header line starts with a field name made of token characters only, so a
+     * name with whitespace around it or a folded continuation line is refused instead of being
+     * read differently than other parsers would.
+     *
+     * @param line the header line
+     * @param colon where the colon ending the name is
+     * @return true if everything before the colon is a token
+     */
+    private static boolean isToken(String line, int colon) {
+        for (var i = 0; i < colon; i++) {
+            var c = line.charAt(i);
+            if (c <= ' ' || c >= 0x7f || "\"(),/:;<=>?@[\\]{}".indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Feed request body bytes to the current exchange, as many as it has room for.
+     *
+     * @return true if any body bytes were parsed
+     * @throws IOException if the chunked framing is invalid
+     */
+    private boolean parseBody() throws IOException {
+        var body = mExchange.getRequestBodyStream();
+        var progress = false;
+        mAppIn.flip();
+        try {
+            while (!mBodyDone && mAppIn.hasRemaining()) {
+                if (!mChunked || mChunkState == ChunkState.DATA) {
+                    var room = body.room();
+                    if (room == 0) {
+                        body.stall();
+                        break;
+                    }
+                    var length = (int) Math.min(Math.min(mAppIn.remaining(), room),
+                        mBodyRemaining);
+                    body.offer(mAppIn, length);
+                    mBodyRemaining -= length;
+                    progress = true;
+                    if (mBodyRemaining == 0) {
+                        if (mChunked) {
+                            mChunkState = ChunkState.DATA_END;
+                        } else {
+                            mBodyDone = true;
+                        }
+                    }
+                    continue;
+                }
+                var line = readLine();
+                if (line == null) {
+                    break;
+                }
+                progress = true;
+                if (mChunkState == ChunkState.SIZE) {
+                    var semicolon = line.indexOf(';');
+                    var size = semicolon < 0 ? line : line.substring(0, semicolon);
+                    if (!size.matches("[0-9A-Fa-f]{1,16}")) {
+                        throw new IOException("Invalid chunk size.");
+                    }
+                    try {
+                        mBodyRemaining = Long.parseLong(size, 16);
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Invalid chunk size.");
+                    }
+                    mChunkState = mBodyRemaining == 0 ? ChunkState.TRAILER : ChunkState.DATA;
+                } else if (mChunkState == ChunkState.DATA_END) {
+                    if (!line.isEmpty()) {
+                        throw new IOException("Invalid chunk ending.");
+                    }
+                    mChunkState = ChunkState.SIZE;
+                } else if (line.isEmpty()) {
+                    mBodyDone = true;
+                }
+            }
+        } finally {
+            mAppIn.compact();
+        }
+        if (mBodyDone) {
+            body.finish();
+        }
+        return progress;
+    }
+
+    /**
+     * Read a CRLF-terminated line of chunked framing from the plaintext buffer.
+     * <p>
+     * The buffer must be flipped for reading.
+     *
+     * @return the line without its ending, or null if a whole line hasn't arrived
+     * @throws IOException if the line is unreasonably long
+     */
+    private String readLine() throws IOException {
+        var start = mAppIn.position();
+        for (var i = start; i + 1 < mAppIn.limit(); i++) {
+            if (mAppIn.get(i) == '\r' && mAppIn.get(i + 1) == '\n') {
+                var line = new String(mAppIn.array(), start, i - start,
+                    StandardCharsets.ISO_8859_1);
+                mAppIn.position(i + 2);
+                return line;
+            }
+        }
+        if (mAppIn.remaining() > 4096) {
+            throw new IOException("Chunk framing line is too long.");
+        }
+        return null;
+    }
+
+    /**
+     * Finish the current exchange once its response has been sent in full.
+     * <p>
+     * The connection is kept open for the next request unless the client or the response asked
+     * for it to close, or the handler left part of the request body unread.
+     */
+    private void finishExchange() {
+        mExchange = null;
+        mLastActive = System.nanoTime();
+        mHeadStart = mLastActive;
+        if (mCloseAfterResponse || !mBodyDone) {
+            mCloseWhenFlushed = true;
+        }
+    }
+
+    /**
+     * Answer a request that can't be handled with a canned response and close the connection.
+     *
+     * @param response the complete response bytes
+     */
+    private void reject(byte[] response) {
+        queue(ByteBuffer.wrap(response));
+        mCloseWhenFlushed = true;
+    }
+
+    /**
+     * Encode an ASCII string.
+     *
+     * @param text the string
+     * @return its bytes
+     */
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
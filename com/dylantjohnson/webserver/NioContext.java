@@ -0,0 +1,69 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A route of a {@link NioServer}.
+ * <p>
+ * This only exists so handlers can see which route a request matched, the same as with the JDK's
+ * server. Filters and authenticators aren't supported.
+ */
+class NioContext extends HttpContext {
+    private final String mPath;
+    private final Map<String, Object> mAttributes;
+    private HttpHandler mHandler;
+
+    /**
+     * Create a route.
+     *
+     * @param path the path prefix the route matches
+     * @param handler the handler for the route
+     */
+    NioContext(String path, HttpHandler handler) {
+        mPath = path;
+        mHandler = handler;
+        mAttributes = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public HttpHandler getHandler() {
+        return mHandler;
+    }
+
+    @Override
+    public void setHandler(HttpHandler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public String getPath() {
+        return mPath;
+    }
+
+    @Override
+    public HttpServer getServer() {
+        return null;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return mAttributes;
+    }
+
+    @Override
+    public List<Filter> getFilters() {
+        return List.of();
+    }
+
+    @Override
+    public Authenticator setAuthenticator(Authenticator authenticator) {
+        throw new UnsupportedOperationException("Authenticators aren't supported.");
+    }
+
+    @Override
+    public Authenticator getAuthenticator() {
+        return null;
+    }
+}
@@ -0,0 +1,171 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A thread that does the I/O for a share of a {@link NioServer}'s connections.
+ * <p>
+ * Every {@link NioConnection} is registered with exactly one event loop and only ever touched by
+ * its thread. Other threads reach a connection by queueing a task with
+ * {@link #execute(Runnable)}, which wakes the loop up to run it.
+ * <p>
+ * This class is thread-safe.
+ */
+class NioEventLoop implements Runnable {
+    private static final long TICK_MS = 1000;
+
+    private final NioServer mServer;
+    private final Selector mSelector;
+    private final Queue<Runnable> mTasks;
+    private final Set<NioConnection> mConnections;
+    private final Thread mThread;
+    private volatile boolean mRunning;
+
+    /**
+     * Create an event loop.
+     *
+     * @param server the server the loop belongs to
+     * @param index the loop's number, used to name its thread
+     * @throws IOException if a selector can't be opened
+     */
+    NioEventLoop(NioServer server, int index) throws IOException {
+        mServer = server;
+        mSelector = Selector.open();
+        mTasks = new ConcurrentLinkedQueue<>();
+        mConnections = new HashSet<>();
+        mThread = new Thread(this, String.format("NioEventLoop %d-%d",
+            server.getAddress().getPort(), index));
+    }
+
+    /**
+     * Start the loop's thread.
+     */
+    void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Close every connection and end the loop's thread.
+     */
+    void shutdown() {
+        execute(() -> {
+            for (var connection : List.copyOf(mConnections)) {
+                connection.close();
+            }
+            mRunning = false;
+        });
+    }
+
+    /**
+     * Wait for the loop's thread to end after {@link #shutdown()}, so its connections and
+     * selector are closed by the time this returns.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    void awaitShutdown() throws InterruptedException {
+        mThread.join();
+    }
+
+    /**
+     * Run a task on the loop's thread.
+     *
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Check if the current thread is this loop's thread.
+     *
+     * @return true if called from the loop
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Register a new connection with this loop.
+     * <p>
+     * This must be called on the loop's thread.
+     *
+     * @param connection the connection
+     */
+    void register(NioConnection connection) {
+        try {
+            connection.setKey(connection.getChannel().register(mSelector, SelectionKey.OP_READ,
+                connection));
+        } catch (IOException ex) {
+            connection.close();
+            return;
+        }
+        mConnections.add(connection);
+        mServer.opened(connection);
+        if (mServer.isStopping()) {
+            connection.closeIfIdle();
+        }
+    }
+
+    /**
+     * Forget a connection that closed.
+     * <p>
+     * This must be called on the loop's thread.
+     *
+     * @param connection the connection
+     */
+    void deregister(NioConnection connection) {
+        mConnections.remove(connection);
+        mServer.closed(connection);
+    }
+
+    @Override
+    public void run() {
+        var lastTick = System.nanoTime();
+        while (mRunning) {
+            try {
+                mSelector.select(TICK_MS);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                break;
+            }
+            var keys = mSelector.selectedKeys();
+            for (var key : keys) {
+                var connection = (NioConnection) key.attachment();
+                if (!key.isValid()) {
+                    connection.close();
+                    continue;
+                }
+                connection.handle(key.readyOps());
+            }
+            keys.clear();
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            var now = System.nanoTime();
+            if (now - lastTick >= TimeUnit.MILLISECONDS.toNanos(TICK_MS)) {
+                lastTick = now;
+                for (var connection : List.copyOf(mConnections)) {
+                    connection.tick(now);
+                }
+            }
+        }
+        for (var connection : List.copyOf(mConnections)) {
+            connection.close();
+        }
+        try {
+            mSelector.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
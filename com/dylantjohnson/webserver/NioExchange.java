@@ -0,0 +1,568 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+
+/**
+ * A request being handled on a {@link NioConnection}.
+ * <p>
+ * This presents the request to handlers the same way the JDK's server does, including the
+ * meaning of the length passed to {@link #sendResponseHeaders(int, long)}: a positive length is
+ * sent with Content-Length, 0 means chunked transfer encoding and -1 means no body.
+ * <p>
+ * The request body and response body streams are used by the handler's thread, while the
+ * connection's event loop fills and empties them. This class speaks HTTP/1.x, and
+ * {@link Http2Exchange} overrides the parts that differ for HTTP/2 streams.
+ */
+class NioExchange extends HttpsExchange {
+    private static final int BODY_WINDOW = 64 * 1024;
+    private static final int RESPONSE_BUFFER_SIZE = 16 * 1024;
+    private static final int HEADROOM = Http2Session.FRAME_HEADER_SIZE;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final Map<Integer, String> REASONS = Map.ofEntries(
+        Map.entry(100, "Continue"),
+        Map.entry(200, "OK"),
+        Map.entry(201, "Created"),
+        Map.entry(202, "Accepted"),
+        Map.entry(204, "No Content"),
+        Map.entry(206, "Partial Content"),
+        Map.entry(301, "Moved Permanently"),
+        Map.entry(302, "Found"),
+        Map.entry(303, "See Other"),
+        Map.entry(304, "Not Modified"),
+        Map.entry(307, "Temporary Redirect"),
+        Map.entry(308, "Permanent Redirect"),
+        Map.entry(400, "Bad Request"),
+        Map.entry(401, "Unauthorized"),
+        Map.entry(403, "Forbidden"),
+        Map.entry(404, "Not Found"),
+        Map.entry(405, "Method Not Allowed"),
+        Map.entry(408, "Request Timeout"),
+        Map.entry(413, "Payload Too Large"),
+        Map.entry(416, "Range Not Satisfiable"),
+        Map.entry(429, "Too Many Requests"),
+        Map.entry(500, "Internal Server Error"),
+        Map.entry(503, "Service Unavailable"),
+        Map.entry(504, "Gateway Timeout"));
+
+    /**
+     * The request body, fed by the event loop and read by the handler.
+     * <p>
+     * At most {@link #BODY_WINDOW} bytes are held at once. When the window is full the event
+     * loop stops reading from the socket, and it's told to start again once the handler has
+     * read half of it.
+     */
+    class RequestBody extends InputStream {
+        private final Deque<ByteBuffer> mChunks = new ArrayDeque<>();
+        private int mQueued;
+        private boolean mFinished;
+        private boolean mStalled;
+        private IOException mFailure;
+
+        @Override
+        public int read() throws IOException {
+            var one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            var resume = false;
+            int read;
+            synchronized (this) {
+                while (mChunks.isEmpty() && !mFinished && mFailure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+                if (mChunks.isEmpty()) {
+                    return -1;
+                }
+                var chunk = mChunks.peek();
+                read = Math.min(length, chunk.remaining());
+                chunk.get(buffer, offset, read);
+                if (!chunk.hasRemaining()) {
+                    mChunks.poll();
+                }
+                mQueued -= read;
+                if (mStalled && mQueued <= BODY_WINDOW / 2) {
+                    mStalled = false;
+                    resume = true;
+                }
+            }
+            bodyRead(read, resume);
+            return read;
+        }
+
+        @Override
+        public synchronized int available() {
+            return mQueued;
+        }
+
+        /**
+         * Get how many more bytes fit in the window.
+         *
+         * @return the room in bytes
+         */
+        synchronized int room() {
+            return mFailure != null ? Integer.MAX_VALUE : BODY_WINDOW - mQueued;
+        }
+
+        /**
+         * Remember that the event loop stopped feeding the body because the window was full.
+         */
+        synchronized void stall() {
+            mStalled = true;
+        }
+
+        /**
+         * Copy body bytes in from the event loop.
+         *
+         * @param source the buffer holding the bytes, which is advanced past them
+         * @param length the number of bytes
+         */
+        synchronized void offer(ByteBuffer source, int length) {
+            if (mFailure != null) {
+                source.position(source.position() + length);
+                return;
+            }
+            var chunk = new byte[length];
+            source.get(chunk);
+            mChunks.add(ByteBuffer.wrap(chunk));
+            mQueued += length;
+            notifyAll();
+        }
+
+        /**
+         * Mark the end of the body.
+         */
+        synchronized void finish() {
+            mFinished = true;
+            notifyAll();
+        }
+
+        /**
+         * Make every read fail, because the connection went away.
+         *
+         * @param failure the exception reads will throw
+         */
+        synchronized void fail(IOException failure) {
+            if (!mFinished || !mChunks.isEmpty()) {
+                mFailure = failure;
+            }
+            mChunks.clear();
+            mQueued = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The response body, buffered into records and queued on the connection.
+     * <p>
+     * Each buffer leaves {@link #HEADROOM} bytes in front of the body and two behind it, so it
+     * can be framed as a chunk or a DATA frame without copying.
+     */
+    private class ResponseBody extends OutputStream {
+        private final long mExpected;
+        private byte[] mBuffer;
+        private int mCount;
+        private long mWritten;
+        private boolean mClosed;
+
+        ResponseBody(long expected) {
+            mExpected = expected;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("Response body is closed.");
+            }
+            if (mExpected > 0 && mWritten + length > mExpected) {
+                throw new IOException("Too many bytes for the response's Content-Length.");
+            }
+            if (mExpected < 0 && length > 0) {
+                throw new IOException("Response has no body.");
+            }
+            mWritten += length;
+            while (length > 0) {
+                if (mBuffer == null) {
+                    mBuffer = new byte[HEADROOM + RESPONSE_BUFFER_SIZE + 2];
+                }
+                var count = Math.min(length, RESPONSE_BUFFER_SIZE - mCount);
+                System.arraycopy(bytes, offset, mBuffer, HEADROOM + mCount, count);
+                mCount += count;
+                offset += count;
+                length -= count;
+                if (mCount == RESPONSE_BUFFER_SIZE) {
+                    handOff(false, false);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!mClosed) {
+                handOff(true, false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mExpected > 0 && mWritten < mExpected) {
+                abort();
+                throw new IOException("Response body is shorter than its Content-Length.");
+            }
+            handOff(true, true);
+            complete();
+        }
+
+        /**
+         * Queue the buffered bytes on the connection.
+         *
+         * @param push true to have them sent right away
+         * @param last true if this is the end of the body
+         * @throws IOException if the connection is closed
+         */
+        private void handOff(boolean push, boolean last) throws IOException {
+            sendBody(mBuffer, mCount, push, last);
+            mBuffer = null;
+            mCount = 0;
+        }
+    }
+
+    private final NioConnection mConnection;
+    private final NioContext mContext;
+    private final String mMethod;
+    private final URI mUri;
+    private final String mProtocol;
+    private final Headers mRequestHeaders;
+    private final Headers mResponseHeaders;
+    private final RequestBody mRequestBody;
+    private final Map<String, Object> mAttributes;
+    private InputStream mRequestStream;
+    private OutputStream mResponseStream;
+    private ResponseBody mResponseBody;
+    private int mResponseCode = -1;
+    private boolean mChunked;
+    private boolean mCloseAfter;
+    private boolean mExchangeClosed;
+
+    /**
+     * Create an exchange for a parsed request head.
+     *
+     * @param connection the connection the request arrived on
+     * @param context the route the request matched, or null if none did
+     * @param method the request method
+     * @param uri the request target
+     * @param protocol the HTTP version, such as HTTP/1.1
+     * @param headers the request headers
+     */
+    NioExchange(NioConnection connection, NioContext context, String method, URI uri,
+            String protocol, Headers headers) {
+        mConnection = connection;
+        mContext = context;
+        mMethod = method;
+        mUri = uri;
+        mProtocol = protocol;
+        mRequestHeaders = headers;
+        mResponseHeaders = new Headers();
+        mRequestBody = new RequestBody();
+        mRequestStream = mRequestBody;
+        mAttributes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get the request body stream the event loop feeds.
+     *
+     * @return the request body
+     */
+    RequestBody getRequestBodyStream() {
+        return mRequestBody;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return mRequestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return mResponseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return mUri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return mMethod;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return mContext;
+    }
+
+    @Override
+    public void close() {
+        if (mExchangeClosed) {
+            return;
+        }
+        mExchangeClosed = true;
+        try {
+            mRequestStream.close();
+            if (mResponseBody == null) {
+                abort();
+                return;
+            }
+            mResponseStream.close();
+        } catch (IOException ex) {
+            abort();
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return mRequestStream;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        if (mResponseStream == null) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    if (mResponseStream == null) {
+                        throw new IOException("Response headers haven't been sent.");
+                    }
+                    mResponseStream.write(bytes, offset, length);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (mResponseStream != null) {
+                        mResponseStream.flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (mResponseStream != null) {
+                        mResponseStream.close();
+                    }
+                }
+            };
+        }
+        return mResponseStream;
+    }
+
+    @Override
+    public void sendResponseHeaders(int code, long length) throws IOException {
+        if (mResponseBody != null) {
+            throw new IOException("Response headers have already been sent.");
+        }
+        mResponseCode = code;
+        var bodiless = mMethod.equalsIgnoreCase("HEAD") || code == 304 || code == 204
+            || code < 200;
+        if (!bodiless && length == -1) {
+            mResponseHeaders.set("Content-Length", "0");
+        } else if (!bodiless && length > 0) {
+            mResponseHeaders.set("Content-Length", String.valueOf(length));
+        }
+        if (!mResponseHeaders.containsKey("Date")) {
+            mResponseHeaders.set("Date", FileCache.HTTP_DATE.format(Instant.now()));
+        }
+        writeHead(code, length, bodiless);
+        mResponseBody = new ResponseBody(bodiless ? -1 : length);
+        mResponseStream = mResponseBody;
+    }
+
+    /**
+     * Queue the response head on the connection.
+     * <p>
+     * Content-Length and Date are already set when this is called.
+     *
+     * @param code the status code
+     * @param length the length given to {@link #sendResponseHeaders(int, long)}
+     * @param bodiless true if the response can't have a body
+     * @throws IOException if the connection is closed
+     */
+    void writeHead(int code, long length, boolean bodiless) throws IOException {
+        if (!bodiless && length == 0) {
+            if (mProtocol.equals("HTTP/1.0")) {
+                mCloseAfter = true;
+            } else {
+                mChunked = true;
+                mResponseHeaders.set("Transfer-Encoding", "chunked");
+            }
+        }
+        var connection = mResponseHeaders.getFirst("Connection");
+        if (connection != null && connection.equalsIgnoreCase("close")) {
+            mCloseAfter = true;
+        } else if (mCloseAfter) {
+            mResponseHeaders.set("Connection", "close");
+        }
+        var head = new StringBuilder(256);
+        var reason = REASONS.get(code);
+        head.append("HTTP/1.1 ").append(code).append(' ')
+            .append(reason == null ? "" : reason).append("\r\n");
+        for (var header : mResponseHeaders.entrySet()) {
+            for (var value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+        mConnection.send(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)),
+            false);
+    }
+
+    /**
+     * Queue a piece of the response body on the connection, framed as a chunk if the body is
+     * chunked.
+     * <p>
+     * The bytes start {@link #HEADROOM} bytes into the buffer, and there are two spare bytes
+     * after them.
+     *
+     * @param buffer the array holding the bytes, or null if there are none
+     * @param count the number of bytes
+     * @param push true to have them sent right away
+     * @param last true if this is the end of the body
+     * @throws IOException if the connection is closed
+     */
+    void sendBody(byte[] buffer, int count, boolean push, boolean last) throws IOException {
+        if (count > 0) {
+            var start = HEADROOM;
+            var end = HEADROOM + count;
+            if (mChunked) {
+                var size = (Integer.toHexString(count) + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+                start -= size.length;
+                System.arraycopy(size, 0, buffer, start, size.length);
+                buffer[end++] = '\r';
+                buffer[end++] = '\n';
+            }
+            mConnection.send(ByteBuffer.wrap(buffer, start, end - start), push && !last);
+        }
+        if (last) {
+            mConnection.send(mChunked ? ByteBuffer.wrap(LAST_CHUNK) : ByteBuffer.allocate(0),
+                true);
+        } else if (push && count == 0) {
+            mConnection.send(ByteBuffer.allocate(0), true);
+        }
+    }
+
+    /**
+     * Tell the connection the response has been queued in full.
+     */
+    void complete() {
+        mConnection.complete(this, mCloseAfter);
+    }
+
+    /**
+     * Give up on the response because the handler failed or broke the framing.
+     * <p>
+     * Over HTTP/1.x the only way to tell the client is to drop the connection.
+     */
+    void abort() {
+        mConnection.abort();
+    }
+
+    /**
+     * React to the handler having read from the request body.
+     *
+     * @param count the number of bytes read
+     * @param resume true if the event loop had stopped feeding the body and should start again
+     */
+    void bodyRead(int count, boolean resume) {
+        if (resume) {
+            mConnection.schedulePump();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return mConnection.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return mConnection.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return mProtocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return mAttributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            mAttributes.remove(name);
+        } else {
+            mAttributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream input, OutputStream output) {
+        if (input != null) {
+            mRequestStream = input;
+        }
+        if (output != null) {
+            mResponseStream = output;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    @Override
+    public SSLSession getSSLSession() {
+        return mConnection.getSession();
+    }
+}
@@ -0,0 +1,298 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A {@link TransportServer} built on non-blocking channels and {@link javax.net.ssl.SSLEngine}.
+ * <p>
+ * One thread accepts connections and deals them out to the {@link NioEventLoop}s in turn. From
+ * then on a connection belongs to its event loop, which does all of its socket I/O, TLS and HTTP
+ * parsing. Requests are handed to the executor as {@link NioExchange}s, so the same
+ * {@link RequestProcessor}s serve them as with the JDK's server. Clients that offer h2 with ALPN
+ * get HTTP/2, and everyone else gets HTTP/1.1.
+ * <p>
+ * The connections' timeouts are kept by the event loops, as described in
+ * {@link ConnectionLimits}. If connections are limited per client, they're counted per address,
+ * and the acceptor closes a connection right away when its client already has too many.
+ * <p>
+ * This class is thread-safe.
+ */
+class NioServer implements TransportServer {
+    private static final List<String> APPLICATION_PROTOCOLS = List.of("h2", "http/1.1");
+    private static final HttpHandler NO_CONTEXT = exchange -> {
+        var body = "No context found for request".getBytes(StandardCharsets.ISO_8859_1);
+        exchange.sendResponseHeaders(404, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    };
+
+    private final InetSocketAddress mAddress;
+    private final ServerSocketChannel mChannel;
+    private final DefaultConfigurator mConfigurator;
+    private final Executor mExecutor;
+    private final ConnectionLimits mLimits;
+    private final ConcurrentHashMap<InetAddress, Integer> mClients;
+    private final List<NioContext> mContexts;
+    private final NioEventLoop[] mLoops;
+    private final Set<NioConnection> mConnections;
+    private final AtomicInteger mNextLoop;
+    private Thread mAcceptor;
+    private volatile boolean mStopping;
+
+    /**
+     * Create a server and bind it.
+     *
+     * @param address the address to listen on
+     * @param configurator the TLS configuration
+     * @param executor the executor requests run on
+     * @param handlers the handler for each route
+     * @param limits the timeouts and connection limits to hold clients to
+     * @param eventLoops the number of event loop threads
+     * @throws IOException if the server can't bind to the address
+     */
+    NioServer(InetSocketAddress address, DefaultConfigurator configurator, Executor executor,
+            Map<String, HttpHandler> handlers, ConnectionLimits limits, int eventLoops)
+            throws IOException {
+        mConfigurator = configurator;
+        mExecutor = executor;
+        mLimits = limits;
+        mClients = new ConcurrentHashMap<>();
+        mContexts = new ArrayList<>();
+        for (var handler : handlers.entrySet()) {
+            mContexts.add(new NioContext(handler.getKey(), handler.getValue()));
+        }
+        mContexts.sort((a, b) -> b.getPath().length() - a.getPath().length());
+        mConnections = ConcurrentHashMap.newKeySet();
+        mNextLoop = new AtomicInteger();
+        mChannel = ServerSocketChannel.open();
+        mChannel.bind(address, 0);
+        mAddress = (InetSocketAddress) mChannel.getLocalAddress();
+        mLoops = new NioEventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            mLoops[i] = new NioEventLoop(this, i);
+        }
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mAcceptor != null) {
+            return;
+        }
+        for (var loop : mLoops) {
+            loop.start();
+        }
+        mAcceptor = new Thread(this::accept, "NioServer acceptor " + mAddress.getPort());
+        mAcceptor.start();
+    }
+
+    @Override
+    public synchronized void stop(long timeoutNanos) {
+        mStopping = true;
+        try {
+            mChannel.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        for (var connection : mConnections) {
+            connection.getLoop().execute(connection::closeIfIdle);
+        }
+        var deadline = System.nanoTime() + timeoutNanos;
+        while (!mConnections.isEmpty() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (var loop : mLoops) {
+            loop.shutdown();
+        }
+        // Closing the channel only releases the port once the acceptor leaves accept().
+        try {
+            if (mAcceptor != null) {
+                mAcceptor.join();
+            }
+            for (var loop : mLoops) {
+                loop.awaitShutdown();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accept connections until the listening socket is closed.
+     */
+    private void accept() {
+        while (mChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = mChannel.accept();
+            } catch (ClosedChannelException ex) {
+                return;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                continue;
+            }
+            var client = admitClient(channel);
+            if (client == null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // The connection is refused either way.
+                }
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                var loop = mLoops[Math.floorMod(mNextLoop.getAndIncrement(), mLoops.length)];
+                var engine = mConfigurator.createEngine(APPLICATION_PROTOCOLS);
+                loop.execute(() -> loop.register(
+                    new NioConnection(this, loop, channel, engine, client)));
+            } catch (IOException ex) {
+                releaseClient(client);
+                try {
+                    channel.close();
+                } catch (IOException closeEx) {
+                    continue;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count a new connection against its client's limit.
+     *
+     * @param channel the accepted channel
+     * @return the client's address, or null if the client has too many connections or is gone
+     *     already
+     */
+    private InetAddress admitClient(SocketChannel channel) {
+        InetAddress client;
+        try {
+            client = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        } catch (IOException ex) {
+            return null;
+        }
+        if (!mLimits.isPerClientLimited()) {
+            return client;
+        }
+        if (mClients.merge(client, 1, Integer::sum) > mLimits.getMaxConnectionsPerClient()) {
+            releaseClient(client);
+            return null;
+        }
+        return client;
+    }
+
+    /**
+     * Stop counting a connection against its client's limit.
+     *
+     * @param client the client's address
+     */
+    private void releaseClient(InetAddress client) {
+        if (mLimits.isPerClientLimited()) {
+            mClients.computeIfPresent(client, (address, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Find the context for a request path.
+     * <p>
+     * Like the JDK's server, this picks the longest route the path starts with.
+     *
+     * @param path the request path
+     * @return the context, or null if no route matches
+     */
+    NioContext findContext(String path) {
+        for (var context : mContexts) {
+            if (path.startsWith(context.getPath())) {
+                return context;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run a request's handler on the executor.
+     * <p>
+     * If the handler throws, the exchange is aborted. When it returns, the exchange is closed,
+     * unless the handler marked it {@link TransportServer#DETACHED_ATTRIBUTE} to finish it later.
+     *
+     * @param exchange the request
+     * @throws RejectedExecutionException if the executor won't take it
+     */
+    void handle(NioExchange exchange) {
+        var context = (NioContext) exchange.getHttpContext();
+        var handler = context == null ? NO_CONTEXT : context.getHandler();
+        mExecutor.execute(() -> {
+            try {
+                handler.handle(exchange);
+                if (exchange.getAttribute(DETACHED_ATTRIBUTE) == null) {
+                    exchange.close();
+                }
+            } catch (Throwable ex) {
+                exchange.abort();
+            }
+        });
+    }
+
+    /**
+     * Check if the server is shutting down, in which case connections close once idle.
+     *
+     * @return true if {@link #stop(long)} was called
+     */
+    boolean isStopping() {
+        return mStopping;
+    }
+
+    /**
+     * Get the timeouts connections are held to.
+     *
+     * @return the limits
+     */
+    ConnectionLimits getLimits() {
+        return mLimits;
+    }
+
+    /**
+     * Get the measurements handshakes are recorded in.
+     *
+     * @return the metrics
+     */
+    ServerMetrics getMetrics() {
+        return mConfigurator.getMetrics();
+    }
+
+    /**
+     * Keep track of an open connection.
+     *
+     * @param connection the connection
+     */
+    void opened(NioConnection connection) {
+        mConnections.add(connection);
+    }
+
+    /**
+     * Forget a closed connection.
+     *
+     * @param connection the connection
+     */
+    void closed(NioConnection connection) {
+        mConnections.remove(connection);
+        releaseClient(connection.getClient());
+    }
+}
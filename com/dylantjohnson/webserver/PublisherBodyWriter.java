@@ -0,0 +1,133 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link BodyWriter} that sends the buffers published by a {@link Flow.Publisher}.
+ * <p>
+ * Buffers are requested one at a time, and the next one isn't requested until the previous one
+ * has been written and flushed to the client. A publisher that produces faster than the client
+ * reads is held back rather than queued up in memory.
+ */
+class PublisherBodyWriter implements BodyWriter {
+    private static final int COPY_BUFFER_SIZE = 8192;
+    private static final Object COMPLETE = new Object();
+
+    private Flow.Publisher<ByteBuffer> mPublisher;
+
+    /**
+     * Create a writer for a publisher.
+     *
+     * @param publisher the publisher of the body's bytes
+     */
+    public PublisherBodyWriter(Flow.Publisher<ByteBuffer> publisher) {
+        mPublisher = publisher;
+    }
+
+    @Override
+    public void write(OutputStream output) throws Exception {
+        var subscriber = new BlockingSubscriber();
+        mPublisher.subscribe(subscriber);
+        byte[] copyBuffer = null;
+        try {
+            while (true) {
+                var signal = subscriber.take();
+                if (signal == COMPLETE) {
+                    return;
+                }
+                if (signal instanceof Throwable) {
+                    throw new IOException("Response body publisher failed.", (Throwable) signal);
+                }
+                var buffer = (ByteBuffer) signal;
+                if (buffer.hasArray()) {
+                    output.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                } else {
+                    if (copyBuffer == null) {
+                        copyBuffer = new byte[COPY_BUFFER_SIZE];
+                    }
+                    while (buffer.hasRemaining()) {
+                        var length = Math.min(copyBuffer.length, buffer.remaining());
+                        buffer.get(copyBuffer, 0, length);
+                        output.write(copyBuffer, 0, length);
+                    }
+                }
+                output.flush();
+                subscriber.request();
+            }
+        } catch (Exception ex) {
+            subscriber.cancel();
+            throw ex;
+        }
+    }
+
+    /**
+     * A subscriber that hands the published signals over to the writing thread.
+     * <p>
+     * Only one buffer is ever outstanding, so the queue holds at most that buffer and the
+     * signal that ends the stream.
+     */
+    private static class BlockingSubscriber implements Flow.Subscriber<ByteBuffer> {
+        private final BlockingQueue<Object> mSignals = new LinkedBlockingQueue<>();
+        private final CompletableFuture<Flow.Subscription> mSubscription =
+            new CompletableFuture<>();
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            if (!mSubscription.complete(subscription)) {
+                subscription.cancel();
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            mSignals.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            mSignals.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            mSignals.add(COMPLETE);
+        }
+
+        /**
+         * Wait for the next signal.
+         *
+         * @return a buffer, a {@link Throwable}, or {@link #COMPLETE}
+         * @throws InterruptedIOException if the thread is interrupted
+         */
+        Object take() throws InterruptedIOException {
+            try {
+                return mSignals.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * Ask for the next buffer.
+         */
+        void request() {
+            mSubscription.join().request(1);
+        }
+
+        /**
+         * Tell the publisher to stop, if it has subscribed yet.
+         */
+        void cancel() {
+            var subscription = mSubscription.getNow(null);
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+}
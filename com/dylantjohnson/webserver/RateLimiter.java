@@ -0,0 +1,160 @@
+package com.dylantjohnson.webserver;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Token buckets that limit how fast each client address may send requests, for the server or
+ * for one route, as set with {@link WebServerBuilder#setRateLimit}.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the time it will be full again, which is
+ * the generic cell rate algorithm's form of a token bucket: taking a token moves that time one
+ * token's worth into the future with a compare-and-set, and a request that would move it past
+ * the burst is refused. So a request costs one map lookup and one CAS, whatever the number of
+ * clients.
+ * <p>
+ * The buckets are spread over {@link #STRIPES} maps by address. A bucket that's full again
+ * says nothing a new bucket wouldn't, so a shared daemon thread removes them, sweeping one
+ * stripe at a time so each pass only touches a small part of the clients, and every stripe once
+ * per {@link #SWEEP_INTERVAL_SEC} seconds. A request racing with the sweep may take its token
+ * from a bucket just removed, which lets that one request through for free.
+ * <p>
+ * This class is thread-safe.
+ */
+final class RateLimiter {
+    static final int STRIPES = 64;
+    static final int SWEEP_INTERVAL_SEC = 16;
+
+    private static final int PRECOMPUTED_RETRY_SEC = 60;
+    private static final byte[] LIMITED_BODY = "Too Many Requests".getBytes();
+    private static final RouteResponse[] LIMITED = createResponses();
+    private static final ScheduledExecutorService SWEEPER =
+        Schedulers.create("RateLimiter sweeper");
+
+    /**
+     * A rate limit as set on the builder, from which each server built gets its own buckets.
+     */
+    static final class Rate {
+        final double mRequestsPerSecond;
+        final int mBurst;
+
+        /**
+         * Create a rate limit.
+         *
+         * @param requestsPerSecond how fast a bucket refills, more than 0
+         * @param burst how many requests a full bucket holds, at least 1
+         */
+        Rate(double requestsPerSecond, int burst) {
+            mRequestsPerSecond = requestsPerSecond;
+            mBurst = burst;
+        }
+    }
+
+    private final long mIntervalNanos;
+    private final long mBurstNanos;
+    private final List<ConcurrentHashMap<InetAddress, AtomicLong>> mStripes;
+    private int mNextStripe;
+
+    /**
+     * Create a limiter with every client's bucket full.
+     * <p>
+     * Rates so slow that a full bucket would take over
+     * {@link ConnectionLimits#MAX_TIMEOUT_NANOS} to refill are treated as that slow.
+     *
+     * @param rate the rate limit
+     */
+    RateLimiter(Rate rate) {
+        var max = ConnectionLimits.MAX_TIMEOUT_NANOS;
+        mIntervalNanos = Math.max(1, (long) Math.min(1e9 / rate.mRequestsPerSecond, max));
+        mBurstNanos = (long) Math.min((double) mIntervalNanos * rate.mBurst, max);
+        mStripes = new ArrayList<>(STRIPES);
+        for (var i = 0; i < STRIPES; i++) {
+            mStripes.add(new ConcurrentHashMap<>());
+        }
+        Schedulers.scheduleWhileReachable(SWEEPER, this, RateLimiter::sweep,
+            TimeUnit.SECONDS.toNanos(SWEEP_INTERVAL_SEC) / STRIPES);
+    }
+
+    /**
+     * Take a token from a client's bucket.
+     *
+     * @param client the client's address
+     * @return 0 if the request may go ahead, otherwise how many nanoseconds until a token is
+     *     back
+     */
+    long acquire(InetAddress client) {
+        var hash = client.hashCode();
+        var stripe = mStripes.get((hash ^ hash >>> 16) & (STRIPES - 1));
+        var now = System.nanoTime();
+        var bucket = stripe.get(client);
+        if (bucket == null) {
+            bucket = stripe.computeIfAbsent(client, key -> new AtomicLong(now));
+        }
+        while (true) {
+            var full = bucket.get();
+            var next = (full - now > 0 ? full : now) + mIntervalNanos;
+            var wait = next - now - mBurstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Get the 429 response for a refused request.
+     * <p>
+     * Responses for waits up to a minute are precomputed, so refusing a request allocates
+     * nothing.
+     *
+     * @param waitNanos how long until the client's bucket has a token
+     * @return an immutable response whose Retry-After header says how many seconds to wait
+     */
+    static RouteResponse getLimitedResponse(long waitNanos) {
+        var seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1)
+            / TimeUnit.SECONDS.toNanos(1));
+        return seconds <= PRECOMPUTED_RETRY_SEC ? LIMITED[(int) seconds]
+            : createResponse(seconds);
+    }
+
+    /**
+     * Remove the full buckets of the next stripe.
+     * <p>
+     * This is only called on the sweeper thread.
+     */
+    private void sweep() {
+        var now = System.nanoTime();
+        mStripes.get(mNextStripe).values().removeIf(bucket -> bucket.get() - now <= 0);
+        mNextStripe = (mNextStripe + 1) % STRIPES;
+    }
+
+    /**
+     * Create the 429 responses for waits of up to {@link #PRECOMPUTED_RETRY_SEC} seconds.
+     *
+     * @return the responses, indexed by seconds
+     */
+    private static RouteResponse[] createResponses() {
+        var responses = new RouteResponse[PRECOMPUTED_RETRY_SEC + 1];
+        for (var i = 1; i <= PRECOMPUTED_RETRY_SEC; i++) {
+            responses[i] = createResponse(i);
+        }
+        return responses;
+    }
+
+    /**
+     * Create a 429 response.
+     *
+     * @param retryAfterSec how many seconds the client should wait
+     * @return the response
+     */
+    private static RouteResponse createResponse(long retryAfterSec) {
+        return new RouteResponse(RouteResponse.Status.TOO_MANY_REQUESTS, LIMITED_BODY, 0,
+            LIMITED_BODY.length, Map.of(
+                "Content-Type", List.of("text/plain; charset=utf-8"),
+                "Retry-After", List.of(String.valueOf(retryAfterSec))));
+    }
+}
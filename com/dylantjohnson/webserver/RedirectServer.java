@@ -0,0 +1,409 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A plaintext HTTP listener that answers every request with a redirect to the same path over
+ * HTTPS.
+ * <p>
+ * One thread accepts connections and does all of their I/O on a single selector. It only reads
+ * as far as the end of the request head, and never calls a {@link RouteHandler}. The status line
+ * and the start of the Location header are encoded once, so answering a request takes one
+ * gathering write of those bytes, the request target copied straight from the read buffer, and
+ * the fixed end of the response. Each connection gets one response and is then closed.
+ * <p>
+ * Redirects go to the configured domain. Without one, they go to the host the client asked for
+ * in its Host header. Requests that can't be redirected safely, such as ones with malformed
+ * targets or missing hosts, get a 400.
+ * <p>
+ * This class is thread-safe.
+ */
+class RedirectServer {
+    private static final int MAX_HEAD_BYTES = 8 * 1024;
+    private static final long IDLE_TIMEOUT_MS = 10_000;
+    private static final long TICK_MS = 1000;
+    private static final byte[] BAD_REQUEST = ("HTTP/1.1 400 Bad Request\r\n"
+        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] RESPONSE_END =
+        "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final int mPort;
+    private final byte[] mResponseStart;
+    private final byte[] mLocationPrefix;
+    private final String mHttpsPortSuffix;
+    private Selector mSelector;
+    private ServerSocketChannel mChannel;
+    private Thread mThread;
+
+    /**
+     * A connection waiting for its request head, being sent its redirect, or being drained
+     * before it closes.
+     */
+    private static class Redirect {
+        final ByteBuffer mIn = ByteBuffer.allocate(MAX_HEAD_BYTES);
+        ByteBuffer[] mOut;
+        boolean mDraining;
+        long mDeadline;
+    }
+
+    /**
+     * Create a redirect listener, not bound yet.
+     *
+     * @param port the port to listen on for plaintext HTTP
+     * @param status the redirect status, {@link RouteResponse.Status#MOVED_PERMANENTLY} or
+     *     {@link RouteResponse.Status#PERMANENT_REDIRECT}
+     * @param domain the host to redirect to, or null to use the Host header of each request
+     * @param httpsPort the port the HTTPS server listens on
+     */
+    RedirectServer(int port, RouteResponse.Status status, String domain, int httpsPort) {
+        mPort = port;
+        var reason = status == RouteResponse.Status.PERMANENT_REDIRECT ? "Permanent Redirect"
+            : "Moved Permanently";
+        mResponseStart = String.format("HTTP/1.1 %d %s\r\nLocation: https://", status.getCode(),
+            reason).getBytes(StandardCharsets.ISO_8859_1);
+        mHttpsPortSuffix = httpsPort == 443 ? "" : ":" + httpsPort;
+        mLocationPrefix = domain == null ? null
+            : (domain + mHttpsPortSuffix).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Bind the listening socket and start answering requests.
+     * <p>
+     * If the listener is already started, this does nothing.
+     *
+     * @throws IOException if the listener can't bind to its port
+     */
+    synchronized void start() throws IOException {
+        if (mThread != null) {
+            return;
+        }
+        var selector = Selector.open();
+        var channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(InetAddress.getLocalHost(), mPort));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            channel.close();
+            selector.close();
+            throw ex;
+        }
+        mSelector = selector;
+        mChannel = channel;
+        mThread = new Thread(() -> run(selector, channel), "RedirectServer " + mPort);
+        mThread.start();
+    }
+
+    /**
+     * Close the listening socket and every open connection.
+     * <p>
+     * If the listener is already stopped, this does nothing.
+     */
+    synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mThread.interrupt();
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mSelector = null;
+        mChannel = null;
+    }
+
+    /**
+     * Get the address the listener is bound to.
+     *
+     * @return the address, or null if it isn't started
+     * @throws IOException if the address can't be read
+     */
+    synchronized InetSocketAddress getAddress() throws IOException {
+        return mChannel == null ? null : (InetSocketAddress) mChannel.getLocalAddress();
+    }
+
+    /**
+     * Accept connections and answer them until interrupted, then close everything.
+     *
+     * @param selector the selector the listening socket is registered with
+     * @param channel the listening socket
+     */
+    private void run(Selector selector, ServerSocketChannel channel) {
+        var lastTick = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select(TICK_MS);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                break;
+            }
+            var keys = selector.selectedKeys();
+            for (var key : keys) {
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(selector, channel);
+                } else {
+                    handle(key);
+                }
+            }
+            keys.clear();
+            var now = System.nanoTime();
+            if (now - lastTick >= TimeUnit.MILLISECONDS.toNanos(TICK_MS)) {
+                lastTick = now;
+                for (var key : selector.keys()) {
+                    var redirect = (Redirect) key.attachment();
+                    if (redirect != null && now - redirect.mDeadline > 0) {
+                        close(key);
+                    }
+                }
+            }
+        }
+        for (var key : selector.keys()) {
+            close(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Accept every pending connection.
+     *
+     * @param selector the selector to register connections with
+     * @param channel the listening socket
+     */
+    private void accept(Selector selector, ServerSocketChannel channel) {
+        while (true) {
+            SocketChannel connection;
+            try {
+                connection = channel.accept();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return;
+            }
+            if (connection == null) {
+                return;
+            }
+            try {
+                connection.configureBlocking(false);
+                connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                var redirect = new Redirect();
+                redirect.mDeadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+                connection.register(selector, SelectionKey.OP_READ, redirect);
+            } catch (IOException ex) {
+                try {
+                    connection.close();
+                } catch (IOException closeEx) {
+                    continue;
+                }
+            }
+        }
+    }
+
+    /**
+     * Make progress on a connection: read its request head, write its response, or drain it.
+     *
+     * @param key the connection's key
+     */
+    private void handle(SelectionKey key) {
+        var channel = (SocketChannel) key.channel();
+        var redirect = (Redirect) key.attachment();
+        try {
+            if (redirect.mDraining) {
+                redirect.mIn.clear();
+                if (channel.read(redirect.mIn) < 0) {
+                    close(key);
+                }
+                return;
+            }
+            if (redirect.mOut == null) {
+                var start = Math.max(0, redirect.mIn.position() - 3);
+                var read = channel.read(redirect.mIn);
+                if (read < 0) {
+                    close(key);
+                    return;
+                }
+                if (!headEnded(redirect.mIn, start) && redirect.mIn.hasRemaining()) {
+                    return;
+                }
+                redirect.mOut = respond(redirect.mIn);
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            channel.write(redirect.mOut);
+            if (!redirect.mOut[redirect.mOut.length - 1].hasRemaining()) {
+                channel.shutdownOutput();
+                redirect.mDraining = true;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException ex) {
+            close(key);
+        }
+    }
+
+    /**
+     * Check if a request head has ended, by finding the empty line after the headers.
+     *
+     * @param in the buffer the head is being read into
+     * @param from where to start looking, which can be before the bytes just read
+     * @return true if the head is complete
+     */
+    private static boolean headEnded(ByteBuffer in, int from) {
+        var bytes = in.array();
+        for (var i = from; i + 3 < in.position(); i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r'
+                    && bytes[i + 3] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Work out the response to a request head.
+     *
+     * @param in the buffer holding the head
+     * @return the buffers to write, in order
+     */
+    private ByteBuffer[] respond(ByteBuffer in) {
+        var bytes = in.array();
+        var end = in.position();
+        var lineEnd = indexOf(bytes, 0, end, (byte) '\r');
+        var targetStart = indexOf(bytes, 0, lineEnd, (byte) ' ') + 1;
+        var targetEnd = targetStart == 0 ? -1 : indexOf(bytes, targetStart, lineEnd, (byte) ' ');
+        if (targetEnd < 0) {
+            return badRequest();
+        }
+        if (startsWithIgnoreCase(bytes, targetStart, targetEnd, "http://")) {
+            var path = indexOf(bytes, targetStart + 7, targetEnd, (byte) '/');
+            targetStart = path < 0 ? targetEnd : path;
+        }
+        for (var i = targetStart; i < targetEnd; i++) {
+            if (bytes[i] < 0x21 || bytes[i] > 0x7e) {
+                return badRequest();
+            }
+        }
+        var target = targetStart == targetEnd || bytes[targetStart] != '/'
+            ? ByteBuffer.wrap(new byte[] { '/' })
+            : ByteBuffer.wrap(bytes, targetStart, targetEnd - targetStart);
+        var location = mLocationPrefix == null ? hostLocation(bytes, lineEnd, end)
+            : ByteBuffer.wrap(mLocationPrefix);
+        if (location == null) {
+            return badRequest();
+        }
+        return new ByteBuffer[] {
+            ByteBuffer.wrap(mResponseStart), location, target, ByteBuffer.wrap(RESPONSE_END)
+        };
+    }
+
+    /**
+     * Build the host part of the location from a request's Host header.
+     *
+     * @param bytes the request head
+     * @param from where the headers start
+     * @param end where the head ends
+     * @return the host, with the HTTPS port if it isn't 443, or null if there is no usable
+     *     Host header
+     */
+    private ByteBuffer hostLocation(byte[] bytes, int from, int end) {
+        for (var i = from; i + 7 < end; i++) {
+            if (bytes[i] != '\n' || !startsWithIgnoreCase(bytes, i + 1, end, "host:")) {
+                continue;
+            }
+            var start = i + 6;
+            while (start < end && (bytes[start] == ' ' || bytes[start] == '\t')) {
+                start++;
+            }
+            var stop = start;
+            while (stop < end && bytes[stop] != '\r' && bytes[stop] != ':') {
+                var b = bytes[stop];
+                if (!(Character.isLetterOrDigit(b) || b == '.' || b == '-')) {
+                    return null;
+                }
+                stop++;
+            }
+            if (stop == start) {
+                return null;
+            }
+            var host = new String(bytes, start, stop - start, StandardCharsets.ISO_8859_1);
+            return ByteBuffer.wrap((host + mHttpsPortSuffix)
+                .getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return null;
+    }
+
+    /**
+     * Get the response for a request that can't be redirected.
+     *
+     * @return the buffers to write
+     */
+    private static ByteBuffer[] badRequest() {
+        return new ByteBuffer[] { ByteBuffer.wrap(BAD_REQUEST) };
+    }
+
+    /**
+     * Find a byte in part of an array.
+     *
+     * @param bytes the array
+     * @param from the first index to look at
+     * @param to the index to stop before
+     * @param b the byte to find
+     * @return the index of the byte, or -1 if it isn't there
+     */
+    private static int indexOf(byte[] bytes, int from, int to, byte b) {
+        for (var i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check if part of an array starts with some ASCII text, ignoring case.
+     *
+     * @param bytes the array
+     * @param from where the part starts
+     * @param to where the part ends
+     * @param prefix the lowercase text
+     * @return true if the part starts with the text
+     */
+    private static boolean startsWithIgnoreCase(byte[] bytes, int from, int to, String prefix) {
+        if (to - from < prefix.length()) {
+            return false;
+        }
+        for (var i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase(bytes[from + i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Close a connection, ignoring any problem doing so.
+     *
+     * @param key the connection's key
+     */
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ex) {
+            return;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+
+/**
+ * Thrown when reading more of a request body than its route allows.
+ * <p>
+ * A {@link RouteHandler} can let this propagate, in which case the client is sent a 413 response.
+ */
+public class RequestBodyTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create the exception.
+     *
+     * @param limit the largest body the route allows, in bytes
+     */
+    public RequestBodyTooLargeException(long limit) {
+        super(String.format("Request body is larger than %d bytes.", limit));
+    }
+}
@@ -2,65 +2,646 @@ package com.dylantjohnson.webserver;
 
 import com.sun.net.httpserver.*;
 import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 
 /**
- * This class is used internally to wrap RouteHandlers into regular HttpHandlers.
+ * This class is used internally to run RouteHandlers for the requests {@link RouteDispatcher}
+ * routes to them.
  * <p>
  * This wrapper ensures a few things are accomplished automatically. If the RouteHandler fails
  * unexpectedly and throws an exception, it will be caught and the response will set to a
  * configured error response page with a status code of 500. If the RouteHandler neglects to
  * read the request body, this will ensure that it gets exhausted before closing the request.
+ * <p>
+ * Request bodies are limited to the route's maximum size. A request that declares a bigger body
+ * is refused with a 413 before the RouteHandler is called, and one that turns out to be bigger
+ * while the RouteHandler reads it gets a 413 too. A RouteHandler that fails because the client
+ * stopped sending the body, with a {@link java.net.SocketTimeoutException}, gets a 408 for it,
+ * and the connection is closed. Unread input is drained in bulk up to
+ * {@link #MAX_DRAIN_BYTES}; past that, the connection is closed rather than reading on.
+ * <p>
+ * Before the RouteHandler is called, the client's address is checked against the
+ * {@link RateLimiter}s of the server and the route, and requests over a limit are answered with
+ * a precomputed 429 response. Then the {@link AdmissionController} is consulted. Requests it
+ * refuses are answered with a precomputed 503 response without calling the RouteHandler, and
+ * their connections are closed instead of reading their bodies.
+ * <p>
+ * Responses whose body comes from a {@link BodyWriter} are sent with chunked transfer encoding
+ * while the writer runs. If the writer fails partway, the connection is dropped instead of
+ * finishing the response, so the client doesn't mistake a truncated body for a complete one.
+ * <p>
+ * Responses are compressed on the way out when the client accepts it and the configured
+ * {@link Compression} settings consider the response worth it.
+ * <p>
+ * Every answered request is recorded in the route's {@link RouteMetrics}: its status, how long
+ * the RouteHandler took, how long the whole request took and how many body bytes went each way.
+ * It's also handed to the {@link AccessLog}, along with the stack traces of handlers that fail,
+ * so writing them out happens on the log's own thread.
+ * <p>
+ * Each request is traced through its phases for the JDK Flight Recorder by
+ * {@link ServerEvents}, which records them if the request turns out to be slow.
+ * <p>
+ * A route set with an {@link AsyncRouteHandler} is stored as an {@link AsyncRoute}. Its requests
+ * are marked {@link TransportServer#DETACHED_ATTRIBUTE} and left open when the handler returns a
+ * stage that isn't complete yet, and the response is sent on the server's executor once it is.
+ * If sending it fails there's nobody to pass the failure to, so the connection is dropped here.
+ * <p>
+ * A route set with an {@link EventStream} is stored as an {@link EventStreamRoute}. Its clients
+ * are sent the response headers and subscribed to the stream, and their exchanges are left open
+ * for the stream to write to until the subscription ends.
  */
-class RequestProcessor implements HttpHandler {
+class RequestProcessor {
+    static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final byte[] TOO_LARGE_BODY = "Payload Too Large".getBytes();
+    private static final RouteResponse TOO_LARGE = new RouteResponse(
+        RouteResponse.Status.PAYLOAD_TOO_LARGE, TOO_LARGE_BODY, 0, TOO_LARGE_BODY.length,
+        Map.of("Content-Type", List.of("text/plain; charset=utf-8"),
+            "Connection", List.of("close")));
+    private static final byte[] TIMED_OUT_BODY = "Request Timeout".getBytes();
+    private static final RouteResponse TIMED_OUT = new RouteResponse(
+        RouteResponse.Status.REQUEST_TIMEOUT, TIMED_OUT_BODY, 0, TIMED_OUT_BODY.length,
+        Map.of("Content-Type", List.of("text/plain; charset=utf-8"),
+            "Connection", List.of("close")));
+
+    /**
+     * Scratch space for draining request bodies. What's read into it is thrown away, so it's
+     * shared by every thread without synchronization.
+     */
+    private static final byte[] DRAIN_BUFFER = new byte[8192];
+
+    /**
+     * The stream swapped into an exchange to make closing it fail, which both transports answer
+     * by dropping the connection.
+     */
+    private static final OutputStream ABORTED = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("Response aborted.");
+        }
+
+        @Override
+        public void close() throws IOException {
+            throw new IOException("Response aborted.");
+        }
+    };
+
     private RouteHandler mHandler;
-    private Supplier<InputStream> mErrorBody;
+    private AsyncRoute mAsync;
+    private EventStreamRoute mEventStream;
+    private Supplier<RouteResponse> mErrorBody;
+    private AdmissionController mAdmission;
+    private Compression mCompression;
+    private long mMaxBodySize;
+    private RouteMetrics mMetrics;
+    private AccessLog mAccessLog;
+    private ServerEvents mEvents;
+    private RateLimiter[] mLimiters;
 
     /**
      * Create a RequestProcessor.
      *
      * @param handler the RouteHandler to wrap
      * @param errorBody a function that generates a response to send if the handler fails
+     * @param admission the admission controller deciding which requests get handled
+     * @param compression the settings deciding which responses get compressed
+     * @param maxBodySize the largest request body the route accepts, in bytes
+     * @param metrics the measurements of the route
+     * @param accessLog where requests are logged and handler failures reported
+     * @param events the flight recorder events slow requests are recorded with
+     * @param limiters the rate limits each client is held to, in the order they're checked
      */
-    public RequestProcessor(RouteHandler handler, Supplier<InputStream> errorBody) {
+    public RequestProcessor(RouteHandler handler, Supplier<RouteResponse> errorBody,
+            AdmissionController admission, Compression compression, long maxBodySize,
+            RouteMetrics metrics, AccessLog accessLog, ServerEvents events,
+            RateLimiter[] limiters) {
         mHandler = handler;
+        mAsync = handler instanceof AsyncRoute ? (AsyncRoute) handler : null;
+        mEventStream = handler instanceof EventStreamRoute ? (EventStreamRoute) handler : null;
         mErrorBody = errorBody;
+        mAdmission = admission;
+        mCompression = compression;
+        mMaxBodySize = maxBodySize;
+        mMetrics = metrics;
+        mAccessLog = accessLog;
+        mEvents = events;
+        mLimiters = limiters;
     }
 
-    @Override
-    public void handle(HttpExchange request) throws IOException {
-        int status;
-        long length;
-        InputStream body;
+    /**
+     * Handle a request that was routed to this processor's RouteHandler.
+     *
+     * @param request the request
+     * @param parameters the names of the values the route captured from the path
+     * @param offsets where each captured value starts and ends in the path
+     * @throws IOException if there is a problem sending the response
+     */
+    void handle(HttpExchange request, String[] parameters, int[] offsets) throws IOException {
+        var start = System.nanoTime();
+        var trace = mEvents.start(mMetrics, request, mAdmission, start);
+        var limited = limit(request);
+        if (limited != null) {
+            send(request, limited, null, start, -1, drainBody(request, trace), trace);
+            return;
+        }
+        if (!mAdmission.admit()) {
+            sendUnavailable(request, start, trace);
+            return;
+        }
+        if (RouteRequest.contentLength(request) > mMaxBodySize) {
+            send(request, TOO_LARGE, null, start, -1, 0, trace);
+            return;
+        }
+        if (mEventStream != null) {
+            subscribe(request, start, trace);
+            return;
+        }
+        var encoding = mCompression.negotiate(
+            request.getRequestHeaders().getFirst("Accept-Encoding"));
+        var routeRequest = new RouteRequest(request, encoding, mCompression.getMinSize(),
+            mMaxBodySize, parameters, offsets);
+        var handlerStart = System.nanoTime();
+        trace.begin(ServerEvents.HANDLER);
+        if (mAsync != null) {
+            var future = mAsync.start(routeRequest);
+            if (!future.isDone()) {
+                request.setAttribute(TransportServer.DETACHED_ATTRIBUTE, Boolean.TRUE);
+                mAdmission.suspend();
+                future.whenComplete((response, ex) -> mAdmission.resume(() -> {
+                    try {
+                        finish(request, routeRequest, ex == null ? response : failed(ex),
+                            encoding, start, handlerStart, trace);
+                    } catch (IOException | RuntimeException sendEx) {
+                        abort(request);
+                    }
+                }));
+                return;
+            }
+            RouteResponse response;
+            try {
+                response = future.join();
+            } catch (CompletionException | CancellationException ex) {
+                response = failed(ex);
+            }
+            finish(request, routeRequest, response, encoding, start, handlerStart, trace);
+            return;
+        }
+        RouteResponse response;
         try {
-            var response = mHandler.handle(new RouteRequest(request));
-            status = response.getStatus().getCode();
-            length = response.getLength();
-            body = response.getBody();
+            response = mHandler.handle(routeRequest);
         } catch (Exception ex) {
-            ex.printStackTrace();
-            status = RouteResponse.Status.ERROR.getCode();
-            length = 0;
-            body = mErrorBody.get();
+            response = failed(ex);
+        }
+        finish(request, routeRequest, response, encoding, start, handlerStart, trace);
+    }
+
+    /**
+     * Answer a request with a fixed response instead of calling the RouteHandler.
+     * <p>
+     * The request body is discarded first, and the response is still subject to the rate
+     * limits and admission.
+     *
+     * @param request the request to answer
+     * @param response the response to send
+     * @throws IOException if there is a problem sending the response
+     */
+    void respond(HttpExchange request, RouteResponse response) throws IOException {
+        var start = System.nanoTime();
+        var trace = mEvents.start(mMetrics, request, mAdmission, start);
+        var limited = limit(request);
+        if (limited != null) {
+            send(request, limited, null, start, -1, drainBody(request, trace), trace);
+            return;
+        }
+        if (!mAdmission.admit()) {
+            sendUnavailable(request, start, trace);
+            return;
+        }
+        send(request, response, null, start, -1, drainBody(request, trace), trace);
+    }
+
+    /**
+     * Take a token from each of the client's rate limits.
+     * <p>
+     * Checking stops at the first limit the client is over, so the ones after it keep their
+     * tokens.
+     *
+     * @param request the request
+     * @return the 429 response to send, or null if the request may go ahead
+     */
+    private RouteResponse limit(HttpExchange request) {
+        if (mLimiters.length == 0) {
+            return null;
+        }
+        var address = request.getRemoteAddress();
+        var client = address == null ? null : address.getAddress();
+        if (client == null) {
+            return null;
+        }
+        for (var limiter : mLimiters) {
+            var wait = limiter.acquire(client);
+            if (wait > 0) {
+                return RateLimiter.getLimitedResponse(wait);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Discard the rest of the request body, then send the response the RouteHandler came up with.
+     * <p>
+     * A body that stopped arriving can't be drained, so it's left, and its connection closes
+     * after the response.
+     *
+     * @param request the request to answer
+     * @param routeRequest the request as the RouteHandler saw it
+     * @param response the response, or null if the handler gave none
+     * @param encoding the encoding negotiated with the client, or null
+     * @param start when the request was picked up, from {@link System#nanoTime()}
+     * @param handlerStart when the RouteHandler was called, from {@link System#nanoTime()}
+     * @param trace the request's flight recorder events
+     * @throws IOException if there is a problem sending the response
+     */
+    private void finish(HttpExchange request, RouteRequest routeRequest, RouteResponse response,
+            String encoding, long start, long handlerStart, ServerEvents.Trace trace)
+            throws IOException {
+        var handlerTime = System.nanoTime() - handlerStart;
+        trace.end(ServerEvents.HANDLER);
+        if (response == null) {
+            response = failed(new NullPointerException("No response returned."));
+        }
+        var read = routeRequest.getBodyBytesRead();
+        if (response != TIMED_OUT) {
+            read += drainBody(request, trace);
+        }
+        send(request, response, encoding, start, handlerTime, read, trace);
+    }
+
+    /**
+     * Send the headers of an event stream and subscribe the client to it, leaving the exchange
+     * open.
+     * <p>
+     * The request's trace ends once the headers are sent, since a subscription is meant to last.
+     * It's recorded in the route's metrics and the access log when the subscription ends, with
+     * every byte the client was sent. A HEAD request only gets the headers.
+     *
+     * @param request the request
+     * @param start when the request was picked up, from {@link System#nanoTime()}
+     * @param trace the request's flight recorder events
+     * @throws IOException if there is a problem sending the headers
+     */
+    private void subscribe(HttpExchange request, long start, ServerEvents.Trace trace)
+            throws IOException {
+        var read = drainBody(request, trace);
+        var headers = request.getResponseHeaders();
+        headers.set("Content-Type", "text/event-stream; charset=utf-8");
+        headers.set("Cache-Control", "no-cache");
+        var status = RouteResponse.Status.OK.getCode();
+        var head = isHead(request);
+        var subscribed = false;
+        try {
+            sendHeaders(request, status, head ? RouteResponse.NO_BODY : 0, trace);
+            if (head) {
+                request.close();
+            } else {
+                request.setAttribute(TransportServer.DETACHED_ATTRIBUTE, Boolean.TRUE);
+                mEventStream.getStream().subscribe(request, lastEventId(request),
+                    mAdmission.getExecutor(), mEventStream,
+                    written -> record(request, status, start, read, written));
+                subscribed = true;
+            }
+        } finally {
+            trace.finish(request.getRequestURI().getPath(), status, read, 0);
+            if (!subscribed) {
+                record(request, status, start, read, 0);
+            }
+        }
+    }
+
+    /**
+     * Get the id of the last event a reconnecting client saw.
+     *
+     * @param request the request
+     * @return the id from the Last-Event-ID header, or -1 if there isn't a valid one
+     */
+    private static long lastEventId(HttpExchange request) {
+        var id = request.getRequestHeaders().getFirst("Last-Event-ID");
+        if (id == null) {
+            return -1;
+        }
+        try {
+            return Math.max(-1, Long.parseLong(id.trim()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Pick the response for a RouteHandler that failed.
+     *
+     * @param ex what the handler threw, or completed its stage with
+     * @return a 413 if the request body was too large, a 408 if it stopped arriving, otherwise
+     *     the error page
+     */
+    private RouteResponse failed(Throwable ex) {
+        if (isCausedBy(ex, RequestBodyTooLargeException.class)) {
+            return TOO_LARGE;
+        }
+        if (isCausedBy(ex, SocketTimeoutException.class)) {
+            return TIMED_OUT;
+        }
+        mAccessLog.error(ex);
+        return mErrorBody.get();
+    }
+
+    /**
+     * Drop the connection of an exchange whose response can't be finished.
+     *
+     * @param request the exchange
+     */
+    static void abort(HttpExchange request) {
+        request.setStreams(null, ABORTED);
+        request.close();
+    }
+
+    /**
+     * Send a response and record the request in the route's metrics and the access log, even if
+     * sending fails.
+     *
+     * @param request the request to answer
+     * @param response the response to send
+     * @param encoding the encoding negotiated with the client, or null
+     * @param start when the request was picked up, from {@link System#nanoTime()}
+     * @param handlerTime how long the RouteHandler took, or -1 if it wasn't called
+     * @param read how many request body bytes were read
+     * @param trace the request's flight recorder events
+     * @throws IOException if there is a problem sending the response
+     */
+    private void send(HttpExchange request, RouteResponse response, String encoding, long start,
+            long handlerTime, long read, ServerEvents.Trace trace) throws IOException {
+        var written = 0L;
+        try {
+            written = sendResponse(request, response, encoding, trace);
+        } finally {
+            var status = response.getStatus().getCode();
+            var elapsed = System.nanoTime() - start;
+            mMetrics.record(status, handlerTime, elapsed, read, written);
+            mAccessLog.request(request, status, read, written, elapsed);
+            trace.finish(request.getRequestURI().getPath(), status, read, written);
         }
-        exhaustStream(request.getRequestBody());
+    }
+
+    /**
+     * Record an event stream subscription in the route's metrics and the access log.
+     *
+     * @param request the request that subscribed
+     * @param status the response status code
+     * @param start when the request was picked up, from {@link System#nanoTime()}
+     * @param read how many request body bytes were read
+     * @param written how many bytes of events the client was sent
+     */
+    private void record(HttpExchange request, int status, long start, long read, long written) {
+        var elapsed = System.nanoTime() - start;
+        mMetrics.record(status, -1, elapsed, read, written);
+        mAccessLog.request(request, status, read, written, elapsed);
+    }
+
+    /**
+     * Send a response, compressing it if it's worth it.
+     * <p>
+     * Bodies held in memory are written straight from their backing arrays, and their
+     * compressed variants are cached on the response, so reused responses cost no copies.
+     *
+     * @param request the request to answer
+     * @param response the response to send
+     * @param encoding the encoding negotiated with the client, or null
+     * @param trace the request's flight recorder events
+     * @return how many body bytes were sent
+     * @throws IOException if there is a problem sending the response
+     */
+    private long sendResponse(HttpExchange request, RouteResponse response, String encoding,
+            ServerEvents.Trace trace) throws IOException {
+        var headers = request.getResponseHeaders();
+        for (var header : response.getHeaders().entrySet()) {
+            headers.put(header.getKey(), header.getValue());
+        }
+        var status = response.getStatus().getCode();
+        var length = response.getLength();
+        if (length == RouteResponse.NO_BODY || isHead(request)) {
+            if (length > 0) {
+                headers.set("Content-Length", String.valueOf(length));
+            }
+            var body = response.getBody();
+            if (!response.isBuffered() && body != null) {
+                body.close();
+            }
+            sendHeaders(request, status, RouteResponse.NO_BODY, trace);
+            request.close();
+            return 0;
+        }
+        if (status == RouteResponse.Status.OK.getCode()
+                && mCompression.shouldCompress(headers, length)) {
+            var vary = headers.getFirst("Vary");
+            if (vary == null) {
+                headers.set("Vary", "Accept-Encoding");
+            } else if (!vary.toLowerCase().contains("accept-encoding")) {
+                headers.set("Vary", vary + ", Accept-Encoding");
+            }
+            if (encoding != null) {
+                headers.set("Content-Encoding", encoding);
+                headers.remove("Content-Length");
+                var etag = headers.getFirst("ETag");
+                if (etag != null) {
+                    headers.set("ETag", Compression.variantEtag(etag, encoding));
+                }
+                if (response.isBuffered()) {
+                    var compressed = response.getCompressedBytes(encoding);
+                    sendHeaders(request, status, compressed.length, trace);
+                    var output = request.getResponseBody();
+                    output.write(compressed);
+                    output.close();
+                    return compressed.length;
+                }
+                sendHeaders(request, status, 0, trace);
+                var counted = new CountingOutputStream(request.getResponseBody());
+                writeBody(response, Compression.wrap(encoding, counted));
+                return counted.getCount();
+            }
+        }
+        if (response.isBuffered()) {
+            sendHeaders(request, status, length == 0 ? RouteResponse.NO_BODY : length, trace);
+            var output = request.getResponseBody();
+            output.write(response.getBytes(), response.getOffset(), (int) length);
+            output.close();
+            return length;
+        }
+        sendHeaders(request, status, length, trace);
+        var counted = new CountingOutputStream(request.getResponseBody());
+        writeBody(response, counted);
+        return counted.getCount();
+    }
+
+    /**
+     * Send the response headers, then start the body phase of the request's trace, which ends
+     * when the request does.
+     *
+     * @param request the request to answer
+     * @param status the response status code
+     * @param length the body length, 0 for chunked or {@link RouteResponse#NO_BODY} for none
+     * @param trace the request's flight recorder events
+     * @throws IOException if there is a problem sending the headers
+     */
+    private static void sendHeaders(HttpExchange request, int status, long length,
+            ServerEvents.Trace trace) throws IOException {
+        trace.begin(ServerEvents.HEADERS);
         request.sendResponseHeaders(status, length);
-        var output = request.getResponseBody();
-        body.transferTo(output);
-        body.close();
+        trace.end(ServerEvents.HEADERS);
+        trace.begin(ServerEvents.BODY);
+    }
+
+    /**
+     * Write a response body that isn't held in memory and close the output.
+     * <p>
+     * If a {@link BodyWriter} fails, the output is left open and the failure is passed on, which
+     * makes the server drop the connection rather than end the chunked body cleanly.
+     *
+     * @param response the response whose body to write
+     * @param output the stream to write the body to
+     * @throws IOException if there is a problem sending the body
+     */
+    private void writeBody(RouteResponse response, OutputStream output) throws IOException {
+        var writer = response.getWriter();
+        if (writer != null) {
+            try {
+                writer.write(output);
+            } catch (IOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                mAccessLog.error(ex);
+                throw new IOException("Response body writer failed.", ex);
+            }
+        } else {
+            var body = response.getBody();
+            body.transferTo(output);
+            body.close();
+        }
         output.close();
     }
 
     /**
-     * Read any remaining input from a stream and close it.
+     * Check if a request only wants the response headers.
+     *
+     * @param request the request
+     * @return true if it's a HEAD request
+     */
+    private static boolean isHead(HttpExchange request) {
+        return request.getRequestMethod().equalsIgnoreCase("HEAD");
+    }
+
+    /**
+     * Answer a request with the precomputed 503 response.
+     * <p>
+     * The request body is left unread, since the response closes the connection anyway, and
+     * reading it would let a slow client tie up the thread shedding requests.
+     *
+     * @param request the request to refuse
+     * @param start when the request was picked up, from {@link System#nanoTime()}
+     * @param trace the request's flight recorder events
+     * @throws IOException if there is a problem sending the response
+     */
+    private void sendUnavailable(HttpExchange request, long start, ServerEvents.Trace trace)
+            throws IOException {
+        send(request, mAdmission.getUnavailableResponse(), null, start, -1, 0, trace);
+    }
+
+    /**
+     * Check if a handler failed because of a certain kind of exception.
+     *
+     * @param ex the exception the handler threw
+     * @param type the kind of exception
+     * @return true if ex or one of its causes is of that kind
+     */
+    private static boolean isCausedBy(Throwable ex, Class<? extends Throwable> type) {
+        for (var cause = ex; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read and discard whatever is left of a request body, then close it.
+     * <p>
+     * At most {@link #MAX_DRAIN_BYTES} are read. If the body goes on past that, the response
+     * is marked to close the connection instead, since reading a large upload nobody wants would
+     * cost more than opening a new connection.
      *
-     * @param stream the stream to exhaust
-     * @throws IOException if there is a problem reading the stream
+     * @param request the request whose body to drain
+     * @param trace the request's flight recorder events
+     * @return how many bytes were drained
+     * @throws IOException if there is a problem reading the body
      */
-    private static void exhaustStream(InputStream stream) throws IOException {
-        while (stream.available() > 0) {
-            stream.read();
+    private static long drainBody(HttpExchange request, ServerEvents.Trace trace)
+            throws IOException {
+        trace.begin(ServerEvents.DRAIN);
+        var body = request.getRequestBody();
+        var drained = 0;
+        while (true) {
+            var read = body.read(DRAIN_BUFFER, 0,
+                Math.min(DRAIN_BUFFER.length, MAX_DRAIN_BYTES - drained + 1));
+            if (read < 0) {
+                break;
+            }
+            drained += read;
+            if (drained > MAX_DRAIN_BYTES) {
+                request.getResponseHeaders().set("Connection", "close");
+                break;
+            }
+        }
+        body.close();
+        trace.end(ServerEvents.DRAIN);
+        return drained;
+    }
+
+    /**
+     * A stream that counts the bytes written through it, for bodies whose length isn't known
+     * up front.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        /**
+         * Count the bytes written to a stream.
+         *
+         * @param out the stream to write to
+         */
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            mCount += length;
+        }
+
+        /**
+         * Get how many bytes were written.
+         *
+         * @return the count
+         */
+        long getCount() {
+            return mCount;
         }
-        stream.close();
     }
 }
@@ -0,0 +1,325 @@
+package com.dylantjohnson.webserver;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A RouteHandler that keeps the responses of another one, for routes set up with
+ * {@link WebServerBuilder#setResponseCache}.
+ * <p>
+ * Only GET and HEAD requests are cached; other methods go straight to the wrapped handler.
+ * Responses are keyed by the method, the raw path and query, and the values of the headers the
+ * route was configured with. A response is kept if its body is held in memory, its status is
+ * cacheable by default in HTTP, it sets no cookie and its Cache-Control doesn't say
+ * {@code no-store} or {@code private}. Kept responses are reused as they are, so their
+ * compressed variants are computed once too.
+ * <p>
+ * A response is fresh for the route's time to live, then stale for its stale-while-revalidate
+ * window. The first request to find it stale calls the handler to refresh it, while requests
+ * arriving in the meantime get the stale response without waiting. If the refresh fails, the
+ * stale response is sent instead of an error.
+ * <p>
+ * Concurrent misses for the same key are coalesced: the first one calls the handler and the
+ * others wait for its response, or for its exception. If that response can't be kept, each
+ * waiting request calls the handler for itself.
+ * <p>
+ * Entries are evicted least recently used first, to keep the cached bodies within the route's
+ * byte limit and to at most {@link #MAX_ENTRIES} entries.
+ * <p>
+ * This class is thread-safe.
+ */
+final class ResponseCache implements RouteHandler {
+    static final int MAX_ENTRIES = 10_000;
+
+    private static final Set<RouteResponse.Status> CACHEABLE = EnumSet.of(
+        RouteResponse.Status.OK,
+        RouteResponse.Status.MOVED_PERMANENTLY,
+        RouteResponse.Status.PERMANENT_REDIRECT,
+        RouteResponse.Status.NOT_FOUND,
+        RouteResponse.Status.METHOD_NOT_ALLOWED,
+        RouteResponse.Status.NOT_IMPLEMENTED);
+
+    /**
+     * How a route's responses are cached, as set on the builder.
+     */
+    static final class Policy {
+        final long mTtlNanos;
+        final long mStaleNanos;
+        final long mMaxBytes;
+        final String[] mKeyHeaders;
+
+        /**
+         * Create a policy.
+         *
+         * @param ttlNanos how long a response stays fresh
+         * @param staleNanos how long after that a stale response may still be sent
+         * @param maxBytes the most body bytes to keep for the route
+         * @param keyHeaders the request headers whose values are part of the key
+         */
+        Policy(long ttlNanos, long staleNanos, long maxBytes, String[] keyHeaders) {
+            mTtlNanos = ttlNanos;
+            mStaleNanos = staleNanos;
+            mMaxBytes = maxBytes;
+            mKeyHeaders = keyHeaders;
+        }
+    }
+
+    /**
+     * A cached response and the times it goes stale and expires, from
+     * {@link System#nanoTime()}.
+     */
+    private static class Entry {
+        final RouteResponse mResponse;
+        final long mFreshUntil;
+        final long mStaleUntil;
+
+        Entry(RouteResponse response, long freshUntil, long staleUntil) {
+            mResponse = response;
+            mFreshUntil = freshUntil;
+            mStaleUntil = staleUntil;
+        }
+    }
+
+    private final RouteHandler mHandler;
+    private final Policy mPolicy;
+    private final RouteMetrics mRoute;
+    private final AccessLog mAccessLog;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final ConcurrentHashMap<String, CompletableFuture<RouteResponse>> mInFlight;
+    private final LongAdder mHits;
+    private final LongAdder mStaleHits;
+    private final LongAdder mCoalesced;
+    private final LongAdder mMisses;
+    private long mCachedBytes;
+
+    /**
+     * Create a cache in front of a handler.
+     *
+     * @param handler the handler whose responses to cache
+     * @param policy how to cache them
+     * @param route the measurements of the route, which name it in the cache's metrics
+     * @param accessLog where refreshes that failed are reported
+     */
+    ResponseCache(RouteHandler handler, Policy policy, RouteMetrics route,
+            AccessLog accessLog) {
+        mHandler = handler;
+        mPolicy = policy;
+        mRoute = route;
+        mAccessLog = accessLog;
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mInFlight = new ConcurrentHashMap<>();
+        mHits = new LongAdder();
+        mStaleHits = new LongAdder();
+        mCoalesced = new LongAdder();
+        mMisses = new LongAdder();
+    }
+
+    @Override
+    public RouteResponse handle(RouteRequest request) throws Exception {
+        var method = request.getMethod();
+        if (method != RouteRequest.Method.GET && method != RouteRequest.Method.HEAD) {
+            return mHandler.handle(request);
+        }
+        var key = key(request);
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+        }
+        var now = System.nanoTime();
+        if (entry != null && now - entry.mFreshUntil < 0) {
+            mHits.increment();
+            return entry.mResponse;
+        }
+        var stale = entry != null && now - entry.mStaleUntil < 0 ? entry.mResponse : null;
+        var flight = new CompletableFuture<RouteResponse>();
+        var leader = mInFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            if (stale != null) {
+                mStaleHits.increment();
+                return stale;
+            }
+            mCoalesced.increment();
+            return await(leader, request);
+        }
+        mMisses.increment();
+        try {
+            RouteResponse response;
+            try {
+                response = mHandler.handle(request);
+            } catch (Exception ex) {
+                flight.completeExceptionally(ex);
+                if (stale == null) {
+                    throw ex;
+                }
+                mAccessLog.error(ex);
+                return stale;
+            }
+            if (isCacheable(response)) {
+                put(key, response, System.nanoTime());
+                flight.complete(response);
+            }
+            return response;
+        } finally {
+            mInFlight.remove(key, flight);
+            flight.complete(null);
+        }
+    }
+
+    /**
+     * Get the measurements of the route this cache belongs to.
+     *
+     * @return the route's measurements
+     */
+    RouteMetrics getRoute() {
+        return mRoute;
+    }
+
+    /**
+     * Get how many requests were answered from a fresh entry.
+     *
+     * @return the count
+     */
+    long getHits() {
+        return mHits.sum();
+    }
+
+    /**
+     * Get how many requests were answered from a stale entry while it was being refreshed.
+     *
+     * @return the count
+     */
+    long getStaleHits() {
+        return mStaleHits.sum();
+    }
+
+    /**
+     * Get how many requests waited for another request's call to the handler.
+     *
+     * @return the count
+     */
+    long getCoalesced() {
+        return mCoalesced.sum();
+    }
+
+    /**
+     * Get how many requests called the handler because no usable entry was there.
+     *
+     * @return the count
+     */
+    long getMisses() {
+        return mMisses.sum();
+    }
+
+    /**
+     * Get the number of body bytes held.
+     *
+     * @return the byte count
+     */
+    synchronized long getCachedBytes() {
+        return mCachedBytes;
+    }
+
+    /**
+     * Wait for the response another request is getting for the same key.
+     *
+     * @param leader the other request's result
+     * @param request the waiting request, which calls the handler itself if the result can't be
+     *     shared
+     * @return the response
+     * @throws Exception if the other request's handler failed, or if this request's does
+     */
+    private RouteResponse await(CompletableFuture<RouteResponse> leader, RouteRequest request)
+            throws Exception {
+        RouteResponse response;
+        try {
+            response = leader.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+        return response == null ? mHandler.handle(request) : response;
+    }
+
+    /**
+     * Build the key a request's response is cached under.
+     *
+     * @param request the request
+     * @return the key
+     */
+    private String key(RouteRequest request) {
+        var uri = request.getUri();
+        var key = new StringBuilder(64).append(request.getMethod().name()).append(' ')
+            .append(uri.getRawPath());
+        var query = uri.getRawQuery();
+        if (query != null) {
+            key.append('?').append(query);
+        }
+        for (var header : mPolicy.mKeyHeaders) {
+            var value = request.getHeader(header);
+            key.append('\n');
+            if (value != null) {
+                key.append(':').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Check if a response may be kept and sent to other requests.
+     *
+     * @param response the response
+     * @return true if it's held in memory, fits in the cache and is meant for everyone
+     */
+    private boolean isCacheable(RouteResponse response) {
+        if (response == null || !response.isBuffered()
+                || !CACHEABLE.contains(response.getStatus())
+                || response.getLength() > mPolicy.mMaxBytes) {
+            return false;
+        }
+        for (var header : response.getHeaders().entrySet()) {
+            var name = header.getKey();
+            if (name.equalsIgnoreCase("Set-Cookie")) {
+                return false;
+            }
+            if (name.equalsIgnoreCase("Cache-Control")) {
+                for (var value : header.getValue()) {
+                    var directives = value.toLowerCase(Locale.ROOT);
+                    if (directives.contains("no-store") || directives.contains("private")) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keep a response, evicting the least recently used entries to stay within the limits.
+     *
+     * @param key the key
+     * @param response the response
+     * @param now the current time, from {@link System#nanoTime()}
+     */
+    private synchronized void put(String key, RouteResponse response, long now) {
+        var freshUntil = now + mPolicy.mTtlNanos;
+        var replaced = mEntries.put(key,
+            new Entry(response, freshUntil, freshUntil + mPolicy.mStaleNanos));
+        if (replaced != null) {
+            mCachedBytes -= replaced.mResponse.getLength();
+        }
+        mCachedBytes += response.getLength();
+        var iterator = mEntries.entrySet().iterator();
+        while ((mCachedBytes > mPolicy.mMaxBytes || mEntries.size() > MAX_ENTRIES)
+                && iterator.hasNext()) {
+            var eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            iterator.remove();
+            mCachedBytes -= eldest.getValue().mResponse.getLength();
+        }
+    }
+}
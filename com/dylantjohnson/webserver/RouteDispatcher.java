@@ -0,0 +1,93 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * The one HttpHandler a server's {@link Transport} is given for all of its routes.
+ * <p>
+ * Each request's path is looked up in a {@link Router} compiled from the routes the server was
+ * built with, and the request is passed to the {@link RequestProcessor} set for its route and
+ * method. Requests that match no route are answered with a 404, requests using a method the
+ * server doesn't know with a 501, and requests using a method their route has no handler for
+ * with a 405 whose Allow header lists the methods it does have.
+ * <p>
+ * If the server was built with HSTS, every response carries the Strict-Transport-Security
+ * header, whose value is formatted once up front.
+ * <p>
+ * Paths are looked up with a scratch array kept per thread, so matching a route allocates
+ * nothing. The values a route captured are copied out of it for the request, which may outlive
+ * the lookup when its handler finishes asynchronously, but routes without parameters share one
+ * empty array instead.
+ * <p>
+ * This class is thread-safe.
+ */
+class RouteDispatcher implements HttpHandler {
+    private static final String TEXT = "text/plain; charset=utf-8";
+    private static final RouteResponse NOT_FOUND = RouteResponse.of(
+        RouteResponse.Status.NOT_FOUND, TEXT, "Not Found".getBytes());
+    private static final RouteResponse NOT_IMPLEMENTED = RouteResponse.of(
+        RouteResponse.Status.NOT_IMPLEMENTED, TEXT, "Not Implemented".getBytes());
+    private static final byte[] NOT_ALLOWED_BODY = "Method Not Allowed".getBytes();
+    private static final int[] NO_OFFSETS = new int[0];
+
+    private final Router<RequestProcessor> mRouter;
+    private final ThreadLocal<int[]> mOffsets;
+    private final RequestProcessor mFallback;
+    private final String mHsts;
+
+    /**
+     * Create a dispatcher.
+     *
+     * @param router the compiled routes
+     * @param errorBody a function that generates a response to send if a handler fails
+     * @param admission the admission controller deciding which requests get handled
+     * @param compression the settings deciding which responses get compressed
+     * @param metrics the measurements of the server, where requests no route takes are
+     *     recorded under the route {@code (none)}
+     * @param accessLog where requests are logged and handler failures reported
+     * @param events the flight recorder events slow requests are recorded with
+     * @param limiters the server's rate limits, which requests no route takes are held to
+     * @param hsts the Strict-Transport-Security header value, or null to send none
+     */
+    RouteDispatcher(Router<RequestProcessor> router, Supplier<RouteResponse> errorBody,
+            AdmissionController admission, Compression compression, ServerMetrics metrics,
+            AccessLog accessLog, ServerEvents events, RateLimiter[] limiters, String hsts) {
+        mRouter = router;
+        mOffsets = ThreadLocal.withInitial(() -> new int[router.getOffsetsLength()]);
+        mHsts = hsts;
+        mFallback = new RequestProcessor(request -> NOT_FOUND, errorBody, admission,
+            compression, 0, metrics.addRoute("(none)", null), accessLog, events, limiters);
+    }
+
+    @Override
+    public void handle(HttpExchange request) throws IOException {
+        if (mHsts != null) {
+            request.getResponseHeaders().set("Strict-Transport-Security", mHsts);
+        }
+        var method = RouteRequest.Method.of(request.getRequestMethod());
+        if (method == null) {
+            mFallback.respond(request, NOT_IMPLEMENTED);
+            return;
+        }
+        var path = request.getRequestURI().getPath();
+        var offsets = mOffsets.get();
+        var route = path == null ? null : mRouter.find(path, offsets);
+        if (route == null) {
+            mFallback.respond(request, NOT_FOUND);
+            return;
+        }
+        var processor = route.get(method);
+        if (processor == null) {
+            mFallback.respond(request, new RouteResponse(RouteResponse.Status.METHOD_NOT_ALLOWED,
+                NOT_ALLOWED_BODY, 0, NOT_ALLOWED_BODY.length, Map.of(
+                    "Content-Type", List.of(TEXT), "Allow", List.of(route.getAllow()))));
+            return;
+        }
+        var parameters = route.getParameters();
+        processor.handle(request, parameters, parameters.length == 0
+            ? NO_OFFSETS : Arrays.copyOf(offsets, 2 * parameters.length));
+    }
+}
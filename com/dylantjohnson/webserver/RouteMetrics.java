@@ -0,0 +1,132 @@
+package com.dylantjohnson.webserver;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * The measurements for one route and method, recorded by its {@link RequestProcessor}.
+ * <p>
+ * Every recording also counts the response status in the server wide {@link ServerMetrics}.
+ * <p>
+ * This class is thread-safe.
+ */
+final class RouteMetrics {
+    private final ServerMetrics mServer;
+    private final String mRoute;
+    private final String mMethod;
+    private final LongAdder mRequests;
+    private final LongAdder mBytesIn;
+    private final LongAdder mBytesOut;
+    private final LatencyHistogram mHandlerTime;
+    private final LatencyHistogram mTotalTime;
+
+    /**
+     * Create the measurements for a route.
+     *
+     * @param server the measurements of the server the route belongs to
+     * @param route the route as it was set on the builder
+     * @param method the method the route's handler takes, or null if it takes any
+     */
+    RouteMetrics(ServerMetrics server, String route, RouteRequest.Method method) {
+        mServer = server;
+        mRoute = route;
+        mMethod = method == null ? "ANY" : method.name();
+        mRequests = new LongAdder();
+        mBytesIn = new LongAdder();
+        mBytesOut = new LongAdder();
+        mHandlerTime = new LatencyHistogram();
+        mTotalTime = new LatencyHistogram();
+    }
+
+    /**
+     * Record a request that was answered.
+     *
+     * @param status the response status code
+     * @param handlerNanos how long the RouteHandler took, or -1 if it wasn't called
+     * @param totalNanos how long the request took from being picked up to the response being
+     *     sent
+     * @param bytesIn how many request body bytes were read
+     * @param bytesOut how many response body bytes were sent
+     */
+    void record(int status, long handlerNanos, long totalNanos, long bytesIn, long bytesOut) {
+        mRequests.increment();
+        if (handlerNanos >= 0) {
+            mHandlerTime.record(handlerNanos);
+        }
+        mTotalTime.record(totalNanos);
+        mBytesIn.add(bytesIn);
+        mBytesOut.add(bytesOut);
+        mServer.countStatus(status);
+    }
+
+    /**
+     * Get the name this route is reported under.
+     *
+     * @return the method and the route, separated by a space
+     */
+    String getName() {
+        return mMethod + " " + mRoute;
+    }
+
+    /**
+     * Get the route as it was set on the builder.
+     *
+     * @return the route
+     */
+    String getRoute() {
+        return mRoute;
+    }
+
+    /**
+     * Get the method the route's handler takes.
+     *
+     * @return the method name, or ANY
+     */
+    String getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * Get how many requests were answered.
+     *
+     * @return the count
+     */
+    long getRequests() {
+        return mRequests.sum();
+    }
+
+    /**
+     * Get how many request body bytes were read.
+     *
+     * @return the byte count
+     */
+    long getBytesIn() {
+        return mBytesIn.sum();
+    }
+
+    /**
+     * Get how many response body bytes were sent.
+     *
+     * @return the byte count
+     */
+    long getBytesOut() {
+        return mBytesOut.sum();
+    }
+
+    /**
+     * Get how long the RouteHandler took to return a response.
+     *
+     * @return the histogram
+     */
+    LatencyHistogram getHandlerTime() {
+        return mHandlerTime;
+    }
+
+    /**
+     * Get how long requests took from being picked up by a thread to the response being sent.
+     *
+     * @return the histogram
+     */
+    LatencyHistogram getTotalTime() {
+        return mTotalTime;
+    }
+}
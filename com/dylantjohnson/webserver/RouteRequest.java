@@ -1,6 +1,7 @@
 package com.dylantjohnson.webserver;
 
 import com.sun.net.httpserver.*;
+import java.io.*;
 import java.net.*;
 
 /**
@@ -10,31 +11,68 @@ public class RouteRequest {
     /**
      * All of the possible request method types.
      */
-    enum Method {
-        GET, POST;
+    public enum Method {
+        GET, HEAD, POST, PUT, DELETE, CONNECT, OPTIONS, TRACE, PATCH;
+
+        private static final Method[] VALUES = values();
+
+        /**
+         * Look up a method by the name sent in a request line.
+         * <p>
+         * Method names are case-sensitive, so {@code get} is not {@link #GET}.
+         *
+         * @param name the method name
+         * @return the method, or null if it isn't one of these
+         */
+        static Method of(String name) {
+            for (var method : VALUES) {
+                if (method.name().equals(name)) {
+                    return method;
+                }
+            }
+            return null;
+        }
     }
 
     private HttpExchange mExchange;
+    private String mAcceptedEncoding;
+    private int mCompressionMinSize;
+    private long mMaxBodySize;
+    private String[] mParameters;
+    private int[] mOffsets;
+    private LimitedInputStream mBody;
 
     /**
      * Construct a RouteRequest from an HttpExchange.
      *
      * @param exchange the exchange to wrap
+     * @param acceptedEncoding the content encoding negotiated for the response, or null
+     * @param compressionMinSize the smallest response body worth compressing, in bytes
+     * @param maxBodySize the largest request body the route accepts, in bytes
+     * @param parameters the names of the values captured from the path by the route
+     * @param offsets where each captured value starts and ends in the path
      */
-    RouteRequest(HttpExchange exchange) {
+    RouteRequest(HttpExchange exchange, String acceptedEncoding, int compressionMinSize,
+            long maxBodySize, String[] parameters, int[] offsets) {
         mExchange = exchange;
+        mAcceptedEncoding = acceptedEncoding;
+        mCompressionMinSize = compressionMinSize;
+        mMaxBodySize = maxBodySize;
+        mParameters = parameters;
+        mOffsets = offsets;
     }
 
     /**
      * Get the method type of this request.
+     * <p>
+     * A {@link RouteHandler} is only called for requests using one of the {@link Method}s, since
+     * the server answers requests using any other method with a 501 itself, so this is never
+     * null for the requests it's given.
      *
      * @return the method type
      */
     public Method getMethod() {
-        if (mExchange.getRequestMethod().equalsIgnoreCase("get")) {
-            return Method.GET;
-        }
-        return Method.POST;
+        return Method.of(mExchange.getRequestMethod());
     }
 
     /**
@@ -45,4 +83,144 @@ public class RouteRequest {
     public URI getUri() {
         return mExchange.getRequestURI();
     }
+
+    /**
+     * Get the first value of a request header.
+     *
+     * @param name the header name, in any case
+     * @return the header value, or null if the request doesn't have the header
+     */
+    public String getHeader(String name) {
+        return mExchange.getRequestHeaders().getFirst(name);
+    }
+
+    /**
+     * Get the request path relative to the route this request was sent to.
+     * <p>
+     * This is the part of the path matched by the route's trailing wildcard, with the slash
+     * before it. For a handler set for the route {@code /static}, which takes
+     * {@code /static/*} too, a request for {@code /static/css/a.css} has the relative path
+     * {@code /css/a.css}. Routes without a wildcard match the whole path, so for them it's
+     * empty.
+     *
+     * @return the relative path, which starts with a slash unless it is empty
+     */
+    public String getRoutePath() {
+        var count = mParameters.length;
+        if (count == 0 || !mParameters[count - 1].equals(Router.WILDCARD)) {
+            return "";
+        }
+        return getPath().substring(mOffsets[2 * count - 2] - 1);
+    }
+
+    /**
+     * Get a value captured from the path by one of the route's parameters.
+     * <p>
+     * For a handler set for the route {@code /users/{id}}, a request for {@code /users/42} has
+     * the path parameter {@code id} set to {@code 42}. The part of the path matched by a trailing
+     * wildcard is available under the name {@code *}, without the slash before it.
+     *
+     * @param name the parameter name, as written in the route
+     * @return the value, or null if the route has no such parameter
+     */
+    public String getPathParameter(String name) {
+        for (var i = 0; i < mParameters.length; i++) {
+            if (mParameters[i].equals(name)) {
+                return getPath().substring(mOffsets[2 * i], mOffsets[2 * i + 1]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the declared length of the request body.
+     *
+     * @return the Content-Length in bytes, or -1 if the request didn't declare one
+     */
+    public long getContentLength() {
+        return contentLength(mExchange);
+    }
+
+    /**
+     * Get the largest request body this request's route accepts.
+     *
+     * @return the limit in bytes
+     */
+    public long getMaxBodySize() {
+        return mMaxBodySize;
+    }
+
+    /**
+     * Get the request body.
+     * <p>
+     * The body is streamed from the connection as it's read, so reading it doesn't need it to
+     * fit in memory. Reading more than {@link #getMaxBodySize()} bytes throws a
+     * {@link RequestBodyTooLargeException}, which is answered with a 413 response if the
+     * handler lets it propagate. Whatever the handler leaves unread is discarded.
+     *
+     * @return a stream of the request body, the same one on every call
+     */
+    public InputStream getBody() {
+        if (mBody == null) {
+            mBody = new LimitedInputStream(mExchange.getRequestBody(), mMaxBodySize);
+        }
+        return mBody;
+    }
+
+    /**
+     * Read the declared length of an exchange's request body.
+     *
+     * @param exchange the exchange
+     * @return the Content-Length in bytes, or -1 if missing or malformed
+     */
+    static long contentLength(HttpExchange exchange) {
+        var header = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get how many bytes of the request body were read through {@link #getBody()}.
+     *
+     * @return the byte count
+     */
+    long getBodyBytesRead() {
+        return mBody == null ? 0 : mBody.getCount();
+    }
+
+    /**
+     * Get the decoded request path the route was matched against.
+     *
+     * @return the path
+     */
+    private String getPath() {
+        return mExchange.getRequestURI().getPath();
+    }
+
+    /**
+     * Get the content encoding negotiated for the response.
+     * <p>
+     * This is null if the client doesn't accept compressed responses or the server has
+     * compression turned off.
+     *
+     * @return {@link Compression#GZIP}, {@link Compression#DEFLATE} or null
+     */
+    String getAcceptedEncoding() {
+        return mAcceptedEncoding;
+    }
+
+    /**
+     * Get the smallest response body worth compressing.
+     *
+     * @return the size in bytes
+     */
+    int getCompressionMinSize() {
+        return mCompressionMinSize;
+    }
 }
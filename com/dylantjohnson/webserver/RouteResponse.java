@@ -1,16 +1,40 @@
 package com.dylantjohnson.webserver;
 
 import java.io.*;
+import java.nio.*;
+import java.util.*;
 
 /**
  * This class represents a response to a web request.
+ * <p>
+ * A response whose body was given as a string, a byte array or a {@link ByteBuffer} is
+ * immutable. It can be built once, kept around and returned from any number of requests on any
+ * number of threads, and its bytes are written out directly without being copied. A response
+ * whose body is a stream or a file can only be sent once.
+ * <p>
+ * A response whose body comes from a {@link BodyWriter} is generated while it's being sent, with
+ * chunked transfer encoding, and can be sent as many times as its writer allows.
  */
 public class RouteResponse {
     /**
      * All of the possible status codes.
      */
-    enum Status {
-        ERROR(500), OK(200);
+    public enum Status {
+        OK(200),
+        PARTIAL_CONTENT(206),
+        MOVED_PERMANENTLY(301),
+        NOT_MODIFIED(304),
+        PERMANENT_REDIRECT(308),
+        NOT_FOUND(404),
+        METHOD_NOT_ALLOWED(405),
+        REQUEST_TIMEOUT(408),
+        PAYLOAD_TOO_LARGE(413),
+        RANGE_NOT_SATISFIABLE(416),
+        TOO_MANY_REQUESTS(429),
+        ERROR(500),
+        NOT_IMPLEMENTED(501),
+        SERVICE_UNAVAILABLE(503),
+        GATEWAY_TIMEOUT(504);
 
         private int mCode;
 
@@ -26,11 +50,31 @@ public class RouteResponse {
         public int getCode() {
             return mCode;
         }
+
+        /**
+         * Check if responses with this status never carry a body.
+         *
+         * @return true if a body is not allowed
+         */
+        boolean forbidsBody() {
+            return this == NOT_MODIFIED;
+        }
     }
 
+    /**
+     * The length given to responses that have no body at all.
+     */
+    static final long NO_BODY = -1L;
+
     private Status mStatus;
     private long mLength;
     private InputStream mBody;
+    private BodyWriter mWriter;
+    private byte[] mBytes;
+    private int mOffset;
+    private Map<String, List<String>> mHeaders;
+    private volatile byte[] mGzipBytes;
+    private volatile byte[] mDeflateBytes;
 
     /**
      * Create a response.
@@ -40,11 +84,63 @@ public class RouteResponse {
      * @param status the status for the response
      * @param length the size of the response body
      * @param body the response body
+     * @param headers the response headers
      */
-    RouteResponse(Status status, long length, InputStream body) {
+    RouteResponse(Status status, long length, InputStream body,
+            Map<String, List<String>> headers) {
         mStatus = status;
         mLength = length;
         mBody = body;
+        mHeaders = headers;
+    }
+
+    /**
+     * Create a response with a body held in memory.
+     * <p>
+     * This constructor is for internal use. Use {@link RouteResponseBuilder}.
+     *
+     * @param status the status for the response
+     * @param bytes the array holding the response body, which must not change afterwards
+     * @param offset the index of the body's first byte in the array
+     * @param length the size of the response body
+     * @param headers the response headers, which must not change afterwards
+     */
+    RouteResponse(Status status, byte[] bytes, int offset, int length,
+            Map<String, List<String>> headers) {
+        mStatus = status;
+        mLength = length;
+        mBytes = bytes;
+        mOffset = offset;
+        mHeaders = headers;
+    }
+
+    /**
+     * Create a response whose body is generated while it's sent.
+     * <p>
+     * This constructor is for internal use. Use {@link RouteResponseBuilder}.
+     *
+     * @param status the status for the response
+     * @param writer the writer generating the response body
+     * @param headers the response headers
+     */
+    RouteResponse(Status status, BodyWriter writer, Map<String, List<String>> headers) {
+        mStatus = status;
+        mLength = 0;
+        mWriter = writer;
+        mHeaders = headers;
+    }
+
+    /**
+     * Create an immutable response with a fixed body and content type.
+     *
+     * @param status the status for the response
+     * @param contentType the Content-Type header value
+     * @param body the response body, which must not change afterwards
+     * @return the response
+     */
+    static RouteResponse of(Status status, String contentType, byte[] body) {
+        return new RouteResponse(status, body, 0, body.length,
+            Map.of("Content-Type", List.of(contentType)));
     }
 
     /**
@@ -59,7 +155,7 @@ public class RouteResponse {
     /**
      * Get the length.
      *
-     * @return the length (in bytes) of the response body
+     * @return the length (in bytes) of the response body, 0 if unknown, or {@link #NO_BODY}
      */
     long getLength() {
         return mLength;
@@ -67,10 +163,86 @@ public class RouteResponse {
 
     /**
      * Get the body.
+     * <p>
+     * For a response held in memory, every call returns a new stream over the same bytes.
      *
-     * @return a stream of the response body
+     * @return a stream of the response body, or null if the body comes from a writer
      */
     InputStream getBody() {
+        if (mBytes != null) {
+            return new ByteArrayInputStream(mBytes, mOffset, (int) mLength);
+        }
         return mBody;
     }
+
+    /**
+     * Get the writer generating the body.
+     *
+     * @return the writer, or null if the body is a stream or held in memory
+     */
+    BodyWriter getWriter() {
+        return mWriter;
+    }
+
+    /**
+     * Check if the body is held in memory, which makes this response reusable.
+     *
+     * @return true if {@link #getBytes()} holds the body
+     */
+    boolean isBuffered() {
+        return mBytes != null;
+    }
+
+    /**
+     * Get the array holding the body of a response held in memory.
+     * <p>
+     * The body starts at {@link #getOffset()} and is {@link #getLength()} bytes long. The array
+     * must not be modified.
+     *
+     * @return the backing array, or null if the body is a stream
+     */
+    byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Get the index of the body's first byte in {@link #getBytes()}.
+     *
+     * @return the offset
+     */
+    int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Get the compressed body of a response held in memory.
+     * <p>
+     * The body is compressed the first time each encoding is asked for and then kept with the
+     * response, so a reused response is only ever compressed once per encoding.
+     *
+     * @param encoding {@link Compression#GZIP} or {@link Compression#DEFLATE}
+     * @return the compressed body
+     */
+    byte[] getCompressedBytes(String encoding) {
+        var gzip = Compression.GZIP.equals(encoding);
+        var compressed = gzip ? mGzipBytes : mDeflateBytes;
+        if (compressed == null) {
+            compressed = Compression.compress(encoding, mBytes, mOffset, (int) mLength);
+            if (gzip) {
+                mGzipBytes = compressed;
+            } else {
+                mDeflateBytes = compressed;
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * Get the headers.
+     *
+     * @return the response headers, keyed by name
+     */
+    Map<String, List<String>> getHeaders() {
+        return mHeaders;
+    }
 }
@@ -1,6 +1,9 @@
 package com.dylantjohnson.webserver;
 
 import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Builder class for generating a RouteResponse.
@@ -9,18 +12,37 @@ public class RouteResponseBuilder {
     private RouteResponse.Status mStatus = RouteResponse.Status.OK;
     private long mLength = 0L;
     private InputStream mBody;
+    private BodyWriter mWriter;
+    private byte[] mBytes;
+    private int mOffset;
+    private Map<String, List<String>> mHeaders = new LinkedHashMap<>();
 
     /**
      * Build a response with the configured content.
+     * <p>
+     * If the body was set from a string, byte array or {@link ByteBuffer}, the response is
+     * immutable and can be reused for any number of requests.
      *
      * @return the built response
-     * @throws NullPointerException if the response body has not been set
+     * @throws NullPointerException if the response body has not been set and the status allows
+     *         one
      */
     public RouteResponse build() {
+        var headers = copyHeaders();
+        if (mStatus.forbidsBody()) {
+            var body = mBody == null ? InputStream.nullInputStream() : mBody;
+            return new RouteResponse(mStatus, RouteResponse.NO_BODY, body, headers);
+        }
+        if (mBytes != null) {
+            return new RouteResponse(mStatus, mBytes, mOffset, (int) mLength, headers);
+        }
+        if (mWriter != null) {
+            return new RouteResponse(mStatus, mWriter, headers);
+        }
         if (mBody == null) {
             throw new NullPointerException("No response body set.");
         }
-        return new RouteResponse(mStatus, mLength, mBody);
+        return new RouteResponse(mStatus, mLength, mBody, headers);
     }
 
     /**
@@ -47,9 +69,47 @@ public class RouteResponseBuilder {
      * @return the body of this response as a stream
      */
     InputStream getBody() {
+        if (mBytes != null) {
+            return new ByteArrayInputStream(mBytes, mOffset, (int) mLength);
+        }
         return mBody;
     }
 
+    /**
+     * Get the headers of this response.
+     *
+     * @return the response headers, keyed by name
+     */
+    Map<String, List<String>> getHeaders() {
+        return mHeaders;
+    }
+
+    /**
+     * Set a header of this response, replacing any values it already has.
+     *
+     * @param name the header name
+     * @param value the header value
+     * @return this builder instance to enable easy method chaining
+     */
+    public RouteResponseBuilder setHeader(String name, String value) {
+        var values = new ArrayList<String>(1);
+        values.add(value);
+        mHeaders.put(name, values);
+        return this;
+    }
+
+    /**
+     * Add a value to a header of this response, keeping any values it already has.
+     *
+     * @param name the header name
+     * @param value the header value
+     * @return this builder instance to enable easy method chaining
+     */
+    public RouteResponseBuilder addHeader(String name, String value) {
+        mHeaders.computeIfAbsent(name, key -> new ArrayList<>(1)).add(value);
+        return this;
+    }
+
     /**
      * Set the status of this response.
      *
@@ -69,10 +129,47 @@ public class RouteResponseBuilder {
      * @throws Exception if the body has already been set for this response
      */
     public RouteResponseBuilder setBody(String body) throws Exception {
+        return setBody(body.getBytes());
+    }
+
+    /**
+     * Set the body of this response.
+     * <p>
+     * The array is used as is rather than copied, so it must not be modified afterwards.
+     *
+     * @param body the body of the response
+     * @return this builder instance to enable easy method chaining
+     * @throws Exception if the body has already been set for this response
+     */
+    public RouteResponseBuilder setBody(byte[] body) throws Exception {
+        assertBodyUnset();
+        mBytes = body;
+        mOffset = 0;
+        mLength = body.length;
+        return this;
+    }
+
+    /**
+     * Set the body of this response to the remaining bytes of a buffer.
+     * <p>
+     * A buffer backed by an accessible array is used as is, so its contents must not be modified
+     * afterwards. Any other buffer is copied once. The buffer's position is left unchanged.
+     *
+     * @param body the body of the response
+     * @return this builder instance to enable easy method chaining
+     * @throws Exception if the body has already been set for this response
+     */
+    public RouteResponseBuilder setBody(ByteBuffer body) throws Exception {
         assertBodyUnset();
-        byte[] bodyBuffer = body.getBytes();
-        mBody = new ByteArrayInputStream(bodyBuffer);
-        mLength = bodyBuffer.length;
+        if (body.hasArray()) {
+            mBytes = body.array();
+            mOffset = body.arrayOffset() + body.position();
+        } else {
+            mBytes = new byte[body.remaining()];
+            body.duplicate().get(mBytes);
+            mOffset = 0;
+        }
+        mLength = body.remaining();
         return this;
     }
 
@@ -90,12 +187,81 @@ public class RouteResponseBuilder {
         return this;
     }
 
+    /**
+     * Set the body of this response.
+     * <p>
+     * The stream is closed once it has been sent.
+     *
+     * @param body a stream of the body of the response
+     * @param length the number of bytes the stream will provide, or 0 if unknown
+     * @return this builder instance to enable easy method chaining
+     * @throws Exception if the body has already been set for this response
+     */
+    public RouteResponseBuilder setBody(InputStream body, long length) throws Exception {
+        assertBodyUnset();
+        mBody = body;
+        mLength = length;
+        return this;
+    }
+
+    /**
+     * Set the body of this response to be generated while it's being sent.
+     * <p>
+     * The body is sent with chunked transfer encoding as the writer produces it, so it takes a
+     * constant amount of memory however large it gets. See {@link BodyWriter}.
+     *
+     * @param body the writer that generates the body of the response
+     * @return this builder instance to enable easy method chaining
+     * @throws Exception if the body has already been set for this response
+     */
+    public RouteResponseBuilder setBody(BodyWriter body) throws Exception {
+        assertBodyUnset();
+        mWriter = body;
+        mLength = 0;
+        return this;
+    }
+
+    /**
+     * Set the body of this response to the buffers published by a publisher.
+     * <p>
+     * The publisher is subscribed to once the response is sent. Each buffer is sent to the client
+     * as soon as it arrives, and the next one isn't requested until it has been written, so a
+     * slow client slows the publisher down instead of making buffers pile up in memory.
+     * <p>
+     * This isn't an overload of {@code setBody} so that a lambda passed as a {@link BodyWriter}
+     * stays unambiguous.
+     *
+     * @param body the publisher of the body of the response
+     * @return this builder instance to enable easy method chaining
+     * @throws Exception if the body has already been set for this response
+     */
+    public RouteResponseBuilder setBodyPublisher(Flow.Publisher<ByteBuffer> body) throws Exception {
+        return setBody(new PublisherBodyWriter(body));
+    }
+
     /**
      * Throw an exception if the response body has been set.
      */
     private void assertBodyUnset() throws Exception {
-        if (mBody != null) {
+        if (mBody != null || mBytes != null || mWriter != null) {
             throw new Exception("Body already set.");
         }
     }
+
+    /**
+     * Copy the configured headers into an unmodifiable map, so the built response doesn't change
+     * if this builder is used again.
+     *
+     * @return the headers
+     */
+    private Map<String, List<String>> copyHeaders() {
+        if (mHeaders.isEmpty()) {
+            return Map.of();
+        }
+        var headers = new LinkedHashMap<String, List<String>>(mHeaders.size() * 2);
+        for (var header : mHeaders.entrySet()) {
+            headers.put(header.getKey(), List.copyOf(header.getValue()));
+        }
+        return Collections.unmodifiableMap(headers);
+    }
 }
@@ -0,0 +1,460 @@
+package com.dylantjohnson.webserver;
+
+import java.util.*;
+
+/**
+ * Finds the route a request path belongs to among a set of route patterns.
+ * <p>
+ * A pattern is a path of segments separated by slashes. A segment written {@code {name}}
+ * matches any one non-empty segment and captures it as a path parameter, and a last segment of
+ * {@code *} matches the rest of the path, even if there's nothing left. Every other character
+ * matches itself. When more than one pattern matches a path, literal text wins over a parameter,
+ * which wins over a wildcard.
+ * <p>
+ * The patterns are compiled into a radix tree when the router is built, so finding a route
+ * takes time proportional to the length of the path, not the number of routes. Matching only
+ * backtracks past a parameter or a literal branch that led nowhere, and it allocates nothing:
+ * captured parameters are recorded as offsets into the path in an array the caller provides.
+ * <p>
+ * A built router is never modified, so this class is thread-safe.
+ *
+ * @param <T> the type of handler routes lead to
+ */
+final class Router<T> {
+    /**
+     * The name under which a trailing wildcard's match is captured.
+     */
+    static final String WILDCARD = "*";
+
+    private static final RouteRequest.Method[] METHODS = RouteRequest.Method.values();
+
+    private final Node mRoot;
+    private final int mOffsetsLength;
+
+    /**
+     * A pattern that was compiled into the tree, with the handlers for each method.
+     *
+     * @param <T> the type of handler
+     */
+    static final class Route<T> {
+        private final String mPattern;
+        private final String[] mParameters;
+        private final Object[] mHandlers;
+        private T mAnyMethod;
+        private String mAllow;
+
+        /**
+         * Create a route with no handlers yet.
+         *
+         * @param pattern the pattern as it was added
+         * @param parameters the names of the parameters in the pattern, in order
+         */
+        private Route(String pattern, String[] parameters) {
+            mPattern = pattern;
+            mParameters = parameters;
+            mHandlers = new Object[METHODS.length];
+        }
+
+        /**
+         * Get the pattern this route was compiled from.
+         *
+         * @return the pattern
+         */
+        String getPattern() {
+            return mPattern;
+        }
+
+        /**
+         * Get the names of the values captured for this route, in the order their offsets are
+         * recorded. A trailing wildcard is captured as {@link Router#WILDCARD}.
+         *
+         * @return the names, which callers must not modify
+         */
+        String[] getParameters() {
+            return mParameters;
+        }
+
+        /**
+         * Get the handler for a request method.
+         * <p>
+         * A HEAD request is given the GET handler if the route has no HEAD handler of its own.
+         * A handler added for any method is used when there's none for the method itself.
+         *
+         * @param method the request method
+         * @return the handler, or null if the route doesn't accept the method
+         */
+        @SuppressWarnings("unchecked")
+        T get(RouteRequest.Method method) {
+            var handler = mHandlers[method.ordinal()];
+            if (handler == null && method == RouteRequest.Method.HEAD) {
+                handler = mHandlers[RouteRequest.Method.GET.ordinal()];
+            }
+            return handler != null ? (T) handler : mAnyMethod;
+        }
+
+        /**
+         * Get the methods this route accepts, as sent in the Allow header of a 405 response.
+         *
+         * @return a comma separated list of methods
+         */
+        String getAllow() {
+            return mAllow;
+        }
+    }
+
+    /**
+     * Collects patterns and compiles them into a {@link Router}.
+     * <p>
+     * This class is not thread-safe, and a builder can't be used again once it has built.
+     *
+     * @param <T> the type of handler
+     */
+    static final class Builder<T> {
+        private final Node mRoot = new Node("");
+        private final List<Route<T>> mRoutes = new ArrayList<>();
+        private int mMaxCaptures;
+
+        /**
+         * Add a handler for a pattern.
+         * <p>
+         * Adding a handler for a pattern and method that already have one replaces it.
+         *
+         * @param method the request method, or null for a handler that takes any method
+         * @param pattern the pattern
+         * @param handler the handler
+         * @return this builder instance to enable method chaining
+         * @throws IllegalArgumentException if the pattern is malformed, or has the same shape as
+         *     another pattern but names its parameters differently
+         */
+        Builder<T> add(RouteRequest.Method method, String pattern, T handler) {
+            var parameters = parse(pattern);
+            var wildcard = pattern.endsWith("/" + WILDCARD);
+            var node = mRoot;
+            var literal = 0;
+            var index = 1;
+            while (index <= pattern.length()) {
+                var end = segmentEnd(pattern, index);
+                if (pattern.startsWith("{", index)) {
+                    node = node.insert(pattern.substring(literal, index));
+                    if (node.mParameter == null) {
+                        node.mParameter = new Node("");
+                    }
+                    node = node.mParameter;
+                    literal = end;
+                }
+                index = end + 1;
+            }
+            if (wildcard) {
+                node = node.insert(pattern.substring(literal, pattern.length() - 1));
+            } else {
+                node = node.insert(pattern.substring(literal));
+            }
+            @SuppressWarnings("unchecked")
+            var route = (Route<T>) (wildcard ? node.mWildcard : node.mRoute);
+            if (route == null) {
+                route = new Route<>(pattern, parameters);
+                mRoutes.add(route);
+                mMaxCaptures = Math.max(mMaxCaptures, parameters.length);
+                if (wildcard) {
+                    node.mWildcard = route;
+                } else {
+                    node.mRoute = route;
+                }
+            } else if (!Arrays.equals(route.mParameters, parameters)) {
+                throw new IllegalArgumentException(String.format(
+                    "The route %s names its parameters differently than %s.", pattern,
+                    route.mPattern));
+            }
+            if (method == null) {
+                route.mAnyMethod = handler;
+            } else {
+                route.mHandlers[method.ordinal()] = handler;
+            }
+            return this;
+        }
+
+        /**
+         * Compile the patterns added so far into a router.
+         *
+         * @return the router
+         */
+        Router<T> build() {
+            for (var route : mRoutes) {
+                var allow = new StringJoiner(", ");
+                for (var method : METHODS) {
+                    if (route.mHandlers[method.ordinal()] != null
+                            || (method == RouteRequest.Method.HEAD
+                                && route.mHandlers[RouteRequest.Method.GET.ordinal()] != null)) {
+                        allow.add(method.name());
+                    }
+                }
+                route.mAllow = allow.toString();
+            }
+            return new Router<>(mRoot, mMaxCaptures * 2);
+        }
+    }
+
+    /**
+     * A node of the radix tree.
+     * <p>
+     * Entering a node consumes its prefix from the path. From there the path continues into the
+     * literal child whose prefix starts with the next character, into the parameter child by
+     * consuming one segment, or into the wildcard route by consuming everything.
+     */
+    private static final class Node {
+        private String mPrefix;
+        private char[] mIndices = new char[0];
+        private Node[] mChildren = new Node[0];
+        private Node mParameter;
+        private Route<?> mRoute;
+        private Route<?> mWildcard;
+
+        /**
+         * Create a node with no children.
+         *
+         * @param prefix the literal text the node consumes
+         */
+        private Node(String prefix) {
+            mPrefix = prefix;
+        }
+
+        /**
+         * Find or create the node reached by consuming literal text after this one, splitting
+         * nodes whose prefixes only partly match.
+         *
+         * @param text the literal text
+         * @return the node the text leads to
+         */
+        private Node insert(String text) {
+            var node = this;
+            while (!text.isEmpty()) {
+                var index = Arrays.binarySearch(node.mIndices, text.charAt(0));
+                if (index < 0) {
+                    var child = new Node(text);
+                    node.addChild(-index - 1, child);
+                    return child;
+                }
+                var child = node.mChildren[index];
+                var common = 0;
+                var limit = Math.min(text.length(), child.mPrefix.length());
+                while (common < limit && text.charAt(common) == child.mPrefix.charAt(common)) {
+                    common++;
+                }
+                if (common < child.mPrefix.length()) {
+                    child.split(common);
+                }
+                text = text.substring(common);
+                node = child;
+            }
+            return node;
+        }
+
+        /**
+         * Add a literal child, keeping the children sorted by their first character.
+         *
+         * @param index where the child goes
+         * @param child the child
+         */
+        private void addChild(int index, Node child) {
+            var count = mIndices.length;
+            var indices = new char[count + 1];
+            var children = new Node[count + 1];
+            System.arraycopy(mIndices, 0, indices, 0, index);
+            System.arraycopy(mChildren, 0, children, 0, index);
+            indices[index] = child.mPrefix.charAt(0);
+            children[index] = child;
+            System.arraycopy(mIndices, index, indices, index + 1, count - index);
+            System.arraycopy(mChildren, index, children, index + 1, count - index);
+            mIndices = indices;
+            mChildren = children;
+        }
+
+        /**
+         * Shorten this node's prefix, moving the rest of it and everything below into a new
+         * child.
+         *
+         * @param length how much of the prefix this node keeps
+         */
+        private void split(int length) {
+            var rest = new Node(mPrefix.substring(length));
+            rest.mIndices = mIndices;
+            rest.mChildren = mChildren;
+            rest.mParameter = mParameter;
+            rest.mRoute = mRoute;
+            rest.mWildcard = mWildcard;
+            mPrefix = mPrefix.substring(0, length);
+            mIndices = new char[] { rest.mPrefix.charAt(0) };
+            mChildren = new Node[] { rest };
+            mParameter = null;
+            mRoute = null;
+            mWildcard = null;
+        }
+    }
+
+    /**
+     * Create a router around a compiled tree.
+     *
+     * @param root the root of the tree
+     * @param offsetsLength the length of offset array matching needs
+     */
+    private Router(Node root, int offsetsLength) {
+        mRoot = root;
+        mOffsetsLength = offsetsLength;
+    }
+
+    /**
+     * Get how long an array passed to {@link #find(String, int[])} must be to hold the values
+     * captured by any route.
+     *
+     * @return the length
+     */
+    int getOffsetsLength() {
+        return mOffsetsLength;
+    }
+
+    /**
+     * Find the route a path belongs to.
+     * <p>
+     * The value captured for the route's parameter {@code i} is
+     * {@code path.substring(offsets[2 * i], offsets[2 * i + 1])}.
+     *
+     * @param path the request path
+     * @param offsets where to record the captured values, at least
+     *     {@link #getOffsetsLength()} long
+     * @return the route, or null if none matches
+     */
+    @SuppressWarnings("unchecked")
+    Route<T> find(String path, int[] offsets) {
+        return (Route<T>) match(mRoot, path, 0, offsets, 0);
+    }
+
+    /**
+     * Check that a pattern is well formed.
+     *
+     * @param pattern the pattern
+     * @throws IllegalArgumentException if it isn't
+     */
+    static void validate(String pattern) {
+        parse(pattern);
+    }
+
+    /**
+     * Match the rest of a path against a subtree.
+     * <p>
+     * Offsets are only written on the way back out of a successful match, so branches that
+     * were tried and abandoned leave nothing behind.
+     *
+     * @param node the subtree
+     * @param path the path
+     * @param start where in the path the subtree begins
+     * @param offsets where to record captured values
+     * @param captured how many values were captured before reaching the subtree
+     * @return the route, or null if nothing in the subtree matches
+     */
+    private static Route<?> match(Node node, String path, int start, int[] offsets,
+            int captured) {
+        var prefix = node.mPrefix;
+        if (!path.startsWith(prefix, start)) {
+            return null;
+        }
+        var index = start + prefix.length();
+        var length = path.length();
+        if (index < length) {
+            var child = Arrays.binarySearch(node.mIndices, path.charAt(index));
+            if (child >= 0) {
+                var route = match(node.mChildren[child], path, index, offsets, captured);
+                if (route != null) {
+                    return route;
+                }
+            }
+            if (node.mParameter != null) {
+                var end = segmentEnd(path, index);
+                if (end > index) {
+                    var route = match(node.mParameter, path, end, offsets, captured + 1);
+                    if (route != null) {
+                        offsets[2 * captured] = index;
+                        offsets[2 * captured + 1] = end;
+                        return route;
+                    }
+                }
+            }
+        } else if (node.mRoute != null) {
+            return node.mRoute;
+        }
+        if (node.mWildcard != null) {
+            offsets[2 * captured] = index;
+            offsets[2 * captured + 1] = length;
+            return node.mWildcard;
+        }
+        return null;
+    }
+
+    /**
+     * Find where the segment starting at an index ends.
+     *
+     * @param path the path
+     * @param index the start of the segment
+     * @return the index of the next slash, or the length of the path if there is none
+     */
+    private static int segmentEnd(String path, int index) {
+        var end = path.indexOf('/', index);
+        return end < 0 ? path.length() : end;
+    }
+
+    /**
+     * Check a pattern and list the values it captures.
+     *
+     * @param pattern the pattern
+     * @return the parameter names in order, with {@link #WILDCARD} last if it ends in one
+     * @throws IllegalArgumentException if the pattern is malformed
+     */
+    private static String[] parse(String pattern) {
+        if (pattern == null || !pattern.startsWith("/")) {
+            throw new IllegalArgumentException(String.format(
+                "The route %s doesn't start with a slash.", pattern));
+        }
+        var names = new ArrayList<String>();
+        var index = 1;
+        while (index <= pattern.length()) {
+            var end = segmentEnd(pattern, index);
+            var segment = pattern.substring(index, end);
+            if (segment.equals(WILDCARD) && end == pattern.length()) {
+                names.add(WILDCARD);
+            } else if (segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}")) {
+                var name = segment.substring(1, segment.length() - 1);
+                if (!isName(name)) {
+                    throw new IllegalArgumentException(String.format(
+                        "The route %s has a parameter with an invalid name.", pattern));
+                }
+                if (names.contains(name)) {
+                    throw new IllegalArgumentException(String.format(
+                        "The route %s names the parameter %s twice.", pattern, name));
+                }
+                names.add(name);
+            } else if (segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0
+                    || segment.contains(WILDCARD)) {
+                throw new IllegalArgumentException(String.format(
+                    "The route %s has a parameter or wildcard that isn't a whole segment, or a"
+                    + " wildcard that isn't last.", pattern));
+            }
+            index = end + 1;
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * Check if a parameter name is made of letters, digits and underscores.
+     *
+     * @param name the name
+     * @return true if it's usable
+     */
+    private static boolean isName(String name) {
+        for (var i = 0; i < name.length(); i++) {
+            var c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package com.dylantjohnson.webserver;
+
+import java.lang.ref.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * The daemon threads behind the timed housekeeping of heartbeats, rate limits and deadlines.
+ * <p>
+ * Each kind of housekeeping gets one thread, shared by every server, which never keeps the JVM
+ * running. Periodic tasks only hold a weak reference to what they work on and cancel themselves
+ * once it's gone, so a server that's dropped without being stopped doesn't leak its state through
+ * the thread.
+ */
+final class Schedulers {
+    /**
+     * A periodic task that stops once its target is gone.
+     *
+     * @param <T> the type of the target
+     */
+    private static class WeakTask<T> implements Runnable {
+        private final WeakReference<T> mTarget;
+        private final Consumer<? super T> mAction;
+        private volatile Future<?> mFuture;
+
+        WeakTask(T target, Consumer<? super T> action) {
+            mTarget = new WeakReference<>(target);
+            mAction = action;
+        }
+
+        @Override
+        public void run() {
+            var target = mTarget.get();
+            if (target == null) {
+                mFuture.cancel(false);
+                return;
+            }
+            mAction.accept(target);
+        }
+    }
+
+    private Schedulers() {
+    }
+
+    /**
+     * Create a single daemon thread for scheduled tasks, which drops tasks as they're cancelled.
+     *
+     * @param name the thread's name
+     * @return the scheduler
+     */
+    static ScheduledThreadPoolExecutor create(String name) {
+        var scheduler = new ScheduledThreadPoolExecutor(1, task -> {
+            var thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Run an action on a target at a fixed rate for as long as the target is reachable.
+     * <p>
+     * The action must not hold on to the target itself, like a lambda capturing it would, or the
+     * target is never collected; an unbound method reference such as {@code Type::method} is
+     * safe.
+     *
+     * @param <T> the type of the target
+     * @param scheduler the thread to run on
+     * @param target what the action works on
+     * @param action the action, given the target each time
+     * @param periodNanos the time between runs, which is also the time before the first
+     */
+    static <T> void scheduleWhileReachable(ScheduledExecutorService scheduler, T target,
+            Consumer<? super T> action, long periodNanos) {
+        var task = new WeakTask<T>(target, action);
+        task.mFuture = scheduler.scheduleAtFixedRate(task, periodNanos, periodNanos,
+            TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,273 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.util.concurrent.*;
+import jdk.jfr.*;
+
+/**
+ * JDK Flight Recorder events for the phases of slow requests and for keystore reloads.
+ * <p>
+ * Each request is traced through the phases {@link RequestProcessor} takes it through: being
+ * picked up from the queue, the RouteHandler, draining the rest of the request body, sending
+ * the response headers and writing the response body. The events are only committed once the
+ * request is over, and only if it took at least the threshold, so a recording shows every
+ * phase of the slow requests and nothing of the fast ones. When no recording has the request
+ * event enabled, tracing costs one check per request.
+ * <p>
+ * The events are in the "Web Server" category. A recording can be started with, for example,
+ * {@code -XX:StartFlightRecording} and read with {@code jfr print --categories "Web Server"}.
+ * <p>
+ * This class is thread-safe.
+ */
+final class ServerEvents {
+    static final long DEFAULT_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    static final int ACCEPTED = 0;
+    static final int HANDLER = 1;
+    static final int DRAIN = 2;
+    static final int HEADERS = 3;
+    static final int BODY = 4;
+
+    private static final int PHASES = 5;
+
+    /**
+     * A whole request, from a thread picking it up to its response being sent.
+     */
+    @Name("com.dylantjohnson.webserver.Request")
+    @Label("Request")
+    @Category("Web Server")
+    @Description("A request that took at least the slow request threshold.")
+    @StackTrace(false)
+    static class RequestEvent extends Event {
+        @Label("Route")
+        String route;
+
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Status")
+        int status;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+    }
+
+    /**
+     * One phase of a request, with the fields that tell which request it belonged to.
+     */
+    @Category("Web Server")
+    @StackTrace(false)
+    abstract static class PhaseEvent extends Event {
+        @Label("Route")
+        String route;
+
+        @Label("Method")
+        String method;
+
+        @Label("Status")
+        int status;
+    }
+
+    /**
+     * A thread picking the request up, after it waited in the queue.
+     */
+    @Name("com.dylantjohnson.webserver.RequestAccepted")
+    @Label("Request Accepted")
+    @Description("A thread picked up a slow request.")
+    static class AcceptedEvent extends PhaseEvent {
+        @Label("Queue Wait")
+        @Timespan
+        long queueWait;
+    }
+
+    /**
+     * The RouteHandler coming up with a response.
+     */
+    @Name("com.dylantjohnson.webserver.Handler")
+    @Label("Route Handler")
+    @Description("The route handler of a slow request, until its response was ready.")
+    static class HandlerEvent extends PhaseEvent {
+    }
+
+    /**
+     * Reading and discarding what the RouteHandler left of the request body.
+     */
+    @Name("com.dylantjohnson.webserver.RequestBodyDrain")
+    @Label("Request Body Drain")
+    @Description("Discarding the unread request body of a slow request.")
+    static class DrainEvent extends PhaseEvent {
+    }
+
+    /**
+     * Sending the status line and response headers.
+     */
+    @Name("com.dylantjohnson.webserver.ResponseHeaders")
+    @Label("Response Headers")
+    @Description("Sending the response headers of a slow request.")
+    static class HeadersEvent extends PhaseEvent {
+    }
+
+    /**
+     * Writing the response body, compressed or copied from its stream if it has to be.
+     */
+    @Name("com.dylantjohnson.webserver.ResponseBody")
+    @Label("Response Body")
+    @Description("Writing the response body of a slow request.")
+    static class BodyEvent extends PhaseEvent {
+    }
+
+    /**
+     * Loading the keystore and swapping its certificate in.
+     */
+    @Name("com.dylantjohnson.webserver.KeystoreReload")
+    @Label("Keystore Reload")
+    @Category("Web Server")
+    @Description("Reloading the keystore and swapping its certificate into the server.")
+    @StackTrace(false)
+    static class KeystoreReloadEvent extends Event {
+        @Label("Keystore")
+        String keystore;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    /**
+     * The events of one request, held until it's known whether the request was slow.
+     * <p>
+     * A trace is used by one thread at a time, though an asynchronous request's trace passes
+     * from thread to thread.
+     */
+    static final class Trace {
+        private static final Trace DISABLED = new Trace(null, 0, 0);
+
+        private final RequestEvent mRequest;
+        private final long mStart;
+        private final long mThresholdNanos;
+        private final PhaseEvent[] mPhases;
+        private int mBegun;
+        private int mEnded;
+
+        /**
+         * Start tracing a request.
+         *
+         * @param request the request's event, begun already, or null to trace nothing
+         * @param start when the request was picked up, from {@link System#nanoTime()}
+         * @param thresholdNanos how long the request must take for its events to be committed
+         */
+        private Trace(RequestEvent request, long start, long thresholdNanos) {
+            mRequest = request;
+            mStart = start;
+            mThresholdNanos = thresholdNanos;
+            mPhases = request == null ? null : new PhaseEvent[] {
+                new AcceptedEvent(), new HandlerEvent(), new DrainEvent(), new HeadersEvent(),
+                new BodyEvent()
+            };
+        }
+
+        /**
+         * Mark the start of a phase.
+         *
+         * @param phase the phase, such as {@link ServerEvents#HANDLER}
+         */
+        void begin(int phase) {
+            if (mRequest != null && (mBegun & 1 << phase) == 0) {
+                mBegun |= 1 << phase;
+                mPhases[phase].begin();
+            }
+        }
+
+        /**
+         * Mark the end of a phase. A phase that wasn't begun, or has ended already, is left as
+         * it is.
+         *
+         * @param phase the phase, such as {@link ServerEvents#HANDLER}
+         */
+        void end(int phase) {
+            if (mRequest != null && (mBegun & ~mEnded & 1 << phase) != 0) {
+                mEnded |= 1 << phase;
+                mPhases[phase].end();
+            }
+        }
+
+        /**
+         * End the request, and any phase still going, and commit the events if it was slow.
+         *
+         * @param path the request path
+         * @param status the response status code
+         * @param bytesIn how many request body bytes were read
+         * @param bytesOut how many response body bytes were sent
+         */
+        void finish(String path, int status, long bytesIn, long bytesOut) {
+            if (mRequest == null) {
+                return;
+            }
+            for (var phase = 0; phase < PHASES; phase++) {
+                end(phase);
+            }
+            mRequest.end();
+            if (System.nanoTime() - mStart < mThresholdNanos || !mRequest.shouldCommit()) {
+                return;
+            }
+            for (var phase = 0; phase < PHASES; phase++) {
+                if ((mBegun & 1 << phase) != 0) {
+                    var event = mPhases[phase];
+                    event.route = mRequest.route;
+                    event.method = mRequest.method;
+                    event.status = status;
+                    event.commit();
+                }
+            }
+            mRequest.path = path;
+            mRequest.status = status;
+            mRequest.bytesIn = bytesIn;
+            mRequest.bytesOut = bytesOut;
+            mRequest.commit();
+        }
+    }
+
+    private final long mThresholdNanos;
+
+    /**
+     * Create the events of a server.
+     *
+     * @param thresholdNanos how long a request must take for its events to be recorded
+     */
+    ServerEvents(long thresholdNanos) {
+        mThresholdNanos = thresholdNanos;
+    }
+
+    /**
+     * Start tracing a request that was just picked up, beginning with its accepted phase.
+     *
+     * @param route the measurements of the route the request was routed to, which name it
+     * @param request the request
+     * @param admission the admission controller, which knows how long the request waited
+     * @param start when the request was picked up, from {@link System#nanoTime()}
+     * @return the trace, which does nothing if no recording wants the events
+     */
+    Trace start(RouteMetrics route, HttpExchange request, AdmissionController admission,
+            long start) {
+        var event = new RequestEvent();
+        if (!event.isEnabled()) {
+            return Trace.DISABLED;
+        }
+        event.begin();
+        event.route = route.getRoute();
+        event.method = request.getRequestMethod();
+        var trace = new Trace(event, start, mThresholdNanos);
+        var accepted = (AcceptedEvent) trace.mPhases[ACCEPTED];
+        accepted.queueWait = admission.getCurrentWait();
+        trace.begin(ACCEPTED);
+        trace.end(ACCEPTED);
+        return trace;
+    }
+}
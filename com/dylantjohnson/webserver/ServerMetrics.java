@@ -0,0 +1,530 @@
+package com.dylantjohnson.webserver;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Measurements of a {@link WebServer}: requests, latencies and bytes per route, response status
+ * codes, response cache hits, the request queue, TLS handshakes and session resumption,
+ * certificate reloads and access log records dropped.
+ * <p>
+ * Recording only increments {@link LongAdder}s, so it takes no locks and costs a few
+ * nanoseconds per request. The measurements can be read here, through JMX while the server is
+ * running, or in the Prometheus text format from a route set with
+ * {@link WebServerBuilder#setMetricsRoute(String)}.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final String DOMAIN = "com.dylantjohnson.webserver";
+    private static final int MAX_STATUS = 600;
+
+    private final AdmissionController mAdmission;
+    private final AccessLog mAccessLog;
+    private final List<RouteMetrics> mRoutes;
+    private final List<ResponseCache> mCaches;
+    private final LongAdder[] mStatuses;
+    private final LongAdder mHandshakesStarted;
+    private final LongAdder mHandshakesFailed;
+    private final LongAdder mFullHandshakes;
+    private final LongAdder mResumedHandshakes;
+    private final LatencyHistogram mHandshakeTime;
+    private final LongAdder mReloads;
+    private final LongAdder mReloadFailures;
+    private volatile long mLastReload;
+    private ObjectName mName;
+
+    /**
+     * Create empty measurements.
+     *
+     * @param admission the admission controller whose queue is measured
+     * @param accessLog the access log whose dropped records are counted
+     */
+    ServerMetrics(AdmissionController admission, AccessLog accessLog) {
+        mAdmission = admission;
+        mAccessLog = accessLog;
+        mRoutes = new CopyOnWriteArrayList<>();
+        mCaches = new CopyOnWriteArrayList<>();
+        mStatuses = new LongAdder[MAX_STATUS];
+        for (var i = 0; i < MAX_STATUS; i++) {
+            mStatuses[i] = new LongAdder();
+        }
+        mHandshakesStarted = new LongAdder();
+        mHandshakesFailed = new LongAdder();
+        mFullHandshakes = new LongAdder();
+        mResumedHandshakes = new LongAdder();
+        mHandshakeTime = new LatencyHistogram();
+        mReloads = new LongAdder();
+        mReloadFailures = new LongAdder();
+    }
+
+    /**
+     * Create the measurements for a route.
+     *
+     * @param route the route as it was set on the builder
+     * @param method the method the route's handler takes, or null if it takes any
+     * @return the route's measurements
+     */
+    RouteMetrics addRoute(String route, RouteRequest.Method method) {
+        var metrics = new RouteMetrics(this, route, method);
+        mRoutes.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * Include a route's response cache in the measurements.
+     *
+     * @param cache the cache
+     */
+    void addCache(ResponseCache cache) {
+        mCaches.add(cache);
+    }
+
+    /**
+     * Count a response status code.
+     *
+     * @param status the code
+     */
+    void countStatus(int status) {
+        if (status >= 0 && status < MAX_STATUS) {
+            mStatuses[status].increment();
+        }
+    }
+
+    /**
+     * Count a TLS handshake starting.
+     */
+    void handshakeStarted() {
+        mHandshakesStarted.increment();
+    }
+
+    /**
+     * Record a TLS handshake finishing.
+     *
+     * @param nanos how long it took
+     */
+    void handshakeCompleted(long nanos) {
+        mHandshakeTime.record(nanos);
+    }
+
+    /**
+     * Count a TLS handshake failing.
+     */
+    void handshakeFailed() {
+        mHandshakesFailed.increment();
+    }
+
+    /**
+     * Count a TLS handshake that chose a certificate, which only full handshakes do.
+     */
+    void fullHandshake() {
+        mFullHandshakes.increment();
+    }
+
+    /**
+     * Count a completed TLS handshake that resumed an earlier session.
+     */
+    void handshakeResumed() {
+        mResumedHandshakes.increment();
+    }
+
+    /**
+     * Count a new certificate being swapped in.
+     */
+    void certificateReloaded() {
+        mReloads.increment();
+        mLastReload = System.currentTimeMillis();
+    }
+
+    /**
+     * Count a failed attempt to reload the keystore.
+     */
+    void certificateReloadFailed() {
+        mReloadFailures.increment();
+    }
+
+    /**
+     * Make these measurements visible through the platform MBean server.
+     * <p>
+     * Failing to register only prints the problem, since the server works without it.
+     *
+     * @param port the port the server listens on, which tells servers in one JVM apart
+     */
+    synchronized void register(int port) {
+        try {
+            var name = new ObjectName(String.format("%s:type=WebServer,port=%d", DOMAIN, port));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mName = name;
+        } catch (JMException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Remove these measurements from the platform MBean server, if they were registered.
+     */
+    synchronized void unregister() {
+        if (mName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mName);
+        } catch (JMException ex) {
+            ex.printStackTrace();
+        }
+        mName = null;
+    }
+
+    @Override
+    public long getRequestCount() {
+        var count = 0L;
+        for (var route : mRoutes) {
+            count += route.getRequests();
+        }
+        return count;
+    }
+
+    @Override
+    public Map<Integer, Long> getStatusCounts() {
+        var counts = new TreeMap<Integer, Long>();
+        for (var i = 0; i < MAX_STATUS; i++) {
+            var count = mStatuses[i].sum();
+            if (count > 0) {
+                counts.put(i, count);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getRouteRequestCounts() {
+        var counts = new TreeMap<String, Long>();
+        for (var route : mRoutes) {
+            counts.merge(route.getName(), route.getRequests(), Long::sum);
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getRouteMeanLatencyMillis() {
+        var latencies = new TreeMap<String, Double>();
+        for (var route : mRoutes) {
+            latencies.put(route.getName(), route.getTotalTime().getMeanMillis());
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Double> getRouteP99LatencyMillis() {
+        var latencies = new TreeMap<String, Double>();
+        for (var route : mRoutes) {
+            latencies.put(route.getName(), route.getTotalTime().getPercentileMillis(99));
+        }
+        return latencies;
+    }
+
+    @Override
+    public long getBytesIn() {
+        var bytes = 0L;
+        for (var route : mRoutes) {
+            bytes += route.getBytesIn();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesOut() {
+        var bytes = 0L;
+        for (var route : mRoutes) {
+            bytes += route.getBytesOut();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getCacheHits() {
+        var hits = 0L;
+        for (var cache : mCaches) {
+            hits += cache.getHits() + cache.getStaleHits() + cache.getCoalesced();
+        }
+        return hits;
+    }
+
+    @Override
+    public long getStaleCacheHits() {
+        var hits = 0L;
+        for (var cache : mCaches) {
+            hits += cache.getStaleHits();
+        }
+        return hits;
+    }
+
+    @Override
+    public long getCoalescedCacheMisses() {
+        var coalesced = 0L;
+        for (var cache : mCaches) {
+            coalesced += cache.getCoalesced();
+        }
+        return coalesced;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        var misses = 0L;
+        for (var cache : mCaches) {
+            misses += cache.getMisses();
+        }
+        return misses;
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        var hits = (double) getCacheHits();
+        var total = hits + getCacheMisses();
+        return total == 0 ? Double.NaN : hits / total;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return mAdmission.getQueueDepth();
+    }
+
+    @Override
+    public int getActiveThreads() {
+        return mAdmission.getActiveCount();
+    }
+
+    @Override
+    public double getP99QueueWaitMillis() {
+        return mAdmission.getQueueWait().getPercentileMillis(99);
+    }
+
+    @Override
+    public long getRejectedRequestCount() {
+        return mAdmission.getRejectedCount();
+    }
+
+    @Override
+    public long getExpiredRequestCount() {
+        return mAdmission.getExpiredCount();
+    }
+
+    @Override
+    public long getHandshakesStarted() {
+        return mHandshakesStarted.sum();
+    }
+
+    @Override
+    public long getHandshakesCompleted() {
+        return mHandshakeTime.getCount();
+    }
+
+    @Override
+    public long getHandshakesFailed() {
+        return mHandshakesFailed.sum();
+    }
+
+    @Override
+    public long getFullHandshakes() {
+        return mFullHandshakes.sum();
+    }
+
+    @Override
+    public long getResumedHandshakes() {
+        if (mHandshakeTime.getCount() == 0 && mHandshakesFailed.sum() == 0) {
+            return Math.max(0, mHandshakesStarted.sum() - mFullHandshakes.sum());
+        }
+        return mResumedHandshakes.sum();
+    }
+
+    @Override
+    public double getHandshakeResumptionRatio() {
+        var resumed = (double) getResumedHandshakes();
+        var total = resumed + mFullHandshakes.sum();
+        return total == 0 ? Double.NaN : resumed / total;
+    }
+
+    @Override
+    public double getMeanHandshakeMillis() {
+        return mHandshakeTime.getMeanMillis();
+    }
+
+    @Override
+    public double getP99HandshakeMillis() {
+        return mHandshakeTime.getPercentileMillis(99);
+    }
+
+    @Override
+    public long getCertificateReloads() {
+        return mReloads.sum();
+    }
+
+    @Override
+    public long getCertificateReloadFailures() {
+        return mReloadFailures.sum();
+    }
+
+    @Override
+    public long getLastCertificateReload() {
+        return mLastReload;
+    }
+
+    @Override
+    public long getAccessLogDropped() {
+        return mAccessLog.getDropped();
+    }
+
+    /**
+     * Write every measurement in the Prometheus text exposition format.
+     *
+     * @return the exposition
+     */
+    String toPrometheus() {
+        var out = new StringBuilder(4096 + mRoutes.size() * 4096);
+        header(out, "webserver_requests_total", "counter", "Requests answered.");
+        for (var route : mRoutes) {
+            out.append("webserver_requests_total{").append(labels(route)).append("} ")
+                .append(route.getRequests()).append('\n');
+        }
+        header(out, "webserver_responses_total", "counter", "Responses sent by status code.");
+        for (var status : getStatusCounts().entrySet()) {
+            out.append("webserver_responses_total{code=\"").append(status.getKey())
+                .append("\"} ").append(status.getValue()).append('\n');
+        }
+        header(out, "webserver_request_duration_seconds", "histogram",
+            "Time from a thread picking a request up to its response being sent.");
+        for (var route : mRoutes) {
+            route.getTotalTime().writePrometheus(out, "webserver_request_duration_seconds",
+                labels(route) + ",");
+        }
+        header(out, "webserver_handler_duration_seconds", "histogram",
+            "Time the route handler took to return a response.");
+        for (var route : mRoutes) {
+            route.getHandlerTime().writePrometheus(out, "webserver_handler_duration_seconds",
+                labels(route) + ",");
+        }
+        header(out, "webserver_request_bytes_total", "counter", "Request body bytes read.");
+        for (var route : mRoutes) {
+            out.append("webserver_request_bytes_total{").append(labels(route)).append("} ")
+                .append(route.getBytesIn()).append('\n');
+        }
+        header(out, "webserver_response_bytes_total", "counter",
+            "Response body bytes sent, after compression.");
+        for (var route : mRoutes) {
+            out.append("webserver_response_bytes_total{").append(labels(route)).append("} ")
+                .append(route.getBytesOut()).append('\n');
+        }
+        header(out, "webserver_cache_requests_total", "counter",
+            "Cached route requests by result: hit, stale (sent while refreshing), coalesced "
+            + "(waited for another request's miss) or miss (called the handler).");
+        for (var cache : mCaches) {
+            var labels = labels(cache.getRoute());
+            cacheSample(out, labels, "hit", cache.getHits());
+            cacheSample(out, labels, "stale", cache.getStaleHits());
+            cacheSample(out, labels, "coalesced", cache.getCoalesced());
+            cacheSample(out, labels, "miss", cache.getMisses());
+        }
+        header(out, "webserver_cache_bytes", "gauge", "Response body bytes held in route caches.");
+        for (var cache : mCaches) {
+            out.append("webserver_cache_bytes{").append(labels(cache.getRoute())).append("} ")
+                .append(cache.getCachedBytes()).append('\n');
+        }
+        sample(out, "webserver_queue_depth", "gauge", "Requests waiting for a thread.",
+            getQueueDepth());
+        sample(out, "webserver_active_threads", "gauge", "Threads handling a request.",
+            getActiveThreads());
+        header(out, "webserver_queue_wait_seconds", "histogram",
+            "Time requests waited for a thread.");
+        mAdmission.getQueueWait().writePrometheus(out, "webserver_queue_wait_seconds", "");
+        sample(out, "webserver_rejected_requests_total", "counter",
+            "Requests shed because the queue was full.", getRejectedRequestCount());
+        sample(out, "webserver_expired_requests_total", "counter",
+            "Requests shed because they waited too long for a thread.",
+            getExpiredRequestCount());
+        sample(out, "webserver_tls_handshakes_started_total", "counter",
+            "TLS handshakes started.", getHandshakesStarted());
+        sample(out, "webserver_tls_handshakes_failed_total", "counter",
+            "TLS handshakes that failed.", getHandshakesFailed());
+        sample(out, "webserver_tls_handshakes_full_total", "counter",
+            "TLS handshakes that sent the certificate instead of resuming a session.",
+            getFullHandshakes());
+        sample(out, "webserver_tls_handshakes_resumed_total", "counter",
+            "TLS handshakes that resumed an earlier session.", getResumedHandshakes());
+        header(out, "webserver_tls_handshake_duration_seconds", "histogram",
+            "Duration of completed TLS handshakes.");
+        mHandshakeTime.writePrometheus(out, "webserver_tls_handshake_duration_seconds", "");
+        sample(out, "webserver_certificate_reloads_total", "counter",
+            "Certificates swapped in from the keystore.", getCertificateReloads());
+        sample(out, "webserver_certificate_reload_failures_total", "counter",
+            "Failed attempts to reload the keystore.", getCertificateReloadFailures());
+        sample(out, "webserver_access_log_dropped_total", "counter",
+            "Access log records dropped because the writer fell behind.", getAccessLogDropped());
+        return out.toString();
+    }
+
+    /**
+     * Write the HELP and TYPE lines of a metric.
+     *
+     * @param out where to write them
+     * @param name the metric name
+     * @param type the metric type
+     * @param help the description
+     */
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Write a metric with a single unlabeled sample.
+     *
+     * @param out where to write it
+     * @param name the metric name
+     * @param type the metric type
+     * @param help the description
+     * @param value the value
+     */
+    private static void sample(StringBuilder out, String name, String type, String help,
+            long value) {
+        header(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write one result count of a route's response cache.
+     *
+     * @param out where to write it
+     * @param labels the route's labels
+     * @param result the result label
+     * @param value the count
+     */
+    private static void cacheSample(StringBuilder out, String labels, String result,
+            long value) {
+        out.append("webserver_cache_requests_total{").append(labels).append(",result=\"")
+            .append(result).append("\"} ").append(value).append('\n');
+    }
+
+    /**
+     * Format the labels identifying a route.
+     *
+     * @param route the route
+     * @return the route and method labels, without braces
+     */
+    private static String labels(RouteMetrics route) {
+        return String.format("route=\"%s\",method=\"%s\"", escape(route.getRoute()),
+            route.getMethod());
+    }
+
+    /**
+     * Escape a label value for the Prometheus text format.
+     *
+     * @param value the value
+     * @return the value with backslashes, quotes and newlines escaped
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,232 @@
+package com.dylantjohnson.webserver;
+
+import java.util.*;
+
+/**
+ * The management interface a running {@link WebServer} registers its {@link ServerMetrics}
+ * under, as {@code com.dylantjohnson.webserver:type=WebServer,port=<port>}.
+ * <p>
+ * Counts are totals since the server was built. Latencies are estimated from histogram buckets,
+ * so they're the upper bound of the bucket the value falls in.
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * Get the number of requests answered.
+     *
+     * @return the count
+     */
+    long getRequestCount();
+
+    /**
+     * Get the number of responses sent with each status code.
+     *
+     * @return the counts by status code, leaving out codes never sent
+     */
+    Map<Integer, Long> getStatusCounts();
+
+    /**
+     * Get the number of requests answered by each route.
+     *
+     * @return the counts by method and route, such as {@code GET /users/{id}}
+     */
+    Map<String, Long> getRouteRequestCounts();
+
+    /**
+     * Get the mean time each route took to answer a request, from the request being picked up
+     * by a thread to the response being sent.
+     *
+     * @return the latencies in milliseconds by method and route
+     */
+    Map<String, Double> getRouteMeanLatencyMillis();
+
+    /**
+     * Get the 99th percentile of the time each route took to answer a request.
+     *
+     * @return the latencies in milliseconds by method and route
+     */
+    Map<String, Double> getRouteP99LatencyMillis();
+
+    /**
+     * Get the number of request body bytes read.
+     *
+     * @return the byte count
+     */
+    long getBytesIn();
+
+    /**
+     * Get the number of response body bytes sent, after compression.
+     *
+     * @return the byte count
+     */
+    long getBytesOut();
+
+    /**
+     * Get the number of requests to cached routes answered without calling their handler,
+     * including stale and coalesced ones.
+     *
+     * @return the count
+     */
+    long getCacheHits();
+
+    /**
+     * Get the number of requests to cached routes sent a stale response while another request
+     * refreshed it.
+     *
+     * @return the count
+     */
+    long getStaleCacheHits();
+
+    /**
+     * Get the number of requests to cached routes that missed the cache but waited for another
+     * request's call to the handler instead of making their own.
+     *
+     * @return the count
+     */
+    long getCoalescedCacheMisses();
+
+    /**
+     * Get the number of requests to cached routes that called their handler.
+     *
+     * @return the count
+     */
+    long getCacheMisses();
+
+    /**
+     * Get the share of requests to cached routes answered without calling their handler.
+     *
+     * @return the ratio, from 0 to 1, or NaN if no cached route was requested
+     */
+    double getCacheHitRatio();
+
+    /**
+     * Get the number of requests waiting for a thread.
+     *
+     * @return the queue depth
+     */
+    int getQueueDepth();
+
+    /**
+     * Get the number of threads handling a request right now.
+     *
+     * @return the active thread count
+     */
+    int getActiveThreads();
+
+    /**
+     * Get the 99th percentile of the time requests waited for a thread.
+     *
+     * @return the wait in milliseconds
+     */
+    double getP99QueueWaitMillis();
+
+    /**
+     * Get the number of requests answered with a 503 because the queue was full.
+     *
+     * @return the count
+     */
+    long getRejectedRequestCount();
+
+    /**
+     * Get the number of requests answered with a 503 because they waited too long for a thread.
+     *
+     * @return the count
+     */
+    long getExpiredRequestCount();
+
+    /**
+     * Get the number of TLS handshakes started.
+     *
+     * @return the count
+     */
+    long getHandshakesStarted();
+
+    /**
+     * Get the number of TLS handshakes seen through to the end.
+     * <p>
+     * Only transports that drive the handshake themselves, like {@link Transport#nio()}, can see
+     * handshakes finish. The JDK's server only reports handshakes starting.
+     *
+     * @return the count
+     */
+    long getHandshakesCompleted();
+
+    /**
+     * Get the number of TLS handshakes that failed, or whose connection closed before they
+     * finished. Like completed handshakes, these are only seen by transports that drive the
+     * handshake themselves.
+     *
+     * @return the count
+     */
+    long getHandshakesFailed();
+
+    /**
+     * Get the number of full TLS handshakes, the ones that didn't resume an earlier session and
+     * so had to send the certificate and sign with its key. These are counted with any
+     * transport, when the certificate is chosen.
+     *
+     * @return the count
+     */
+    long getFullHandshakes();
+
+    /**
+     * Get the number of completed TLS handshakes that resumed an earlier session.
+     * <p>
+     * Transports that drive the handshake themselves see which ones resumed. The JDK's server
+     * doesn't report handshakes finishing, so with it this is estimated as the handshakes started
+     * that didn't choose a certificate, which also counts any that failed.
+     *
+     * @return the count
+     */
+    long getResumedHandshakes();
+
+    /**
+     * Get the share of handshakes that resumed an earlier session instead of doing a full
+     * handshake.
+     *
+     * @return the ratio, from 0 to 1, or NaN if no handshake was seen
+     */
+    double getHandshakeResumptionRatio();
+
+    /**
+     * Get the mean duration of completed TLS handshakes, from the client's first message to the
+     * handshake finishing.
+     *
+     * @return the duration in milliseconds
+     */
+    double getMeanHandshakeMillis();
+
+    /**
+     * Get the 99th percentile of the duration of completed TLS handshakes.
+     *
+     * @return the duration in milliseconds
+     */
+    double getP99HandshakeMillis();
+
+    /**
+     * Get the number of times a new certificate was swapped in.
+     *
+     * @return the count
+     */
+    long getCertificateReloads();
+
+    /**
+     * Get the number of times reloading the keystore failed, leaving the old certificate in use.
+     *
+     * @return the count
+     */
+    long getCertificateReloadFailures();
+
+    /**
+     * Get when a new certificate was last swapped in.
+     *
+     * @return the time in milliseconds since the epoch, or 0 if it never was
+     */
+    long getLastCertificateReload();
+
+    /**
+     * Get the number of access log records dropped because the buffer was full.
+     *
+     * @return the count
+     */
+    long getAccessLogDropped();
+}
@@ -0,0 +1,391 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.security.cert.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+
+/**
+ * A key manager that picks the certificate for each handshake by the host name the client asked
+ * for with SNI, for servers that serve several domains from one listener.
+ * <p>
+ * Each host name set with {@link WebServerBuilder#setKeystore(String, File, String)} has a
+ * keystore of its own, loaded the first time a client asks for it and kept from then on, so
+ * hosts nobody visits cost nothing. A host name can also be a wildcard such as
+ * {@code *.example.com}, matching one label in its place. Clients that send no host name, or
+ * one with no keystore, get the server's main keystore, as do clients asking for a host whose
+ * keystore can't be loaded; loading it is tried again {@link #RETRY_SEC} seconds later.
+ * <p>
+ * Every host has its own {@link SwappableKeyManager}, so its keystore is reloaded on its own,
+ * and only the sessions negotiated for that host are invalidated. The main keystore is watched
+ * by {@link WebServer}, while the loaded host keystores are all checked by one thread every
+ * {@link #POLL_RATE_SEC} seconds, however many there are.
+ * <p>
+ * Aliases handed out by this key manager start with the index of the host they came from, so
+ * the key and chain are looked up in the right place.
+ * <p>
+ * This class is thread-safe.
+ */
+final class SniKeyManager extends X509ExtendedKeyManager {
+    static final int POLL_RATE_SEC = 10;
+    static final int RETRY_SEC = 10;
+
+    private static final char HOST_SEPARATOR = '|';
+    private static final String WILDCARD = "*.";
+
+    /**
+     * A host's keystore as set on the builder.
+     */
+    static final class Keystore {
+        final File mFile;
+        final String mPassword;
+
+        /**
+         * Create a keystore setting.
+         *
+         * @param file the keystore file
+         * @param password the password for the keystore file (empty string if none)
+         */
+        Keystore(File file, String password) {
+            mFile = file;
+            mPassword = password;
+        }
+    }
+
+    /**
+     * A host name, or the server's main keystore, and its key material once it's loaded.
+     */
+    private static class Host {
+        final int mIndex;
+        final String mName;
+        final Keystore mKeystore;
+        volatile SwappableKeyManager mKeyManager;
+        FileWatcher mWatcher;
+        long mRetryAt;
+
+        Host(int index, String name, Keystore keystore) {
+            mIndex = index;
+            mName = name;
+            mKeystore = keystore;
+        }
+
+        String tag(String alias) {
+            return alias == null ? null : mIndex + String.valueOf(HOST_SEPARATOR) + alias;
+        }
+
+        String[] tag(String[] aliases) {
+            if (aliases == null) {
+                return null;
+            }
+            var tagged = new String[aliases.length];
+            for (int i = 0; i < aliases.length; i++) {
+                tagged[i] = tag(aliases[i]);
+            }
+            return tagged;
+        }
+    }
+
+    private final Host[] mHosts;
+    private final Map<String, Host> mExact;
+    private final Map<String, Host> mWildcards;
+    private final ServerMetrics mMetrics;
+    private volatile SSLSessionContext mSessions;
+    private Thread mThread;
+
+    /**
+     * Create a key manager.
+     *
+     * @param main the key manager of the server's main keystore
+     * @param keystores the keystores of the other host names, keyed by lowercase host name or
+     *     wildcard
+     * @param metrics the measurements full handshakes and reloads are recorded in
+     */
+    SniKeyManager(SwappableKeyManager main, Map<String, Keystore> keystores,
+            ServerMetrics metrics) {
+        mMetrics = metrics;
+        mHosts = new Host[keystores.size() + 1];
+        mHosts[0] = new Host(0, null, null);
+        mHosts[0].mKeyManager = main;
+        mExact = new HashMap<>();
+        mWildcards = new HashMap<>();
+        var index = 1;
+        for (var keystore : keystores.entrySet()) {
+            var name = keystore.getKey();
+            var host = new Host(index, name, keystore.getValue());
+            mHosts[index++] = host;
+            if (name.startsWith(WILDCARD)) {
+                mWildcards.put(name.substring(WILDCARD.length()), host);
+            } else {
+                mExact.put(name, host);
+            }
+        }
+    }
+
+    /**
+     * Set where the sessions negotiated with this key manager are kept, so a reload can
+     * invalidate them.
+     *
+     * @param sessions the server session context of the SSLContext this key manager is in
+     */
+    void setSessions(SSLSessionContext sessions) {
+        mSessions = sessions;
+    }
+
+    /**
+     * Replace the key material of the server's main keystore, invalidating the sessions
+     * negotiated with it so they can't be resumed.
+     *
+     * @param keyManager the new key material
+     */
+    void setMain(X509ExtendedKeyManager keyManager) {
+        mHosts[0].mKeyManager.setDelegate(keyManager);
+        invalidate(mHosts[0]);
+    }
+
+    /**
+     * Start checking the loaded host keystores for changes. If there are no host keystores, or
+     * they're being checked already, this does nothing.
+     */
+    synchronized void startWatching() {
+        if (mThread != null || mHosts.length == 1) {
+            return;
+        }
+        mThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(POLL_RATE_SEC));
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (var host : mHosts) {
+                    FileWatcher watcher;
+                    synchronized (host) {
+                        watcher = host.mWatcher;
+                    }
+                    if (watcher != null) {
+                        try {
+                            watcher.checkFile();
+                        } catch (FileHashingException ex) {
+                            continue;
+                        }
+                    }
+                }
+            }
+        }, "SniKeyManager watcher");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop checking the host keystores for changes.
+     */
+    synchronized void stopWatching() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return mHosts[0].tag(mHosts[0].mKeyManager.getClientAliases(keyType, issuers));
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+        return mHosts[0].tag(mHosts[0].mKeyManager.chooseClientAlias(keyType, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyType, Principal[] issuers,
+            SSLEngine engine) {
+        return mHosts[0].tag(mHosts[0].mKeyManager.chooseEngineClientAlias(keyType, issuers,
+            engine));
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        return mHosts[0].tag(mHosts[0].mKeyManager.getServerAliases(keyType, issuers));
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        var session = socket instanceof SSLSocket
+            ? ((SSLSocket) socket).getHandshakeSession() : null;
+        var host = loaded(find(session));
+        return host.tag(host.mKeyManager.chooseServerAlias(keyType, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers,
+            SSLEngine engine) {
+        var host = loaded(find(engine == null ? null : engine.getHandshakeSession()));
+        return host.tag(host.mKeyManager.chooseEngineServerAlias(keyType, issuers, engine));
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        var host = owner(alias);
+        if (host == null) {
+            return null;
+        }
+        return host.mKeyManager.getCertificateChain(untag(alias));
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        var host = owner(alias);
+        if (host == null) {
+            return null;
+        }
+        return host.mKeyManager.getPrivateKey(untag(alias));
+    }
+
+    /**
+     * Find the host whose keystore serves a session, by the host name its client asked for.
+     *
+     * @param session the session, or null
+     * @return the host, or the main keystore's if no host matches
+     */
+    private Host find(SSLSession session) {
+        if (mHosts.length == 1 || !(session instanceof ExtendedSSLSession)) {
+            return mHosts[0];
+        }
+        for (var name : ((ExtendedSSLSession) session).getRequestedServerNames()) {
+            if (name instanceof SNIHostName) {
+                var requested = ((SNIHostName) name).getAsciiName().toLowerCase(Locale.ROOT);
+                var host = mExact.get(requested);
+                if (host == null) {
+                    var dot = requested.indexOf('.');
+                    host = dot < 0 ? null : mWildcards.get(requested.substring(dot + 1));
+                }
+                if (host != null) {
+                    return host;
+                }
+            }
+        }
+        return mHosts[0];
+    }
+
+    /**
+     * Make sure a host's keystore is loaded, loading it now if it's the first time it's needed.
+     *
+     * @param host the host
+     * @return the host, or the main keystore's if the host's keystore can't be loaded
+     */
+    private Host loaded(Host host) {
+        if (host.mKeyManager != null) {
+            return host;
+        }
+        synchronized (host) {
+            if (host.mKeyManager != null) {
+                return host;
+            }
+            var now = System.nanoTime();
+            if (host.mRetryAt != 0 && now - host.mRetryAt < 0) {
+                return mHosts[0];
+            }
+            try {
+                var keyManager = DefaultConfigurator.loadKeyManager(host.mKeystore.mFile,
+                    host.mKeystore.mPassword);
+                var watcher = new FileWatcher(host.mKeystore.mFile);
+                watcher.addListener(() -> reload(host));
+                host.mWatcher = watcher;
+                host.mKeyManager = new SwappableKeyManager(keyManager, mMetrics::fullHandshake);
+                return host;
+            } catch (SslCreationException | FileHashingException ex) {
+                ex.printStackTrace();
+                host.mRetryAt = now + TimeUnit.SECONDS.toNanos(RETRY_SEC) | 1;
+                return mHosts[0];
+            }
+        }
+    }
+
+    /**
+     * Reload a host's keystore after it changed. If it can't be loaded, the old key material
+     * stays in use.
+     *
+     * @param host the host
+     */
+    private void reload(Host host) {
+        var event = new ServerEvents.KeystoreReloadEvent();
+        event.begin();
+        event.keystore = host.mKeystore.mFile.getPath();
+        var start = System.nanoTime();
+        try {
+            host.mKeyManager.setDelegate(DefaultConfigurator.loadKeyManager(host.mKeystore.mFile,
+                host.mKeystore.mPassword));
+        } catch (SslCreationException ex) {
+            mMetrics.certificateReloadFailed();
+            event.commit();
+            ex.printStackTrace();
+            return;
+        }
+        invalidate(host);
+        mMetrics.certificateReloaded();
+        event.succeeded = true;
+        event.commit();
+        System.out.println(String.format("Reloaded %s for %s in %d ms", host.mKeystore.mFile,
+            host.mName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * Invalidate the sessions negotiated with a host's keystore, so they can't be resumed.
+     * Connections using them aren't interrupted.
+     *
+     * @param host the host
+     */
+    private void invalidate(Host host) {
+        var sessions = mSessions;
+        if (sessions == null) {
+            return;
+        }
+        var ids = sessions.getIds();
+        while (ids.hasMoreElements()) {
+            var session = sessions.getSession(ids.nextElement());
+            if (session == null) {
+                continue;
+            }
+            var owner = find(session);
+            if ((owner.mKeyManager == null ? mHosts[0] : owner) == host) {
+                session.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Find the host that handed out an alias.
+     *
+     * @param alias an alias returned by this key manager
+     * @return the host, or null if the alias isn't one of this key manager's
+     */
+    private Host owner(String alias) {
+        if (alias == null) {
+            return null;
+        }
+        int separator = alias.indexOf(HOST_SEPARATOR);
+        if (separator < 0) {
+            return null;
+        }
+        int index;
+        try {
+            index = Integer.parseInt(alias, 0, separator, 10);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return index >= 0 && index < mHosts.length ? mHosts[index] : null;
+    }
+
+    /**
+     * Strip the host index from an alias handed out by this key manager.
+     *
+     * @param alias the tagged alias
+     * @return the alias as the host's key manager knows it
+     */
+    private static String untag(String alias) {
+        return alias.substring(alias.indexOf(HOST_SEPARATOR) + 1);
+    }
+}
@@ -0,0 +1,368 @@
+package com.dylantjohnson.webserver;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+
+/**
+ * A handler that serves files from a directory.
+ * <p>
+ * The request path relative to the handler's route picks the file, so a handler set for the
+ * route {@code /static} serves {@code /static/css/a.css} from {@code css/a.css} in its directory.
+ * A request for a directory serves its {@code index.html}.
+ * <p>
+ * Small files are kept in a size-bounded memory cache. Responses carry a strong ETag and a
+ * Last-Modified date, and conditional requests that match them are answered with a 304 without
+ * touching the file. Single and multiple byte ranges are supported through the Range and
+ * If-Range headers.
+ * <p>
+ * Textual files are compressed for clients that accept it. A file like {@code app.js.gz} next
+ * to {@code app.js} is sent as the gzip variant of it. Otherwise, the compressed variant of a
+ * cached file is computed once and cached alongside it, and bigger files are compressed as they
+ * are sent.
+ * <p>
+ * This class is thread-safe.
+ */
+public class StaticFileHandler implements RouteHandler {
+    private static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_CACHED_FILE_BYTES = 1024L * 1024;
+    private static final int MAX_RANGES = 16;
+    private static final String INDEX_FILE = "index.html";
+    private static final String BOUNDARY = "com.dylantjohnson.webserver.byteranges";
+    private static final RouteResponse NOT_FOUND = RouteResponse.of(
+        RouteResponse.Status.NOT_FOUND, "text/plain; charset=utf-8", "Not Found".getBytes());
+    private static final byte[] NOT_SATISFIABLE_BODY = "Range Not Satisfiable".getBytes();
+
+    private Path mRoot;
+    private FileCache mCache;
+
+    /**
+     * A byte range of a file, with both ends included.
+     */
+    private static class Range {
+        final long mFirst;
+        final long mLast;
+
+        Range(long first, long last) {
+            mFirst = first;
+            mLast = last;
+        }
+
+        long length() {
+            return mLast - mFirst + 1;
+        }
+
+        String contentRange(long size) {
+            return "bytes " + mFirst + "-" + mLast + "/" + size;
+        }
+    }
+
+    /**
+     * Create a handler serving the files in a directory, with a default cache size.
+     *
+     * @param root the directory to serve
+     */
+    public StaticFileHandler(File root) {
+        this(root, DEFAULT_CACHE_BYTES, DEFAULT_CACHED_FILE_BYTES);
+    }
+
+    /**
+     * Create a handler serving the files in a directory.
+     *
+     * @param root the directory to serve
+     * @param maxCacheBytes the most file content to keep in memory, in bytes
+     * @param maxCachedFileBytes the biggest file whose content will be kept in memory, in bytes
+     */
+    public StaticFileHandler(File root, long maxCacheBytes, long maxCachedFileBytes) {
+        mRoot = root.toPath().toAbsolutePath().normalize();
+        mCache = new FileCache(maxCacheBytes, maxCachedFileBytes);
+    }
+
+    @Override
+    public RouteResponse handle(RouteRequest request) throws Exception {
+        var entry = find(request.getRoutePath());
+        if (entry == null) {
+            return NOT_FOUND;
+        }
+        var response = new RouteResponseBuilder()
+            .setHeader("Last-Modified", entry.mLastModified)
+            .setHeader("Accept-Ranges", "bytes");
+        var compressible = Compression.isCompressibleType(entry.mContentType);
+        if (compressible) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        var ranges = request.getHeader("Range") != null && isRangeCurrent(request, entry)
+            ? parseRanges(request.getHeader("Range"), entry.mSize)
+            : null;
+        var encoding = request.getAcceptedEncoding();
+        if (ranges != null || !compressible || entry.mSize < request.getCompressionMinSize()) {
+            encoding = null;
+        }
+        var precompressed = Compression.GZIP.equals(encoding)
+            ? mCache.getOptional(Path.of(entry.mPath + ".gz"))
+            : null;
+        var etag = encoding == null ? entry.mEtag
+            : precompressed != null ? Compression.variantEtag(precompressed.mEtag, encoding)
+            : Compression.variantEtag(entry.mEtag, encoding);
+        response.setHeader("ETag", etag);
+        if (isNotModified(request, entry, etag)) {
+            return response.setStatus(RouteResponse.Status.NOT_MODIFIED).build();
+        }
+        if (encoding != null) {
+            response.setHeader("Content-Type", entry.mContentType);
+            if (precompressed != null) {
+                response.setHeader("Content-Encoding", encoding);
+                return setBody(response, precompressed, 0, precompressed.mSize).build();
+            }
+            var variant = mCache.getVariant(entry, encoding);
+            if (variant != null) {
+                return response
+                    .setHeader("Content-Encoding", encoding)
+                    .setBody(variant)
+                    .build();
+            }
+            response.setHeader("ETag", entry.mEtag);
+            return setBody(response, entry, 0, entry.mSize).build();
+        }
+        if (ranges == null) {
+            response.setHeader("Content-Type", entry.mContentType);
+            return setBody(response, entry, 0, entry.mSize).build();
+        }
+        if (ranges.isEmpty()) {
+            return response
+                .setStatus(RouteResponse.Status.RANGE_NOT_SATISFIABLE)
+                .setHeader("Content-Range", "bytes */" + entry.mSize)
+                .setHeader("Content-Type", "text/plain; charset=utf-8")
+                .setBody(NOT_SATISFIABLE_BODY)
+                .build();
+        }
+        response.setStatus(RouteResponse.Status.PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            var range = ranges.get(0);
+            response
+                .setHeader("Content-Type", entry.mContentType)
+                .setHeader("Content-Range", range.contentRange(entry.mSize));
+            return setBody(response, entry, range.mFirst, range.length()).build();
+        }
+        return buildMultipartBody(response, entry, ranges).build();
+    }
+
+    /**
+     * Find the cache entry for a request path.
+     *
+     * @param routePath the request path relative to this handler's route
+     * @return the entry, or null if there is no such file inside the root directory
+     * @throws IOException if the file can't be read
+     */
+    private FileCache.Entry find(String routePath) throws IOException {
+        var relative = routePath.startsWith("/") ? routePath.substring(1) : routePath;
+        Path path;
+        try {
+            path = mRoot.resolve(relative).normalize();
+        } catch (InvalidPathException ex) {
+            return null;
+        }
+        if (!path.startsWith(mRoot)) {
+            return null;
+        }
+        if (relative.isEmpty() || relative.endsWith("/")) {
+            return mCache.get(path.resolve(INDEX_FILE));
+        }
+        var entry = mCache.get(path);
+        if (entry == null && Files.isDirectory(path)) {
+            entry = mCache.get(path.resolve(INDEX_FILE));
+        }
+        return entry;
+    }
+
+    /**
+     * Check if the client's cached copy of a file is still current.
+     * <p>
+     * If-None-Match takes precedence over If-Modified-Since when both are sent.
+     *
+     * @param request the request
+     * @param entry the file
+     * @param etag the ETag of the representation that would be sent
+     * @return true if a 304 should be sent
+     */
+    private static boolean isNotModified(RouteRequest request, FileCache.Entry entry,
+            String etag) {
+        var ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesEtag(ifNoneMatch, etag);
+        }
+        var ifModifiedSince = parseDate(request.getHeader("If-Modified-Since"));
+        return ifModifiedSince != null
+            && entry.mModified.toInstant().getEpochSecond() <= ifModifiedSince.getEpochSecond();
+    }
+
+    /**
+     * Check if the Range header applies, which it does unless an If-Range header names an old
+     * version of the file.
+     *
+     * @param request the request
+     * @param entry the file
+     * @return true if the Range header should be honored
+     */
+    private static boolean isRangeCurrent(RouteRequest request, FileCache.Entry entry) {
+        var ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(entry.mEtag);
+        }
+        var date = parseDate(ifRange);
+        return date != null
+            && entry.mModified.toInstant().getEpochSecond() == date.getEpochSecond();
+    }
+
+    /**
+     * Check if an If-None-Match header lists an ETag, using weak comparison.
+     *
+     * @param header the header value
+     * @param etag the ETag of the file
+     * @return true if the header matches
+     */
+    private static boolean matchesEtag(String header, String etag) {
+        for (var candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse an HTTP date.
+     *
+     * @param value the date, or null
+     * @return the date, or null if there is none or it can't be parsed
+     */
+    private static Instant parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse a Range header.
+     *
+     * @param header the header value, or null
+     * @param size the size of the file
+     * @return the satisfiable ranges, an empty list if none are satisfiable, or null if the whole
+     *         file should be sent because the header is missing, malformed or asks for too many
+     *         ranges
+     */
+    private static List<Range> parseRanges(String header, long size) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        var specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        var ranges = new ArrayList<Range>(specs.length);
+        for (var spec : specs) {
+            spec = spec.trim();
+            var dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    var suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else if (dash == spec.length() - 1) {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = Long.parseLong(spec.substring(dash + 1));
+                    if (last < first) {
+                        return null;
+                    }
+                    last = Math.min(last, size - 1);
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            if (first < 0) {
+                return null;
+            }
+            if (first < size) {
+                ranges.add(new Range(first, last));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Set part of a file as the body of a response.
+     * <p>
+     * Cached contents are handed over without copying. Otherwise the file is streamed.
+     *
+     * @param response the response to set the body of
+     * @param entry the file
+     * @param offset the index of the first byte to send
+     * @param length the number of bytes to send
+     * @return the response builder
+     * @throws Exception if the file can't be opened
+     */
+    private static RouteResponseBuilder setBody(RouteResponseBuilder response,
+            FileCache.Entry entry, long offset, long length) throws Exception {
+        if (entry.mContent != null) {
+            return response.setBody(ByteBuffer.wrap(entry.mContent, (int) offset, (int) length));
+        }
+        return response.setBody(entry.open(offset, length), length);
+    }
+
+    /**
+     * Set a multipart/byteranges body on a response.
+     *
+     * @param response the response to set the body of
+     * @param entry the file
+     * @param ranges the ranges to send
+     * @return the response builder
+     * @throws Exception if the file can't be opened
+     */
+    private static RouteResponseBuilder buildMultipartBody(RouteResponseBuilder response,
+            FileCache.Entry entry, List<Range> ranges) throws Exception {
+        var parts = new ArrayList<InputStream>(ranges.size() * 2 + 1);
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            var range = ranges.get(i);
+            var header = (i == 0 ? "" : "\r\n") + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: " + entry.mContentType + "\r\n"
+                + "Content-Range: " + range.contentRange(entry.mSize) + "\r\n\r\n";
+            var headerBytes = header.getBytes();
+            parts.add(new ByteArrayInputStream(headerBytes));
+            parts.add(entry.open(range.mFirst, range.length()));
+            length += headerBytes.length + range.length();
+        }
+        var trailer = ("\r\n--" + BOUNDARY + "--\r\n").getBytes();
+        parts.add(new ByteArrayInputStream(trailer));
+        length += trailer.length;
+        return response
+            .setHeader("Content-Type", "multipart/byteranges; boundary=" + BOUNDARY)
+            .setBody(new SequenceInputStream(Collections.enumeration(parts)), length);
+    }
+}
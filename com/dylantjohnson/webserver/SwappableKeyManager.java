@@ -0,0 +1,213 @@
+package com.dylantjohnson.webserver;
+
+import java.lang.ref.*;
+import java.net.*;
+import java.security.*;
+import java.security.cert.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+
+/**
+ * A key manager that forwards to another key manager which can be replaced at any time.
+ * <p>
+ * The {@link SSLContext} built by {@link DefaultConfigurator} holds on to this key manager for
+ * its whole life, so swapping the delegate changes the certificate offered by every handshake
+ * that starts afterwards. Handshakes that already picked a certificate are unaffected, however
+ * many swaps happen before they finish: the key manager a server certificate came from is pinned
+ * to the handshake's session, and stays reachable by its aliases for as long as the session is.
+ * <p>
+ * This class is thread-safe.
+ */
+class SwappableKeyManager extends X509ExtendedKeyManager {
+    private static final char GENERATION_SEPARATOR = '/';
+    private static final String GENERATION_KEY = SwappableKeyManager.class.getName();
+
+    private final Runnable mOnServerAlias;
+    private final Map<Integer, WeakReference<Generation>> mRetired = new ConcurrentHashMap<>();
+    private volatile Generation mCurrent;
+    private volatile Generation mPrevious;
+
+    /**
+     * A delegate key manager tagged with the number of swaps that came before it.
+     * <p>
+     * Aliases handed out by this class carry the generation so that a handshake that chose an
+     * alias just before a swap still gets the key and chain belonging to that alias.
+     */
+    private static class Generation {
+        final int mNumber;
+        final X509ExtendedKeyManager mKeyManager;
+
+        Generation(int number, X509ExtendedKeyManager keyManager) {
+            mNumber = number;
+            mKeyManager = keyManager;
+        }
+
+        String tag(String alias) {
+            return alias == null ? null : mNumber + String.valueOf(GENERATION_SEPARATOR) + alias;
+        }
+
+        String[] tag(String[] aliases) {
+            if (aliases == null) {
+                return null;
+            }
+            var tagged = new String[aliases.length];
+            for (int i = 0; i < aliases.length; i++) {
+                tagged[i] = tag(aliases[i]);
+            }
+            return tagged;
+        }
+    }
+
+    /**
+     * Create a key manager with an initial delegate.
+     *
+     * @param delegate the key manager to forward to
+     * @param onServerAlias called whenever a server certificate is chosen, which happens once in
+     *     every full handshake and never when a session is resumed
+     */
+    public SwappableKeyManager(X509ExtendedKeyManager delegate, Runnable onServerAlias) {
+        mOnServerAlias = onServerAlias;
+        mCurrent = new Generation(0, delegate);
+    }
+
+    /**
+     * Replace the key manager being forwarded to.
+     * <p>
+     * The replaced key manager is kept until the next swap, and after that for as long as a
+     * session that chose a server certificate from it is, so that handshakes which chose an alias
+     * from it can still finish.
+     *
+     * @param delegate the new key manager
+     */
+    public synchronized void setDelegate(X509ExtendedKeyManager delegate) {
+        var current = mCurrent;
+        mRetired.values().removeIf(retired -> retired.get() == null);
+        mRetired.put(current.mNumber, new WeakReference<>(current));
+        mPrevious = current;
+        mCurrent = new Generation(current.mNumber + 1, delegate);
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        var current = mCurrent;
+        return current.tag(current.mKeyManager.getClientAliases(keyType, issuers));
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+        var current = mCurrent;
+        return current.tag(current.mKeyManager.chooseClientAlias(keyType, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyType, Principal[] issuers,
+            SSLEngine engine) {
+        var current = mCurrent;
+        return current.tag(current.mKeyManager.chooseEngineClientAlias(keyType, issuers, engine));
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        var current = mCurrent;
+        return current.tag(current.mKeyManager.getServerAliases(keyType, issuers));
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        var current = mCurrent;
+        var session = socket instanceof SSLSocket
+            ? ((SSLSocket) socket).getHandshakeSession() : null;
+        return chosen(current, session, current.mKeyManager.chooseServerAlias(keyType, issuers,
+            socket));
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers,
+            SSLEngine engine) {
+        var current = mCurrent;
+        return chosen(current, engine == null ? null : engine.getHandshakeSession(),
+            current.mKeyManager.chooseEngineServerAlias(keyType, issuers, engine));
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        var generation = find(alias);
+        if (generation == null) {
+            return null;
+        }
+        return generation.mKeyManager.getCertificateChain(untag(alias));
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        var generation = find(alias);
+        if (generation == null) {
+            return null;
+        }
+        return generation.mKeyManager.getPrivateKey(untag(alias));
+    }
+
+    /**
+     * Report a server alias being chosen, if one was, and pin the generation it came from to the
+     * handshake's session so it can't be discarded before the handshake is done with it.
+     *
+     * @param generation the generation that chose the alias
+     * @param session the handshake's session, or null if it isn't known
+     * @param alias the chosen alias as the delegate knows it, or null if none fit
+     * @return the tagged alias
+     */
+    private String chosen(Generation generation, SSLSession session, String alias) {
+        if (alias == null) {
+            return null;
+        }
+        if (session != null) {
+            session.putValue(GENERATION_KEY, generation);
+        }
+        mOnServerAlias.run();
+        return generation.tag(alias);
+    }
+
+    /**
+     * Find the generation that handed out an alias.
+     *
+     * @param alias an alias returned by this key manager
+     * @return the generation, or null if it has already been discarded, which only happens once
+     *     no session it chose a server certificate for is left
+     */
+    private Generation find(String alias) {
+        if (alias == null) {
+            return null;
+        }
+        int separator = alias.indexOf(GENERATION_SEPARATOR);
+        if (separator < 0) {
+            return null;
+        }
+        int number;
+        try {
+            number = Integer.parseInt(alias, 0, separator, 10);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        var current = mCurrent;
+        if (current.mNumber == number) {
+            return current;
+        }
+        var previous = mPrevious;
+        if (previous != null && previous.mNumber == number) {
+            return previous;
+        }
+        var retired = mRetired.get(number);
+        return retired == null ? null : retired.get();
+    }
+
+    /**
+     * Strip the generation from an alias handed out by this key manager.
+     *
+     * @param alias the tagged alias
+     * @return the alias as the delegate knows it
+     */
+    private static String untag(String alias) {
+        return alias.substring(alias.indexOf(GENERATION_SEPARATOR) + 1);
+    }
+}
@@ -0,0 +1,156 @@
+package com.dylantjohnson.webserver;
+
+import java.lang.reflect.*;
+import java.security.*;
+import java.util.*;
+import javax.net.ssl.*;
+
+/**
+ * The TLS tuning used by {@link DefaultConfigurator}: how sessions are kept for resumption and
+ * which cipher suites and key exchange groups are preferred.
+ * <p>
+ * Resuming a session skips the certificate and the signature of a full handshake, which is most
+ * of its cost. Sessions are kept in the SSLContext's session cache, or with stateless session
+ * tickets in the client, sealed with keys that also belong to the SSLContext. Either way they
+ * last as long as the SSLContext, so {@link WebServer} keeps it across restarts.
+ * <p>
+ * The server picks the cipher suite, preferring AES-GCM, which processors with AES instructions
+ * run fastest, and the 128-bit variant of it since it's cheaper and strong enough. X25519 is the
+ * preferred key exchange group. The JDK already prefers it, but on Java 20 and newer the order is
+ * also set explicitly.
+ * <p>
+ * This class is thread-safe.
+ */
+final class TlsSettings {
+    static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+    static final int DEFAULT_SESSION_TIMEOUT_SEC = 24 * 60 * 60;
+
+    private static final String TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+    private static final List<String> CIPHER_SUITES = List.of(
+        "TLS_AES_128_GCM_SHA256",
+        "TLS_AES_256_GCM_SHA384",
+        "TLS_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384");
+    private static final List<String> NAMED_GROUPS = List.of("x25519", "secp256r1");
+    private static final Method GET_NAMED_GROUPS = findMethod("getNamedGroups");
+    private static final Method SET_NAMED_GROUPS = findMethod("setNamedGroups", String[].class);
+
+    private final int mSessionCacheSize;
+    private final int mSessionTimeoutSec;
+    private final boolean mSessionTickets;
+
+    /**
+     * Create TLS settings.
+     *
+     * @param sessionCacheSize the most sessions to cache, or 0 for no limit
+     * @param sessionTimeoutSec how long sessions can be resumed for, in seconds, or 0 for no limit
+     * @param sessionTickets whether to hand out stateless session tickets instead of caching
+     *     sessions on the server
+     */
+    TlsSettings(int sessionCacheSize, int sessionTimeoutSec, boolean sessionTickets) {
+        mSessionCacheSize = sessionCacheSize;
+        mSessionTimeoutSec = sessionTimeoutSec;
+        mSessionTickets = sessionTickets;
+    }
+
+    /**
+     * Create an SSLContext with these settings, not initialized yet.
+     * <p>
+     * The JDK only reads whether to use session tickets from a system property, when the
+     * context is created. The property is set to this object's choice for just that moment, and
+     * contexts are created one at a time so other servers in the JVM don't see it.
+     *
+     * @param protocol the protocol to get a context for
+     * @return the context
+     * @throws NoSuchAlgorithmException if the protocol isn't supported
+     */
+    SSLContext createContext(String protocol) throws NoSuchAlgorithmException {
+        synchronized (TlsSettings.class) {
+            var previous = System.getProperty(TICKETS_PROPERTY);
+            System.setProperty(TICKETS_PROPERTY, String.valueOf(mSessionTickets));
+            try {
+                return SSLContext.getInstance(protocol);
+            } finally {
+                if (previous == null) {
+                    System.clearProperty(TICKETS_PROPERTY);
+                } else {
+                    System.setProperty(TICKETS_PROPERTY, previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the session settings to an initialized SSLContext.
+     *
+     * @param context the context
+     */
+    void configure(SSLContext context) {
+        var sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(mSessionCacheSize);
+        sessions.setSessionTimeout(mSessionTimeoutSec);
+    }
+
+    /**
+     * Create the parameters for a server connection, with the preferred cipher suites and
+     * groups moved to the front. Nothing the JDK enables by default is taken away, so clients
+     * that support none of the preferred ones can still connect.
+     *
+     * @param context the context the connection belongs to
+     * @return the parameters
+     */
+    SSLParameters createParameters(SSLContext context) {
+        var parameters = context.getDefaultSSLParameters();
+        parameters.setCipherSuites(prefer(parameters.getCipherSuites(), CIPHER_SUITES));
+        parameters.setUseCipherSuitesOrder(true);
+        if (GET_NAMED_GROUPS != null && SET_NAMED_GROUPS != null) {
+            try {
+                var groups = (String[]) GET_NAMED_GROUPS.invoke(parameters);
+                if (groups != null) {
+                    SET_NAMED_GROUPS.invoke(parameters, (Object) prefer(groups, NAMED_GROUPS));
+                }
+            } catch (ReflectiveOperationException ex) {
+                ex.printStackTrace();
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Reorder a list of names so the preferred ones come first.
+     *
+     * @param names the names, in their original order
+     * @param preferred the names to move to the front, in order of preference
+     * @return the preferred names that were in the list, followed by the rest in their original
+     *     order
+     */
+    private static String[] prefer(String[] names, List<String> preferred) {
+        var present = new LinkedHashSet<String>(Arrays.asList(names));
+        var ordered = new LinkedHashSet<String>();
+        for (var name : preferred) {
+            if (present.contains(name)) {
+                ordered.add(name);
+            }
+        }
+        ordered.addAll(present);
+        return ordered.toArray(new String[0]);
+    }
+
+    /**
+     * Find a method of {@link SSLParameters} that only newer JDKs have.
+     *
+     * @param name the method name
+     * @param parameterTypes the method's parameter types
+     * @return the method, or null if the running JVM doesn't have it
+     */
+    private static Method findMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return SSLParameters.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.dylantjohnson.webserver;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The network engine a {@link WebServer} accepts connections and parses HTTP with.
+ * <p>
+ * Every transport drives the same {@link RouteHandler}s the same way, so switching between them
+ * with {@link WebServerBuilder#setTransport(Transport)} needs no other changes. The JDK's
+ * built-in server is used unless another transport is configured.
+ */
+public abstract class Transport {
+    Transport() {
+    }
+
+    /**
+     * Create a server bound to an address.
+     *
+     * @param address the address to listen on
+     * @param configurator the TLS configuration
+     * @param executor the executor requests run on
+     * @param handlers the handler for each route
+     * @param limits the timeouts and connection limits to hold clients to
+     * @return the server, not started yet
+     * @throws IOException if the server can't bind to the address
+     */
+    abstract TransportServer create(InetSocketAddress address, DefaultConfigurator configurator,
+        Executor executor, Map<String, HttpHandler> handlers, ConnectionLimits limits)
+        throws IOException;
+
+    /**
+     * The JDK's built-in {@link HttpsServer}.
+     * <p>
+     * It parses every connection on one dispatcher thread and uses blocking streams, which is
+     * simple and well tested but limits throughput on machines with many cores. It only speaks
+     * HTTP/1.1. Its timeouts are JVM-wide, and it can't limit the connections of one client.
+     *
+     * @return the transport
+     */
+    public static Transport jdkHttpServer() {
+        return new Transport() {
+            @Override
+            TransportServer create(InetSocketAddress address, DefaultConfigurator configurator,
+                    Executor executor, Map<String, HttpHandler> handlers,
+                    ConnectionLimits limits) throws IOException {
+                return new JdkTransportServer(address, configurator, executor, handlers, limits);
+            }
+        };
+    }
+
+    /**
+     * A non-blocking engine with one event loop per available processor.
+     *
+     * @return the transport
+     * @see #nio(int)
+     */
+    public static Transport nio() {
+        return nio(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * A non-blocking engine with a specific number of event loops.
+     * <p>
+     * Each event loop is a thread with its own selector that does the socket I/O, TLS and HTTP
+     * parsing for its share of the connections, while handlers run on the server's executor.
+     * Connections are kept alive between requests, and pipelined requests are answered in
+     * order.
+     * <p>
+     * Clients that offer h2 with ALPN are served over HTTP/2, which runs many requests at once
+     * on one connection and compresses headers with HPACK. Everyone else gets HTTP/1.1.
+     *
+     * @param eventLoops the number of event loop threads
+     * @return the transport
+     * @throws IllegalArgumentException if eventLoops is less than 1
+     */
+    public static Transport nio(int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("The engine needs at least one event loop.");
+        }
+        return new Transport() {
+            @Override
+            TransportServer create(InetSocketAddress address, DefaultConfigurator configurator,
+                    Executor executor, Map<String, HttpHandler> handlers,
+                    ConnectionLimits limits) throws IOException {
+                return new NioServer(address, configurator, executor, handlers, limits,
+                    eventLoops);
+            }
+        };
+    }
+}
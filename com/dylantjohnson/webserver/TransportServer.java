@@ -0,0 +1,41 @@
+package com.dylantjohnson.webserver;
+
+import java.net.*;
+
+/**
+ * A running listener created by a {@link Transport}.
+ * <p>
+ * It accepts TLS connections and hands each request to the {@link RequestProcessor} of the
+ * route it was sent to, running it on the executor it was given.
+ */
+interface TransportServer {
+    /**
+     * The exchange attribute a handler sets to finish the exchange later, on another thread.
+     * <p>
+     * Transports that would otherwise close an exchange once its handler returns leave it open
+     * when this is set.
+     */
+    String DETACHED_ATTRIBUTE = "com.dylantjohnson.webserver.detached";
+
+    /**
+     * Get the address this server listens on.
+     *
+     * @return the bound address
+     */
+    InetSocketAddress getAddress();
+
+    /**
+     * Start accepting connections.
+     */
+    void start();
+
+    /**
+     * Stop accepting connections and close the open ones.
+     * <p>
+     * Requests that are already being handled get up to the timeout to finish. This returns as
+     * soon as they have, give or take the transport's polling interval.
+     *
+     * @param timeoutNanos the longest to wait for requests to finish, in nanoseconds
+     */
+    void stop(long timeoutNanos);
+}
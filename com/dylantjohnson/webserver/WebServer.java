@@ -5,30 +5,91 @@ import java.io.*;
 import java.util.*;
 import java.net.*;
 import java.security.*;
+import java.time.*;
 import java.util.concurrent.*;
-import java.util.function.*;
 import javax.net.ssl.*;
 
 /**
  * The core web server class.
  * <p>
- * This is a simple wrapper class for an {@link HttpsServer}. It hides a lot of the boilerplate
- * involved with configuring a server to use TLS. This server will also watch its configured
- * keystore file for changes and automatically restart itself so certificate updates can happen
- * automatically.
+ * This is a simple wrapper class for an {@link HttpsServer}, or another {@link Transport}. It
+ * hides a lot of the boilerplate involved with configuring a server to use TLS. This server will
+ * also watch its configured keystore file for changes and swap the new certificate into the
+ * running server, so certificate updates happen without closing the listening socket or
+ * dropping connections. Host names given keystores of their own with
+ * {@link WebServerBuilder#setKeystore(String, File, String)} are served from the same listener,
+ * each with the certificate chosen by SNI, and each keystore is watched and reloaded on its
+ * own.
+ * <p>
+ * If the server was built with {@link WebServerBuilder#useHttp()}, a plaintext listener starts
+ * and stops along with it, redirecting every request to HTTPS.
+ * <p>
+ * The SSLContext is created on the first start and kept when the server is stopped or
+ * restarted, so clients can keep resuming their TLS sessions instead of doing full handshakes.
+ * <p>
+ * The executor that runs requests is created on start and kept across restarts. Stopping or
+ * restarting drains the server: it stops accepting connections, then waits for the requests in
+ * flight to finish, but no longer than they take and at most the shutdown timeout. Stopping
+ * then shuts the executor down too, interrupting handlers still running once the timeout is up.
+ * Where the server is in all this is told by {@link #getState()}.
+ * <p>
+ * The {@link AccessLog} writer starts with the server and runs until it's stopped, so it keeps
+ * logging across restarts and writes out the last requests drained before it stops.
  * <p>
  * This class is thread-safe.
  */
 public class WebServer {
-    private final int STOP_DELAY_SEC = 5;
-    
+    /**
+     * Where a server is in its lifecycle.
+     */
+    public enum State {
+        /**
+         * Built and never started.
+         */
+        NEW,
+
+        /**
+         * Binding its listeners.
+         */
+        STARTING,
+
+        /**
+         * Accepting connections and handling requests.
+         */
+        RUNNING,
+
+        /**
+         * No longer accepting connections, and waiting for requests in flight to finish before
+         * stopping or restarting.
+         */
+        DRAINING,
+
+        /**
+         * Stopped, with its executor shut down. It can be started again.
+         */
+        STOPPED
+    }
+
     private File mKeystoreFile;
     private String mKeystorePassword;
+    private Map<String, SniKeyManager.Keystore> mHostKeystores;
     private int mPort;
-    private Map<String, RouteHandler> mRoutes;
-    private HttpsServer mServer;
+    private RouteDispatcher mDispatcher;
+    private TransportServer mServer;
+    private DefaultConfigurator mConfigurator;
     private FileWatcher mKeystoreWatcher;
-    private Supplier<InputStream> mErrorBody;
+    private ExecutorStrategy mExecutorStrategy;
+    private AdmissionController mAdmission;
+    private ServerMetrics mMetrics;
+    private AccessLog mAccessLog;
+    private TlsSettings mTlsSettings;
+    private ConnectionLimits mLimits;
+    private Transport mTransport;
+    private RedirectServer mRedirect;
+    private List<EventStreamRoute> mEventStreams;
+    private long mShutdownTimeoutNanos;
+    private ExecutorService mExecutor;
+    private volatile State mState;
 
     /**
      * Construct a WebServer.
@@ -38,26 +99,51 @@ public class WebServer {
      *
      * @param keystoreFile the keystore file containing the certificate for this server
      * @param keystorePassword the password for the keystore file (empty string if none)
-     * @param routes a map of server routes and their {@link RouteHandler}s.
+     * @param hostKeystores the keystores of other host names, chosen by SNI
+     * @param dispatcher the handler that routes requests to their {@link RouteHandler}s
      * @param port the port this server will bind to
-     * @param errorBody a function that can be called to generate the body for an error page
+     * @param executorStrategy the strategy for creating the executor that runs requests
+     * @param admission the admission controller that sheds requests when overloaded
+     * @param metrics the measurements the server records
+     * @param accessLog where requests are logged and handler failures reported
+     * @param tlsSettings the TLS session, cipher suite and group preferences
+     * @param limits the timeouts and connection limits that protect against slow clients
+     * @param transport the network engine that accepts connections
+     * @param redirect the listener redirecting plain HTTP to HTTPS, or null for none
+     * @param eventStreams the event stream routes whose subscriptions end when the server stops
+     * @param shutdownTimeoutNanos the longest to wait for requests in flight when stopping
      * @throws FileHashingException if unable to watch the configured keystore file
      */
-    WebServer(File keystoreFile, String keystorePassword, Map<String, RouteHandler> routes,
-            int port, Supplier<InputStream> errorBody) throws FileHashingException {
+    WebServer(File keystoreFile, String keystorePassword,
+            Map<String, SniKeyManager.Keystore> hostKeystores, RouteDispatcher dispatcher,
+            int port, ExecutorStrategy executorStrategy, AdmissionController admission,
+            ServerMetrics metrics, AccessLog accessLog, TlsSettings tlsSettings,
+            ConnectionLimits limits, Transport transport, RedirectServer redirect,
+            List<EventStreamRoute> eventStreams, long shutdownTimeoutNanos)
+            throws FileHashingException {
         mKeystoreFile = keystoreFile;
         mKeystorePassword = keystorePassword;
-        mRoutes = routes;
+        mHostKeystores = hostKeystores;
+        mDispatcher = dispatcher;
         mPort = port;
-        mErrorBody = errorBody;
+        mExecutorStrategy = executorStrategy;
+        mAdmission = admission;
+        mMetrics = metrics;
+        mAccessLog = accessLog;
+        mTlsSettings = tlsSettings;
+        mLimits = limits;
+        mTransport = transport;
+        mRedirect = redirect;
+        mEventStreams = eventStreams;
+        mShutdownTimeoutNanos = shutdownTimeoutNanos;
+        mState = State.NEW;
         mKeystoreWatcher = new FileWatcher(mKeystoreFile);
         
         mKeystoreWatcher.addListener(() -> {
             try {
-                restart();
+                reloadKeystore();
             } catch (Exception ex) {
                 ex.printStackTrace();
-                stop();
             }
         });
     }
@@ -65,7 +151,8 @@ public class WebServer {
     /**
      * Start the server.
      *
-     * @throws IOException if the server is unable to bind to the local host and port
+     * @throws IOException if the server is unable to bind to the local host and port, or to
+     *     open the access log
      * @throws UnknownHostException if unable to resolve the localhost address
      * @throws SslCreationException if there is a problem with the configured keystore file
      */
@@ -76,13 +163,30 @@ public class WebServer {
 
     /**
      * Stop the server.
+     * <p>
+     * This returns once the requests in flight have finished, or the shutdown timeout is up and
+     * the handlers still running were interrupted. Either way the executor is shut down, and
+     * starting again creates a new one. The access log is written out and closed last.
      */
     public synchronized void stop() {
-        stopServer();
+        var deadline = System.nanoTime() + mShutdownTimeoutNanos;
+        var stopped = stopServer(deadline);
+        if (mExecutor != null) {
+            shutdownExecutor(deadline);
+            stopped = true;
+        }
+        mAccessLog.stop();
+        if (stopped) {
+            mState = State.STOPPED;
+        }
     }
 
     /**
      * Restart the server.
+     * <p>
+     * The listening socket is closed and opened again once the requests in flight have finished,
+     * but TLS sessions survive, so clients reconnecting afterwards can resume them. The executor
+     * and its threads are kept.
      *
      * @throws IOException if the server is unable to bind to the local host and port
      * @throws UnknownHostException if unable to resolve the localhost address
@@ -90,66 +194,225 @@ public class WebServer {
      */
     public synchronized void restart() throws IOException, UnknownHostException,
             SslCreationException {
-        stopServer();
+        stopServer(System.nanoTime() + mShutdownTimeoutNanos);
         startServer();
     }
 
     /**
-     * Start a new HttpsServer and begin watching the keystore file for changes.
+     * Get where the server is in its lifecycle.
      * <p>
-     * If a server is already started, this does nothing.
+     * Unlike the methods that change it, this doesn't wait for a start or stop in progress.
      *
-     * @throws IOException if the server is unable to bind to the local host and port
+     * @return the current state
+     */
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Get the number of requests waiting for a thread to handle them.
+     *
+     * @return the current queue depth
+     */
+    public int getQueueDepth() {
+        return mAdmission.getQueueDepth();
+    }
+
+    /**
+     * Get the number of requests answered with a 503 because the queue was full.
+     *
+     * @return the number of rejected requests since the server was built
+     */
+    public long getRejectedRequestCount() {
+        return mAdmission.getRejectedCount();
+    }
+
+    /**
+     * Get the number of requests answered with a 503 because they waited in the queue for longer
+     * than the configured limit.
+     *
+     * @return the number of expired requests since the server was built
+     */
+    public long getExpiredRequestCount() {
+        return mAdmission.getExpiredCount();
+    }
+
+    /**
+     * Get the measurements this server records.
+     * <p>
+     * While the server is running they're also registered with the platform MBean server as
+     * {@code com.dylantjohnson.webserver:type=WebServer,port=<port>}.
+     *
+     * @return the metrics, which cover everything since the server was built
+     */
+    public ServerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Reload the main keystore file and swap its certificate into the running server.
+     * <p>
+     * Unlike {@link #restart()}, this never closes the listening socket. Handshakes that start
+     * after this returns use the new certificate, and requests on connections that are already
+     * open finish normally. If the keystore can't be loaded, the server keeps using the old
+     * certificate. This is called automatically when the keystore file changes, and when the
+     * server starts again after the file changed while it was stopped. Each reload is recorded
+     * as a JDK Flight Recorder event while a recording is running.
+     *
+     * @return how long it took to swap the certificate, or zero if the server was never started
+     * @throws SslCreationException if there is a problem with the configured keystore file
+     */
+    public synchronized Duration reloadKeystore() throws SslCreationException {
+        if (mConfigurator == null) {
+            return Duration.ZERO;
+        }
+        var start = System.nanoTime();
+        var event = new ServerEvents.KeystoreReloadEvent();
+        event.begin();
+        event.keystore = mKeystoreFile.getPath();
+        try {
+            mConfigurator.reload();
+        } catch (SslCreationException ex) {
+            mMetrics.certificateReloadFailed();
+            event.commit();
+            throw ex;
+        }
+        mMetrics.certificateReloaded();
+        event.succeeded = true;
+        event.commit();
+        var elapsed = Duration.ofNanos(System.nanoTime() - start);
+        System.out.println(String.format("Reloaded %s in %d ms", mKeystoreFile,
+            elapsed.toMillis()));
+        return elapsed;
+    }
+
+    /**
+     * Start a new server, and the HTTP redirect listener if there is one, and begin watching the
+     * keystore files for changes.
+     * <p>
+     * If the server ran before, the keystore file is checked first, so a certificate that
+     * changed while it was stopped is swapped in. If a server is already started, this does
+     * nothing.
+     *
+     * @throws IOException if the server is unable to bind to the local host and port, or to
+     *     open the access log
      * @throws UnknownHostException if unable to resolve the localhost address
      * @throws SslCreationException if there is a problem with the configured keystore file
      */
     private void startServer() throws IOException, UnknownHostException, SslCreationException {
         if (mServer == null) {
-            mServer = buildServer();
+            var previous = mState;
+            mState = State.STARTING;
+            if (mConfigurator != null) {
+                try {
+                    mKeystoreWatcher.checkFile();
+                } catch (FileHashingException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            try {
+                mAccessLog.start();
+                mServer = buildServer();
+            } catch (IOException | SslCreationException | RuntimeException ex) {
+                mState = previous;
+                throw ex;
+            }
             System.out.println(String.format("Starting server, %s...", mServer.getAddress()));
             mServer.start();
+            if (mRedirect != null) {
+                try {
+                    mRedirect.start();
+                } catch (IOException ex) {
+                    mServer.stop(0);
+                    mServer = null;
+                    mState = previous;
+                    throw ex;
+                }
+                System.out.println(String.format("Redirecting HTTP from %s...",
+                    mRedirect.getAddress()));
+            }
+            mMetrics.register(mPort);
             mKeystoreWatcher.start();
+            mConfigurator.startWatching();
+            mState = State.RUNNING;
         }
     }
 
     /**
-     * Stop the currently running server and stop watching the keystore file for changes.
+     * Drain and stop the currently running server and redirect listener and stop watching the
+     * keystore files for changes.
      * <p>
-     * If the server is already stopped, this does nothing.
+     * If no request is in flight, the server is stopped without waiting at all. Otherwise the
+     * transport waits until the last one finishes, or until the deadline. If the server is
+     * already stopped, this does nothing.
+     *
+     * @param deadline when to give up on requests in flight, from {@link System#nanoTime()}
+     * @return true if a server was running
+     */
+    private boolean stopServer(long deadline) {
+        if (mServer == null) {
+            return false;
+        }
+        mState = State.DRAINING;
+        if (mRedirect != null) {
+            mRedirect.stop();
+        }
+        for (var eventStream : mEventStreams) {
+            eventStream.close();
+        }
+        var timeout = mAdmission.getInFlightCount() == 0 ? 0
+            : Math.max(0, deadline - System.nanoTime());
+        mServer.stop(timeout);
+        mMetrics.unregister();
+        mKeystoreWatcher.stop();
+        mConfigurator.stopWatching();
+        mServer = null;
+        return true;
+    }
+
+    /**
+     * Shut down the executor, interrupting the handlers still running at the deadline.
+     *
+     * @param deadline when to stop waiting for handlers, from {@link System#nanoTime()}
      */
-    private void stopServer() {
-        if (mServer != null) {
-            mServer.stop(STOP_DELAY_SEC);
-            mKeystoreWatcher.stop();
-            mServer = null;
+    private void shutdownExecutor(long deadline) {
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS)) {
+                mExecutor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            mExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
+        mExecutor = null;
     }
 
     /**
-     * Generate a new HttpsServer.
+     * Generate a new server with the configured {@link Transport}.
      * <p>
-     * This method also creates a new SSLContext. So if the keystore file has been updated with a
-     * new certificate, it will be reflected in the new server.
+     * The SSLContext is only created the first time. Later servers reuse it along with its
+     * session cache and session ticket keys. The executor is created if there isn't one, and
+     * reused otherwise.
      *
-     * @return a new HttpsServer
+     * @return a new server, not started yet
      * @throws IOException if the server is unable to bind to the local host and port
      * @throws UnknownHostException if unable to resolve the localhost address
      * @throws SslCreationException if there is a problem with the configured keystore file
      */
-    private HttpsServer buildServer() throws IOException, UnknownHostException,
+    private TransportServer buildServer() throws IOException, UnknownHostException,
             SslCreationException {
-        var cores = Runtime.getRuntime().availableProcessors();
-        var executor = new ThreadPoolExecutor(cores, cores, 0, TimeUnit.NANOSECONDS,
-            new LinkedBlockingQueue<>());
-        var configurator = new DefaultConfigurator(mKeystoreFile, mKeystorePassword);
+        if (mExecutor == null) {
+            mExecutor = mExecutorStrategy.createExecutor();
+        }
+        if (mConfigurator == null) {
+            mConfigurator = new DefaultConfigurator(mKeystoreFile, mKeystorePassword,
+                mHostKeystores, mTlsSettings, mMetrics);
+        }
         var address = InetAddress.getLocalHost();
         var socket = new InetSocketAddress(address, mPort);
-        var server = HttpsServer.create(socket, 0);
-        server.setExecutor(executor);
-        server.setHttpsConfigurator(configurator);
-        for (var route : mRoutes.keySet()) {
-            server.createContext(route, new RequestProcessor(mRoutes.get(route), mErrorBody));
-        }
-        return server;
+        return mTransport.create(socket, mConfigurator, mAdmission.wrap(mExecutor),
+            Map.of("/", mDispatcher), mLimits);
     }
 }
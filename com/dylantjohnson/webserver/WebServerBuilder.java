@@ -2,6 +2,7 @@ package com.dylantjohnson.webserver;
 
 import com.sun.net.httpserver.*;
 import java.io.*;
+import java.time.*;
 import java.util.*;
 import java.util.function.*;
 
@@ -9,11 +10,56 @@ import java.util.function.*;
  * Builder class for {@link WebServer}.
  */
 public class WebServerBuilder {
+    private static final long DEFAULT_MAX_REQUEST_BODY_SIZE = 10L * 1024 * 1024;
+    private static final Duration HSTS_PRELOAD_MIN_AGE = Duration.ofDays(365);
+    private static final Duration DEFAULT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
+
     private File mKeystoreFile;
     private String mKeystorePassword;
+    private Map<String, SniKeyManager.Keystore> mHostKeystores = new HashMap<>();
     private Map<String, RouteHandler> mRoutes;
+    private Map<String, Map<RouteRequest.Method, RouteHandler>> mMethodRoutes = new HashMap<>();
     private int mPort = 443;
-    private Supplier<InputStream> mErrorBody = new DefaultErrorBody();
+    private String mDomain;
+    private int mHttpPort = -1;
+    private RouteResponse.Status mHttpRedirectStatus = RouteResponse.Status.MOVED_PERMANENTLY;
+    private String mHsts;
+    private Supplier<RouteResponse> mErrorBody = new DefaultErrorBody();
+    private ExecutorStrategy mExecutorStrategy = ExecutorStrategy.fixedPool();
+    private int mMaxQueuedRequests = Integer.MAX_VALUE;
+    private Duration mMaxQueueWait;
+    private Duration mRetryAfter = Duration.ofSeconds(1);
+    private boolean mCompressionEnabled = true;
+    private int mCompressionMinSize = Compression.DEFAULT_MIN_SIZE;
+    private long mMaxRequestBodySize = DEFAULT_MAX_REQUEST_BODY_SIZE;
+    private Map<String, Long> mRouteBodySizes = new HashMap<>();
+    private Map<String, ResponseCache.Policy> mRouteCaches = new HashMap<>();
+    private Duration mHandlerDeadline;
+    private Map<String, Duration> mRouteDeadlines = new HashMap<>();
+    private Duration mHeaderTimeout = Duration.ofSeconds(
+        ConnectionLimits.DEFAULT_HEADER_TIMEOUT_SEC);
+    private Duration mBodyReadTimeout = Duration.ofSeconds(
+        ConnectionLimits.DEFAULT_BODY_TIMEOUT_SEC);
+    private Duration mWriteTimeout = Duration.ofSeconds(
+        ConnectionLimits.DEFAULT_WRITE_TIMEOUT_SEC);
+    private Duration mIdleTimeout = Duration.ofSeconds(
+        ConnectionLimits.DEFAULT_IDLE_TIMEOUT_SEC);
+    private int mMaxConnectionsPerClient = Integer.MAX_VALUE;
+    private Duration mShutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    private int mTlsSessionCacheSize = TlsSettings.DEFAULT_SESSION_CACHE_SIZE;
+    private Duration mTlsSessionTimeout = Duration.ofSeconds(
+        TlsSettings.DEFAULT_SESSION_TIMEOUT_SEC);
+    private boolean mTlsSessionTickets = true;
+    private Transport mTransport = Transport.jdkHttpServer();
+    private String mMetricsRoute;
+    private File mAccessLogFile;
+    private long mAccessLogRotateBytes = AccessLog.DEFAULT_ROTATE_BYTES;
+    private Duration mAccessLogRotateInterval = AccessLog.DEFAULT_ROTATE_INTERVAL;
+    private boolean mAccessLogBlockWhenFull;
+    private Duration mSlowRequestThreshold = Duration.ofNanos(
+        ServerEvents.DEFAULT_THRESHOLD_NANOS);
+    private RateLimiter.Rate mRateLimit;
+    private Map<String, RateLimiter.Rate> mRouteRateLimits = new HashMap<>();
 
     /**
      * Create a fresh WebServerBuilder.
@@ -30,7 +76,72 @@ public class WebServerBuilder {
      * @throws FileHashingException if the server is unable to watch the keystore file
      */
     public WebServer build() throws FileHashingException {
-        return new WebServer(mKeystoreFile, mKeystorePassword, mRoutes, mPort, mErrorBody);
+        var maxQueueWait = mMaxQueueWait == null ? Long.MAX_VALUE : timeoutNanos(mMaxQueueWait);
+        var admission = new AdmissionController(mMaxQueuedRequests, maxQueueWait,
+            Math.max(1, mRetryAfter.toSeconds()));
+        var compression = new Compression(mCompressionEnabled, mCompressionMinSize);
+        var accessLog = new AccessLog(mAccessLogFile, mAccessLogRotateBytes,
+            timeoutNanos(mAccessLogRotateInterval), mAccessLogBlockWhenFull);
+        var metrics = new ServerMetrics(admission, accessLog);
+        var events = new ServerEvents(timeoutNanos(mSlowRequestThreshold));
+        var serverLimiter = mRateLimit == null ? null : new RateLimiter(mRateLimit);
+        var router = new Router.Builder<RequestProcessor>();
+        var eventStreams = new ArrayList<EventStreamRoute>();
+        for (var route : mRoutes.entrySet()) {
+            var routeMetrics = metrics.addRoute(route.getKey(), null);
+            var processor = new RequestProcessor(
+                cache(deadline(route.getValue(), route.getKey()), route.getKey(), routeMetrics,
+                    metrics, accessLog), mErrorBody,
+                admission, compression,
+                mRouteBodySizes.getOrDefault(route.getKey(), mMaxRequestBodySize), routeMetrics,
+                accessLog, events, limiters(serverLimiter, route.getKey()));
+            var pattern = route.getKey();
+            if (pattern.endsWith("/" + Router.WILDCARD)) {
+                router.add(null, pattern, processor);
+            } else if (pattern.endsWith("/")) {
+                router.add(null, pattern + Router.WILDCARD, processor);
+            } else {
+                router.add(null, pattern, processor);
+                router.add(null, pattern + "/" + Router.WILDCARD, processor);
+            }
+        }
+        for (var route : mMethodRoutes.entrySet()) {
+            for (var handler : route.getValue().entrySet()) {
+                var key = methodRouteKey(handler.getKey(), route.getKey());
+                var routeMetrics = metrics.addRoute(route.getKey(), handler.getKey());
+                var routeHandler = handler.getValue();
+                if (routeHandler instanceof EventStreamRoute) {
+                    var eventStream = new EventStreamRoute(
+                        ((EventStreamRoute) routeHandler).getStream());
+                    eventStreams.add(eventStream);
+                    routeHandler = eventStream;
+                }
+                router.add(handler.getKey(), route.getKey(), new RequestProcessor(
+                    cache(deadline(routeHandler, key), key, routeMetrics, metrics, accessLog),
+                    mErrorBody,
+                    admission, compression,
+                    mRouteBodySizes.getOrDefault(key, mMaxRequestBodySize), routeMetrics,
+                    accessLog, events, limiters(serverLimiter, key)));
+            }
+        }
+        if (mMetricsRoute != null) {
+            router.add(RouteRequest.Method.GET, mMetricsRoute, new RequestProcessor(
+                new MetricsHandler(metrics), mErrorBody, admission, compression, 0,
+                metrics.addRoute(mMetricsRoute, RouteRequest.Method.GET), accessLog, events,
+                limiters(serverLimiter, null)));
+        }
+        var dispatcher = new RouteDispatcher(router.build(), mErrorBody, admission,
+            compression, metrics, accessLog, events, limiters(serverLimiter, null), mHsts);
+        var redirect = mHttpPort < 0 ? null
+            : new RedirectServer(mHttpPort, mHttpRedirectStatus, mDomain, mPort);
+        var tlsSettings = new TlsSettings(mTlsSessionCacheSize,
+            (int) Math.min(Integer.MAX_VALUE, mTlsSessionTimeout.toSeconds()), mTlsSessionTickets);
+        var limits = new ConnectionLimits(timeoutNanos(mHeaderTimeout),
+            timeoutNanos(mBodyReadTimeout), timeoutNanos(mWriteTimeout),
+            timeoutNanos(mIdleTimeout), mMaxConnectionsPerClient);
+        return new WebServer(mKeystoreFile, mKeystorePassword, new HashMap<>(mHostKeystores),
+            dispatcher, mPort, mExecutorStrategy, admission, metrics, accessLog, tlsSettings,
+            limits, mTransport, redirect, eventStreams, timeoutNanos(mShutdownTimeout));
     }
 
     /**
@@ -46,6 +157,43 @@ public class WebServerBuilder {
         return this;
     }
 
+    /**
+     * Set a keystore for one host name, to serve its certificate from the same port as the rest.
+     * <p>
+     * The keystore is picked during each handshake by the host name the client sends with SNI.
+     * Clients that send no host name, or one without a keystore of its own, get the keystore set
+     * with {@link #setKeystore(File, String)}. A host name starting with {@code *.} matches any
+     * one label in its place, so {@code *.example.com} matches {@code www.example.com} but not
+     * {@code example.com} or {@code a.b.example.com}; an exact host name wins over a wildcard.
+     * <p>
+     * The keystore isn't loaded until a client first asks for its host name, so a server can
+     * have many of them without loading them all on start. If it can't be loaded, the client
+     * gets the main certificate instead, and loading it is tried again a little later. Once
+     * loaded, the keystore is checked for changes every few seconds and reloaded on its own,
+     * invalidating only the TLS sessions of its host name.
+     *
+     * @param hostName the host name, such as {@code example.com} or {@code *.example.com}
+     * @param keystoreFile the file containing the host's certificates, or null to remove the
+     *     host's keystore
+     * @param keystorePassword the password for the keystore (empty string if no password)
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the host name isn't a valid host name or wildcard
+     */
+    public WebServerBuilder setKeystore(String hostName, File keystoreFile,
+            String keystorePassword) {
+        if (hostName == null || !hostName.matches(
+                "(\\*\\.)?[A-Za-z0-9]([A-Za-z0-9.-]*[A-Za-z0-9])?")) {
+            throw new IllegalArgumentException("Invalid host name: " + hostName);
+        }
+        var key = hostName.toLowerCase(Locale.ROOT);
+        if (keystoreFile == null) {
+            mHostKeystores.remove(key);
+        } else {
+            mHostKeystores.put(key, new SniKeyManager.Keystore(keystoreFile, keystorePassword));
+        }
+        return this;
+    }
+
     /**
      * Set the port this server will run on.
      *
@@ -59,13 +207,409 @@ public class WebServerBuilder {
 
     /**
      * Set the handler for a given route.
+     * <p>
+     * The handler takes requests of any method for the route and every path below it, so a
+     * handler for {@code /static} gets requests for {@code /static} and
+     * {@code /static/css/a.css}, but not {@code /statics}. A route may capture path
+     * parameters as described in {@link #setHandler(RouteRequest.Method, String, RouteHandler)}.
+     * Handlers set for a method and a more specific route take precedence.
      *
      * @param route the route 
      * @param handler the handler that processes the route request
      * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed
      */
     public WebServerBuilder setHandler(String route, RouteHandler handler) {
+        Router.validate(route);
         mRoutes.put(route, handler);
+        mRouteBodySizes.remove(route);
+        return this;
+    }
+
+    /**
+     * Set the handler for a given route, with its own limit on request body size.
+     *
+     * @param route the route
+     * @param handler the handler that processes the route request
+     * @param maxRequestBodySize the largest request body the route accepts, in bytes
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed or maxRequestBodySize is
+     *     negative
+     */
+    public WebServerBuilder setHandler(String route, RouteHandler handler,
+            long maxRequestBodySize) {
+        if (maxRequestBodySize < 0) {
+            throw new IllegalArgumentException("The body size limit can't be negative.");
+        }
+        Router.validate(route);
+        mRoutes.put(route, handler);
+        mRouteBodySizes.put(route, maxRequestBodySize);
+        return this;
+    }
+
+    /**
+     * Set the handler for one method of a given route.
+     * <p>
+     * Unlike {@link #setHandler(String, RouteHandler)}, the route has to match the whole request
+     * path. A segment of the route written as {@code {name}} matches any one segment of the path,
+     * which the handler gets from {@link RouteRequest#getPathParameter(String)}, and a last
+     * segment of {@code *} matches the rest of the path. For example, {@code /users/{id}} matches
+     * {@code /users/42} but not {@code /users/42/posts}, which {@code /users/{id}/*} matches.
+     * Where several routes match, literal segments win over parameters, and parameters over a
+     * wildcard.
+     * <p>
+     * HEAD requests go to the GET handler unless the route has a HEAD handler. A request for a
+     * method the route has no handler for is answered with a 405 listing the methods it has.
+     *
+     * @param method the request method the handler takes
+     * @param route the route
+     * @param handler the handler that processes the route request
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed
+     */
+    public WebServerBuilder setHandler(RouteRequest.Method method, String route,
+            RouteHandler handler) {
+        Router.validate(route);
+        mMethodRoutes.computeIfAbsent(route, key -> new EnumMap<>(RouteRequest.Method.class))
+            .put(method, handler);
+        mRouteBodySizes.remove(methodRouteKey(method, route));
+        return this;
+    }
+
+    /**
+     * Set the handler for one method of a given route, with its own limit on request body size.
+     *
+     * @param method the request method the handler takes
+     * @param route the route, as described in
+     *     {@link #setHandler(RouteRequest.Method, String, RouteHandler)}
+     * @param handler the handler that processes the route request
+     * @param maxRequestBodySize the largest request body the route accepts, in bytes
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed or maxRequestBodySize is
+     *     negative
+     */
+    public WebServerBuilder setHandler(RouteRequest.Method method, String route,
+            RouteHandler handler, long maxRequestBodySize) {
+        if (maxRequestBodySize < 0) {
+            throw new IllegalArgumentException("The body size limit can't be negative.");
+        }
+        setHandler(method, route, handler);
+        mRouteBodySizes.put(methodRouteKey(method, route), maxRequestBodySize);
+        return this;
+    }
+
+    /**
+     * Set an asynchronous handler for one method of a given route.
+     * <p>
+     * The route works as described in
+     * {@link #setHandler(RouteRequest.Method, String, RouteHandler)}, and replaces any handler
+     * set for the same method and route. The request is answered when the handler's stage
+     * completes, and no thread waits for it in the meantime.
+     *
+     * @param method the request method the handler takes
+     * @param route the route
+     * @param handler the handler that processes the route request
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed
+     */
+    public WebServerBuilder setAsyncHandler(RouteRequest.Method method, String route,
+            AsyncRouteHandler handler) {
+        return setAsyncHandler(method, route, handler, null);
+    }
+
+    /**
+     * Set an asynchronous handler for one method of a given route, with a timeout.
+     * <p>
+     * If the handler's stage hasn't completed when the timeout passes, the request is answered
+     * with a 504 and the stage is cancelled.
+     *
+     * @param method the request method the handler takes
+     * @param route the route, as described in
+     *     {@link #setHandler(RouteRequest.Method, String, RouteHandler)}
+     * @param handler the handler that processes the route request
+     * @param timeout how long the handler's stage may take, or null for no limit
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed or the timeout isn't positive
+     */
+    public WebServerBuilder setAsyncHandler(RouteRequest.Method method, String route,
+            AsyncRouteHandler handler, Duration timeout) {
+        if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+            throw new IllegalArgumentException("The timeout must be positive.");
+        }
+        return setHandler(method, route,
+            new AsyncRoute(handler, timeout == null ? 0 : timeout.toNanos()));
+    }
+
+    /**
+     * Serve Server-Sent Events from a route, subscribing each client that GETs it to a stream.
+     * <p>
+     * The route works as described in
+     * {@link #setHandler(RouteRequest.Method, String, RouteHandler)}, and replaces any GET
+     * handler set for it. Clients are sent every event published on the stream from then on,
+     * and a client reconnecting with a {@code Last-Event-ID} header is sent the events it
+     * missed first, as far as the stream keeps them. The connection stays open without holding
+     * a thread, and is closed when the server stops, so its clients reconnect. The same stream
+     * can be set on several routes and servers. Response caches and handler deadlines don't
+     * apply to the route, but rate limits do.
+     *
+     * @param route the route
+     * @param stream the stream clients subscribe to
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed or the stream is null
+     */
+    public WebServerBuilder setEventStream(String route, EventStream stream) {
+        if (stream == null) {
+            throw new IllegalArgumentException("The event stream can't be null.");
+        }
+        return setHandler(RouteRequest.Method.GET, route, new EventStreamRoute(stream));
+    }
+
+    /**
+     * Set the largest request body accepted by routes that don't have their own limit.
+     * <p>
+     * A request that declares a larger Content-Length is answered with a 413 without calling its
+     * {@link RouteHandler}. A chunked request that turns out to be larger fails with a
+     * {@link RequestBodyTooLargeException} when the handler reads past the limit. The default
+     * is 10 MiB.
+     *
+     * @param maxRequestBodySize the limit in bytes
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if maxRequestBodySize is negative
+     */
+    public WebServerBuilder setMaxRequestBodySize(long maxRequestBodySize) {
+        if (maxRequestBodySize < 0) {
+            throw new IllegalArgumentException("The body size limit can't be negative.");
+        }
+        mMaxRequestBodySize = maxRequestBodySize;
+        return this;
+    }
+
+    /**
+     * Cache the responses of the handler for a route.
+     * <p>
+     * GET and HEAD requests whose response is already cached are answered without calling the
+     * {@link RouteHandler}. Responses are told apart by method, path, query string and the
+     * values of the given request headers, so a handler whose response depends on another
+     * header, such as a cookie, must name it. Only responses whose body was set from a string, a
+     * byte array or a {@link java.nio.ByteBuffer} are cached, and not those that set a cookie or
+     * whose Cache-Control says {@code no-store} or {@code private}.
+     * <p>
+     * When many requests miss the cache for the same response at once, only one of them calls
+     * the handler and the rest wait for its response. After the time to live, a response goes
+     * stale: the next request refreshes it, and requests that arrive during the refresh are sent
+     * the stale response rather than waiting. If the refresh fails, the stale response is sent
+     * too. Hits and misses are counted in the server's {@link ServerMetrics}.
+     * <p>
+     * This can be called before or after the handler is set.
+     *
+     * @param route the route, as set with {@link #setHandler(String, RouteHandler)}
+     * @param ttl how long a response is fresh, or null to stop caching the route
+     * @param staleWhileRevalidate how long after that a stale response may be sent while it's
+     *     refreshed, or null for not at all
+     * @param maxBytes the most response body bytes to keep for the route, after which the
+     *     least recently used responses are evicted
+     * @param keyHeaders the request headers whose values tell responses apart
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed, or a duration or maxBytes is
+     *     negative
+     */
+    public WebServerBuilder setResponseCache(String route, Duration ttl,
+            Duration staleWhileRevalidate, long maxBytes, String... keyHeaders) {
+        Router.validate(route);
+        putResponseCache(route, ttl, staleWhileRevalidate, maxBytes, keyHeaders);
+        return this;
+    }
+
+    /**
+     * Cache the responses of the handler for one method of a route.
+     * <p>
+     * This works like {@link #setResponseCache(String, Duration, Duration, long, String...)} for
+     * a handler set with {@link #setHandler(RouteRequest.Method, String, RouteHandler)}.
+     *
+     * @param method the request method the handler takes, GET or HEAD
+     * @param route the route
+     * @param ttl how long a response is fresh, or null to stop caching the route
+     * @param staleWhileRevalidate how long after that a stale response may be sent while it's
+     *     refreshed, or null for not at all
+     * @param maxBytes the most response body bytes to keep for the route
+     * @param keyHeaders the request headers whose values tell responses apart
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the method isn't GET or HEAD, the route is malformed,
+     *     or a duration or maxBytes is negative
+     */
+    public WebServerBuilder setResponseCache(RouteRequest.Method method, String route,
+            Duration ttl, Duration staleWhileRevalidate, long maxBytes, String... keyHeaders) {
+        if (method != RouteRequest.Method.GET && method != RouteRequest.Method.HEAD) {
+            throw new IllegalArgumentException("Only GET and HEAD responses can be cached.");
+        }
+        Router.validate(route);
+        putResponseCache(methodRouteKey(method, route), ttl, staleWhileRevalidate, maxBytes,
+            keyHeaders);
+        return this;
+    }
+
+    /**
+     * Set how long synchronous handlers may take, for routes that don't have their own deadline.
+     * <p>
+     * When a {@link RouteHandler} runs past its deadline, its thread is interrupted, which ends
+     * most blocking calls such as sleeps, waits, locks and interruptible channels, and the
+     * request is answered with a 504 once the handler returns. A handler that ignores the
+     * interrupt still holds its thread until it finishes, but its response is replaced with the
+     * 504. Routes set with an {@link AsyncRouteHandler} use their own timeout instead. By default
+     * handlers take as long as they need.
+     *
+     * @param deadline how long handlers may take, or null or zero for no limit
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the deadline is negative
+     */
+    public WebServerBuilder setHandlerDeadline(Duration deadline) {
+        mHandlerDeadline = checkDeadline(deadline);
+        return this;
+    }
+
+    /**
+     * Set how long the handler for a route may take.
+     * <p>
+     * This works like {@link #setHandlerDeadline(Duration)} for just this route, and can be
+     * called before or after the handler is set.
+     *
+     * @param route the route, as set with {@link #setHandler(String, RouteHandler)}
+     * @param deadline how long the handler may take, zero for no limit, or null to use the
+     *     server-wide deadline
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed or the deadline is negative
+     */
+    public WebServerBuilder setHandlerDeadline(String route, Duration deadline) {
+        Router.validate(route);
+        putDeadline(route, deadline);
+        return this;
+    }
+
+    /**
+     * Set how long the handler for one method of a route may take.
+     * <p>
+     * This works like {@link #setHandlerDeadline(String, Duration)} for a handler set with
+     * {@link #setHandler(RouteRequest.Method, String, RouteHandler)}.
+     *
+     * @param method the request method the handler takes
+     * @param route the route
+     * @param deadline how long the handler may take, zero for no limit, or null to use the
+     *     server-wide deadline
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed or the deadline is negative
+     */
+    public WebServerBuilder setHandlerDeadline(RouteRequest.Method method, String route,
+            Duration deadline) {
+        Router.validate(route);
+        putDeadline(methodRouteKey(method, route), deadline);
+        return this;
+    }
+
+    /**
+     * Set how long a client may take to send a request's headers.
+     * <p>
+     * The time counts from when the connection opens, so it covers the TLS handshake, or from
+     * the first byte of each later request on the connection. A client that's too slow gets a
+     * 408 and its connection is closed, so trickling headers in can't hold a connection open.
+     * The default is 20 seconds.
+     * <p>
+     * The JDK's built-in server reads its timeouts from JVM-wide system properties once, so with
+     * it this and {@link #setBodyReadTimeout(Duration)} together limit the whole time a request
+     * takes to arrive, and the first server started in the JVM decides the limit.
+     *
+     * @param timeout the longest the headers may take, or zero for no limit
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if timeout is null or negative
+     */
+    public WebServerBuilder setHeaderTimeout(Duration timeout) {
+        mHeaderTimeout = checkTimeout(timeout);
+        return this;
+    }
+
+    /**
+     * Set how long a request body may go without a byte arriving while its handler waits for
+     * more.
+     * <p>
+     * When it passes, the handler's read fails with a {@link java.net.SocketTimeoutException}.
+     * If the handler lets that propagate, the request is answered with a 408, and the connection
+     * is closed either way. Time the handler spends not reading doesn't count. The default is 30
+     * seconds.
+     *
+     * @param timeout the longest wait for more of the body, or zero for no limit
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if timeout is null or negative
+     */
+    public WebServerBuilder setBodyReadTimeout(Duration timeout) {
+        mBodyReadTimeout = checkTimeout(timeout);
+        return this;
+    }
+
+    /**
+     * Set how long a client may go without taking any of its response.
+     * <p>
+     * A client that stops reading is disconnected once the timeout passes, which also frees the
+     * handler thread waiting to send it more. It's only enforced by the NIO transport, since the
+     * JDK's server has no equivalent. The default is 30 seconds.
+     *
+     * @param timeout the longest the client may stall, or zero for no limit
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if timeout is null or negative
+     */
+    public WebServerBuilder setWriteTimeout(Duration timeout) {
+        mWriteTimeout = checkTimeout(timeout);
+        return this;
+    }
+
+    /**
+     * Set how long a kept-alive connection may stay open with no request in progress.
+     * <p>
+     * With the JDK's built-in server this is a JVM-wide setting, so the first server started in
+     * the JVM decides it. The default is 30 seconds.
+     *
+     * @param timeout the longest a connection may be idle, or zero for no limit
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if timeout is null or negative
+     */
+    public WebServerBuilder setIdleTimeout(Duration timeout) {
+        mIdleTimeout = checkTimeout(timeout);
+        return this;
+    }
+
+    /**
+     * Set the most connections one client address may have open at once.
+     * <p>
+     * Further connections from the address are closed as soon as they're accepted, before the
+     * TLS handshake, so one client can't take up every connection the server will hold. Clients
+     * behind the same proxy or NAT share an address, so leave room for them. It's only enforced
+     * by the NIO transport, since the JDK's server has no hook for it. By default there's no
+     * limit.
+     *
+     * @param maxConnections the most connections per address
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if maxConnections is less than 1
+     */
+    public WebServerBuilder setMaxConnectionsPerClient(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Clients must be allowed at least one connection.");
+        }
+        mMaxConnectionsPerClient = maxConnections;
+        return this;
+    }
+
+    /**
+     * Set the longest {@link WebServer#stop()} and {@link WebServer#restart()} wait for requests
+     * in flight to finish.
+     * <p>
+     * The server stops as soon as the last request finishes, so this only matters when
+     * requests are slow. Once it's up, open connections are closed, and when stopping, handlers
+     * still running are interrupted. The default is 5 seconds.
+     *
+     * @param timeout the longest to wait, or zero to stop right away
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if timeout is null or negative
+     */
+    public WebServerBuilder setShutdownTimeout(Duration timeout) {
+        mShutdownTimeout = checkTimeout(timeout);
         return this;
     }
 
@@ -76,7 +620,10 @@ public class WebServerBuilder {
      * @return this builder instance to enable method chaining
      */
     public WebServerBuilder setErrorBody(String errorBody) {
-        mErrorBody = () -> new ByteArrayInputStream(errorBody.getBytes());
+        var bytes = errorBody.getBytes();
+        var response = new RouteResponse(RouteResponse.Status.ERROR, bytes, 0, bytes.length,
+            Map.of());
+        mErrorBody = () -> response;
         return this;
     }
 
@@ -88,13 +635,656 @@ public class WebServerBuilder {
      */
     public WebServerBuilder setErrorBody(File errorFile) {
         mErrorBody = () -> {
+            InputStream body;
             try {
-                return new FileInputStream(errorFile);
+                body = new FileInputStream(errorFile);
             } catch (FileNotFoundException ex) {
                 ex.printStackTrace();
-                return InputStream.nullInputStream();
+                body = InputStream.nullInputStream();
             }
+            return new RouteResponse(RouteResponse.Status.ERROR, 0, body, Map.of());
         };
         return this;
     }
+
+    /**
+     * Set the domain plain HTTP requests are redirected to.
+     * <p>
+     * This only matters with {@link #useHttp()}. Without a domain, requests are redirected to
+     * the host named in their Host header.
+     *
+     * @param domain the domain, such as {@code example.com}, or null to use the Host header
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the domain isn't a valid host name
+     */
+    public WebServerBuilder setDomain(String domain) {
+        if (domain != null && !domain.matches("[A-Za-z0-9]([A-Za-z0-9.-]*[A-Za-z0-9])?")) {
+            throw new IllegalArgumentException("Invalid domain: " + domain);
+        }
+        mDomain = domain;
+        return this;
+    }
+
+    /**
+     * Listen for plain HTTP on port 80 and redirect every request to HTTPS.
+     * <p>
+     * This is shorthand for {@code useHttp(80)}.
+     *
+     * @return this builder instance to enable method chaining
+     */
+    public WebServerBuilder useHttp() {
+        return useHttp(80);
+    }
+
+    /**
+     * Listen for plain HTTP on a port and redirect every request to the same path over HTTPS.
+     * <p>
+     * The listener is separate from the HTTPS server and very light: it reads only the request
+     * head, answers with a redirect whose bytes are mostly prepared up front, and closes the
+     * connection. No {@link RouteHandler} is ever called for these requests. Redirects go to the
+     * domain set with {@link #setDomain(String)}, on the HTTPS port.
+     *
+     * @param port the port to listen on
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the port is out of range
+     */
+    public WebServerBuilder useHttp(int port) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
+        mHttpPort = port;
+        return this;
+    }
+
+    /**
+     * Set the status plain HTTP requests are redirected with.
+     * <p>
+     * The default, {@link RouteResponse.Status#MOVED_PERMANENTLY}, is understood by every
+     * client, but clients may change a POST into a GET when following it.
+     * {@link RouteResponse.Status#PERMANENT_REDIRECT} keeps the method and body.
+     *
+     * @param status the status
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the status isn't a permanent redirect
+     */
+    public WebServerBuilder setHttpRedirectStatus(RouteResponse.Status status) {
+        if (status != RouteResponse.Status.MOVED_PERMANENTLY
+                && status != RouteResponse.Status.PERMANENT_REDIRECT) {
+            throw new IllegalArgumentException("Not a permanent redirect status: " + status);
+        }
+        mHttpRedirectStatus = status;
+        return this;
+    }
+
+    /**
+     * Send the Strict-Transport-Security header on every HTTPS response.
+     * <p>
+     * Browsers that have seen the header go straight to HTTPS for the domain until it expires,
+     * so returning visitors skip the plain HTTP request and its redirect. The header is off by
+     * default, since a browser that has seen it can't reach the site over plain HTTP until it
+     * expires.
+     * <p>
+     * Preloading asks for the domain to be built into browsers, so even first visits use HTTPS.
+     * It requires including subdomains and a maximum age of at least a year.
+     *
+     * @param maxAge how long browsers should remember to use HTTPS, rounded down to whole
+     *     seconds, or null to not send the header
+     * @param includeSubdomains whether the policy also covers every subdomain
+     * @param preload whether to allow the domain onto browsers' preload lists
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if maxAge is negative, or preload is requested without
+     *     including subdomains or with a maximum age under a year
+     */
+    public WebServerBuilder setHsts(Duration maxAge, boolean includeSubdomains,
+            boolean preload) {
+        if (maxAge == null) {
+            mHsts = null;
+            return this;
+        }
+        if (maxAge.isNegative()) {
+            throw new IllegalArgumentException("The HSTS max age can't be negative.");
+        }
+        if (preload && (!includeSubdomains || maxAge.compareTo(HSTS_PRELOAD_MIN_AGE) < 0)) {
+            throw new IllegalArgumentException(
+                "HSTS preload needs subdomains included and a max age of at least a year.");
+        }
+        var hsts = new StringBuilder("max-age=").append(maxAge.toSeconds());
+        if (includeSubdomains) {
+            hsts.append("; includeSubDomains");
+        }
+        if (preload) {
+            hsts.append("; preload");
+        }
+        mHsts = hsts.toString();
+        return this;
+    }
+
+    /**
+     * Set the strategy for creating the executor that runs requests.
+     *
+     * @param executorStrategy the strategy, such as {@link ExecutorStrategy#fixedPool()}
+     * @return this builder instance to enable method chaining
+     */
+    public WebServerBuilder setExecutorStrategy(ExecutorStrategy executorStrategy) {
+        mExecutorStrategy = executorStrategy;
+        return this;
+    }
+
+    /**
+     * Run each request on its own virtual thread.
+     * <p>
+     * This is a shortcut for setting {@link ExecutorStrategy#virtualThreads()}. It lets handlers
+     * that block on I/O serve far more concurrent requests than there are processors.
+     *
+     * @return this builder instance to enable method chaining
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    public WebServerBuilder useVirtualThreads() {
+        return setExecutorStrategy(ExecutorStrategy.virtualThreads());
+    }
+
+    /**
+     * Set the most requests that may wait for a thread at once.
+     * <p>
+     * Requests that arrive while the queue is full are answered with a 503 and a Retry-After
+     * header without calling their {@link RouteHandler}. By default the queue is unbounded.
+     *
+     * @param maxQueuedRequests the queue bound
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if maxQueuedRequests is less than 1
+     */
+    public WebServerBuilder setMaxQueuedRequests(int maxQueuedRequests) {
+        if (maxQueuedRequests < 1) {
+            throw new IllegalArgumentException("The queue must hold at least one request.");
+        }
+        mMaxQueuedRequests = maxQueuedRequests;
+        return this;
+    }
+
+    /**
+     * Set the longest a request may wait for a thread and still be handled.
+     * <p>
+     * A request that waited longer is answered with a 503 and a Retry-After header without
+     * calling its {@link RouteHandler}, since its client has likely given up on it already. By
+     * default requests wait as long as it takes.
+     *
+     * @param maxQueueWait the longest wait
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if maxQueueWait is null or negative
+     */
+    public WebServerBuilder setMaxQueueWait(Duration maxQueueWait) {
+        if (maxQueueWait == null || maxQueueWait.isNegative()) {
+            throw new IllegalArgumentException("The queue wait can't be null or negative.");
+        }
+        mMaxQueueWait = maxQueueWait;
+        return this;
+    }
+
+    /**
+     * Set how long clients are told to wait before retrying a request that was shed.
+     * <p>
+     * This is sent in the Retry-After header, rounded down to whole seconds but never less than
+     * one. The default is one second.
+     *
+     * @param retryAfter the time clients should wait
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if retryAfter is null or negative
+     */
+    public WebServerBuilder setRetryAfter(Duration retryAfter) {
+        if (retryAfter == null || retryAfter.isNegative()) {
+            throw new IllegalArgumentException("The retry delay can't be null or negative.");
+        }
+        mRetryAfter = retryAfter;
+        return this;
+    }
+
+    /**
+     * Set whether responses get compressed for clients that accept it.
+     * <p>
+     * Compression is on by default. It only applies to successful responses with a textual
+     * Content-Type, such as HTML, CSS, JavaScript or JSON, and a body that's big enough.
+     *
+     * @param enabled true to compress responses
+     * @return this builder instance to enable method chaining
+     */
+    public WebServerBuilder setCompression(boolean enabled) {
+        mCompressionEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Set the smallest response body worth compressing.
+     * <p>
+     * Bodies of unknown length are always compressed. The default is 1024 bytes.
+     *
+     * @param minSize the size in bytes
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if minSize is negative
+     */
+    public WebServerBuilder setCompressionMinSize(int minSize) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("The minimum size can't be negative.");
+        }
+        mCompressionMinSize = minSize;
+        return this;
+    }
+
+    /**
+     * Set the most TLS sessions the server keeps for clients to resume.
+     * <p>
+     * Resuming a session saves the client a full handshake when it reconnects. When the cache is
+     * full, the least recently used sessions make room. Sessions handed out as tickets aren't
+     * kept on the server, so they don't count against this. The default is 20480 sessions.
+     *
+     * @param size the most sessions to keep, or 0 for no limit
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if size is negative
+     */
+    public WebServerBuilder setTlsSessionCacheSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("The session cache size can't be negative.");
+        }
+        mTlsSessionCacheSize = size;
+        return this;
+    }
+
+    /**
+     * Set how long clients can resume a TLS session for after it was created.
+     * <p>
+     * This applies to cached sessions and session tickets alike. The default is 24 hours.
+     *
+     * @param timeout how long sessions last, rounded down to whole seconds, or zero for no limit
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if timeout is null or negative
+     */
+    public WebServerBuilder setTlsSessionTimeout(Duration timeout) {
+        if (timeout == null || timeout.isNegative()) {
+            throw new IllegalArgumentException("The session timeout can't be null or negative.");
+        }
+        mTlsSessionTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Set whether TLS sessions are handed to clients as stateless session tickets.
+     * <p>
+     * With tickets, which are on by default, the session is sealed and kept by the client, so
+     * the server remembers nothing per session and resumption works across any number of
+     * clients. Without them, sessions are kept in the server's session cache.
+     *
+     * @param enabled true to issue session tickets
+     * @return this builder instance to enable method chaining
+     */
+    public WebServerBuilder setTlsSessionTickets(boolean enabled) {
+        mTlsSessionTickets = enabled;
+        return this;
+    }
+
+    /**
+     * Set the network engine that accepts connections and parses HTTP.
+     * <p>
+     * The JDK's built-in server is used by default. Handlers work the same with any transport.
+     *
+     * @param transport the transport
+     * @return this builder instance to enable method chaining
+     */
+    public WebServerBuilder setTransport(Transport transport) {
+        mTransport = transport;
+        return this;
+    }
+
+    /**
+     * Serve the server's metrics in the Prometheus text format from a route.
+     * <p>
+     * The route answers GET requests with every measurement in {@link ServerMetrics}. It's
+     * off by default, since the numbers say a lot about the server and its routes. The same
+     * measurements are always available through JMX and {@link WebServer#getMetrics()}.
+     *
+     * @param route the route, such as {@code /metrics}, or null to not serve metrics
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed
+     */
+    public WebServerBuilder setMetricsRoute(String route) {
+        if (route != null) {
+            Router.validate(route);
+        }
+        mMetricsRoute = route;
+        return this;
+    }
+
+    /**
+     * Limit how fast each client may send requests to the server.
+     * <p>
+     * Every client address gets a token bucket holding up to burst requests, which refills at
+     * requestsPerSecond. A request that finds its client's bucket empty is answered with a 429
+     * whose Retry-After header says how many seconds until there's a token again, without
+     * calling its handler. This applies to every route, on top of any limit the route has of
+     * its own. By default clients aren't limited.
+     *
+     * @param requestsPerSecond how many requests per second a client may keep sending, or zero
+     *     for no limit
+     * @param burst how many requests a client may send at once after being quiet
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if requestsPerSecond is negative or not a number, or
+     *     burst is less than 1
+     */
+    public WebServerBuilder setRateLimit(double requestsPerSecond, int burst) {
+        mRateLimit = rate(requestsPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * Limit how fast each client may send requests to a route.
+     * <p>
+     * This works like {@link #setRateLimit(double, int)}, with buckets of the route's own. A
+     * request has to get past both the server's limit and the route's.
+     * <p>
+     * This can be called before or after the handler is set.
+     *
+     * @param route the route, as set with {@link #setHandler(String, RouteHandler)}
+     * @param requestsPerSecond how many requests per second a client may keep sending, or zero
+     *     for no limit
+     * @param burst how many requests a client may send at once after being quiet
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed, requestsPerSecond is negative
+     *     or not a number, or burst is less than 1
+     */
+    public WebServerBuilder setRateLimit(String route, double requestsPerSecond, int burst) {
+        Router.validate(route);
+        putRateLimit(route, rate(requestsPerSecond, burst));
+        return this;
+    }
+
+    /**
+     * Limit how fast each client may send requests to one method of a route.
+     * <p>
+     * This works like {@link #setRateLimit(String, double, int)} for a handler set with
+     * {@link #setHandler(RouteRequest.Method, String, RouteHandler)}.
+     *
+     * @param method the request method the handler takes
+     * @param route the route
+     * @param requestsPerSecond how many requests per second a client may keep sending, or zero
+     *     for no limit
+     * @param burst how many requests a client may send at once after being quiet
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if the route is malformed, requestsPerSecond is negative
+     *     or not a number, or burst is less than 1
+     */
+    public WebServerBuilder setRateLimit(RouteRequest.Method method, String route,
+            double requestsPerSecond, int burst) {
+        Router.validate(route);
+        putRateLimit(methodRouteKey(method, route), rate(requestsPerSecond, burst));
+        return this;
+    }
+
+    /**
+     * Set how long a request must take for the JDK Flight Recorder to record it.
+     * <p>
+     * While a recording is running, requests at least this slow are recorded as events in the
+     * "Web Server" category: one for the whole request, with its route, status and body bytes,
+     * and one for each phase it went through, from being picked up after waiting in the queue
+     * and running the handler to draining the request body and sending the response headers
+     * and body. Faster requests record nothing, so a continuous recording stays cheap. Keystore
+     * reloads are always recorded. The default is 20 milliseconds.
+     *
+     * @param threshold the shortest request to record, or zero to record every request
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if threshold is null or negative
+     */
+    public WebServerBuilder setSlowRequestThreshold(Duration threshold) {
+        if (threshold == null || threshold.isNegative()) {
+            throw new IllegalArgumentException("The threshold can't be null or negative.");
+        }
+        mSlowRequestThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Write an access log to a file, rotating it at 64 MiB or once a day, and dropping records
+     * rather than slowing requests down when the writer falls behind.
+     * <p>
+     * This is shorthand for {@code setAccessLog(file, 64 * 1024 * 1024, Duration.ofDays(1),
+     * false)}.
+     *
+     * @param file the log file, or null to not write an access log
+     * @return this builder instance to enable method chaining
+     */
+    public WebServerBuilder setAccessLog(File file) {
+        return setAccessLog(file, AccessLog.DEFAULT_ROTATE_BYTES,
+            AccessLog.DEFAULT_ROTATE_INTERVAL, false);
+    }
+
+    /**
+     * Write an access log to a file.
+     * <p>
+     * Every answered request is logged as a line of JSON with its time, client address, method,
+     * URI, protocol, status, body bytes each way, how long it took in microseconds and, over
+     * TLS, the protocol and cipher suite. Request threads only hand their records to a buffer;
+     * a background thread writes them to the file in batches, and prints the stack traces of
+     * failed handlers too. When the file reaches the size limit or has been written to for the
+     * rotation interval, it's renamed with the UTC time appended, such as
+     * {@code access.log.20240131-235959}, and a new file is started. Old files are left alone.
+     * <p>
+     * If the buffer fills up because the disk can't keep up, records are dropped and counted in
+     * {@link ServerMetrics#getAccessLogDropped()}, unless blockWhenFull is set, in which case
+     * requests wait for room. By default there's no access log, and handler failures are still
+     * printed from the background thread.
+     *
+     * @param file the log file, or null to not write an access log
+     * @param rotateBytes the size at which the file is rotated, or zero for no limit
+     * @param rotateInterval how long a file is written to before it's rotated, or null or zero
+     *     for no limit
+     * @param blockWhenFull true to make requests wait when the buffer is full, false to drop
+     *     their records
+     * @return this builder instance to enable method chaining
+     * @throws IllegalArgumentException if rotateBytes or rotateInterval is negative
+     */
+    public WebServerBuilder setAccessLog(File file, long rotateBytes, Duration rotateInterval,
+            boolean blockWhenFull) {
+        if (rotateBytes < 0) {
+            throw new IllegalArgumentException("The rotation size can't be negative.");
+        }
+        mAccessLogFile = file;
+        mAccessLogRotateBytes = rotateBytes;
+        mAccessLogRotateInterval = rotateInterval == null ? Duration.ZERO
+            : checkTimeout(rotateInterval);
+        mAccessLogBlockWhenFull = blockWhenFull;
+        return this;
+    }
+
+    /**
+     * Use the non-blocking transport with one event loop per available processor.
+     * <p>
+     * This is shorthand for {@code setTransport(Transport.nio())}.
+     *
+     * @return this builder instance to enable method chaining
+     */
+    public WebServerBuilder useNioTransport() {
+        return setTransport(Transport.nio());
+    }
+
+    /**
+     * Validate and store the cache policy for a route.
+     *
+     * @param key the key the route's settings are stored under
+     * @param ttl how long a response is fresh, or null to stop caching the route
+     * @param staleWhileRevalidate how long a stale response may be sent, or null
+     * @param maxBytes the most response body bytes to keep
+     * @param keyHeaders the request headers whose values tell responses apart
+     * @throws IllegalArgumentException if a duration or maxBytes is negative
+     */
+    private void putResponseCache(String key, Duration ttl, Duration staleWhileRevalidate,
+            long maxBytes, String[] keyHeaders) {
+        if (ttl == null) {
+            mRouteCaches.remove(key);
+            return;
+        }
+        var stale = staleWhileRevalidate == null ? Duration.ZERO : staleWhileRevalidate;
+        if (ttl.isNegative() || stale.isNegative()) {
+            throw new IllegalArgumentException("Cache durations can't be negative.");
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("The cache size can't be negative.");
+        }
+        mRouteCaches.put(key, new ResponseCache.Policy(ttl.toNanos(), stale.toNanos(), maxBytes,
+            keyHeaders.clone()));
+    }
+
+    /**
+     * Validate and store the handler deadline for a route.
+     *
+     * @param key the key the route's settings are stored under
+     * @param deadline how long the handler may take, zero for no limit, or null for the default
+     * @throws IllegalArgumentException if the deadline is negative
+     */
+    private void putDeadline(String key, Duration deadline) {
+        if (deadline == null) {
+            mRouteDeadlines.remove(key);
+        } else {
+            mRouteDeadlines.put(key, checkDeadline(deadline));
+        }
+    }
+
+    /**
+     * Give a route's handler its deadline, if it has one.
+     *
+     * @param handler the handler
+     * @param key the key the route's settings are stored under
+     * @return the handler to give the route
+     */
+    private RouteHandler deadline(RouteHandler handler, String key) {
+        var deadline = mRouteDeadlines.getOrDefault(key, mHandlerDeadline);
+        if (deadline == null || deadline.isZero() || handler instanceof AsyncRoute
+                || handler instanceof EventStreamRoute) {
+            return handler;
+        }
+        return new DeadlineRoute(handler, timeoutNanos(deadline));
+    }
+
+    /**
+     * Put a cache in front of a route's handler if one was set for it.
+     *
+     * @param handler the handler
+     * @param key the key the route's settings are stored under
+     * @param route the route's measurements
+     * @param metrics the server's measurements, where the cache is registered
+     * @param accessLog where the cache reports refreshes that failed
+     * @return the handler to give the route
+     */
+    private RouteHandler cache(RouteHandler handler, String key, RouteMetrics route,
+            ServerMetrics metrics, AccessLog accessLog) {
+        var policy = mRouteCaches.get(key);
+        if (policy == null || handler instanceof EventStreamRoute) {
+            return handler;
+        }
+        var cache = new ResponseCache(handler, policy, route, accessLog);
+        metrics.addCache(cache);
+        return cache;
+    }
+
+    /**
+     * Store the rate limit of a route.
+     *
+     * @param key the key the route's settings are stored under
+     * @param rate the rate limit, or null for none
+     */
+    private void putRateLimit(String key, RateLimiter.Rate rate) {
+        if (rate == null) {
+            mRouteRateLimits.remove(key);
+        } else {
+            mRouteRateLimits.put(key, rate);
+        }
+    }
+
+    /**
+     * Gather the rate limiters a route's requests are checked against, creating the route's
+     * own if it has one.
+     *
+     * @param server the server's limiter, or null if it has none
+     * @param key the key the route's settings are stored under, or null for only the server's
+     * @return the limiters, the server's first
+     */
+    private RateLimiter[] limiters(RateLimiter server, String key) {
+        var rate = key == null ? null : mRouteRateLimits.get(key);
+        var limiters = new ArrayList<RateLimiter>(2);
+        if (server != null) {
+            limiters.add(server);
+        }
+        if (rate != null) {
+            limiters.add(new RateLimiter(rate));
+        }
+        return limiters.toArray(new RateLimiter[0]);
+    }
+
+    /**
+     * Validate a rate limit.
+     *
+     * @param requestsPerSecond how fast a client's bucket refills, or zero for no limit
+     * @param burst how many requests a full bucket holds
+     * @return the rate limit, or null for none
+     * @throws IllegalArgumentException if requestsPerSecond is negative or not a number, or
+     *     burst is less than 1
+     */
+    private static RateLimiter.Rate rate(double requestsPerSecond, int burst) {
+        if (!(requestsPerSecond >= 0)) {
+            throw new IllegalArgumentException("The rate can't be negative.");
+        }
+        if (requestsPerSecond == 0) {
+            return null;
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("The burst must be at least 1.");
+        }
+        return new RateLimiter.Rate(requestsPerSecond, burst);
+    }
+
+    /**
+     * Check that a handler deadline isn't negative.
+     *
+     * @param deadline the deadline, or null
+     * @return the deadline
+     * @throws IllegalArgumentException if it's negative
+     */
+    private static Duration checkDeadline(Duration deadline) {
+        if (deadline != null && deadline.isNegative()) {
+            throw new IllegalArgumentException("The deadline can't be negative.");
+        }
+        return deadline;
+    }
+
+    /**
+     * Check that a timeout is set and isn't negative.
+     *
+     * @param timeout the timeout
+     * @return the timeout
+     * @throws IllegalArgumentException if it's null or negative
+     */
+    private static Duration checkTimeout(Duration timeout) {
+        if (timeout == null || timeout.isNegative()) {
+            throw new IllegalArgumentException("The timeout can't be null or negative.");
+        }
+        return timeout;
+    }
+
+    /**
+     * Convert a timeout to nanoseconds, capping ones too long to matter.
+     *
+     * @param timeout the timeout
+     * @return the timeout in nanoseconds, at most {@link ConnectionLimits#MAX_TIMEOUT_NANOS}
+     */
+    private static long timeoutNanos(Duration timeout) {
+        var max = Duration.ofNanos(ConnectionLimits.MAX_TIMEOUT_NANOS);
+        return timeout.compareTo(max) > 0 ? max.toNanos() : timeout.toNanos();
+    }
+
+    /**
+     * Get the key a method's handler for a route has its settings stored under.
+     *
+     * @param method the request method
+     * @param route the route
+     * @return the key, which can't clash with a plain route since those start with a slash
+     */
+    private static String methodRouteKey(RouteRequest.Method method, String route) {
+        return method.name() + " " + route;
+    }
 }
@@ -1,4 +1,6 @@
 module com.dylantjohnson.webserver {
+    requires java.management;
     requires jdk.httpserver;
+    requires jdk.jfr;
     exports com.dylantjohnson.webserver;
 }